@@ -0,0 +1,150 @@
+package com.m5c.safesockets;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two benchmark runs, saved by JMH as CSV (-rf csv -rff file.csv),
+ * and prints the change of every benchmark present in both. A change counts
+ * as regression if the candidate is worse by more than the threshold and the
+ * error intervals of both scores do not overlap (throughput: lower is worse,
+ * all time based modes: higher is worse). Exits with 1 if there is a
+ * regression, so it can fail a build.
+ *
+ * java -cp target/benchmarks.jar com.m5c.safesockets.BenchmarkComparison
+ * baseline.csv candidate.csv [threshold in %, default 5]
+ *
+ * @author m5c
+ */
+public class BenchmarkComparison
+{
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2) {
+            System.err.println("Usage: BenchmarkComparison baseline.csv candidate.csv [threshold %]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.05;
+        Map<String, Result> baseline = read(args[0]);
+        Map<String, Result> candidate = read(args[1]);
+
+        int regressions = 0;
+        System.out.println(String.format("%-90s %14s %14s %9s", "Benchmark", "Baseline", "Candidate", "Change"));
+        for (Map.Entry<String, Result> entry : candidate.entrySet()) {
+            Result before = baseline.get(entry.getKey());
+            if (before == null)
+                continue;
+            Result after = entry.getValue();
+            double change = (after.score - before.score) / before.score;
+            // Positive if the candidate is worse
+            double worsening = after.higherIsBetter() ? -change : change;
+            boolean overlapping = after.high() >= before.low() && after.low() <= before.high();
+            String verdict = "";
+            if (worsening > threshold && !overlapping) {
+                verdict = "  REGRESSION";
+                regressions++;
+            }
+            else if (-worsening > threshold && !overlapping)
+                verdict = "  improvement";
+            System.out.println(String.format("%-90s %14.3f %14.3f %+8.1f%%%s", entry.getKey() + " [" + after.unit + "]", before.score, after.score, change * 100, verdict));
+        }
+        System.out.println(regressions + " regression(s), threshold " + threshold * 100 + " %.");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * Results by benchmark name, mode, threads and parameters.
+     */
+    private static Map<String, Result> read(String file) throws IOException
+    {
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            List<String> header = parseLine(reader.readLine());
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+                List<String> fields = parseLine(line);
+                StringBuilder key = new StringBuilder(fields.get(0).replace("com.m5c.safesockets.", ""));
+                key.append(' ').append(fields.get(1)).append(" threads=").append(fields.get(2));
+                for (int i = 7; i < fields.size(); i++) {
+                    if (!fields.get(i).isEmpty())
+                        key.append(' ').append(header.get(i).replace("Param: ", "")).append('=').append(fields.get(i));
+                }
+                results.put(key.toString(), new Result(fields.get(1), Double.parseDouble(fields.get(4)), Double.parseDouble(fields.get(5)), fields.get(6)));
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    /**
+     * Splits a CSV line as written by JMH (fields optionally quoted, no
+     * quotes within fields).
+     */
+    private static List<String> parseLine(String line)
+    {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"')
+                quoted = !quoted;
+            else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else
+                field.append(c);
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static class Result
+    {
+
+        private final String mode;
+        private final double score;
+        private final double error;
+        private final String unit;
+
+        Result(String mode, double score, double error, String unit)
+        {
+            this.mode = mode;
+            this.score = score;
+            // Single iterations have no error estimate
+            this.error = Double.isNaN(error) ? 0 : error;
+            this.unit = unit;
+        }
+
+        boolean higherIsBetter()
+        {
+            return "thrpt".equals(mode);
+        }
+
+        double low()
+        {
+            return score - error;
+        }
+
+        double high()
+        {
+            return score + error;
+        }
+
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fan-out of one message to many loopback connections, until all have ACKed:
+ * one sendMessageAsync per recipient vs. a Broadcast, by message size.
+ *
+ * @author m5c
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark
+{
+
+    private static final int PERIOD = 1000;
+    private static final int TIMEOUT = 5000;
+
+    @Param({"64"})
+    public int recipients;
+
+    @Param({"100", "10000"})
+    public int messageSize;
+
+    private SafeSocketServer server;
+    private final List<SafeSocket> clients = new ArrayList<SafeSocket>();
+    private final List<SafeSocket> accepted = Collections.synchronizedList(new ArrayList<SafeSocket>());
+    private String message;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException
+    {
+        server = new SafeSocketServer(0, PERIOD, TIMEOUT, new ArrayList<MessageObserver>(), new ArrayList<BreakdownObserver>(), new ConnectionObserver()
+        {
+            @Override
+            public void notifyConnectionObserver(SafeSocket safeSocket)
+            {
+                accepted.add(safeSocket);
+            }
+        });
+        for (int i = 0; i < recipients; i++) {
+            clients.add(new SafeSocket("localhost", server.getLocalPort(), PERIOD, TIMEOUT, new ArrayList<MessageObserver>(), new ArrayList<BreakdownObserver>()));
+        }
+        while (accepted.size() < recipients) {
+            Thread.sleep(10);
+        }
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < messageSize) {
+            sb.append('x');
+        }
+        message = sb.toString();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        for (SafeSocket client : clients) {
+            client.close();
+        }
+        server.close();
+    }
+
+    @Benchmark
+    public boolean individual()
+    {
+        List<CompletableFuture<Boolean>> acks = new ArrayList<CompletableFuture<Boolean>>(recipients);
+        for (SafeSocket recipient : accepted) {
+            acks.add(recipient.sendMessageAsync(message));
+        }
+        boolean all = true;
+        for (CompletableFuture<Boolean> ack : acks) {
+            all &= ack.join();
+        }
+        return all;
+    }
+
+    @Benchmark
+    public boolean broadcast()
+    {
+        return Broadcast.send(accepted, message).awaitAll();
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.m5c.safesockets;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hand-over of received messages from the reader to the MessageObservers
+ * (ObserverDispatcher), including the delivery on the observer threads: each
+ * invocation dispatches a batch and waits until all observers have seen it.
+ * By amount of observers, partitions (1 = plain in order dispatch) and the
+ * work an observer does per message (partitions only pay off with some). See
+ * ThreadDispatchBenchmark for the former thread per notification model.
+ *
+ * @author m5c
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark
+{
+
+    private static final int BATCH = 1000;
+
+    @Param({"1", "4"})
+    public int observers;
+
+    @Param({"1", "8"})
+    public int partitions;
+
+    @Param({"0", "100"})
+    public int workMicros;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private long dispatched = 0;
+    private ObserverDispatcher dispatcher;
+    private String[] messages;
+
+    @Setup
+    public void setUp()
+    {
+        Collection<MessageObserver> messageObservers = new ArrayList<MessageObserver>();
+        for (int i = 0; i < observers; i++) {
+            messageObservers.add(new MessageObserver()
+            {
+                @Override
+                public void notifyMessageObserver(SafeSocket safeSocket, String message)
+                {
+                    if (workMicros > 0)
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(workMicros));
+                    delivered.incrementAndGet();
+                }
+            });
+        }
+        SafeSocketOptions options = new SafeSocketOptions();
+        if (partitions > 1) {
+            options.setPartitionedDispatch(new MessageKeyExtractor()
+            {
+                @Override
+                public Object extractKey(String message)
+                {
+                    return message.substring(0, message.indexOf(':'));
+                }
+            }, partitions);
+        }
+        dispatcher = new ObserverDispatcher(null, messageObservers, options);
+        messages = new String[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            messages[i] = "key" + (i % 64) + ": message " + i;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void dispatch()
+    {
+        for (String message : messages) {
+            dispatcher.dispatch(message);
+        }
+        dispatched += (long) BATCH * observers;
+        while (delivered.get() < dispatched) {
+            Thread.yield();
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Transfer of a file over a loopback connection, until the receiver has
+ * written it. Sockets accepted by a SafeSocketServer are channel based and
+ * send without copying (FileChannel.transferTo), client sockets copy the
+ * content through the stream.
+ *
+ * @author m5c
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileTransferBenchmark
+{
+
+    private static final int PERIOD = 1000;
+    private static final int TIMEOUT = 5000;
+
+    @Param({"20971520"})
+    public int fileSize;
+
+    // Whether the server side (zero-copy) or the client side (copying) sends
+    @Param({"true", "false"})
+    public boolean zeroCopy;
+
+    private Path file;
+    private Path target;
+    private SafeSocketServer server;
+    private SafeSocket client;
+    private final List<SafeSocket> accepted = Collections.synchronizedList(new ArrayList<SafeSocket>());
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException
+    {
+        file = Files.createTempFile("benchmark-", ".bin");
+        byte[] content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        Files.write(file, content);
+        target = Files.createTempFile("received-", ".bin");
+
+        SafeSocketOptions options = new SafeSocketOptions().setWireFormat(WireFormat.FRAMED).setFileObserver(new FileObserver()
+        {
+            @Override
+            public FileChannel openFile(SafeSocket safeSocket, String name, long size) throws IOException
+            {
+                return FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+
+            @Override
+            public void notifyFileReceived(SafeSocket safeSocket, String name, FileChannel channel)
+            {
+                try {
+                    channel.close();
+                }
+                catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        server = new SafeSocketServer(0, PERIOD, TIMEOUT, new ArrayList<MessageObserver>(), new ArrayList<BreakdownObserver>(), new DefaultFilter(), new DefaultFilter(), options, new ConnectionObserver()
+        {
+            @Override
+            public void notifyConnectionObserver(SafeSocket safeSocket)
+            {
+                accepted.add(safeSocket);
+            }
+        });
+        client = new SafeSocket("localhost", server.getLocalPort(), PERIOD, TIMEOUT, new ArrayList<MessageObserver>(), new ArrayList<BreakdownObserver>(), new DefaultFilter(), new DefaultFilter(), options);
+        while (accepted.isEmpty()) {
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        if (!client.isSocketAlive())
+            throw new IllegalStateException("Connection broke down during the benchmark.");
+        client.close();
+        server.close();
+        Files.delete(file);
+        Files.delete(target);
+    }
+
+    @Benchmark
+    public boolean transfer() throws IOException
+    {
+        SafeSocket sender = zeroCopy ? accepted.get(0) : client;
+        return sender.sendFile(file);
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Blocking sends of eight threads over a loopback SafeSocketGroup, by amount
+ * of stripes and stripe policy (1 stripe = a single SafeSocket).
+ *
+ * @author m5c
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GroupSendBenchmark
+{
+
+    private static final int PERIOD = 1000;
+    private static final int TIMEOUT = 5000;
+
+    @Param({"1", "4"})
+    public int stripes;
+
+    @Param({"ROUND_ROBIN", "LEAST_IN_FLIGHT"})
+    public StripePolicy policy;
+
+    private SafeSocketServer server;
+    private SafeSocketGroup group;
+    private final List<SafeSocket> accepted = Collections.synchronizedList(new ArrayList<SafeSocket>());
+    private final String message = "A message of moderate length, as sent by the benchmark";
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException
+    {
+        server = new SafeSocketServer(0, PERIOD, TIMEOUT, new ArrayList<MessageObserver>(), new ArrayList<BreakdownObserver>(), new ConnectionObserver()
+        {
+            @Override
+            public void notifyConnectionObserver(SafeSocket safeSocket)
+            {
+                accepted.add(safeSocket);
+            }
+        });
+        group = new SafeSocketGroup("localhost", server.getLocalPort(), stripes, policy, PERIOD, TIMEOUT, new ArrayList<MessageObserver>(), new ArrayList<BreakdownObserver>());
+        while (accepted.size() < stripes) {
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        if (group.getLiveStripes() < stripes)
+            throw new IllegalStateException("A stripe broke down during the benchmark.");
+        group.close();
+        server.close();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean send()
+    {
+        return group.sendMessage(message);
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of idle connections (heartbeats only), with and without a
+ * SafeSocketEngine: the threads, the heap and the CPU time they take. These
+ * are reported as secondary results (Cost), the primary score is merely the
+ * idle time each invocation waits. JMH sums secondary results of this kind
+ * up over the iterations, so there is a single one, long enough to average
+ * the CPU time over several heartbeats. Both ends of each connection live in
+ * this JVM, so every loopback connection counts as two.
+ *
+ * @author m5c
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IdleConnectionBenchmark
+{
+
+    private static final int PERIOD = 1000;
+    private static final int TIMEOUT = 3000;
+
+    private static final int IDLE_PERIODS = 5;
+
+    @Param({"false", "true"})
+    public boolean engine;
+
+    @Param({"200"})
+    public int connections;
+
+    private SafeSocketEngine safeSocketEngine;
+    private SafeSocketServer server;
+    private final List<SafeSocket> clients = new ArrayList<SafeSocket>();
+    private final List<SafeSocket> accepted = Collections.synchronizedList(new ArrayList<SafeSocket>());
+
+    // Measured once the connections have settled
+    private long threads;
+    private long heap;
+
+    /**
+     * Secondary results, per SafeSocket (i.e. per end of a connection).
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Cost
+    {
+
+        public long threadsTotal;
+        public long heapBytes;
+        public long cpuNanosPerSecond;
+
+    }
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException
+    {
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heapBefore = getUsedHeap();
+
+        SafeSocketOptions options = new SafeSocketOptions();
+        if (engine) {
+            safeSocketEngine = new SafeSocketEngine(2);
+            options.setEngine(safeSocketEngine);
+        }
+        server = new SafeSocketServer(0, PERIOD, TIMEOUT, new ArrayList<MessageObserver>(), new ArrayList<BreakdownObserver>(), new DefaultFilter(), new DefaultFilter(), options, new ConnectionObserver()
+        {
+            @Override
+            public void notifyConnectionObserver(SafeSocket safeSocket)
+            {
+                accepted.add(safeSocket);
+            }
+        });
+        for (int i = 0; i < connections; i++) {
+            clients.add(new SafeSocket("localhost", server.getLocalPort(), PERIOD, TIMEOUT, new ArrayList<MessageObserver>(), new ArrayList<BreakdownObserver>(), new DefaultFilter(), new DefaultFilter(), options));
+        }
+        while (accepted.size() < connections) {
+            Thread.sleep(10);
+        }
+
+        // Let the connections settle
+        Thread.sleep(PERIOD);
+        threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+        heap = getUsedHeap() - heapBefore;
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException
+    {
+        for (SafeSocket client : clients) {
+            if (!client.isSocketAlive())
+                throw new IllegalStateException("Idle connection broke down during the benchmark.");
+            client.close();
+        }
+        server.close();
+        if (safeSocketEngine != null)
+            safeSocketEngine.shutdown();
+    }
+
+    /**
+     * Waits a few heartbeat periods, measuring the CPU time taken meanwhile.
+     */
+    @Benchmark
+    public void idlePeriod(Cost cost) throws InterruptedException
+    {
+        long start = System.nanoTime();
+        long cpuStart = getProcessCpuTime();
+        Thread.sleep(IDLE_PERIODS * PERIOD);
+        long cpuNanos = getProcessCpuTime() - cpuStart;
+        long wallNanos = System.nanoTime() - start;
+
+        int safeSockets = connections * 2;
+        cost.threadsTotal = threads;
+        cost.heapBytes = heap / safeSockets;
+        cost.cpuNanosPerSecond = cpuNanos * TimeUnit.SECONDS.toNanos(1) / wallNanos / safeSockets;
+    }
+
+    private static long getUsedHeap() throws InterruptedException
+    {
+        System.gc();
+        Thread.sleep(200);
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long getProcessCpuTime()
+    {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.m5c.safesockets;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing of messages for their ACKs (AckMode.HASH), String and binary, by
+ * payload size [bytes].
+ *
+ * @author m5c
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Md5HasherBenchmark
+{
+
+    @Param({"16", "256", "4096", "65536"})
+    public int size;
+
+    private String message;
+    private ByteBuffer binaryMessage;
+
+    @Setup
+    public void setUp()
+    {
+        char[] content = new char[size];
+        Arrays.fill(content, 'x');
+        message = new String(content);
+        binaryMessage = ByteBuffer.allocate(size);
+    }
+
+    @Benchmark
+    public String hashString()
+    {
+        return Md5Hasher.getMessageHash(message);
+    }
+
+    @Benchmark
+    public String hashBinary()
+    {
+        return Md5Hasher.getMessageHash(binaryMessage, "\n" + InternalMessages.MESSAGE_DELIMITER + 42);
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.m5c.safesockets;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * JMH benchmark of the pending ACK bookkeeping under concurrent senders: each
+ * sender thread registers a message and resolves the one it sent WINDOW
+ * messages ago (as its ACK arrives), against the PendingTable and the
+ * synchronized LinkedHashMap it replaced. Run the main method to measure 1
+ * to 64 threads:
+ *
+ * java -cp target/benchmarks.jar com.m5c.safesockets.PendingTableBenchmark
+ *
+ * @author m5c
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class PendingTableBenchmark
+{
+
+    private static final int WINDOW = 16;
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    @Param({"pendingTable", "synchronizedMap"})
+    public String table;
+
+    private boolean usePendingTable;
+    private PendingTable pendingTable;
+    private Map<Integer, PendingMessage> synchronizedMap;
+
+    private final AtomicInteger threadCounter = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        usePendingTable = "pendingTable".equals(table);
+        pendingTable = new PendingTable();
+        synchronizedMap = Collections.synchronizedMap(new LinkedHashMap<Integer, PendingMessage>());
+    }
+
+    /**
+     * Ids of one sender thread, disjoint from those of the other threads.
+     */
+    @State(Scope.Thread)
+    public static class Sender
+    {
+
+        private final PendingMessage entry = new PendingMessage(null, null);
+        private int base;
+        private int counter = 0;
+
+        @Setup(Level.Trial)
+        public void setUp(PendingTableBenchmark benchmark)
+        {
+            base = benchmark.threadCounter.getAndIncrement() << 24;
+        }
+
+        int nextId()
+        {
+            counter = (counter + 1) & 0xFFFFFF;
+            return base | counter;
+        }
+
+    }
+
+    @Benchmark
+    public Object sendAndAck(Sender sender)
+    {
+        int id = sender.nextId();
+        int acked = (id & ~0xFFFFFF) | ((id - WINDOW) & 0xFFFFFF);
+        if (usePendingTable) {
+            pendingTable.put(PendingTable.key(PendingTable.MESSAGE, id), sender.entry);
+            return pendingTable.remove(PendingTable.key(PendingTable.MESSAGE, acked));
+        }
+        synchronizedMap.put(id, sender.entry);
+        return synchronizedMap.remove(acked);
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        for (int threads : THREADS) {
+            Options options = new OptionsBuilder()
+                    .include(PendingTableBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .forks(1)
+                    .warmupIterations(3)
+                    .warmupTime(TimeValue.seconds(1))
+                    .measurementIterations(5)
+                    .measurementTime(TimeValue.seconds(1))
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.m5c.safesockets;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The checks every TEXT message goes through: InternalMessages.isReserved per
+ * line (on the receiving side) and the sanity check of a whole message before
+ * it is sent (SafeSocket.saneMessageCheck), by amount of lines.
+ *
+ * @author m5c
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReservedPatternBenchmark
+{
+
+    private final String line = "An ordinary line of some user message";
+    private final String reservedLine = InternalMessages.HEART_BEAT + 42;
+
+    /**
+     * The message checked as a whole, by amount of lines.
+     */
+    @State(Scope.Benchmark)
+    public static class Message
+    {
+
+        @Param({"1", "16"})
+        public int lines;
+
+        private String content;
+
+        @Setup
+        public void setUp()
+        {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < lines; i++) {
+                if (i > 0)
+                    builder.append('\n');
+                builder.append("An ordinary line of some user message");
+            }
+            content = builder.toString();
+        }
+
+    }
+
+    /**
+     * Worst case for isReserved, all keywords are compared.
+     */
+    @Benchmark
+    public boolean isReservedMiss()
+    {
+        return InternalMessages.isReserved(line);
+    }
+
+    @Benchmark
+    public boolean isReservedHit()
+    {
+        return InternalMessages.isReserved(reservedLine);
+    }
+
+    @Benchmark
+    public boolean saneMessageCheck(Message message)
+    {
+        return SafeSocket.containsReservedLine(message.content);
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.m5c.safesockets;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Observers interested in one topic each: every message goes to all of them
+ * and they check the topic themselves (plain MessageObservers), or an
+ * ObserverRegistry routes it to the subscribers of its topic only. Each
+ * invocation dispatches a batch and waits until the interested observers
+ * have seen it. By amount of observers.
+ *
+ * @author m5c
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoutedDispatchBenchmark
+{
+
+    private static final int BATCH = 1000;
+    private static final int TOPICS = 4;
+
+    @Param({"8", "64"})
+    public int observers;
+
+    @Param({"false", "true"})
+    public boolean routed;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private long dispatched = 0;
+    private ObserverDispatcher dispatcher;
+    private String[] messages;
+
+    @Setup
+    public void setUp()
+    {
+        Collection<MessageObserver> messageObservers = new ArrayList<MessageObserver>();
+        ObserverRegistry registry = new ObserverRegistry();
+        for (int i = 0; i < observers; i++) {
+            final String topic = "topic" + i + ":";
+            MessageObserver observer = new MessageObserver()
+            {
+                @Override
+                public void notifyMessageObserver(SafeSocket safeSocket, String message)
+                {
+                    if (message.startsWith(topic))
+                        delivered.incrementAndGet();
+                }
+            };
+            if (routed)
+                registry.subscribe(topic, observer);
+            else
+                messageObservers.add(observer);
+        }
+        SafeSocketOptions options = new SafeSocketOptions();
+        if (routed)
+            options.setObserverRegistry(registry);
+        dispatcher = new ObserverDispatcher(null, messageObservers, options);
+        messages = new String[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            messages[i] = "topic" + (i % TOPICS) + ": message " + i;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void dispatch()
+    {
+        for (String message : messages) {
+            dispatcher.dispatch(message);
+        }
+        dispatched += BATCH;
+        while (delivered.get() < dispatched) {
+            Thread.yield();
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Blocking sendMessage over a loopback connection, i.e. a full round trip
+ * (send, receive, dispatch, ACK) per call. Throughput with one and with four
+ * concurrent senders, and the distribution of the time a sender waits for
+ * its ACK (sample mode reports p50, p99, p999). By wire format and ACK mode.
+ *
+ * @author m5c
+ */
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SendBenchmark
+{
+
+    // Heartbeats are not measured, the timeout only matters if something goes wrong
+    private static final int PERIOD = 1000;
+    private static final int TIMEOUT = 5000;
+
+    @Param({"TEXT", "FRAMED"})
+    public WireFormat wireFormat;
+
+    @Param({"HASH", "SEQUENCE"})
+    public AckMode ackMode;
+
+    private ServerSocket serverSocket;
+    private SafeSocket receiver;
+    private SafeSocket sender;
+    private final String message = "A message of moderate length, as sent by the benchmark";
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException, ExecutionException
+    {
+        final SafeSocketOptions options = new SafeSocketOptions().setWireFormat(wireFormat).setAckMode(ackMode);
+        serverSocket = new ServerSocket(0);
+        ExecutorService acceptor = Executors.newSingleThreadExecutor();
+        Future<SafeSocket> accepted = acceptor.submit(new Callable<SafeSocket>()
+        {
+            @Override
+            public SafeSocket call() throws IOException
+            {
+                return new SafeSocket(serverSocket, PERIOD, TIMEOUT, new ArrayList<MessageObserver>(), new ArrayList<BreakdownObserver>(), new DefaultFilter(), new DefaultFilter(), options);
+            }
+        });
+        sender = new SafeSocket("localhost", serverSocket.getLocalPort(), PERIOD, TIMEOUT, new ArrayList<MessageObserver>(), new ArrayList<BreakdownObserver>(), new DefaultFilter(), new DefaultFilter(), options);
+        receiver = accepted.get();
+        acceptor.shutdown();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        if (!sender.isSocketAlive())
+            throw new IllegalStateException("Connection broke down during the benchmark.");
+        sender.close();
+        serverSocket.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @Threads(1)
+    public boolean sendSingleThread()
+    {
+        return sender.sendMessage(message);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @Threads(4)
+    public boolean sendFourThreads()
+    {
+        return sender.sendMessage(message);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @Threads(1)
+    public boolean ackLatency()
+    {
+        return sender.sendMessage(message);
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.m5c.safesockets;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The former observer notification model, a new thread per message and
+ * observer, as baseline for DispatchBenchmark (same batch, same observers).
+ * Order is not kept by this model.
+ *
+ * @author m5c
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThreadDispatchBenchmark
+{
+
+    private static final int BATCH = 1000;
+
+    @Param({"1", "4"})
+    public int observers;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private long dispatched = 0;
+
+    private final MessageObserver observer = new MessageObserver()
+    {
+        @Override
+        public void notifyMessageObserver(SafeSocket safeSocket, String message)
+        {
+            delivered.incrementAndGet();
+        }
+    };
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void threadPerNotification()
+    {
+        for (int i = 0; i < BATCH; i++) {
+            final String message = "key" + (i % 64) + ": message " + i;
+            for (int j = 0; j < observers; j++) {
+                new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        observer.notifyMessageObserver(null, message);
+                    }
+                }).start();
+            }
+        }
+        dispatched += (long) BATCH * observers;
+        while (delivered.get() < dispatched) {
+            Thread.yield();
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Pipelined bursts of multi-line messages over a loopback connection, until
+ * all are ACKed, by wire format. Multi-line payloads are the worst case of
+ * the TEXT format (one delimiter check per line), FRAMED does not look at
+ * them. Add -prof gc for the allocations per message.
+ *
+ * @author m5c
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WireFormatBenchmark
+{
+
+    private static final int PERIOD = 1000;
+    private static final int TIMEOUT = 5000;
+
+    private static final int BURST = 200;
+
+    @Param({"TEXT", "FRAMED"})
+    public WireFormat wireFormat;
+
+    private ServerSocket serverSocket;
+    private SafeSocket sender;
+    private String payload;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException, ExecutionException
+    {
+        final SafeSocketOptions options = new SafeSocketOptions().setWireFormat(wireFormat).setMaxInFlightMessages(64);
+        serverSocket = new ServerSocket(0);
+        ExecutorService acceptor = Executors.newSingleThreadExecutor();
+        Future<SafeSocket> accepted = acceptor.submit(new Callable<SafeSocket>()
+        {
+            @Override
+            public SafeSocket call() throws IOException
+            {
+                return new SafeSocket(serverSocket, PERIOD, TIMEOUT, new ArrayList<MessageObserver>(), new ArrayList<BreakdownObserver>(), new DefaultFilter(), new DefaultFilter(), options);
+            }
+        });
+        sender = new SafeSocket("localhost", serverSocket.getLocalPort(), PERIOD, TIMEOUT, new ArrayList<MessageObserver>(), new ArrayList<BreakdownObserver>(), new DefaultFilter(), new DefaultFilter(), options);
+        accepted.get();
+        acceptor.shutdown();
+
+        StringBuilder payloadBuilder = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            payloadBuilder.append("Some line of a multi-line payload, line number ").append(i).append('\n');
+        }
+        payload = payloadBuilder.toString().trim();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        if (!sender.isSocketAlive())
+            throw new IllegalStateException("Connection broke down during the benchmark.");
+        sender.close();
+        serverSocket.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public boolean burst()
+    {
+        List<CompletableFuture<Boolean>> acks = new ArrayList<CompletableFuture<Boolean>>(BURST);
+        for (int i = 0; i < BURST; i++) {
+            acks.add(sender.sendMessageAsync(payload));
+        }
+        boolean acked = true;
+        for (CompletableFuture<Boolean> ack : acks) {
+            acked &= ack.join();
+        }
+        return acked;
+    }
+
+}
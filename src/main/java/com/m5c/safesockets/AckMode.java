@@ -0,0 +1,26 @@
+package com.m5c.safesockets;
+
+/**
+ * Tells how ACKs identify the message they acknowledge. Both ends of a
+ * connection must use the same ACK mode.
+ *
+ * @author m5c
+ */
+public enum AckMode
+{
+
+    /**
+     * ACKs carry the MD5 hash of the salted message. Correlation doubles as
+     * integrity check, but costs a hash of the full payload on both sides.
+     * Default, compatible with all former SafeSocket versions.
+     */
+    HASH,
+
+    /**
+     * ACKs carry the per-connection sequence number of the message. Constant
+     * cost, regardless of the payload size. Integrity checking can be enabled
+     * separately (see SafeSocketOptions.setIntegrityCheck).
+     */
+    SEQUENCE
+
+}
@@ -0,0 +1,25 @@
+package com.m5c.safesockets;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author m5c
+ */
+public interface BinaryMessageObserver extends MessageObserver
+{
+
+    /**
+     * Interface for message observers who also want to receive binary
+     * messages (sent with sendMessage(ByteBuffer / byte[])). Register them
+     * like any other MessageObserver. Observers not implementing this
+     * interface do not see binary messages.
+     *
+     * @param safeSocket, as a reference to the caller (facilitates distinction
+     * when maintaining multiple connections)
+     * @param message, read-only view on the received payload (no copy). Valid
+     * as long as referenced.
+     */
+    public void notifyBinaryMessageObserver(SafeSocket safeSocket, ByteBuffer message);
+
+}
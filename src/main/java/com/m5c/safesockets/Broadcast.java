@@ -0,0 +1,190 @@
+package com.m5c.safesockets;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends one message to many SafeSockets, preparing it only once: the message
+ * is checked, encoded (for each wire format in use), checksummed and hashed
+ * (all but the salt) a single time. The encodings are shared by all
+ * recipients and never modified, each connection only adds its frame header
+ * or delimiter line. Sending does not wait for any ACK, the returned
+ * BroadcastResult tells who ACKed, who timed out and whose connection broke
+ * down.
+ *
+ * Recipients with a custom outbound filter get the message through their
+ * filter (the filter may modify it, so it is encoded for them individually).
+ * Sending never waits for a single recipient: one whose send window is full,
+ * who has no flow control credit left (see
+ * SafeSocketOptions.setMaxInFlightMessages and setReceiveWindow) or whose
+ * connection does not take anything currently is skipped, and reported as
+ * such by the BroadcastResult.
+ *
+ * @author m5c
+ */
+public final class Broadcast
+{
+
+    // Exactly one of both is set
+    private final String message;
+    private final byte[] binaryPayload;
+
+    // Identifies the message in timeout reports, without copying it
+    private final String description;
+
+    // Encodings, computed on first use, then shared by all recipients
+    private byte[] utf8Payload;
+    private byte[] textPayload;
+    private long checksum = MessageChecksum.NONE;
+    private MessageDigest hashPrefix;
+
+    private Broadcast(String message, byte[] binaryPayload)
+    {
+        this.message = message;
+        this.binaryPayload = binaryPayload;
+        description = "broadcast of " + (binaryPayload != null ? binaryPayload.length + " bytes" : message.length() + " chars");
+    }
+
+    /**
+     * Sends the message to all recipients, see SafeSocket.sendMessageAsync.
+     * Recipients whose connection is down are reported as broken down, those
+     * that would have blocked as skipped.
+     *
+     * @param recipients
+     * @param message
+     * @return the ACK futures of all recipients, and their summary
+     */
+    public static BroadcastResult send(Collection<SafeSocket> recipients, String message)
+    {
+        if (message == null || message.trim().isEmpty())
+            throw new RuntimeException("Sending of null / whitespace messages not allowed.");
+
+        // Checked once for all TEXT recipients, instead of once per recipient
+        for (SafeSocket recipient : recipients) {
+            if (recipient.getWireFormat() == WireFormat.TEXT) {
+                if (SafeSocket.containsReservedLine(message))
+                    throw new RuntimeException("Broadcast message colliding patterns reserved for internal safeSocket communication: " + message);
+                break;
+            }
+        }
+        return new Broadcast(message, null).sendTo(recipients);
+    }
+
+    /**
+     * Sends the binary message to all recipients, see
+     * SafeSocket.sendMessageAsync(ByteBuffer). All of them must use
+     * WireFormat.FRAMED.
+     *
+     * @param recipients
+     * @param message: the bytes between position and limit are sent (copied
+     * once), the position is not modified.
+     * @return the ACK futures of all recipients, and their summary
+     */
+    public static BroadcastResult send(Collection<SafeSocket> recipients, ByteBuffer message)
+    {
+        if (message == null)
+            throw new RuntimeException("Sending of null messages not allowed.");
+        for (SafeSocket recipient : recipients) {
+            if (recipient.getWireFormat() != WireFormat.FRAMED)
+                throw new IllegalStateException("Binary messages require WireFormat.FRAMED.");
+        }
+        byte[] payload = new byte[message.remaining()];
+        message.duplicate().get(payload);
+        return new Broadcast(null, payload).sendTo(recipients);
+    }
+
+    private BroadcastResult sendTo(Collection<SafeSocket> recipients)
+    {
+        Map<SafeSocket, CompletableFuture<Boolean>> acks = new LinkedHashMap<SafeSocket, CompletableFuture<Boolean>>();
+        Set<SafeSocket> skipped = Collections.newSetFromMap(new IdentityHashMap<SafeSocket, Boolean>());
+        for (SafeSocket recipient : recipients) {
+            CompletableFuture<Boolean> ack = recipient.sendBroadcast(this);
+            if (ack == null) {
+                skipped.add(recipient);
+                ack = CompletableFuture.completedFuture(false);
+            }
+            acks.put(recipient, ack);
+        }
+        return new BroadcastResult(acks, skipped);
+    }
+
+    boolean isBinary()
+    {
+        return binaryPayload != null;
+    }
+
+    String getMessage()
+    {
+        return message;
+    }
+
+    byte[] getBinaryPayload()
+    {
+        return binaryPayload;
+    }
+
+    /**
+     * Payload of FRAMED user messages.
+     */
+    synchronized byte[] getUtf8Payload()
+    {
+        if (utf8Payload == null)
+            utf8Payload = message.getBytes(StandardCharsets.UTF_8);
+        return utf8Payload;
+    }
+
+    /**
+     * The message and the line break preceding the delimiter line (TEXT
+     * format, default charset).
+     */
+    synchronized byte[] getTextPayload()
+    {
+        if (textPayload == null)
+            textPayload = (message + "\n").getBytes();
+        return textPayload;
+    }
+
+    /**
+     * Checksum for the integrity check (of the UTF-8 encoding, for String
+     * messages).
+     */
+    synchronized long getChecksum()
+    {
+        if (checksum == MessageChecksum.NONE)
+            checksum = MessageChecksum.compute(isBinary() ? binaryPayload : getUtf8Payload());
+        return checksum;
+    }
+
+    /**
+     * Same hash as a message sent individually with the given salt would
+     * have. Only the salt is hashed per recipient.
+     */
+    synchronized String getMessageHash(int salt)
+    {
+        if (hashPrefix == null)
+            hashPrefix = Md5Hasher.digestPrefix(isBinary() ? binaryPayload : message.getBytes());
+        return Md5Hasher.getMessageHash(hashPrefix, "\n" + InternalMessages.MESSAGE_DELIMITER + salt);
+    }
+
+    /**
+     * Size for flow control: chars of String messages, bytes of binary ones.
+     */
+    long getSize()
+    {
+        return isBinary() ? binaryPayload.length : message.length();
+    }
+
+    String getDescription()
+    {
+        return description;
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.m5c.safesockets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * Outcome of a Broadcast: the ACK future of every recipient, and a summary of
+ * who has ACKed, who timed out (no ACK in time, the connection has been
+ * closed down), whose connection broke down otherwise (e.g. closed by the
+ * remote side, or already down when the broadcast was sent) and who has been
+ * skipped (the message was not sent to them, as it would have blocked). The
+ * ACK futures of skipped recipients are completed with false. The summaries
+ * are snapshots, recipients still waiting for their ACK are pending.
+ *
+ * @author m5c
+ */
+public class BroadcastResult
+{
+
+    private final Map<SafeSocket, CompletableFuture<Boolean>> acks;
+    private final Set<SafeSocket> skipped;
+    private final CompletableFuture<BroadcastResult> completion;
+
+    BroadcastResult(Map<SafeSocket, CompletableFuture<Boolean>> acks, Set<SafeSocket> skipped)
+    {
+        this.acks = Collections.unmodifiableMap(acks);
+        this.skipped = skipped;
+        completion = CompletableFuture.allOf(acks.values().toArray(new CompletableFuture<?>[acks.size()])).thenApply(new Function<Void, BroadcastResult>()
+        {
+            @Override
+            public BroadcastResult apply(Void ignored)
+            {
+                return BroadcastResult.this;
+            }
+        });
+    }
+
+    /**
+     * The ACK future of each recipient, in the order of the recipients.
+     */
+    public Map<SafeSocket, CompletableFuture<Boolean>> getAcks()
+    {
+        return acks;
+    }
+
+    /**
+     * The ACK future of the recipient, null if it was none.
+     */
+    public CompletableFuture<Boolean> getAck(SafeSocket recipient)
+    {
+        return acks.get(recipient);
+    }
+
+    /**
+     * Completes once every recipient has ACKed or failed.
+     */
+    public CompletableFuture<BroadcastResult> getCompletion()
+    {
+        return completion;
+    }
+
+    /**
+     * Blocks until every recipient has ACKed or failed.
+     *
+     * @return whether all recipients have ACKed
+     */
+    public boolean awaitAll()
+    {
+        try {
+            completion.get();
+        }
+        catch (InterruptedException ex) {
+            throw new RuntimeException();
+        }
+        catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+        return getAcked().size() == acks.size();
+    }
+
+    public List<SafeSocket> getAcked()
+    {
+        return select(Outcome.ACKED);
+    }
+
+    public List<SafeSocket> getTimedOut()
+    {
+        return select(Outcome.TIMED_OUT);
+    }
+
+    public List<SafeSocket> getBrokenDown()
+    {
+        return select(Outcome.BROKEN_DOWN);
+    }
+
+    public List<SafeSocket> getPending()
+    {
+        return select(Outcome.PENDING);
+    }
+
+    /**
+     * The recipients the message has not been sent to: their send window was
+     * full, they had no flow control credit left, or their connection did
+     * not take anything.
+     */
+    public List<SafeSocket> getSkipped()
+    {
+        return select(Outcome.SKIPPED);
+    }
+
+    @Override
+    public String toString()
+    {
+        int[] counts = new int[Outcome.values().length];
+        for (Map.Entry<SafeSocket, CompletableFuture<Boolean>> ack : acks.entrySet()) {
+            counts[outcome(ack.getKey(), ack.getValue()).ordinal()]++;
+        }
+        return counts[Outcome.ACKED.ordinal()] + " acked, " + counts[Outcome.TIMED_OUT.ordinal()] + " timed out, " + counts[Outcome.BROKEN_DOWN.ordinal()] + " broken down, " + counts[Outcome.PENDING.ordinal()] + " pending, " + counts[Outcome.SKIPPED.ordinal()] + " skipped";
+    }
+
+    private List<SafeSocket> select(Outcome wanted)
+    {
+        List<SafeSocket> selected = new ArrayList<SafeSocket>();
+        for (Map.Entry<SafeSocket, CompletableFuture<Boolean>> ack : acks.entrySet()) {
+            if (outcome(ack.getKey(), ack.getValue()) == wanted)
+                selected.add(ack.getKey());
+        }
+        return selected;
+    }
+
+    /**
+     * A missing ACK closes the connection down, so failed recipients are told
+     * apart by what broke their connection.
+     */
+    private Outcome outcome(SafeSocket recipient, CompletableFuture<Boolean> ack)
+    {
+        if (skipped.contains(recipient))
+            return Outcome.SKIPPED;
+        if (!ack.isDone())
+            return Outcome.PENDING;
+        if (ack.join())
+            return Outcome.ACKED;
+        if (recipient.getBreakdownCause() == TimeoutCause.MESSAGE_ACK)
+            return Outcome.TIMED_OUT;
+        return Outcome.BROKEN_DOWN;
+    }
+
+    private enum Outcome
+    {
+        ACKED, TIMED_OUT, BROKEN_DOWN, PENDING, SKIPPED
+    }
+
+}
@@ -0,0 +1,214 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Puts the records of all concurrent senders of a connection on the wire,
+ * with as few writes as possible. Each sender queues its record in the
+ * OutboundRing. Whoever finds the writer role free takes it, and writes
+ * everything queued so far in a single buffered write. Records queued while a
+ * write is in progress go out together with the next one. There is no linger
+ * time: A batch is written as soon as the previous write returns, so single
+ * messages are not delayed, while bursts are coalesced automatically.
+ *
+ * @author m5c
+ */
+class CoalescingWriter
+{
+
+    private static final int RING_CAPACITY = 1024;
+
+    // Max bytes per write. Larger records are written on their own.
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    private final OutputStream outputStream;
+
+    // The same connection as channel, if available (for zero-copy transfers). Null otherwise.
+    private final WritableByteChannel channel;
+
+    private final OutboundRing ring = new OutboundRing(RING_CAPACITY);
+
+    // Whether some thread currently holds the writer role
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    // Only used by the thread holding the writer role
+    private final byte[] batch = new byte[BATCH_SIZE];
+
+    // A write in progress for longer than this means the peer does not take anything
+    private static final long STALL_NANOS = 100 * 1000 * 1000;
+
+    // System.nanoTime() the current writer has taken its role
+    private volatile long writeStarted;
+
+    // System.nanoTime() of the last write (or of the creation)
+    private volatile long lastWritten = System.nanoTime();
+
+    // Bytes written so far. Only updated by the thread holding the writer role.
+    private volatile long bytesWritten = 0;
+
+    CoalescingWriter(OutputStream outputStream)
+    {
+        this(outputStream, null);
+    }
+
+    CoalescingWriter(OutputStream outputStream, WritableByteChannel channel)
+    {
+        this.outputStream = outputStream;
+        this.channel = channel;
+    }
+
+    /**
+     * Queues the record and makes sure it is written, either by this thread or
+     * by the one currently writing. Records go on the wire in the order their
+     * write calls started. Only blocks if the ring is full.
+     */
+    void write(byte[] record)
+    {
+        long sequence = ring.claim();
+        while (!ring.hasSpace(sequence)) {
+            // Ring full, help draining it
+            drain();
+            Thread.yield();
+        }
+        ring.publish(sequence, record);
+        drain();
+    }
+
+    /**
+     * Takes the writer role (waiting for the current writer to finish), writes
+     * what is queued and then lets the given write put its bytes on the wire
+     * directly. Used for content that shall not be copied into a record.
+     * Returns false if the write failed. Other than for records, the stream
+     * may then have been left in the middle of a frame.
+     */
+    boolean writeDirect(DirectWrite directWrite)
+    {
+        while (!writing.compareAndSet(false, true)) {
+            Thread.yield();
+        }
+        writeStarted = System.nanoTime();
+        boolean written = true;
+        try {
+            writeBatch();
+            long length = directWrite.write(outputStream, channel);
+            outputStream.flush();
+            lastWritten = System.nanoTime();
+            bytesWritten += length;
+        }
+        catch (IOException ex) {
+            written = false;
+        }
+        finally {
+            writing.set(false);
+        }
+        drain();
+        return written;
+    }
+
+    /**
+     * Returns once all records queued so far have been handed to the output
+     * stream. Writes are asynchronous for all but one of the concurrent
+     * senders, so this is required before the stream is closed.
+     */
+    void awaitWritten()
+    {
+        while (!ring.isEmpty() || writing.get()) {
+            drain();
+            Thread.yield();
+        }
+    }
+
+    /**
+     * When something has last been written (System.nanoTime()). Used to tell
+     * whether the connection has been idle.
+     */
+    long getLastWritten()
+    {
+        return lastWritten;
+    }
+
+    long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /**
+     * Whether a further write would likely block: the current write has been
+     * stuck for a while (the peer does not take anything), or the ring is
+     * filling up.
+     */
+    boolean isStalled()
+    {
+        return (writing.get() && System.nanoTime() - writeStarted > STALL_NANOS) || ring.size() > RING_CAPACITY / 2;
+    }
+
+    private void drain()
+    {
+        while (ring.hasNext() && writing.compareAndSet(false, true)) {
+            writeStarted = System.nanoTime();
+            try {
+                writeBatch();
+            }
+            catch (IOException ex) {
+                // Connection is closed or broken. Nothing to do here, a broken connection is detected by the reader and the ACK timeouts.
+            }
+            finally {
+                writing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes all records published so far, in batches of up to BATCH_SIZE
+     * bytes.
+     */
+    private void writeBatch() throws IOException
+    {
+        int length = 0;
+        boolean written = false;
+        long total = 0;
+        byte[] record;
+        while ((record = ring.poll()) != null) {
+            written = true;
+            total += record.length;
+            if (length + record.length > batch.length) {
+                if (length > 0) {
+                    outputStream.write(batch, 0, length);
+                    length = 0;
+                }
+                if (record.length > batch.length) {
+                    outputStream.write(record);
+                    continue;
+                }
+            }
+            System.arraycopy(record, 0, batch, length, record.length);
+            length += record.length;
+        }
+        if (length > 0)
+            outputStream.write(batch, 0, length);
+        if (written) {
+            outputStream.flush();
+            lastWritten = System.nanoTime();
+            bytesWritten += total;
+        }
+    }
+
+    /**
+     * Content written directly, by the thread holding the writer role.
+     */
+    interface DirectWrite
+    {
+
+        /**
+         * @param channel: same connection as the stream, or null if not
+         * available (the stream must then be used).
+         * @return the amount of bytes written
+         */
+        long write(OutputStream outputStream, WritableByteChannel channel) throws IOException;
+
+    }
+
+}
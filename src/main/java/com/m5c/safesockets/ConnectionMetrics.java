@@ -0,0 +1,243 @@
+package com.m5c.safesockets;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a single SafeSocket, see SafeSocket.getMetrics(). Also
+ * registered as MBean (com.m5c.safesockets:type=Connection,id=...) while the
+ * connection is alive. Counters are striped (LongAdder) and latencies go to
+ * lock free histograms, so concurrent senders and the reader never contend on
+ * them. Reading is lock free as well, but not atomic across values.
+ *
+ * @author m5c
+ */
+public class ConnectionMetrics implements ConnectionMetricsMBean
+{
+
+    private final SafeSocket safeSocket;
+
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder[] timeouts = new LongAdder[TimeoutCause.values().length];
+    private final LongAdder observerQueueOverflows = new LongAdder();
+
+    // Time from sending a message to the reception of its ACK, round trips of the heartbeats [ns]
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+    private final LatencyHistogram heartBeatRtt = new LatencyHistogram();
+    private volatile long lastHeartBeatRtt = -1;
+
+    ConnectionMetrics(SafeSocket safeSocket)
+    {
+        this.safeSocket = safeSocket;
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = new LongAdder();
+        }
+    }
+
+    void messageSent()
+    {
+        messagesSent.increment();
+    }
+
+    void messageReceived()
+    {
+        messagesReceived.increment();
+    }
+
+    void bytesReceived(int amount)
+    {
+        bytesReceived.add(amount);
+    }
+
+    void ackReceived(long latency)
+    {
+        ackLatency.record(latency);
+    }
+
+    void heartBeatAcked(long rtt)
+    {
+        heartBeatRtt.record(rtt);
+        lastHeartBeatRtt = rtt;
+    }
+
+    void timedOut(TimeoutCause cause)
+    {
+        timeouts[cause.ordinal()].increment();
+    }
+
+    void observerQueueOverflowed()
+    {
+        observerQueueOverflows.increment();
+    }
+
+    LatencyHistogram getAckLatency()
+    {
+        return ackLatency;
+    }
+
+    LatencyHistogram getHeartBeatRtt()
+    {
+        return heartBeatRtt;
+    }
+
+    @Override
+    public String getRemoteAddress()
+    {
+        return safeSocket.getRemoteAddress();
+    }
+
+    @Override
+    public boolean isAlive()
+    {
+        return safeSocket.isSocketAlive();
+    }
+
+    /**
+     * User messages (String and binary) handed to the wire.
+     */
+    @Override
+    public long getMessagesSent()
+    {
+        return messagesSent.sum();
+    }
+
+    /**
+     * User messages (String and binary) received.
+     */
+    @Override
+    public long getMessagesReceived()
+    {
+        return messagesReceived.sum();
+    }
+
+    /**
+     * Everything written to the socket, internal traffic and files included.
+     */
+    @Override
+    public long getBytesSent()
+    {
+        return safeSocket.getBytesSent();
+    }
+
+    /**
+     * Everything read from the socket, internal traffic and files included.
+     */
+    @Override
+    public long getBytesReceived()
+    {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * Messages and files sent but not yet ACKed.
+     */
+    @Override
+    public int getInFlightMessages()
+    {
+        return safeSocket.getInFlightMessages();
+    }
+
+    /**
+     * Time from sending a message to the reception of its ACK, at the given
+     * percentile (e.g. 0.99).
+     *
+     * @return [ms], 0 if no message has been ACKed yet
+     */
+    public double getAckLatency(double percentile)
+    {
+        return toMillis(ackLatency.getPercentile(percentile));
+    }
+
+    @Override
+    public double getAckLatencyP50()
+    {
+        return getAckLatency(0.5);
+    }
+
+    @Override
+    public double getAckLatencyP99()
+    {
+        return getAckLatency(0.99);
+    }
+
+    @Override
+    public double getAckLatencyP999()
+    {
+        return getAckLatency(0.999);
+    }
+
+    /**
+     * @return [ms], -1 if no heartbeat has been ACKed yet (always on the
+     * client side, which only answers heartbeats)
+     */
+    @Override
+    public double getLastHeartBeatRtt()
+    {
+        long rtt = lastHeartBeatRtt;
+        return rtt < 0 ? -1 : toMillis(rtt);
+    }
+
+    @Override
+    public double getHeartBeatRttP50()
+    {
+        return toMillis(heartBeatRtt.getPercentile(0.5));
+    }
+
+    @Override
+    public double getHeartBeatRttP99()
+    {
+        return toMillis(heartBeatRtt.getPercentile(0.99));
+    }
+
+    /**
+     * Tells whether (and why) the connection has timed out. Only the timeout
+     * breaking the connection is counted, so at most one cause is ever 1.
+     */
+    public long getTimeouts(TimeoutCause cause)
+    {
+        return timeouts[cause.ordinal()].sum();
+    }
+
+    @Override
+    public long getMessageAckTimeouts()
+    {
+        return getTimeouts(TimeoutCause.MESSAGE_ACK);
+    }
+
+    @Override
+    public long getHeartBeatAckTimeouts()
+    {
+        return getTimeouts(TimeoutCause.HEART_BEAT_ACK);
+    }
+
+    @Override
+    public long getHeartBeatTimeouts()
+    {
+        return getTimeouts(TimeoutCause.HEART_BEAT);
+    }
+
+    @Override
+    public long getFileAckTimeouts()
+    {
+        return getTimeouts(TimeoutCause.FILE_ACK);
+    }
+
+    /**
+     * Received messages an observer queue had no room for (see
+     * SafeSocketOptions.setObserverQueueLimit). The first one breaks the
+     * connection, so this is at most one.
+     */
+    @Override
+    public long getObserverQueueOverflows()
+    {
+        return observerQueueOverflows.sum();
+    }
+
+    static double toMillis(long nanos)
+    {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+}
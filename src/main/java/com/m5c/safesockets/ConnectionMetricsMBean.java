@@ -0,0 +1,47 @@
+package com.m5c.safesockets;
+
+/**
+ * JMX view of the metrics of a single SafeSocket. Durations are in ms.
+ *
+ * @author m5c
+ */
+public interface ConnectionMetricsMBean
+{
+
+    String getRemoteAddress();
+
+    boolean isAlive();
+
+    long getMessagesSent();
+
+    long getMessagesReceived();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    int getInFlightMessages();
+
+    double getAckLatencyP50();
+
+    double getAckLatencyP99();
+
+    double getAckLatencyP999();
+
+    double getLastHeartBeatRtt();
+
+    double getHeartBeatRttP50();
+
+    double getHeartBeatRttP99();
+
+    long getMessageAckTimeouts();
+
+    long getHeartBeatAckTimeouts();
+
+    long getHeartBeatTimeouts();
+
+    long getFileAckTimeouts();
+
+    long getObserverQueueOverflows();
+
+}
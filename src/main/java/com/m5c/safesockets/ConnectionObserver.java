@@ -0,0 +1,21 @@
+package com.m5c.safesockets;
+
+/**
+ *
+ * @author m5c
+ */
+public interface ConnectionObserver
+{
+
+    /**
+     * Interface for classes who want to be informed about new client
+     * connections of a SafeSocketServer. The server calls this method once the
+     * SafeSocket of a freshly accepted client is ready for communication.
+     * Calls for different clients may happen concurrently.
+     *
+     * @param safeSocket, the server side SafeSocket of the new client
+     * connection.
+     */
+    public void notifyConnectionObserver(SafeSocket safeSocket);
+
+}
@@ -0,0 +1,30 @@
+package com.m5c.safesockets;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the named daemon threads of the SafeSocket thread pools. Daemons,
+ * so idle pools never keep an application from exiting. Counted as helper
+ * threads by the MetricsRegistry.
+ *
+ * @author m5c
+ */
+class DaemonThreadFactory implements ThreadFactory
+{
+
+    private final String name;
+
+    DaemonThreadFactory(String name)
+    {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable)
+    {
+        Thread thread = new Thread(MetricsRegistry.track(runnable), name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
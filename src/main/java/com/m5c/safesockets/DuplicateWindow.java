@@ -0,0 +1,71 @@
+package com.m5c.safesockets;
+
+import java.util.BitSet;
+
+/**
+ * Receiver side duplicate suppression of a resumable session. Remembers the
+ * highest sequence number up to which all messages have been received (the
+ * floor) plus, in a ring of fixed size, which ones beyond it have arrived
+ * already. A sequence number more than one window ahead of the floor moves
+ * the window: the gaps it skips are then considered received. Not thread
+ * safe.
+ *
+ * @author m5c
+ */
+final class DuplicateWindow
+{
+
+    private final int size;
+    private final BitSet received;
+    private long floor = 0;
+
+    DuplicateWindow(int size)
+    {
+        this.size = size;
+        received = new BitSet(size);
+    }
+
+    /**
+     * Registers the sequence number (starting at 1).
+     *
+     * @return false if it has been received before
+     */
+    boolean accept(long sequence)
+    {
+        if (sequence <= floor)
+            return false;
+        if (sequence > floor + size)
+            advance(sequence - size);
+        int index = (int) (sequence % size);
+        if (received.get(index))
+            return false;
+        received.set(index);
+        while (received.get((int) ((floor + 1) % size))) {
+            floor++;
+            received.clear((int) (floor % size));
+        }
+        return true;
+    }
+
+    /**
+     * Up to (including) this sequence number, all messages have been
+     * received.
+     */
+    long getFloor()
+    {
+        return floor;
+    }
+
+    private void advance(long newFloor)
+    {
+        if (newFloor - floor >= size)
+            received.clear();
+        else {
+            for (long sequence = floor + 1; sequence <= newFloor; sequence++) {
+                received.clear((int) (sequence % size));
+            }
+        }
+        floor = newFloor;
+    }
+
+}
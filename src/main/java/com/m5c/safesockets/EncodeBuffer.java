@@ -0,0 +1,167 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reusable buffer a sending thread encodes its frames into (pooled send).
+ * Grows to the largest frame encoded so far, then no longer allocates. Also
+ * the direct write putting the encoded frame on the wire, so writing does not
+ * allocate either.
+ *
+ * @author m5c
+ */
+final class EncodeBuffer implements CoalescingWriter.DirectWrite
+{
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private int length = 0;
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Empties the buffer, making sure it can hold the given amount of bytes.
+     */
+    void reset(int capacity)
+    {
+        if (bytes.length < capacity)
+            bytes = new byte[Math.max(capacity, bytes.length * 2)];
+        length = 0;
+    }
+
+    void put(byte value)
+    {
+        bytes[length++] = value;
+    }
+
+    void putInt(int value)
+    {
+        bytes[length++] = (byte) (value >>> 24);
+        bytes[length++] = (byte) (value >>> 16);
+        bytes[length++] = (byte) (value >>> 8);
+        bytes[length++] = (byte) value;
+    }
+
+    void putLong(long value)
+    {
+        putInt((int) (value >>> 32));
+        putInt((int) value);
+    }
+
+    /**
+     * Overwrites an int written before.
+     */
+    void putInt(int position, int value)
+    {
+        int end = length;
+        length = position;
+        putInt(value);
+        length = end;
+    }
+
+    /**
+     * Copies the bytes between position and limit, without modifying the
+     * position.
+     */
+    void put(ByteBuffer source)
+    {
+        int amount = source.remaining();
+        if (source.hasArray())
+            System.arraycopy(source.array(), source.arrayOffset() + source.position(), bytes, length, amount);
+        else {
+            for (int i = 0; i < amount; i++) {
+                bytes[length + i] = source.get(source.position() + i);
+            }
+        }
+        length += amount;
+    }
+
+    /**
+     * Encodes the String as UTF-8, same result as getBytes(UTF_8) (malformed
+     * surrogates become '?').
+     */
+    void putUtf8(String value)
+    {
+        int count = value.length();
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80)
+                bytes[length++] = (byte) c;
+            else if (c < 0x800) {
+                bytes[length++] = (byte) (0xC0 | (c >> 6));
+                bytes[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+                    bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+                }
+                else
+                    bytes[length++] = '?';
+            }
+            else {
+                bytes[length++] = (byte) (0xE0 | (c >> 12));
+                bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Amount of bytes putUtf8 will encode the String to.
+     */
+    static int utf8Length(String value)
+    {
+        int count = value.length();
+        int utf8Length = 0;
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80)
+                utf8Length += 1;
+            else if (c < 0x800)
+                utf8Length += 2;
+            else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    utf8Length += 4;
+                    i++;
+                }
+                else
+                    utf8Length += 1;
+            }
+            else
+                utf8Length += 3;
+        }
+        return utf8Length;
+    }
+
+    /**
+     * CRC32 of the bytes from the given position to the end.
+     */
+    long checksum(int from)
+    {
+        crc.reset();
+        crc.update(bytes, from, length - from);
+        return crc.getValue();
+    }
+
+    int length()
+    {
+        return length;
+    }
+
+    @Override
+    public long write(OutputStream outputStream, WritableByteChannel channel) throws IOException
+    {
+        outputStream.write(bytes, 0, length);
+        return length;
+    }
+
+}
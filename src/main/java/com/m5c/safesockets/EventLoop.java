@@ -0,0 +1,121 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single thread of a SafeSocketEngine. Waits on one Selector for all attached
+ * connections and executes tasks handed in by other threads (registrations,
+ * flushes, closes), so channels and selection keys are only ever touched by
+ * this thread.
+ *
+ * @author m5c
+ */
+class EventLoop extends Thread
+{
+
+    // Size of the read buffer, shared by all connections of the loop (decoders copy what they keep)
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private volatile boolean running = true;
+
+    EventLoop(String name) throws IOException
+    {
+        super(name);
+        setDaemon(true);
+        selector = Selector.open();
+    }
+
+    Selector getSelector()
+    {
+        return selector;
+    }
+
+    /**
+     * Runs the task on the event loop thread, as soon as possible.
+     */
+    void execute(Runnable task)
+    {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void shutdown()
+    {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run()
+    {
+        MetricsRegistry.threadStarted();
+        try {
+            while (running) {
+                try {
+                    selector.select();
+                }
+                catch (IOException ex) {
+                    throw new RuntimeException("Event loop selector failed.", ex);
+                }
+                runTasks();
+                handleSelectedKeys();
+            }
+            closeAll();
+        }
+        finally {
+            MetricsRegistry.threadStopped();
+        }
+    }
+
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void handleSelectedKeys()
+    {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            NioConnection connection = (NioConnection) key.attachment();
+            if (key.isValid() && key.isReadable())
+                connection.handleRead(readBuffer);
+            if (key.isValid() && key.isWritable())
+                connection.flushWrites();
+        }
+    }
+
+    /**
+     * Breaks down all connections still attached, once the loop is stopped.
+     */
+    private void closeAll()
+    {
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).breakdown();
+        }
+        try {
+            selector.close();
+        }
+        catch (IOException ex) {
+            // Nothing left to do
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * @author m5c
+ */
+public interface FileObserver
+{
+
+    /**
+     * Called when the remote side starts a file transfer (see
+     * SafeSocket.sendFile). Returns the channel the received content is
+     * written to, starting at its current position. Called by the reader of
+     * the SafeSocket, so it must return quickly.
+     *
+     * @param safeSocket, as a reference to the caller (facilitates distinction
+     * when maintaining multiple connections)
+     * @param name, as passed by the sender
+     * @param size, in bytes
+     * @return target of the received content
+     * @throws IOException if the file cannot be opened. The connection is
+     * considered broken then.
+     */
+    public FileChannel openFile(SafeSocket safeSocket, String name, long size) throws IOException;
+
+    /**
+     * Called once the complete content has been written to the channel. The
+     * sender's ACK is sent when this method returns, so this is the place to
+     * force and close the channel. Channels of transfers interrupted by a
+     * connection breakdown are closed by the SafeSocket.
+     *
+     * @param safeSocket
+     * @param name
+     * @param file, the channel returned by openFile
+     */
+    public void notifyFileReceived(SafeSocket safeSocket, String name, FileChannel file);
+
+}
@@ -0,0 +1,156 @@
+package com.m5c.safesockets;
+
+/**
+ * Credit based flow control of one SafeSocket (see
+ * SafeSocketOptions.setReceiveWindow). Both directions are independent:
+ *
+ * Receiving: every user message takes credit until all observers are done
+ * with it, so the observer queues hold at most a window of messages. The
+ * credit of consumed messages is given back to the remote sender in batches
+ * of a quarter window.
+ *
+ * Sending: user messages are only sent within the credit granted by the
+ * remote receiver, further senders block. No message is sent before the
+ * first grant.
+ *
+ * Grants are cumulative totals (messages and size consumed so far plus the
+ * window), so they need not be matched with messages and a reordered or
+ * repeated grant does no harm. The size of a message is its length in chars
+ * (String messages) or bytes (binary messages), measured the same way on
+ * both sides.
+ *
+ * @author m5c
+ */
+class FlowControl
+{
+
+    // Part of the window returned before the receiver sends a grant
+    private static final int GRANT_FRACTION = 4;
+
+    // Receiving: window, consumption so far, and the totals last granted to the remote sender
+    private final int messageWindow;
+    private final long sizeWindow;
+    private long consumedMessages = 0;
+    private long consumedSize = 0;
+    private long advertisedMessages;
+    private long advertisedSize;
+
+    // Sending: totals granted by the remote receiver and sent so far
+    private long grantedMessages = 0;
+    private long grantedSize = 0;
+    private long sentMessages = 0;
+    private long sentSize = 0;
+    private boolean closed = false;
+
+    FlowControl(int messageWindow, long sizeWindow)
+    {
+        this.messageWindow = messageWindow;
+        this.sizeWindow = sizeWindow;
+        advertisedMessages = messageWindow;
+        advertisedSize = sizeWindow;
+    }
+
+    /**
+     * Total amount of messages the remote side may have sent, as advertised.
+     */
+    synchronized long getAdvertisedMessages()
+    {
+        return advertisedMessages;
+    }
+
+    /**
+     * Same for their total size.
+     */
+    synchronized long getAdvertisedSize()
+    {
+        return advertisedSize;
+    }
+
+    /**
+     * All observers are done with a received message. Returns true if enough
+     * credit has been returned to send a grant (the advertised totals are
+     * updated then).
+     */
+    synchronized boolean consume(long size)
+    {
+        consumedMessages++;
+        consumedSize += size;
+        long messages = consumedMessages + messageWindow;
+        long totalSize = add(consumedSize, sizeWindow);
+        if (messages - advertisedMessages < Math.max(1, messageWindow / GRANT_FRACTION) && totalSize - advertisedSize < Math.max(1, sizeWindow / GRANT_FRACTION))
+            return false;
+        advertisedMessages = messages;
+        advertisedSize = totalSize;
+        return true;
+    }
+
+    /**
+     * Takes the credit for a message about to be sent, blocks until the
+     * remote receiver has granted it. A message may exceed the remaining size
+     * credit, as long as some is left (so a message larger than the window
+     * does not block forever). Returns false if the connection has broken
+     * down meanwhile.
+     */
+    synchronized boolean acquire(long size) throws InterruptedException
+    {
+        while (!closed && (sentMessages >= grantedMessages || sentSize >= grantedSize)) {
+            wait();
+        }
+        if (closed)
+            return false;
+        sentMessages++;
+        sentSize += size;
+        return true;
+    }
+
+    /**
+     * Same as acquire, but returns false instead of blocking if there is no
+     * credit left (or the connection has broken down).
+     */
+    synchronized boolean tryAcquire(long size)
+    {
+        if (closed || sentMessages >= grantedMessages || sentSize >= grantedSize)
+            return false;
+        sentMessages++;
+        sentSize += size;
+        return true;
+    }
+
+    /**
+     * Credit granted by the remote receiver. Older (smaller) grants are
+     * ignored.
+     */
+    synchronized void grant(long messages, long size)
+    {
+        grantedMessages = Math.max(grantedMessages, messages);
+        grantedSize = Math.max(grantedSize, size);
+        notifyAll();
+    }
+
+    /**
+     * Credit granted by the remote receiver, but not used yet.
+     */
+    synchronized long getAvailableMessages()
+    {
+        return Math.max(0, grantedMessages - sentMessages);
+    }
+
+    /**
+     * The connection has broken down, releases all blocked senders.
+     */
+    synchronized void close()
+    {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Sum that saturates instead of overflowing (unlimited size windows).
+     */
+    private static long add(long a, long b)
+    {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+}
@@ -0,0 +1,252 @@
+package com.m5c.safesockets;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Interprets the frames of the FRAMED wire format and passes the extracted
+ * messages to the MessageHandler. Fed by the FramedInboundDecoder, for the
+ * blocking SocketReaderThread and the event loop engine alike.
+ *
+ * @author m5c
+ */
+class FrameParser
+{
+
+    // Upper bound for a single payload. Larger length fields can only stem from a corrupted stream.
+    static final int MAX_PAYLOAD_LENGTH = Integer.MAX_VALUE - 8;
+
+    // Shared by all frames without payload (most internal ones), so they need no allocation
+    static final byte[] NO_PAYLOAD = new byte[0];
+
+    // The instance handling the extracted messages (and also internal status messages like breakdown events.)
+    private final MessageHandler messageHandler;
+
+    // The filter to be used for all incoming messages
+    private final Filter inputFilter;
+
+    // Default filters never discard anything, so the TEXT representation of internal messages is only built when needed.
+    private final boolean filterInternalMessages;
+
+    // Upper bound for a message, and whether String messages are passed on part by part instead of as a whole
+    private final int maxMessageSize;
+    private final boolean streaming;
+
+    // Leading parts of the String message currently coming in (unless streaming), and its size so far
+    private ByteArrayOutputStream partialMessage = null;
+    private long messageSize = 0;
+
+    FrameParser(MessageHandler messageHandler, Filter inputFilter, SafeSocketOptions options)
+    {
+        this.messageHandler = messageHandler;
+        this.inputFilter = inputFilter;
+        filterInternalMessages = !(inputFilter instanceof DefaultFilter);
+        maxMessageSize = options.getMaxMessageSize();
+        streaming = options.isStreamingReceive();
+    }
+
+    /**
+     * Rejects a frame by its header, before its payload is read (and memory
+     * is allocated for it). Message payloads are bounded by the max message
+     * size (plus checksum), internal frames by their fixed sizes, file chunks
+     * by the chunk size. Unknown frame types are rejected.
+     *
+     * @throws UnfriendlyConnectionBreakdownException if the length makes no
+     * sense or exceeds the limit.
+     */
+    void checkPayloadLength(byte type, int length) throws UnfriendlyConnectionBreakdownException
+    {
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH || length > maxPayloadLength(type))
+            throw new UnfriendlyConnectionBreakdownException();
+    }
+
+    private long maxPayloadLength(byte type)
+    {
+        switch (type) {
+            case InternalMessages.FRAME_USER_MESSAGE:
+            case InternalMessages.FRAME_CHECKED_USER_MESSAGE:
+            case InternalMessages.FRAME_USER_MESSAGE_PART:
+            case InternalMessages.FRAME_BINARY_MESSAGE:
+            case InternalMessages.FRAME_CHECKED_BINARY_MESSAGE:
+                return (long) maxMessageSize + 4;
+            case InternalMessages.FRAME_MESSAGE_ACK:
+                return InternalMessages.MAX_HASH_LENGTH;
+            case InternalMessages.FRAME_CREDIT:
+                return 8;
+            case InternalMessages.FRAME_FILE_START:
+                return 8 + InternalMessages.MAX_FILE_NAME_LENGTH;
+            case InternalMessages.FRAME_FILE_CHUNK:
+                return InternalMessages.FILE_CHUNK_SIZE;
+            case InternalMessages.FRAME_CUMULATIVE_ACK:
+            case InternalMessages.FRAME_HEART_BEAT:
+            case InternalMessages.FRAME_HEART_BEAT_ACK:
+            case InternalMessages.FRAME_FILE_END:
+            case InternalMessages.FRAME_FILE_ACK:
+            case InternalMessages.FRAME_DISCONNECT:
+                return 0;
+            default:
+                // Unknown frame type, the stream cannot be trusted any more
+                return -1;
+        }
+    }
+
+    /**
+     * Interprets a single, completely received frame.
+     *
+     * @throws UnfriendlyConnectionBreakdownException if the frame makes no
+     * sense, the stream cannot be trusted any more in that case.
+     */
+    void handleFrame(byte type, long id, byte[] payload) throws UnfriendlyConnectionBreakdownException
+    {
+        switch (type) {
+            case InternalMessages.FRAME_USER_MESSAGE:
+                handleUserFrame(payload, 0, (int) id, MessageChecksum.NONE);
+                break;
+            case InternalMessages.FRAME_CHECKED_USER_MESSAGE:
+                handleUserFrame(payload, 4, (int) id, readChecksum(payload));
+                break;
+            case InternalMessages.FRAME_USER_MESSAGE_PART:
+                handleUserPart(payload, 0, false);
+                break;
+            case InternalMessages.FRAME_BINARY_MESSAGE:
+                // Binary payloads are handed out as they are, no copy and no filter involved
+                messageHandler.handleBinaryMessage(ByteBuffer.wrap(payload).asReadOnlyBuffer(), (int) id, MessageChecksum.NONE);
+                break;
+            case InternalMessages.FRAME_CHECKED_BINARY_MESSAGE:
+                long checksum = readChecksum(payload);
+                messageHandler.handleBinaryMessage(ByteBuffer.wrap(payload, 4, payload.length - 4).slice().asReadOnlyBuffer(), (int) id, checksum);
+                break;
+            case InternalMessages.FRAME_MESSAGE_ACK:
+                // ACKs without payload carry the sequence number as id, the others a message hash
+                if (payload.length == 0) {
+                    if (!filterInternalMessages || filter(InternalMessages.MESSAGE_ACK + id) != null)
+                        messageHandler.handleMessageAck((int) id);
+                }
+                else
+                    handleInternalFrame(InternalMessages.MESSAGE_ACK + new String(payload, StandardCharsets.UTF_8));
+                break;
+            case InternalMessages.FRAME_CUMULATIVE_ACK:
+                if (!filterInternalMessages || filter(InternalMessages.CUMULATIVE_ACK + id) != null)
+                    messageHandler.handleCumulativeAck((int) id);
+                break;
+            case InternalMessages.FRAME_HEART_BEAT:
+                if (!filterInternalMessages || filter(InternalMessages.HEART_BEAT + id) != null)
+                    messageHandler.handleHeartBeat((int) id);
+                break;
+            case InternalMessages.FRAME_HEART_BEAT_ACK:
+                if (!filterInternalMessages || filter(InternalMessages.HEART_BEAT_ACK + id) != null)
+                    messageHandler.handleHeartBeatAck((int) id);
+                break;
+            case InternalMessages.FRAME_FILE_START:
+                // Size (long) followed by the name. File frames are not filtered, same as binary messages.
+                if (payload.length < 8)
+                    throw new UnfriendlyConnectionBreakdownException();
+                ByteBuffer announcement = ByteBuffer.wrap(payload);
+                long size = announcement.getLong();
+                messageHandler.handleFileStart((int) id, new String(payload, 8, payload.length - 8, StandardCharsets.UTF_8), size);
+                break;
+            case InternalMessages.FRAME_FILE_CHUNK:
+                messageHandler.handleFileChunk((int) id, ByteBuffer.wrap(payload));
+                break;
+            case InternalMessages.FRAME_FILE_END:
+                messageHandler.handleFileEnd((int) id);
+                break;
+            case InternalMessages.FRAME_FILE_ACK:
+                messageHandler.handleFileAck((int) id);
+                break;
+            case InternalMessages.FRAME_CREDIT:
+                if (payload.length != 8)
+                    throw new UnfriendlyConnectionBreakdownException();
+                long grantedSize = ByteBuffer.wrap(payload).getLong();
+                if (!filterInternalMessages || filter(InternalMessages.CREDIT + id + InternalMessages.CREDIT_SEPARATOR + grantedSize) != null)
+                    messageHandler.handleCredit(id, grantedSize);
+                break;
+            case InternalMessages.FRAME_DISCONNECT:
+                if (filter(InternalMessages.DISCONNECT) != null)
+                    //remote host requested disconnect
+                    messageHandler.assymentricDisconnect(true);
+                break;
+            default:
+                // Unknown frame type, the stream cannot be trusted any more
+                throw new UnfriendlyConnectionBreakdownException();
+        }
+    }
+
+    /**
+     * Checked user messages start with their CRC32 (4 bytes).
+     */
+    private static long readChecksum(byte[] payload) throws UnfriendlyConnectionBreakdownException
+    {
+        if (payload.length < 4)
+            throw new UnfriendlyConnectionBreakdownException();
+        return ((payload[0] & 0xffL) << 24) | ((payload[1] & 0xffL) << 16) | ((payload[2] & 0xffL) << 8) | (payload[3] & 0xffL);
+    }
+
+    /**
+     * The last (or only) part of a String message. Streamed messages are not
+     * filtered, they are never complete at any point in time.
+     */
+    private void handleUserFrame(byte[] payload, int offset, int salt, long checksum) throws UnfriendlyConnectionBreakdownException
+    {
+        handleUserPart(payload, offset, true);
+        messageSize = 0;
+        if (streaming) {
+            messageHandler.handleUserMessageEnd(salt, checksum);
+            return;
+        }
+
+        String message;
+        if (partialMessage == null)
+            message = new String(payload, offset, payload.length - offset, StandardCharsets.UTF_8);
+        else {
+            message = new String(partialMessage.toByteArray(), StandardCharsets.UTF_8);
+            partialMessage = null;
+        }
+        String filtered = filter(message);
+        if (filtered != null)
+            messageHandler.handleUserMessage(filtered, salt, checksum);
+        else
+            messageHandler.handleDiscardedMessage(message.length());
+    }
+
+    /**
+     * Passes on (streaming) or collects a part of the String message
+     * currently coming in. Messages sent in one piece need no collecting.
+     */
+    private void handleUserPart(byte[] payload, int offset, boolean last) throws UnfriendlyConnectionBreakdownException
+    {
+        int length = payload.length - offset;
+        messageSize += length;
+        if (messageSize > maxMessageSize)
+            throw new UnfriendlyConnectionBreakdownException();
+        if (streaming) {
+            if (length > 0)
+                messageHandler.handleUserMessageChunk(ByteBuffer.wrap(payload, offset, length));
+        }
+        else if (!last || partialMessage != null) {
+            if (partialMessage == null)
+                partialMessage = new ByteArrayOutputStream();
+            partialMessage.write(payload, offset, length);
+        }
+    }
+
+    private void handleInternalFrame(String textRepresentation)
+    {
+        if (filter(textRepresentation) != null)
+            messageHandler.handleInternalMessage(textRepresentation);
+    }
+
+    /**
+     * Hook point for custom filters. Returns null if the filter discarded the
+     * message.
+     */
+    private String filter(String message)
+    {
+        String filtered = inputFilter.filter(message);
+        if (filtered.equals(InternalMessages.MESSAGE_DISCARDED))
+            return null;
+        return filtered;
+    }
+
+}
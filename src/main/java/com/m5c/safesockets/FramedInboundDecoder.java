@@ -0,0 +1,73 @@
+package com.m5c.safesockets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder for the FRAMED wire format. Collects the header of a frame, then its
+ * payload, and passes complete frames to the FrameParser. Frames without
+ * payload (ACKs, heartbeats) are decoded without any allocation.
+ *
+ * @author m5c
+ */
+class FramedInboundDecoder implements InboundDecoder
+{
+
+    private final FrameParser parser;
+
+    private final ByteBuffer header = ByteBuffer.allocate(InternalMessages.FRAME_HEADER_SIZE);
+
+    // Payload of the frame currently coming in, null as long as its header is incomplete
+    private byte[] payload;
+    private int payloadLength;
+    private byte type;
+    private long id;
+
+    FramedInboundDecoder(FrameParser parser)
+    {
+        this.parser = parser;
+    }
+
+    @Override
+    public void decode(ByteBuffer input) throws UnfriendlyConnectionBreakdownException
+    {
+        while (input.hasRemaining()) {
+            if (payload == null)
+                readHeader(input);
+            else {
+                int amount = Math.min(input.remaining(), payload.length - payloadLength);
+                input.get(payload, payloadLength, amount);
+                payloadLength += amount;
+                if (payloadLength == payload.length)
+                    completeFrame();
+            }
+        }
+    }
+
+    private void readHeader(ByteBuffer input) throws UnfriendlyConnectionBreakdownException
+    {
+        while (input.hasRemaining() && header.hasRemaining()) {
+            header.put(input.get());
+        }
+        if (header.hasRemaining())
+            return;
+
+        header.flip();
+        type = header.get();
+        int length = header.getInt();
+        id = header.getLong();
+        header.clear();
+        parser.checkPayloadLength(type, length);
+        payload = length == 0 ? FrameParser.NO_PAYLOAD : new byte[length];
+        payloadLength = 0;
+        if (length == 0)
+            completeFrame();
+    }
+
+    private void completeFrame() throws UnfriendlyConnectionBreakdownException
+    {
+        byte[] frame = payload;
+        payload = null;
+        parser.handleFrame(type, id, frame);
+    }
+
+}
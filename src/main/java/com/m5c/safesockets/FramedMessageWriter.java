@@ -0,0 +1,329 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writer for the FRAMED wire format. Every message is sent as one frame: type
+ * (1 byte), payload length (int), id (long), payload. User payloads are sent
+ * as-is (UTF-8), no content inspection required. Filters see the payload of
+ * user messages and the TEXT representation of internal messages (the latter
+ * can only be discarded, not modified).
+ *
+ * @author m5c
+ */
+class FramedMessageWriter extends MessageWriter
+{
+
+    // Larger user messages are sent in parts of this size, so the receiver never has to read them in one piece
+    private static final int MESSAGE_PART_SIZE = 64 * 1024;
+
+    // Default filters never discard anything, so the TEXT representation of internal messages is only built when needed.
+    private final boolean filterInternalMessages;
+
+    FramedMessageWriter(OutputStream outputStream, WritableByteChannel channel, Filter outFilter)
+    {
+        super(outputStream, channel, outFilter);
+        filterInternalMessages = !(outFilter instanceof DefaultFilter);
+    }
+
+    @Override
+    void writeUserMessage(String message, int salt, long checksum)
+    {
+        message = filter(message);
+        if (message == null)
+            return;
+        writeUserPayload(message.getBytes(StandardCharsets.UTF_8), salt, checksum);
+    }
+
+    private void writeUserPayload(byte[] encoded, int salt, long checksum)
+    {
+        // Leading parts first. The senders are serialized, so the parts of a message are not interleaved with other user messages.
+        int offset = 0;
+        while (encoded.length - offset > MESSAGE_PART_SIZE) {
+            ByteBuffer part = allocateFrame(InternalMessages.FRAME_USER_MESSAGE_PART, salt, MESSAGE_PART_SIZE);
+            part.put(encoded, offset, MESSAGE_PART_SIZE);
+            writer.write(part.array());
+            offset += MESSAGE_PART_SIZE;
+        }
+
+        // The last part carries the checksum (of the whole message)
+        ByteBuffer frame;
+        if (checksum == MessageChecksum.NONE)
+            frame = allocateFrame(InternalMessages.FRAME_USER_MESSAGE, salt, encoded.length - offset);
+        else {
+            frame = allocateFrame(InternalMessages.FRAME_CHECKED_USER_MESSAGE, salt, 4 + encoded.length - offset);
+            frame.putInt((int) checksum);
+        }
+        frame.put(encoded, offset, encoded.length - offset);
+        writer.write(frame.array());
+    }
+
+    /**
+     * Only the frame headers are encoded per connection, the payload is
+     * written from the broadcast's shared encoding.
+     */
+    @Override
+    void writeBroadcast(Broadcast broadcast, int salt, long checksum)
+    {
+        if (broadcast.isBinary()) {
+            byte[] payload = broadcast.getBinaryPayload();
+            writeSharedFrame(InternalMessages.FRAME_BINARY_MESSAGE, InternalMessages.FRAME_CHECKED_BINARY_MESSAGE, salt, checksum, payload, 0, payload.length);
+            return;
+        }
+        byte[] encoded = broadcast.getUtf8Payload();
+        int offset = 0;
+        while (encoded.length - offset > MESSAGE_PART_SIZE) {
+            writeShared(allocateFrame(InternalMessages.FRAME_USER_MESSAGE_PART, salt, MESSAGE_PART_SIZE, 0).array(), encoded, offset, MESSAGE_PART_SIZE, NO_BYTES);
+            offset += MESSAGE_PART_SIZE;
+        }
+        writeSharedFrame(InternalMessages.FRAME_USER_MESSAGE, InternalMessages.FRAME_CHECKED_USER_MESSAGE, salt, checksum, encoded, offset, encoded.length - offset);
+    }
+
+    private void writeSharedFrame(byte type, byte checkedType, int salt, long checksum, byte[] payload, int offset, int length)
+    {
+        ByteBuffer header;
+        if (checksum == MessageChecksum.NONE)
+            header = allocateFrame(type, salt, length, 0);
+        else {
+            header = allocateFrame(checkedType, salt, 4 + length, 4);
+            header.putInt((int) checksum);
+        }
+        writeShared(header.array(), payload, offset, length, NO_BYTES);
+    }
+
+    /**
+     * Encodes the frame into the sender's buffer and computes the checksum
+     * right there. Messages too large for a single frame are not part of the
+     * steady state, they take the regular path.
+     */
+    @Override
+    void writeUserMessage(String message, int salt, boolean checksum, EncodeBuffer buffer)
+    {
+        message = filter(message);
+        if (message == null)
+            return;
+        int payloadLength = EncodeBuffer.utf8Length(message);
+        if (payloadLength > MESSAGE_PART_SIZE) {
+            byte[] encoded = message.getBytes(StandardCharsets.UTF_8);
+            writeUserPayload(encoded, salt, checksum ? MessageChecksum.compute(encoded) : MessageChecksum.NONE);
+            return;
+        }
+        int payloadStart = putPooledHeader(buffer, InternalMessages.FRAME_USER_MESSAGE, InternalMessages.FRAME_CHECKED_USER_MESSAGE, salt, checksum, payloadLength);
+        buffer.putUtf8(message);
+        writePooledFrame(buffer, checksum, payloadStart);
+    }
+
+    @Override
+    void writeBinaryMessage(ByteBuffer message, int salt, boolean checksum, EncodeBuffer buffer)
+    {
+        int payloadStart = putPooledHeader(buffer, InternalMessages.FRAME_BINARY_MESSAGE, InternalMessages.FRAME_CHECKED_BINARY_MESSAGE, salt, checksum, message.remaining());
+        buffer.put(message);
+        writePooledFrame(buffer, checksum, payloadStart);
+    }
+
+    /**
+     * Starts a frame in the buffer, with room for the checksum if requested.
+     * Returns where the payload starts.
+     */
+    private static int putPooledHeader(EncodeBuffer buffer, byte type, byte checkedType, int salt, boolean checksum, int payloadLength)
+    {
+        buffer.reset(InternalMessages.FRAME_HEADER_SIZE + 4 + payloadLength);
+        buffer.put(checksum ? checkedType : type);
+        buffer.putInt(checksum ? 4 + payloadLength : payloadLength);
+        buffer.putLong(salt);
+        if (checksum)
+            buffer.putInt(0);
+        return buffer.length();
+    }
+
+    /**
+     * Fills in the checksum (if any) and writes the frame. Write errors are
+     * ignored, same as for writeFrame.
+     */
+    private void writePooledFrame(EncodeBuffer buffer, boolean checksum, int payloadStart)
+    {
+        if (checksum)
+            buffer.putInt(payloadStart - 4, (int) buffer.checksum(payloadStart));
+        writer.writeDirect(buffer);
+    }
+
+    /**
+     * Binary payloads are not piped through the filter (filters work on
+     * Strings).
+     */
+    @Override
+    void writeBinaryMessage(ByteBuffer message, int salt, long checksum)
+    {
+        ByteBuffer payload = message.duplicate();
+        ByteBuffer frame;
+        if (checksum == MessageChecksum.NONE) {
+            frame = allocateFrame(InternalMessages.FRAME_BINARY_MESSAGE, salt, payload.remaining());
+        }
+        else {
+            frame = allocateFrame(InternalMessages.FRAME_CHECKED_BINARY_MESSAGE, salt, 4 + payload.remaining());
+            frame.putInt((int) checksum);
+        }
+        frame.put(payload);
+        writer.write(frame.array());
+    }
+
+    @Override
+    void writeMessageAck(int sequence)
+    {
+        if (passesFilter(InternalMessages.MESSAGE_ACK + sequence))
+            writeFrame(InternalMessages.FRAME_MESSAGE_ACK, sequence, NO_BYTES);
+    }
+
+    @Override
+    void writeHashedMessageAck(String messageHash, int salt)
+    {
+        if (passesFilter(InternalMessages.MESSAGE_ACK + messageHash))
+            writeFrame(InternalMessages.FRAME_MESSAGE_ACK, salt, messageHash.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    void writeCumulativeAck(int sequence)
+    {
+        if (passesFilter(InternalMessages.CUMULATIVE_ACK + sequence))
+            writeFrame(InternalMessages.FRAME_CUMULATIVE_ACK, sequence, NO_BYTES);
+    }
+
+    @Override
+    void writeHeartBeat(int heartBeatId)
+    {
+        if (passesFilter(InternalMessages.HEART_BEAT + heartBeatId))
+            writeFrame(InternalMessages.FRAME_HEART_BEAT, heartBeatId, NO_BYTES);
+    }
+
+    @Override
+    void writeHeartBeatAck(int heartBeatId)
+    {
+        if (passesFilter(InternalMessages.HEART_BEAT_ACK + heartBeatId))
+            writeFrame(InternalMessages.FRAME_HEART_BEAT_ACK, heartBeatId, NO_BYTES);
+    }
+
+    @Override
+    void writeDisconnect()
+    {
+        if (passesFilter(InternalMessages.DISCONNECT))
+            writeFrame(InternalMessages.FRAME_DISCONNECT, 0, NO_BYTES);
+    }
+
+    @Override
+    void writeCredit(long messages, long size)
+    {
+        if (passesFilter(InternalMessages.CREDIT + messages + InternalMessages.CREDIT_SEPARATOR + size)) {
+            ByteBuffer frame = allocateFrame(InternalMessages.FRAME_CREDIT, messages, 8);
+            frame.putLong(size);
+            writer.write(frame.array());
+        }
+    }
+
+    /**
+     * File frames are not piped through the filter (same as binary messages).
+     */
+    @Override
+    void writeFileStart(int transferId, String name, long size)
+    {
+        byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = allocateFrame(InternalMessages.FRAME_FILE_START, transferId, 8 + encodedName.length);
+        frame.putLong(size);
+        frame.put(encodedName);
+        writer.write(frame.array());
+    }
+
+    /**
+     * The chunk goes from the file to the socket with transferTo (sendfile),
+     * if the connection has a blocking channel. Otherwise it is copied through
+     * a buffer.
+     */
+    @Override
+    boolean writeFileChunk(final int transferId, final FileChannel file, final long position, final int length)
+    {
+        return writer.writeDirect(new CoalescingWriter.DirectWrite()
+        {
+            @Override
+            public long write(OutputStream outputStream, WritableByteChannel channel) throws IOException
+            {
+                if (channel != null) {
+                    outputStream.write(allocateFrame(InternalMessages.FRAME_FILE_CHUNK, transferId, length, 0).array());
+                    long sent = 0;
+                    while (sent < length) {
+                        long transferred = file.transferTo(position + sent, length - sent, channel);
+                        if (transferred <= 0)
+                            throw new IOException("File shorter than announced.");
+                        sent += transferred;
+                    }
+                }
+                else {
+                    // Read the chunk before the header goes out, so a file error does not leave a partial frame
+                    ByteBuffer frame = allocateFrame(InternalMessages.FRAME_FILE_CHUNK, transferId, length);
+                    while (frame.hasRemaining()) {
+                        if (file.read(frame, position + frame.position() - InternalMessages.FRAME_HEADER_SIZE) < 0)
+                            throw new IOException("File shorter than announced.");
+                    }
+                    outputStream.write(frame.array());
+                }
+                return InternalMessages.FRAME_HEADER_SIZE + length;
+            }
+        });
+    }
+
+    @Override
+    void writeFileEnd(int transferId)
+    {
+        writeFrame(InternalMessages.FRAME_FILE_END, transferId, NO_BYTES);
+    }
+
+    @Override
+    void writeFileAck(int transferId)
+    {
+        writeFrame(InternalMessages.FRAME_FILE_ACK, transferId, NO_BYTES);
+    }
+
+    private boolean passesFilter(String textRepresentation)
+    {
+        return !filterInternalMessages || filter(textRepresentation) != null;
+    }
+
+    /**
+     * Encodes a complete frame and hands it to the writer as one record, so
+     * frames of concurrent senders cannot interleave. Write errors are
+     * ignored (as the PrintWriter of the TEXT format does), a broken
+     * connection is detected by the reader and the ACK timeouts.
+     */
+    private void writeFrame(byte type, long id, byte[] payload)
+    {
+        ByteBuffer frame = allocateFrame(type, id, payload.length);
+        frame.put(payload);
+        writer.write(frame.array());
+    }
+
+    /**
+     * Allocates a frame with its header already written, the payload is to
+     * be put by the caller.
+     */
+    private static ByteBuffer allocateFrame(byte type, long id, int payloadLength)
+    {
+        return allocateFrame(type, id, payloadLength, payloadLength);
+    }
+
+    /**
+     * Same, but with room for only part of the payload (the rest is written
+     * separately).
+     */
+    private static ByteBuffer allocateFrame(byte type, long id, int payloadLength, int capacity)
+    {
+        ByteBuffer frame = ByteBuffer.allocate(InternalMessages.FRAME_HEADER_SIZE + capacity);
+        frame.put(type);
+        frame.putInt(payloadLength);
+        frame.putLong(id);
+        return frame;
+    }
+
+}
@@ -0,0 +1,24 @@
+package com.m5c.safesockets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the bytes an event loop reads from a connection back into messages.
+ * The input arrives in arbitrary chunks, so implementations keep the state of
+ * incomplete lines / frames between calls.
+ *
+ * @author m5c
+ */
+interface InboundDecoder
+{
+
+    /**
+     * Consumes all remaining bytes of the buffer. The buffer is reused after
+     * the call, so anything needed later must be copied.
+     *
+     * @throws UnfriendlyConnectionBreakdownException if the input cannot be
+     * decoded.
+     */
+    void decode(ByteBuffer input) throws UnfriendlyConnectionBreakdownException;
+
+}
@@ -0,0 +1,26 @@
+package com.m5c.safesockets;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * A file transfer currently coming in: the announced name and size, the
+ * target channel and the amount of bytes received so far.
+ *
+ * @author m5c
+ */
+class IncomingFile
+{
+
+    final String name;
+    final long size;
+    final FileChannel target;
+    long received = 0;
+
+    IncomingFile(String name, long size, FileChannel target)
+    {
+        this.name = name;
+        this.size = size;
+        this.target = target;
+    }
+
+}
@@ -11,11 +11,50 @@ public class InternalMessages
     // The internal messages actualy sent use these constants and append an HASH (Messages) od an ID (Heartbeats)
     protected static final String MESSAGE_DELIMITER = "SAFE_SOCKET_MESSAGE_DELIMITER_"; //
     protected static final String MESSAGE_ACK = "SAFE_SOCKET_ACK_MESSAGE_";
+    protected static final String CUMULATIVE_ACK = "SAFE_SOCKET_ACK_UP_TO_";
     protected static final String HEART_BEAT = "SAFE_SOCKET_HEART_BEAT_";
     protected static final String HEART_BEAT_ACK = "SAFE_SOCKET_ACK_HEART_BEAT_";
+    protected static final String CREDIT = "SAFE_SOCKET_CREDIT_";
     protected static final String DISCONNECT = "SAFE_SOCKET_DISCONNECT";                //
     protected static final String MESSAGE_DISCARDED = "MESSAGE_DISCARDED_BY_FILTER";
 
+    // Separates salt and checksum on the delimiter line of integrity checked messages
+    protected static final String CHECKSUM_SEPARATOR = "_";
+
+    // Separates the granted amount of messages and their size on credit lines
+    protected static final String CREDIT_SEPARATOR = "_";
+
+    // Frame types of the FRAMED wire format. Each frame is: type (1 byte), payload length (int), id (long), payload.
+    protected static final byte FRAME_USER_MESSAGE = 1;
+    protected static final byte FRAME_MESSAGE_ACK = 2;
+    protected static final byte FRAME_HEART_BEAT = 3;
+    protected static final byte FRAME_HEART_BEAT_ACK = 4;
+    protected static final byte FRAME_DISCONNECT = 5;
+    protected static final byte FRAME_CHECKED_USER_MESSAGE = 6;
+    protected static final byte FRAME_CUMULATIVE_ACK = 7;
+    protected static final byte FRAME_BINARY_MESSAGE = 8;
+    protected static final byte FRAME_CHECKED_BINARY_MESSAGE = 9;
+
+    // File transfers: id is the transfer id. START carries the size (long) and name (UTF-8), CHUNKs the file content, END nothing. The receiver answers with a FILE_ACK.
+    protected static final byte FRAME_FILE_START = 10;
+    protected static final byte FRAME_FILE_CHUNK = 11;
+    protected static final byte FRAME_FILE_END = 12;
+    protected static final byte FRAME_FILE_ACK = 13;
+
+    // Leading part of a large user message (same id as the message). The last part is sent as regular user message frame.
+    protected static final byte FRAME_USER_MESSAGE_PART = 14;
+
+    // Flow control credit: id is the total amount of messages granted, the payload their total size (long)
+    protected static final byte FRAME_CREDIT = 15;
+
+    // Upper bounds of frame payloads: file chunks (as sent), file names (UTF-8) and hashed ACKs (hex MD5, with room to spare)
+    protected static final int FILE_CHUNK_SIZE = 64 * 1024;
+    protected static final int MAX_FILE_NAME_LENGTH = 4096;
+    protected static final int MAX_HASH_LENGTH = 64;
+
+    // Size of the fixed part of a frame, preceding the payload
+    protected static final int FRAME_HEADER_SIZE = 1 + 4 + 8;
+
     /**
      * Checks whether the given String matches the pattern of SafeSocket
      * metaMetamessages (HeartBeats, Acks, Delimiters)
@@ -25,7 +64,7 @@ public class InternalMessages
      */
     public static boolean isReserved(String message)
     {
-        return (message.startsWith(InternalMessages.MESSAGE_ACK) || message.startsWith(InternalMessages.HEART_BEAT_ACK) || message.startsWith(InternalMessages.HEART_BEAT) || message.startsWith(InternalMessages.MESSAGE_DELIMITER) || message.startsWith(InternalMessages.MESSAGE_DISCARDED) || message.startsWith(DISCONNECT));
+        return (message.startsWith(InternalMessages.MESSAGE_ACK) || message.startsWith(InternalMessages.CUMULATIVE_ACK) || message.startsWith(InternalMessages.HEART_BEAT_ACK) || message.startsWith(InternalMessages.HEART_BEAT) || message.startsWith(InternalMessages.MESSAGE_DELIMITER) || message.startsWith(InternalMessages.MESSAGE_DISCARDED) || message.startsWith(CREDIT) || message.startsWith(DISCONNECT));
     }
 
 }
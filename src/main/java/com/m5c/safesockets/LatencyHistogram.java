@@ -0,0 +1,103 @@
+package com.m5c.safesockets;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations [ns], for percentiles of ACK latencies and
+ * heartbeat round trips. Each power of two is split into 8 buckets, so a
+ * reported percentile is at most 12.5 % above the actual value. Values beyond
+ * 2^40 ns (about 18 minutes) are counted as 2^40 ns. Recording is a single
+ * atomic increment and never allocates.
+ *
+ * @author m5c
+ */
+final class LatencyHistogram
+{
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long value)
+    {
+        counts.incrementAndGet(index(Math.max(0, Math.min(MAX_VALUE, value))));
+    }
+
+    /**
+     * Adds the counts of the other histogram to this one.
+     */
+    void add(LatencyHistogram other)
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0)
+                counts.addAndGet(i, count);
+        }
+    }
+
+    long getCount()
+    {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * The value [ns] the given fraction (e.g. 0.99) of the recorded values
+     * does not exceed (upper bound of its bucket). 0 if nothing has been
+     * recorded. Concurrent recordings may or may not be considered.
+     */
+    long getPercentile(double fraction)
+    {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return highestValue(i);
+        }
+        return MAX_VALUE;
+    }
+
+    /**
+     * Values below 8 get a bucket each, above each power of two 2^e (e >= 3)
+     * is split into 8 buckets of width 2^(e-3).
+     */
+    static int index(long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowestValue(int index)
+    {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static long highestValue(int index)
+    {
+        return index + 1 < BUCKETS ? lowestValue(index + 1) - 1 : MAX_VALUE;
+    }
+
+}
@@ -1,10 +1,12 @@
 package com.m5c.safesockets;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 /**
- * Simple service class, computes the MD5 Hash (String) for a given String.
+ * Simple service class, computes the MD5 Hash (String) for a given String or
+ * binary message.
  *
  * @author m5c
  */
@@ -12,20 +14,69 @@ public class Md5Hasher
 {
 
     public static String getMessageHash(String message)
+    {
+        MessageDigest md = getDigest();
+        md.update(message.getBytes());
+        return toHex(md.digest());
+    }
+
+    /**
+     * Hash of a binary message, followed by a (salt carrying) suffix. The
+     * message buffer's position is not modified.
+     */
+    public static String getMessageHash(ByteBuffer message, String suffix)
+    {
+        MessageDigest md = getDigest();
+        md.update(message.duplicate());
+        md.update(suffix.getBytes());
+        return toHex(md.digest());
+    }
+
+    /**
+     * Digest of the leading part of messages, to be completed with
+     * getMessageHash(MessageDigest, String). The same prefix can be completed
+     * any number of times (e.g. a broadcast with a salt per recipient).
+     */
+    static MessageDigest digestPrefix(byte[] prefix)
+    {
+        MessageDigest md = getDigest();
+        md.update(prefix);
+        return md;
+    }
+
+    /**
+     * Hash of the digested prefix followed by the suffix. The prefix digest
+     * is not modified.
+     */
+    static String getMessageHash(MessageDigest prefix, String suffix)
+    {
+        try {
+            MessageDigest md = (MessageDigest) prefix.clone();
+            md.update(suffix.getBytes());
+            return toHex(md.digest());
+        }
+        catch (CloneNotSupportedException ex) {
+            throw new RuntimeException("Unable to create message hash");
+        }
+    }
+
+    private static MessageDigest getDigest()
     {
         try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            md.update(message.getBytes());
-            byte[] digest = md.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b & 0xff));
-            }
-            return sb.toString();
+            return MessageDigest.getInstance("MD5");
         }
         catch (NoSuchAlgorithmException ex) {
             throw new RuntimeException("Unable to create message hash");
         }
     }
 
+    private static String toHex(byte[] digest)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
 }
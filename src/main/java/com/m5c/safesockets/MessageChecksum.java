@@ -0,0 +1,41 @@
+package com.m5c.safesockets;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Simple service class, computes the CRC32 checksum used for the optional
+ * integrity check of messages acknowledged by sequence number.
+ *
+ * @author m5c
+ */
+class MessageChecksum
+{
+
+    // Marks messages sent without checksum
+    static final long NONE = -1;
+
+    static long compute(String message)
+    {
+        return compute(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The buffer's position is not modified.
+     */
+    static long compute(ByteBuffer payload)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        return crc.getValue();
+    }
+
+    static long compute(byte[] payload)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return crc.getValue();
+    }
+
+}
@@ -1,5 +1,7 @@
 package com.m5c.safesockets;
 
+import java.nio.ByteBuffer;
+
 /**
  * Package scoped interface to grant the SocketReaderThread restricted access to
  * the SafeSockets methods needed for message handling.
@@ -11,7 +13,71 @@ public abstract class MessageHandler
 
     protected abstract void handleInternalMessage(String message);
 
-    protected abstract void handleUserMessage(String message, int salt);
+    /**
+     * Shortcut for ACKs carrying a sequence number, so the FRAMED reader does
+     * not need to create their text representation.
+     */
+    protected abstract void handleMessageAck(int sequence);
+
+    /**
+     * Shortcuts for heartbeats and their ACKs, so the readers do not need to
+     * create their text representation.
+     */
+    protected abstract void handleHeartBeat(int heartBeatId);
+
+    protected abstract void handleHeartBeatAck(int heartBeatId);
+
+    /**
+     * Same for ACKs acknowledging all messages up to (including) the given
+     * sequence number.
+     */
+    protected abstract void handleCumulativeAck(int sequence);
+
+    /**
+     * Flow control credit granted by the remote receiver (cumulative totals).
+     */
+    protected abstract void handleCredit(long messages, long size);
+
+    /**
+     * @param checksum: The checksum sent along with the message, or
+     * MessageChecksum.NONE
+     */
+    protected abstract void handleUserMessage(String message, int salt, long checksum);
+
+    /**
+     * Streaming receive: the next piece (UTF-8) of the String message
+     * currently coming in. The message is completed by handleUserMessageEnd.
+     */
+    protected abstract void handleUserMessageChunk(ByteBuffer chunk);
+
+    protected abstract void handleUserMessageEnd(int salt, long checksum);
+
+    /**
+     * A user message has been discarded by the inbound filter, instead of
+     * being handled. The size is the one it arrived with (chars).
+     */
+    protected abstract void handleDiscardedMessage(long size);
+
+    /**
+     * Binary counterpart of handleUserMessage. The message is a read-only
+     * view on the received payload.
+     */
+    protected abstract void handleBinaryMessage(ByteBuffer message, int salt, long checksum);
+
+    /**
+     * A file transfer has been announced by the remote side. Followed by
+     * handleFileChunk calls with the content and a final handleFileEnd.
+     */
+    protected abstract void handleFileStart(int transferId, String name, long size);
+
+    protected abstract void handleFileChunk(int transferId, ByteBuffer chunk);
+
+    protected abstract void handleFileEnd(int transferId);
+
+    /**
+     * The remote side has completely received a file sent by us.
+     */
+    protected abstract void handleFileAck(int transferId);
 
     protected abstract void assymentricDisconnect(boolean intended);
 
@@ -0,0 +1,36 @@
+package com.m5c.safesockets;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author m5c
+ */
+public interface MessageKeyExtractor
+{
+
+    /**
+     * Interface for classes who map incoming messages to a key, for
+     * partitioned observer dispatch (see
+     * SafeSocketOptions.setPartitionedDispatch). Messages with equal keys are
+     * delivered to an observer in arrival order, messages with different keys
+     * may be delivered in parallel. Called by the reader for every incoming
+     * message, so it must be fast and must not block.
+     *
+     * @param message, the incoming message.
+     * @return the key of the message (must implement equals and hashCode).
+     */
+    public Object extractKey(String message);
+
+    /**
+     * Same for binary messages. By default all binary messages share one key.
+     *
+     * @param message, read-only view on the incoming message.
+     * @return the key of the message.
+     */
+    public default Object extractKey(ByteBuffer message)
+    {
+        return null;
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The view of a single StreamingMessageObserver on a StreamedMessage. The
+ * reader puts the chunks in, as they arrive, the observer takes them out.
+ * Chunks are not copied, each stream has its own views on them.
+ *
+ * @author m5c
+ */
+class MessageStream extends InputStream
+{
+
+    // Markers following the last chunk
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private static final ByteBuffer BROKEN = ByteBuffer.allocate(0);
+
+    private final StreamedMessage message;
+
+    private final BlockingQueue<ByteBuffer> chunks = new LinkedBlockingQueue<ByteBuffer>();
+
+    // Chunk currently read, only accessed by the observer
+    private ByteBuffer current = ByteBuffer.allocate(0);
+
+    private volatile boolean closed = false;
+
+    // Whether the message has been reported as consumed
+    private final AtomicBoolean consumed = new AtomicBoolean();
+
+    MessageStream(StreamedMessage message)
+    {
+        this.message = message;
+    }
+
+    void offer(ByteBuffer chunk)
+    {
+        if (!closed)
+            chunks.add(chunk);
+    }
+
+    void end()
+    {
+        chunks.add(END);
+    }
+
+    void breakDown()
+    {
+        chunks.add(BROKEN);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] single = new byte[1];
+        if (read(single, 0, 1) < 0)
+            return -1;
+        return single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (length == 0)
+            return 0;
+        while (!current.hasRemaining()) {
+            if (current == END) {
+                finish();
+                return -1;
+            }
+            if (current == BROKEN)
+                throw new IOException("Connection broke down before the message was complete.");
+            if (closed)
+                throw new IOException("Stream closed.");
+            try {
+                current = chunks.take();
+            }
+            catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+        int amount = Math.min(length, current.remaining());
+        current.get(buffer, offset, amount);
+        return amount;
+    }
+
+    @Override
+    public int available()
+    {
+        return current.remaining();
+    }
+
+    /**
+     * Closing counts as consumed, the rest of the message is skipped.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        chunks.clear();
+        finish();
+    }
+
+    private void finish()
+    {
+        if (consumed.compareAndSet(false, true))
+            message.streamConsumed();
+    }
+
+}
@@ -0,0 +1,203 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Package scoped base class for the encoders putting SafeSocket traffic on the
+ * wire. Implementations must be thread safe: every call has to put its
+ * message on the wire in one piece, even with concurrent senders. All outgoing
+ * traffic is piped through the outbound filter before being sent. Encoded
+ * messages are put on the wire by a CoalescingWriter.
+ *
+ * @author m5c
+ */
+abstract class MessageWriter
+{
+
+    // Shared payloads up to this size are copied into a single record, larger ones are written straight from the shared array (an extra write then costs less than the copy).
+    private static final int SHARED_COPY_LIMIT = 16 * 1024;
+
+    protected static final byte[] NO_BYTES = new byte[0];
+
+    // Filter that intercepts any outward message and can manipulate the content.
+    protected final Filter outFilter;
+
+    // Single writer for the encoded records of all senders
+    protected final CoalescingWriter writer;
+
+    /**
+     * @param channel: same connection as the stream (for zero-copy file
+     * transfers), or null.
+     */
+    MessageWriter(OutputStream outputStream, WritableByteChannel channel, Filter outFilter)
+    {
+        this.outFilter = outFilter;
+        writer = new CoalescingWriter(outputStream, channel);
+    }
+
+    /**
+     * @param checksum: Checksum to send along for the integrity check, or
+     * MessageChecksum.NONE
+     */
+    abstract void writeUserMessage(String message, int salt, long checksum);
+
+    /**
+     * Binary counterpart of writeUserMessage. Must not modify the message
+     * buffer's position.
+     */
+    abstract void writeBinaryMessage(ByteBuffer message, int salt, long checksum);
+
+    /**
+     * Writes a message of a broadcast. The broadcast's encodings are shared
+     * by all recipients, only the per connection parts (salt, headers) are
+     * encoded here. Not piped through the outbound filter, senders make sure
+     * the filter would not modify the message.
+     */
+    abstract void writeBroadcast(Broadcast broadcast, int salt, long checksum);
+
+    /**
+     * Allocation free counterpart of writeUserMessage (pooled send): the
+     * message is encoded into the sender's reusable buffer and written from
+     * there. Computes the checksum itself, if requested. Only supported by the
+     * FRAMED wire format.
+     */
+    void writeUserMessage(String message, int salt, boolean checksum, EncodeBuffer buffer)
+    {
+        throw new IllegalStateException("Pooled send requires WireFormat.FRAMED.");
+    }
+
+    /**
+     * Binary counterpart of the pooled writeUserMessage.
+     */
+    void writeBinaryMessage(ByteBuffer message, int salt, boolean checksum, EncodeBuffer buffer)
+    {
+        throw new IllegalStateException("Pooled send requires WireFormat.FRAMED.");
+    }
+
+    abstract void writeMessageAck(int sequence);
+
+    abstract void writeHashedMessageAck(String messageHash, int salt);
+
+    abstract void writeCumulativeAck(int sequence);
+
+    abstract void writeHeartBeat(int heartBeatId);
+
+    abstract void writeHeartBeatAck(int heartBeatId);
+
+    abstract void writeDisconnect();
+
+    /**
+     * Grants the remote sender flow control credit: the total amount of
+     * messages and their total size it may have sent.
+     */
+    abstract void writeCredit(long messages, long size);
+
+    /**
+     * Announces a file transfer. File transfers are only supported by the
+     * FRAMED wire format.
+     */
+    void writeFileStart(int transferId, String name, long size)
+    {
+        throw new IllegalStateException("File transfers require WireFormat.FRAMED.");
+    }
+
+    /**
+     * Sends a region of the file (without copying it, if possible). Returns
+     * false if the chunk could not be written, the connection must be
+     * considered broken then.
+     */
+    boolean writeFileChunk(int transferId, FileChannel file, long position, int length)
+    {
+        throw new IllegalStateException("File transfers require WireFormat.FRAMED.");
+    }
+
+    void writeFileEnd(int transferId)
+    {
+        throw new IllegalStateException("File transfers require WireFormat.FRAMED.");
+    }
+
+    void writeFileAck(int transferId)
+    {
+        throw new IllegalStateException("File transfers require WireFormat.FRAMED.");
+    }
+
+    /**
+     * When something has last been written (System.nanoTime()).
+     */
+    long getLastWritten()
+    {
+        return writer.getLastWritten();
+    }
+
+    /**
+     * Amount of bytes written to the connection so far.
+     */
+    long getBytesWritten()
+    {
+        return writer.getBytesWritten();
+    }
+
+    /**
+     * Whether writing now would likely block, see CoalescingWriter.isStalled.
+     */
+    boolean isStalled()
+    {
+        return writer.isStalled();
+    }
+
+    /**
+     * Waits until everything written so far is on the wire.
+     */
+    void awaitWritten()
+    {
+        writer.awaitWritten();
+    }
+
+    /**
+     * Writes head, a region of the shared payload and tail as one record. The
+     * shared array is only read.
+     */
+    protected void writeShared(final byte[] head, final byte[] shared, final int offset, final int length, final byte[] tail)
+    {
+        if (length <= SHARED_COPY_LIMIT) {
+            byte[] record = new byte[head.length + length + tail.length];
+            System.arraycopy(head, 0, record, 0, head.length);
+            System.arraycopy(shared, offset, record, head.length, length);
+            System.arraycopy(tail, 0, record, head.length + length, tail.length);
+            writer.write(record);
+            return;
+        }
+
+        // Write errors are ignored, as for records
+        writer.writeDirect(new CoalescingWriter.DirectWrite()
+        {
+            @Override
+            public long write(OutputStream outputStream, WritableByteChannel channel) throws IOException
+            {
+                if (head.length > 0)
+                    outputStream.write(head);
+                outputStream.write(shared, offset, length);
+                if (tail.length > 0)
+                    outputStream.write(tail);
+                return head.length + length + tail.length;
+            }
+        });
+    }
+
+    /**
+     * Pipes a message through the outbound filter. Returns null if the filter
+     * flagged the message as discarded.
+     */
+    protected String filter(String message)
+    {
+        String filtered = outFilter.filter(message);
+        if (filtered.equals(InternalMessages.MESSAGE_DISCARDED))
+            return null;
+        return filtered;
+    }
+
+}
@@ -0,0 +1,333 @@
+package com.m5c.safesockets;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Aggregated metrics of all SafeSockets of the JVM, registered as MBean
+ * (com.m5c.safesockets:type=MetricsRegistry). Live connections are summed up
+ * on every read, closed ones are folded into the totals on their breakdown.
+ * Recording never touches the registry, only reading and connection setup /
+ * breakdown take its lock. Also counts the live helper threads (readers,
+ * heartbeat senders, event loops, pools) started by the library.
+ *
+ * @author m5c
+ */
+public final class MetricsRegistry implements MetricsRegistryMBean
+{
+
+    private static final String DOMAIN = "com.m5c.safesockets";
+
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+    private static final AtomicInteger LIVE_THREADS = new AtomicInteger();
+
+    // Clients a SafeSocketServer failed to accept (the connection never came to be)
+    private static final AtomicLong ACCEPT_FAILURES = new AtomicLong();
+
+    static {
+        register(INSTANCE, "type=MetricsRegistry");
+    }
+
+    private final AtomicLong connectionIds = new AtomicLong();
+    private final Set<ConnectionMetrics> liveConnections = Collections.newSetFromMap(new ConcurrentHashMap<ConnectionMetrics, Boolean>());
+
+    // Totals of the closed connections, guarded by the registry's monitor
+    private long closedMessagesSent;
+    private long closedMessagesReceived;
+    private long closedBytesSent;
+    private long closedBytesReceived;
+    private final long[] closedTimeouts = new long[TimeoutCause.values().length];
+    private long closedObserverQueueOverflows;
+    private final LatencyHistogram closedAckLatency = new LatencyHistogram();
+    private final LatencyHistogram closedHeartBeatRtt = new LatencyHistogram();
+
+    private MetricsRegistry()
+    {
+    }
+
+    public static MetricsRegistry getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds a connection that has become alive, registers its MBean. Returns
+     * the MBean's name (null if JMX registration failed), needed to remove it.
+     */
+    synchronized ObjectName add(ConnectionMetrics connection)
+    {
+        liveConnections.add(connection);
+        return register(connection, "type=Connection,id=" + connectionIds.incrementAndGet());
+    }
+
+    /**
+     * Folds a broken down connection into the totals and unregisters its
+     * MBean.
+     */
+    synchronized void remove(ConnectionMetrics connection, ObjectName name)
+    {
+        if (!liveConnections.remove(connection))
+            return;
+        closedMessagesSent += connection.getMessagesSent();
+        closedMessagesReceived += connection.getMessagesReceived();
+        closedBytesSent += connection.getBytesSent();
+        closedBytesReceived += connection.getBytesReceived();
+        for (TimeoutCause cause : TimeoutCause.values()) {
+            closedTimeouts[cause.ordinal()] += connection.getTimeouts(cause);
+        }
+        closedObserverQueueOverflows += connection.getObserverQueueOverflows();
+        closedAckLatency.add(connection.getAckLatency());
+        closedHeartBeatRtt.add(connection.getHeartBeatRtt());
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            catch (JMException ex) {
+                // Unregistered by someone else, nothing left to do
+            }
+        }
+    }
+
+    /**
+     * Metrics are a side business, a connection must not fail because the
+     * MBean cannot be registered (e.g. restricted by a SecurityManager).
+     */
+    private static ObjectName register(Object mbean, String properties)
+    {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(mbean, name);
+            return name;
+        }
+        catch (JMException ex) {
+            return null;
+        }
+        catch (SecurityException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Wraps the body of a helper thread, so it is counted while it runs.
+     */
+    static Runnable track(final Runnable body)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                threadStarted();
+                try {
+                    body.run();
+                }
+                finally {
+                    threadStopped();
+                }
+            }
+        };
+    }
+
+    /**
+     * Same as track, for helper threads extending Thread. Must be paired with
+     * threadStopped in a finally block.
+     */
+    static void threadStarted()
+    {
+        LIVE_THREADS.incrementAndGet();
+    }
+
+    static void threadStopped()
+    {
+        LIVE_THREADS.decrementAndGet();
+    }
+
+    static void acceptFailed()
+    {
+        ACCEPT_FAILURES.incrementAndGet();
+    }
+
+    @Override
+    public int getLiveConnections()
+    {
+        return liveConnections.size();
+    }
+
+    @Override
+    public int getLiveHelperThreads()
+    {
+        return LIVE_THREADS.get();
+    }
+
+    /**
+     * Clients that could not be accepted by a SafeSocketServer (e.g. out of
+     * file descriptors).
+     */
+    @Override
+    public long getAcceptFailures()
+    {
+        return ACCEPT_FAILURES.get();
+    }
+
+    @Override
+    public synchronized long getMessagesSent()
+    {
+        long sum = closedMessagesSent;
+        for (ConnectionMetrics connection : liveConnections) {
+            sum += connection.getMessagesSent();
+        }
+        return sum;
+    }
+
+    @Override
+    public synchronized long getMessagesReceived()
+    {
+        long sum = closedMessagesReceived;
+        for (ConnectionMetrics connection : liveConnections) {
+            sum += connection.getMessagesReceived();
+        }
+        return sum;
+    }
+
+    @Override
+    public synchronized long getBytesSent()
+    {
+        long sum = closedBytesSent;
+        for (ConnectionMetrics connection : liveConnections) {
+            sum += connection.getBytesSent();
+        }
+        return sum;
+    }
+
+    @Override
+    public synchronized long getBytesReceived()
+    {
+        long sum = closedBytesReceived;
+        for (ConnectionMetrics connection : liveConnections) {
+            sum += connection.getBytesReceived();
+        }
+        return sum;
+    }
+
+    @Override
+    public int getInFlightMessages()
+    {
+        int sum = 0;
+        for (ConnectionMetrics connection : liveConnections) {
+            sum += connection.getInFlightMessages();
+        }
+        return sum;
+    }
+
+    /**
+     * ACK latency over all connections, at the given percentile (e.g. 0.99).
+     *
+     * @return [ms], 0 if no message has been ACKed yet
+     */
+    public synchronized double getAckLatency(double percentile)
+    {
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.add(closedAckLatency);
+        for (ConnectionMetrics connection : liveConnections) {
+            merged.add(connection.getAckLatency());
+        }
+        return ConnectionMetrics.toMillis(merged.getPercentile(percentile));
+    }
+
+    @Override
+    public double getAckLatencyP50()
+    {
+        return getAckLatency(0.5);
+    }
+
+    @Override
+    public double getAckLatencyP99()
+    {
+        return getAckLatency(0.99);
+    }
+
+    @Override
+    public double getAckLatencyP999()
+    {
+        return getAckLatency(0.999);
+    }
+
+    private synchronized double getHeartBeatRtt(double percentile)
+    {
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.add(closedHeartBeatRtt);
+        for (ConnectionMetrics connection : liveConnections) {
+            merged.add(connection.getHeartBeatRtt());
+        }
+        return ConnectionMetrics.toMillis(merged.getPercentile(percentile));
+    }
+
+    @Override
+    public double getHeartBeatRttP50()
+    {
+        return getHeartBeatRtt(0.5);
+    }
+
+    @Override
+    public double getHeartBeatRttP99()
+    {
+        return getHeartBeatRtt(0.99);
+    }
+
+    /**
+     * Amount of connections that have broken down due to the given kind of
+     * timeout.
+     */
+    public synchronized long getTimeouts(TimeoutCause cause)
+    {
+        long sum = closedTimeouts[cause.ordinal()];
+        for (ConnectionMetrics connection : liveConnections) {
+            sum += connection.getTimeouts(cause);
+        }
+        return sum;
+    }
+
+    @Override
+    public long getMessageAckTimeouts()
+    {
+        return getTimeouts(TimeoutCause.MESSAGE_ACK);
+    }
+
+    @Override
+    public long getHeartBeatAckTimeouts()
+    {
+        return getTimeouts(TimeoutCause.HEART_BEAT_ACK);
+    }
+
+    @Override
+    public long getHeartBeatTimeouts()
+    {
+        return getTimeouts(TimeoutCause.HEART_BEAT);
+    }
+
+    @Override
+    public long getFileAckTimeouts()
+    {
+        return getTimeouts(TimeoutCause.FILE_ACK);
+    }
+
+    @Override
+    public synchronized long getObserverQueueOverflows()
+    {
+        long sum = closedObserverQueueOverflows;
+        for (ConnectionMetrics connection : liveConnections) {
+            sum += connection.getObserverQueueOverflows();
+        }
+        return sum;
+    }
+
+}
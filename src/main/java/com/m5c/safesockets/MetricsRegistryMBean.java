@@ -0,0 +1,48 @@
+package com.m5c.safesockets;
+
+/**
+ * JMX view of the metrics of all SafeSockets of the JVM, closed ones
+ * included. Durations are in ms.
+ *
+ * @author m5c
+ */
+public interface MetricsRegistryMBean
+{
+
+    int getLiveConnections();
+
+    int getLiveHelperThreads();
+
+    long getAcceptFailures();
+
+    long getMessagesSent();
+
+    long getMessagesReceived();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    int getInFlightMessages();
+
+    double getAckLatencyP50();
+
+    double getAckLatencyP99();
+
+    double getAckLatencyP999();
+
+    double getHeartBeatRttP50();
+
+    double getHeartBeatRttP99();
+
+    long getMessageAckTimeouts();
+
+    long getHeartBeatAckTimeouts();
+
+    long getHeartBeatTimeouts();
+
+    long getFileAckTimeouts();
+
+    long getObserverQueueOverflows();
+
+}
@@ -0,0 +1,319 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A SafeSocket's channel, as seen by the event loop it is attached to. Any
+ * thread may write to the connection's output stream, the bytes are queued
+ * and written by the event loop once flushed. The queue is bounded: writers
+ * block while a slow peer has not taken the queued bytes yet. The event loop
+ * itself must not block, if its own writes (e.g. ACKs) overflow the queue by
+ * far, the connection is broken instead. Queued bytes are copied into
+ * recycled chunks, so writing does not allocate. Reads are passed to the
+ * decoder, EOF or read errors are reported to the MessageHandler as
+ * unfriendly breakdown.
+ *
+ * @author m5c
+ */
+class NioConnection
+{
+
+    private final SocketChannel channel;
+
+    private final EventLoop eventLoop;
+
+    // Only accessed by the event loop
+    private SelectionKey key;
+    private MessageHandler messageHandler;
+    private InboundDecoder decoder;
+
+    // Size of the chunks queued bytes are copied to, how many free ones are kept, and the bounds of the queued bytes (writers block / connection breaks)
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int RETAINED_CHUNKS = 16;
+    private static final long MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+    private static final long MAX_EVENT_LOOP_QUEUED_BYTES = 2 * MAX_QUEUED_BYTES;
+
+    // Written but not yet sent bytes, in order: chunks being filled by the writers, and chunks (flipped) being sent by the event loop. Guarded by outbound.
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<ByteBuffer> sending = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<ByteBuffer> freeChunks = new ArrayDeque<ByteBuffer>();
+    private long queuedBytes = 0;
+
+    // Coalesces flush requests, as long as one is pending on the event loop
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final OutputStream outputStream = new NioOutputStream();
+
+    private volatile boolean closed = false;
+
+    NioConnection(SocketChannel channel, EventLoop eventLoop) throws IOException
+    {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        channel.configureBlocking(false);
+        eventLoop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                register();
+            }
+        });
+    }
+
+    /**
+     * Stream for all outgoing traffic. Blocks while the queue is full (except
+     * on the event loop).
+     */
+    OutputStream getOutputStream()
+    {
+        return outputStream;
+    }
+
+    /**
+     * Starts passing incoming bytes to the decoder.
+     */
+    void startReading(final MessageHandler messageHandler, final InboundDecoder decoder)
+    {
+        eventLoop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                NioConnection.this.messageHandler = messageHandler;
+                NioConnection.this.decoder = decoder;
+                if (key != null && key.isValid())
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        });
+    }
+
+    /**
+     * Closes the channel, after a last attempt to send what has been written
+     * so far (e.g. a DISCONNECT message). Writers blocked by a full queue are
+     * released right away, their bytes are dropped.
+     */
+    void close()
+    {
+        synchronized (outbound) {
+            closed = true;
+            outbound.notifyAll();
+        }
+        eventLoop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flushWrites();
+                closeChannel();
+            }
+        });
+    }
+
+    private void register()
+    {
+        try {
+            key = channel.register(eventLoop.getSelector(), 0, this);
+        }
+        catch (ClosedChannelException ex) {
+            // Closed before it was registered, nothing to do
+        }
+    }
+
+    /**
+     * Reads what is available and hands it to the decoder. Called by the event
+     * loop if the channel is readable.
+     */
+    void handleRead(ByteBuffer readBuffer)
+    {
+        readBuffer.clear();
+        try {
+            if (channel.read(readBuffer) < 0) {
+                // EOF, the remote side vanished without a DISCONNECT message (or we are closing down anyways)
+                breakdown();
+                return;
+            }
+            readBuffer.flip();
+            decoder.decode(readBuffer);
+        }
+        catch (IOException ex) {
+            breakdown();
+        }
+        catch (UnfriendlyConnectionBreakdownException ex) {
+            breakdown();
+        }
+    }
+
+    /**
+     * Sends as much of the queued bytes as the channel takes. If something
+     * remains, the event loop continues once the channel is writable again.
+     * Sent chunks are recycled, blocked writers are released.
+     */
+    void flushWrites()
+    {
+        flushScheduled.set(false);
+        if (key == null || !key.isValid())
+            return;
+        synchronized (outbound) {
+            ByteBuffer chunk;
+            while ((chunk = outbound.poll()) != null) {
+                chunk.flip();
+                sending.add(chunk);
+            }
+        }
+        try {
+            ByteBuffer head;
+            while ((head = sending.peek()) != null) {
+                int length = head.remaining();
+                channel.write(head);
+                synchronized (outbound) {
+                    queuedBytes -= length - head.remaining();
+                    if (!head.hasRemaining()) {
+                        sending.poll();
+                        recycle(head);
+                    }
+                    outbound.notifyAll();
+                }
+                if (head.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+        catch (IOException ex) {
+            breakdown();
+        }
+    }
+
+    /**
+     * Keeps a sent chunk for reuse. Called with the outbound lock held.
+     */
+    private void recycle(ByteBuffer chunk)
+    {
+        if (freeChunks.size() < RETAINED_CHUNKS) {
+            chunk.clear();
+            freeChunks.add(chunk);
+        }
+    }
+
+    /**
+     * Connection broke down without having been properly closed. The channel
+     * is closed before the handler is notified: the handler may have to wait
+     * for a writer blocked by the full queue, which only closing releases.
+     */
+    void breakdown()
+    {
+        closeChannel();
+        if (messageHandler != null)
+            messageHandler.assymentricDisconnect(false);
+    }
+
+    private void closeChannel()
+    {
+        closed = true;
+        synchronized (outbound) {
+            outbound.clear();
+            sending.clear();
+            queuedBytes = 0;
+            outbound.notifyAll();
+        }
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        }
+        catch (IOException ex) {
+            // Nothing left to do
+        }
+    }
+
+    /**
+     * Queues written bytes, flush hands them to the event loop. Writes after
+     * close are dropped silently (as a PrintWriter on a closed socket does).
+     */
+    private class NioOutputStream extends OutputStream
+    {
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            if (length <= 0)
+                return;
+            boolean eventLoopThread = Thread.currentThread() == eventLoop;
+            synchronized (outbound) {
+                // Backpressure: wait until the event loop has sent enough. What has been queued so far must be flushed for that.
+                while (!closed && !eventLoopThread && queuedBytes >= MAX_QUEUED_BYTES) {
+                    flush();
+                    try {
+                        outbound.wait();
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (closed)
+                    return;
+                if (queuedBytes + length <= MAX_EVENT_LOOP_QUEUED_BYTES) {
+                    append(bytes, offset, length);
+                    return;
+                }
+            }
+            // Only the event loop gets here: the peer does not take anything, even ACKs pile up
+            breakdown();
+        }
+
+        /**
+         * Copies the bytes to the last chunk, and new ones as it fills up.
+         * Called with the outbound lock held.
+         */
+        private void append(byte[] bytes, int offset, int length)
+        {
+            queuedBytes += length;
+            while (length > 0) {
+                ByteBuffer tail = outbound.peekLast();
+                if (tail == null || !tail.hasRemaining()) {
+                    tail = freeChunks.poll();
+                    if (tail == null)
+                        tail = ByteBuffer.allocate(CHUNK_SIZE);
+                    outbound.add(tail);
+                }
+                int amount = Math.min(tail.remaining(), length);
+                tail.put(bytes, offset, amount);
+                offset += amount;
+                length -= amount;
+            }
+        }
+
+        @Override
+        public void flush()
+        {
+            if (!closed && flushScheduled.compareAndSet(false, true))
+                eventLoop.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        flushWrites();
+                    }
+                });
+        }
+
+    }
+
+}
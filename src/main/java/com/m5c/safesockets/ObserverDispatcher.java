@@ -0,0 +1,452 @@
+package com.m5c.safesockets;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Notifies the MessageObservers of one SafeSocket. Each observer has its own
+ * SerialQueue, so it sees the messages in arrival order and a slow observer
+ * does not hold up the others. In partitioned mode each observer has several
+ * queues instead, and the key of a message decides which one it goes to:
+ * Messages with equal keys stay in order, the others are processed in
+ * parallel. Dispatching never blocks the caller (the reader), a full queue is
+ * handled according to the OverflowPolicy. Observers of an ObserverRegistry
+ * only get the messages they subscribed to, through queues of their own. The
+ * queues of observers that have been removed or have unsubscribed are
+ * dropped. With flow control the SafeSocket learns when all observers are
+ * done with a message, to return its credit.
+ *
+ * The user's collection is read for every message, without copying it. It
+ * must be a concurrent collection (e.g. CopyOnWriteArrayList) or a
+ * synchronized one (e.g. Collections.synchronizedList), if it is modified
+ * while the connection is up. It is iterated under its own lock, as the
+ * synchronized ones require, which no user code runs under.
+ *
+ * @author m5c
+ */
+class ObserverDispatcher
+{
+
+    // Default executor, shared by all SafeSockets. Cached, since observers may block (e.g. by sending messages themselves).
+    private static final ExecutorService SHARED_EXECUTOR = Executors.newCachedThreadPool(new DaemonThreadFactory("SafeSocket-Observer"));
+
+    private final SafeSocket safeSocket;
+
+    // The user's collection, observers may be added or removed at any time
+    private final Collection<MessageObserver> messageObservers;
+
+    // Null unless routed observers are registered (see SafeSocketOptions.setObserverRegistry)
+    private final ObserverRegistry registry;
+
+    // The queues of the observers in the user's collection, as found by the current dispatch, and the registry's index it uses (if any). Only used by the reader.
+    private ObserverQueues[] observers = new ObserverQueues[8];
+    private int observerCount = 0;
+    private ObserverRegistry.Index lastIndex;
+
+    // Dispatches so far, to tell which observers the current one has found in the user's collection. Only used by the reader.
+    private long dispatches = 0;
+
+    // Whether consumed messages are reported to the SafeSocket (flow control)
+    private final boolean flowControl;
+
+    private final Executor executor;
+    private final int queueLimit;
+    private final OverflowPolicy overflowPolicy;
+
+    // Null unless dispatch is partitioned
+    private final MessageKeyExtractor keyExtractor;
+    private final int partitions;
+
+    private final Map<MessageObserver, ObserverQueues> queues = new ConcurrentHashMap<MessageObserver, ObserverQueues>();
+
+    ObserverDispatcher(SafeSocket safeSocket, Collection<MessageObserver> messageObservers, SafeSocketOptions options)
+    {
+        this.safeSocket = safeSocket;
+        this.messageObservers = messageObservers;
+        if (options.getObserverExecutor() != null)
+            executor = options.getObserverExecutor();
+        else
+            executor = SHARED_EXECUTOR;
+        registry = options.getObserverRegistry();
+        flowControl = options.isFlowControl();
+        queueLimit = options.getObserverQueueLimit();
+        overflowPolicy = options.getOverflowPolicy();
+        keyExtractor = options.getKeyExtractor();
+        if (keyExtractor != null)
+            partitions = options.getPartitions();
+        else
+            partitions = 1;
+    }
+
+    /**
+     * Queues the message for all observers. Returns false if an observer's
+     * queue was full and the OverflowPolicy demands a disconnect.
+     */
+    boolean dispatch(String message)
+    {
+        int partition = 0;
+        if (keyExtractor != null)
+            partition = getPartition(keyExtractor.extractKey(message));
+
+        Delivery delivery = flowControl ? new Delivery(safeSocket, message.length()) : null;
+        boolean queued = true;
+        findObservers();
+        for (int i = 0; i < observerCount; i++) {
+            MessageObserver messageObserver = observers[i].observer;
+            if (!offer(observers[i], partition, new Notification(messageObserver, safeSocket, message, delivery)))
+                queued = false;
+        }
+        if (registry != null) {
+            for (MessageObserver messageObserver : lastIndex.match(message)) {
+                if (!offer(getQueues(messageObserver), partition, new Notification(messageObserver, safeSocket, message, delivery)))
+                    queued = false;
+            }
+        }
+        if (delivery != null)
+            delivery.done();
+        return queued || overflowPolicy == OverflowPolicy.DISCARD;
+    }
+
+    /**
+     * Binary counterpart of dispatch(String). Only BinaryMessageObservers are
+     * notified, through the same queues as for String messages (so String and
+     * binary messages stay in order).
+     */
+    boolean dispatch(ByteBuffer message)
+    {
+        int partition = 0;
+        if (keyExtractor != null)
+            partition = getPartition(keyExtractor.extractKey(message.duplicate()));
+
+        Delivery delivery = flowControl ? new Delivery(safeSocket, message.remaining()) : null;
+        boolean queued = true;
+        findObservers();
+        for (int i = 0; i < observerCount; i++) {
+            MessageObserver messageObserver = observers[i].observer;
+            if (messageObserver instanceof BinaryMessageObserver && !offer(observers[i], partition, new BinaryNotification((BinaryMessageObserver) messageObserver, safeSocket, message, delivery)))
+                queued = false;
+        }
+        if (registry != null) {
+            for (MessageObserver messageObserver : lastIndex.getUnconditionalObservers()) {
+                if (messageObserver instanceof BinaryMessageObserver && !offer(getQueues(messageObserver), partition, new BinaryNotification((BinaryMessageObserver) messageObserver, safeSocket, message, delivery)))
+                    queued = false;
+            }
+        }
+        if (delivery != null)
+            delivery.done();
+        return queued || overflowPolicy == OverflowPolicy.DISCARD;
+    }
+
+    /**
+     * Streaming counterpart of dispatch(String). Only
+     * StreamingMessageObservers are notified, each with a stream of its own.
+     * The key of a streamed message is not known yet, so partitioned dispatch
+     * uses the first partition.
+     */
+    boolean dispatch(StreamedMessage message)
+    {
+        boolean queued = true;
+        findObservers();
+        for (int i = 0; i < observerCount; i++) {
+            if (!offerStream(observers[i].observer, message))
+                queued = false;
+        }
+        if (registry != null) {
+            for (MessageObserver messageObserver : lastIndex.getUnconditionalObservers()) {
+                if (!offerStream(messageObserver, message))
+                    queued = false;
+            }
+        }
+        return queued || overflowPolicy == OverflowPolicy.DISCARD;
+    }
+
+    /**
+     * Opens a stream of the message for a StreamingMessageObserver. Returns
+     * false if its queue was full.
+     */
+    private boolean offerStream(MessageObserver messageObserver, StreamedMessage message)
+    {
+        if (!(messageObserver instanceof StreamingMessageObserver))
+            return true;
+        MessageStream stream = message.openStream();
+        if (!offer(getQueues(messageObserver), 0, new StreamNotification((StreamingMessageObserver) messageObserver, safeSocket, stream))) {
+            // Nobody will read it, so it must not hold back the ACK
+            stream.close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queues the notification for the observer. Returns false if the queue was
+     * full.
+     */
+    private boolean offer(ObserverQueues observerQueues, int partition, ObserverNotification notification)
+    {
+        Delivery delivery = notification.delivery;
+        if (delivery != null)
+            delivery.add();
+        if (observerQueues.partitions[partition].offer(notification))
+            return true;
+        if (delivery != null)
+            delivery.done();
+        return false;
+    }
+
+    /**
+     * Looks up the queues of the observers in the user's collection (see
+     * observers), skipping null entries, and refreshes the index of the
+     * registry (lastIndex). If the observers differ from those of the last
+     * dispatch, or the index has changed, the queues of observers that are
+     * gone from both are dropped (their pending notifications are still run
+     * by the executor).
+     */
+    private void findObservers()
+    {
+        dispatches++;
+        int count = 0;
+        boolean changed = false;
+        synchronized (messageObservers) {
+            for (MessageObserver messageObserver : messageObservers) {
+                if (messageObserver == null)
+                    continue;
+                ObserverQueues observerQueues = getQueues(messageObserver);
+                // Listed twice
+                if (observerQueues.found == dispatches)
+                    continue;
+                // Not found by the last dispatch, i.e. added
+                if (observerQueues.found != dispatches - 1)
+                    changed = true;
+                observerQueues.found = dispatches;
+                if (count == observers.length)
+                    observers = Arrays.copyOf(observers, 2 * count);
+                observers[count++] = observerQueues;
+            }
+        }
+        // None added, but fewer found than by the last dispatch: some have been removed
+        if (count < observerCount) {
+            changed = true;
+            Arrays.fill(observers, count, observerCount, null);
+        }
+        observerCount = count;
+
+        ObserverRegistry.Index index = registry == null ? null : registry.getIndex();
+        if (changed || index != lastIndex) {
+            Iterator<ObserverQueues> iterator = queues.values().iterator();
+            while (iterator.hasNext()) {
+                ObserverQueues observerQueues = iterator.next();
+                if (observerQueues.found != dispatches && (index == null || !index.contains(observerQueues.observer)))
+                    iterator.remove();
+            }
+            lastIndex = index;
+        }
+    }
+
+    /**
+     * Amount of observers having queues (for tests).
+     */
+    int getQueuedObservers()
+    {
+        return queues.size();
+    }
+
+    /**
+     * Queues of an observer, created on its first message. Only called by the
+     * reader, so no need to guard against concurrent creation.
+     */
+    private ObserverQueues getQueues(MessageObserver messageObserver)
+    {
+        ObserverQueues observerQueues = queues.get(messageObserver);
+        if (observerQueues == null) {
+            observerQueues = new ObserverQueues(messageObserver, executor, queueLimit, partitions);
+            queues.put(messageObserver, observerQueues);
+        }
+        return observerQueues;
+    }
+
+    /**
+     * Maps a key to one of the partitions. The hash is spread first, since
+     * many keys (e.g. Integers) have hash codes with low entropy in the lower
+     * bits.
+     */
+    private int getPartition(Object key)
+    {
+        if (key == null)
+            return 0;
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % partitions;
+    }
+
+    /**
+     * The queue(s) of an observer, one per partition.
+     */
+    private static class ObserverQueues
+    {
+
+        private final MessageObserver observer;
+        private final SerialQueue[] partitions;
+
+        // The last dispatch that has found the observer in the user's collection. Only used by the reader.
+        private long found = -1;
+
+        ObserverQueues(MessageObserver observer, Executor executor, int queueLimit, int partitions)
+        {
+            this.observer = observer;
+            this.partitions = new SerialQueue[partitions];
+            for (int i = 0; i < partitions; i++) {
+                this.partitions[i] = new SerialQueue(executor, queueLimit);
+            }
+        }
+
+    }
+
+    /**
+     * Counts the observers still busy with a message (flow control). The
+     * dispatching reader holds one count until all notifications are queued,
+     * the last one done reports the message as consumed.
+     */
+    private static class Delivery
+    {
+
+        private final SafeSocket safeSocket;
+        private final long size;
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        Delivery(SafeSocket safeSocket, long size)
+        {
+            this.safeSocket = safeSocket;
+            this.size = size;
+        }
+
+        void add()
+        {
+            pending.incrementAndGet();
+        }
+
+        void done()
+        {
+            if (pending.decrementAndGet() == 0)
+                safeSocket.messageConsumed(size);
+        }
+
+    }
+
+    /**
+     * A notification of a single observer, counted down once it has run (if
+     * it is part of a delivery).
+     */
+    private abstract static class ObserverNotification implements Runnable
+    {
+
+        private final Delivery delivery;
+
+        ObserverNotification(Delivery delivery)
+        {
+            this.delivery = delivery;
+        }
+
+        abstract void notifyObserver();
+
+        @Override
+        public void run()
+        {
+            try {
+                notifyObserver();
+            }
+            finally {
+                if (delivery != null)
+                    delivery.done();
+            }
+        }
+
+    }
+
+    /**
+     * A single message for a single observer.
+     */
+    private static class Notification extends ObserverNotification
+    {
+
+        private final MessageObserver observer;
+        private final SafeSocket safeSocket;
+        private final String message;
+
+        Notification(MessageObserver observer, SafeSocket safeSocket, String message, Delivery delivery)
+        {
+            super(delivery);
+            this.observer = observer;
+            this.safeSocket = safeSocket;
+            this.message = message;
+        }
+
+        @Override
+        void notifyObserver()
+        {
+            observer.notifyMessageObserver(safeSocket, message);
+        }
+
+    }
+
+    /**
+     * A single binary message for a single observer. Each observer gets its
+     * own view, so it can move the position freely.
+     */
+    private static class BinaryNotification extends ObserverNotification
+    {
+
+        private final BinaryMessageObserver observer;
+        private final SafeSocket safeSocket;
+        private final ByteBuffer message;
+
+        BinaryNotification(BinaryMessageObserver observer, SafeSocket safeSocket, ByteBuffer message, Delivery delivery)
+        {
+            super(delivery);
+            this.observer = observer;
+            this.safeSocket = safeSocket;
+            this.message = message;
+        }
+
+        @Override
+        void notifyObserver()
+        {
+            observer.notifyBinaryMessageObserver(safeSocket, message.duplicate());
+        }
+
+    }
+
+    /**
+     * A single streamed message for a single observer.
+     */
+    private static class StreamNotification extends ObserverNotification
+    {
+
+        private final StreamingMessageObserver observer;
+        private final SafeSocket safeSocket;
+        private final MessageStream message;
+
+        StreamNotification(StreamingMessageObserver observer, SafeSocket safeSocket, MessageStream message)
+        {
+            super(null);
+            this.observer = observer;
+            this.safeSocket = safeSocket;
+            this.message = message;
+        }
+
+        @Override
+        void notifyObserver()
+        {
+            observer.notifyStreamingMessageObserver(safeSocket, message);
+        }
+
+    }
+
+}
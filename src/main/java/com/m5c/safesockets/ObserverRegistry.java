@@ -0,0 +1,306 @@
+package com.m5c.safesockets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Thread safe registry of MessageObservers that are only interested in some
+ * of the incoming messages (see SafeSocketOptions.setObserverRegistry). An
+ * observer subscribes with a prefix, a condition, or both, and only receives
+ * the String messages matching them. Observers may subscribe and unsubscribe
+ * at any time, also from within a notification, and one registry may be
+ * shared by many SafeSockets.
+ *
+ * Subscriptions are indexed in a prefix trie. The reader walks it along the
+ * message, so routing a message costs the length of the longest matching
+ * prefix plus the matching subscriptions, no matter how many others are
+ * registered. Conditions are only tested for messages starting with their
+ * prefix. The index is copy-on-write: every change builds a new one, the
+ * readers never lock.
+ *
+ * Binary and streamed messages (whose content is not known when they are
+ * dispatched) only reach observers subscribed to all messages, i.e. without
+ * prefix and condition.
+ *
+ * @author m5c
+ */
+public class ObserverRegistry
+{
+
+    // All subscriptions in order of registration. Guarded by this, the index is rebuilt on each change.
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+    private volatile Index index = new Index(Collections.<Subscription>emptyList());
+
+    /**
+     * Subscribes the observer to all messages.
+     *
+     * @param observer
+     * @return the subscription, to unsubscribe
+     */
+    public Subscription subscribe(MessageObserver observer)
+    {
+        return subscribe("", null, observer);
+    }
+
+    /**
+     * Subscribes the observer to the messages starting with the prefix.
+     *
+     * @param prefix
+     * @param observer
+     * @return the subscription, to unsubscribe
+     */
+    public Subscription subscribe(String prefix, MessageObserver observer)
+    {
+        return subscribe(prefix, null, observer);
+    }
+
+    /**
+     * Subscribes the observer to the messages the condition holds for. The
+     * condition is tested for every incoming message, prefer a prefix where
+     * possible.
+     *
+     * @param condition
+     * @param observer
+     * @return the subscription, to unsubscribe
+     */
+    public Subscription subscribe(Predicate<String> condition, MessageObserver observer)
+    {
+        if (condition == null)
+            throw new IllegalArgumentException("Condition must not be null.");
+        return subscribe("", condition, observer);
+    }
+
+    /**
+     * Subscribes the observer to the messages starting with the prefix that
+     * the condition holds for. An observer subscribed several times receives
+     * each message once. The condition is tested by the reader, so it must be
+     * fast, must not block and must not throw.
+     *
+     * @param prefix: empty for all messages.
+     * @param condition: null if the prefix alone decides.
+     * @param observer
+     * @return the subscription, to unsubscribe
+     */
+    public synchronized Subscription subscribe(String prefix, Predicate<String> condition, MessageObserver observer)
+    {
+        if (prefix == null || observer == null)
+            throw new IllegalArgumentException("Prefix and observer must not be null.");
+        Subscription subscription = new Subscription(prefix, condition, observer);
+        subscriptions.add(subscription);
+        index = new Index(subscriptions);
+        return subscription;
+    }
+
+    /**
+     * Ends the subscription. Messages already queued for the observer are
+     * still delivered.
+     *
+     * @param subscription
+     * @return false if it had already been ended
+     */
+    public synchronized boolean unsubscribe(Subscription subscription)
+    {
+        if (!subscriptions.remove(subscription))
+            return false;
+        index = new Index(subscriptions);
+        return true;
+    }
+
+    /**
+     * Ends all subscriptions of the observer.
+     *
+     * @param observer
+     * @return the amount of subscriptions ended
+     */
+    public synchronized int unsubscribe(MessageObserver observer)
+    {
+        int removed = 0;
+        for (int i = subscriptions.size() - 1; i >= 0; i--) {
+            if (subscriptions.get(i).getObserver() == observer) {
+                subscriptions.remove(i);
+                removed++;
+            }
+        }
+        if (removed > 0)
+            index = new Index(subscriptions);
+        return removed;
+    }
+
+    /**
+     * Snapshot of the current subscriptions, in order of registration.
+     */
+    public List<Subscription> getSubscriptions()
+    {
+        return index.subscriptions;
+    }
+
+    Index getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * Immutable snapshot of the subscriptions, as prefix trie.
+     */
+    static final class Index
+    {
+
+        private final List<Subscription> subscriptions;
+        private final Node root;
+
+        // Observers subscribed to all messages (each once), and all observers
+        private final MessageObserver[] unconditionalObservers;
+        private final Set<MessageObserver> observers = Collections.newSetFromMap(new IdentityHashMap<MessageObserver, Boolean>());
+
+        // Observers with several subscriptions, only their matches need to be checked for duplicates
+        private final Set<MessageObserver> multiplySubscribed = Collections.newSetFromMap(new IdentityHashMap<MessageObserver, Boolean>());
+
+        private Index(List<Subscription> subscriptions)
+        {
+            this.subscriptions = Collections.unmodifiableList(new ArrayList<Subscription>(subscriptions));
+            NodeBuilder rootBuilder = new NodeBuilder();
+            List<MessageObserver> unconditional = new ArrayList<MessageObserver>();
+            for (Subscription subscription : subscriptions) {
+                NodeBuilder node = rootBuilder;
+                String prefix = subscription.getPrefix();
+                for (int i = 0; i < prefix.length(); i++) {
+                    node = node.getChild(prefix.charAt(i));
+                }
+                node.subscriptions.add(subscription);
+
+                MessageObserver observer = subscription.getObserver();
+                if (!observers.add(observer))
+                    multiplySubscribed.add(observer);
+                if (subscription.isUnconditional() && !containsIdentical(unconditional, observer))
+                    unconditional.add(observer);
+            }
+            root = rootBuilder.build();
+            unconditionalObservers = unconditional.toArray(new MessageObserver[unconditional.size()]);
+        }
+
+        /**
+         * The observers to notify of the message, each once, in order of
+         * prefix length.
+         */
+        List<MessageObserver> match(String message)
+        {
+            List<MessageObserver> matched = Collections.emptyList();
+            Node node = root;
+            int depth = 0;
+            while (node != null) {
+                for (Subscription subscription : node.subscriptions) {
+                    if (subscription.accepts(message)) {
+                        MessageObserver observer = subscription.getObserver();
+                        if (multiplySubscribed.contains(observer) && containsIdentical(matched, observer))
+                            continue;
+                        if (matched.isEmpty())
+                            matched = new ArrayList<MessageObserver>(4);
+                        matched.add(observer);
+                    }
+                }
+                if (depth == message.length())
+                    break;
+                node = node.getChild(message.charAt(depth++));
+            }
+            return matched;
+        }
+
+        /**
+         * The observers to notify of binary and streamed messages.
+         */
+        MessageObserver[] getUnconditionalObservers()
+        {
+            return unconditionalObservers;
+        }
+
+        boolean contains(MessageObserver observer)
+        {
+            return observers.contains(observer);
+        }
+
+        Set<MessageObserver> getObservers()
+        {
+            return Collections.unmodifiableSet(observers);
+        }
+
+        private static boolean containsIdentical(List<MessageObserver> list, MessageObserver observer)
+        {
+            for (MessageObserver contained : list) {
+                if (contained == observer)
+                    return true;
+            }
+            return false;
+        }
+
+    }
+
+    /**
+     * Trie node: the subscriptions whose prefix ends here, and the children
+     * sorted by their character.
+     */
+    private static final class Node
+    {
+
+        private final Subscription[] subscriptions;
+        private final char[] keys;
+        private final Node[] children;
+
+        private Node(Subscription[] subscriptions, char[] keys, Node[] children)
+        {
+            this.subscriptions = subscriptions;
+            this.keys = keys;
+            this.children = children;
+        }
+
+        private Node getChild(char key)
+        {
+            int position = Arrays.binarySearch(keys, key);
+            if (position < 0)
+                return null;
+            return children[position];
+        }
+
+    }
+
+    /**
+     * Mutable node, only used while building an index.
+     */
+    private static final class NodeBuilder
+    {
+
+        private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+        private final TreeMap<Character, NodeBuilder> children = new TreeMap<Character, NodeBuilder>();
+
+        private NodeBuilder getChild(char key)
+        {
+            NodeBuilder child = children.get(key);
+            if (child == null) {
+                child = new NodeBuilder();
+                children.put(key, child);
+            }
+            return child;
+        }
+
+        private Node build()
+        {
+            char[] keys = new char[children.size()];
+            Node[] builtChildren = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, NodeBuilder> child : children.entrySet()) {
+                keys[i] = child.getKey();
+                builtChildren[i] = child.getValue().build();
+                i++;
+            }
+            return new Node(subscriptions.toArray(new Subscription[subscriptions.size()]), keys, builtChildren);
+        }
+
+    }
+
+}
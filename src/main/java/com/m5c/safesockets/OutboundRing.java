@@ -0,0 +1,100 @@
+package com.m5c.safesockets;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded multi producer, single consumer ring of encoded outbound records.
+ * Producers claim a slot with a single atomic increment and publish their
+ * record into it, no lock involved. Records are consumed in claim order. Only
+ * one thread may consume at a time (the CoalescingWriter guarantees that).
+ *
+ * @author m5c
+ */
+class OutboundRing
+{
+
+    private final AtomicReferenceArray<byte[]> slots;
+
+    private final int mask;
+
+    // Next sequence to be claimed by a producer
+    private final AtomicLong tail = new AtomicLong();
+
+    // Next sequence to be consumed. Written by the consumer only, read by producers waiting for space.
+    private volatile long head = 0;
+
+    /**
+     * @param capacity: rounded up to the next power of two
+     */
+    OutboundRing(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new AtomicReferenceArray<byte[]>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Claims the next slot and returns its sequence. The record must then be
+     * published with publish(). Does not wait for the slot to be free.
+     */
+    long claim()
+    {
+        return tail.getAndIncrement();
+    }
+
+    /**
+     * Whether the claimed slot has been consumed by the previous round, so it
+     * can be published.
+     */
+    boolean hasSpace(long sequence)
+    {
+        return sequence - head < slots.length();
+    }
+
+    void publish(long sequence, byte[] record)
+    {
+        slots.set((int) sequence & mask, record);
+    }
+
+    /**
+     * Returns the next record in claim order, or null if the ring is empty or
+     * the next record has been claimed but not yet published.
+     */
+    byte[] poll()
+    {
+        int index = (int) head & mask;
+        byte[] record = slots.get(index);
+        if (record == null)
+            return null;
+        slots.set(index, null);
+        head = head + 1;
+        return record;
+    }
+
+    /**
+     * Whether the next record to be consumed has been published. (Exact only
+     * for the consumer, any other thread may see a stale answer.)
+     */
+    boolean hasNext()
+    {
+        return slots.get((int) head & mask) != null;
+    }
+
+    /**
+     * Amount of claimed but not yet consumed records (a snapshot).
+     */
+    long size()
+    {
+        return tail.get() - head;
+    }
+
+    /**
+     * Whether all claimed records have been consumed.
+     */
+    boolean isEmpty()
+    {
+        return head == tail.get();
+    }
+
+}
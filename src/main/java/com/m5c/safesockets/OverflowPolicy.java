@@ -0,0 +1,25 @@
+package com.m5c.safesockets;
+
+/**
+ * Tells what happens to an incoming message if the notification queue of a
+ * MessageObserver is full (see SafeSocketOptions.setObserverQueueLimit).
+ *
+ * @author m5c
+ */
+public enum OverflowPolicy
+{
+
+    /**
+     * The message is not ACKed and the connection is considered broken. The
+     * sender learns about the loss, like for any other breakdown. Default.
+     */
+    DISCONNECT,
+
+    /**
+     * The message is ACKed, but observers with a full queue do not see it.
+     * Only suitable for traffic where the latest messages supersede older
+     * ones.
+     */
+    DISCARD
+
+}
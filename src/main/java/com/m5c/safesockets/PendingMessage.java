@@ -0,0 +1,57 @@
+package com.m5c.safesockets;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A sent message (or file) waiting for its ACK: the Terminator killing the
+ * connection if the ACK does not arrive in time, and the future handed to the
+ * sender. Awaited heartbeats (and heartbeat ACKs) have no future. With pooled
+ * send, messages have no Terminator but a deadline, checked by the
+ * SafeSocket's ACK watchdog.
+ *
+ * @author m5c
+ */
+class PendingMessage
+{
+
+    final Terminator killer;
+    final CompletableFuture<Boolean> ackFuture;
+
+    // Pooled send only. The salt is written before the deadline, so a reader seeing a recycled entry's deadline also sees its new salt.
+    volatile int salt;
+    volatile long deadline;
+
+    // System.nanoTime() of the sending, for measuring the round trip. Written before the entry is put into the PendingTable, read after it has been removed.
+    long sentTime;
+
+    PendingMessage(Terminator killer, CompletableFuture<Boolean> ackFuture)
+    {
+        this.killer = killer;
+        this.ackFuture = ackFuture;
+    }
+
+    /**
+     * Sets salt and deadline (pooled send).
+     */
+    void arm(int salt, long deadline)
+    {
+        this.salt = salt;
+        this.deadline = deadline;
+    }
+
+    void defuse()
+    {
+        if (killer != null)
+            killer.deactivate();
+    }
+
+    /**
+     * Hands the outcome to the sender. Returns false if it has already been
+     * completed (or if there is nobody to tell, as for heartbeats).
+     */
+    boolean complete(boolean acknowledged)
+    {
+        return ackFuture != null && ackFuture.complete(acknowledged);
+    }
+
+}
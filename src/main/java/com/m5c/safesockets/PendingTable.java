@@ -0,0 +1,236 @@
+package com.m5c.safesockets;
+
+import java.util.Collection;
+
+/**
+ * Table of everything a SafeSocket is waiting for (message ACKs, heartbeat
+ * ACKs or heartbeats, file ACKs), keyed by a primitive long id: the kind of
+ * the entry in the upper, its id (salt, heartbeat id, transfer id) in the
+ * lower 32 bits. The table is split into independently locked stripes, each
+ * an open addressing hash table with linear probing, so concurrent senders
+ * and the reader only contend if their ids fall into the same stripe. No
+ * boxing, no String keys and no allocation per entry besides the entry
+ * itself.
+ *
+ * @author m5c
+ */
+final class PendingTable
+{
+
+    // Kinds of entries, see key()
+    static final int MESSAGE = 0;
+    static final int HEART_BEAT = 1;
+    static final int FILE = 2;
+
+    private static final int MAX_STRIPES = 64;
+    private static final int INITIAL_STRIPE_CAPACITY = 16;
+
+    private final Stripe[] stripes;
+    private final int stripeMask;
+
+    PendingTable()
+    {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param concurrency: amount of stripes, rounded up to the next power of
+     * two (at most 64)
+     */
+    PendingTable(int concurrency)
+    {
+        int size = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1);
+        stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe();
+        }
+        stripeMask = size - 1;
+    }
+
+    static long key(int kind, int id)
+    {
+        return ((long) kind << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Adds an entry, replacing any previous entry with the same key.
+     */
+    void put(long key, PendingMessage entry)
+    {
+        long hash = mix(key);
+        stripeOf(hash).put(key, hash, entry);
+    }
+
+    PendingMessage get(long key)
+    {
+        long hash = mix(key);
+        return stripeOf(hash).get(key, hash);
+    }
+
+    /**
+     * Removes and returns the entry, null if there is none.
+     */
+    PendingMessage remove(long key)
+    {
+        long hash = mix(key);
+        return stripeOf(hash).remove(key, hash);
+    }
+
+    int size()
+    {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    /**
+     * Removes all entries and adds them to the target, stripe by stripe.
+     * Entries added concurrently may or may not be drained.
+     */
+    void drainTo(Collection<PendingMessage> target)
+    {
+        for (Stripe stripe : stripes) {
+            stripe.drainTo(target);
+        }
+    }
+
+    private Stripe stripeOf(long hash)
+    {
+        // Upper bits pick the stripe, the stripes use the lower ones
+        return stripes[(int) (hash >>> 48) & stripeMask];
+    }
+
+    /**
+     * Finalizer of MurmurHash3. Consecutive ids are spread over all stripes
+     * and slots.
+     */
+    private static long mix(long key)
+    {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        key *= 0xC4CEB9FE1A85EC53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * One open addressing table, guarded by its own monitor. Empty slots have
+     * a null entry. Kept at most half full.
+     */
+    private static final class Stripe
+    {
+
+        private long[] keys = new long[INITIAL_STRIPE_CAPACITY];
+        private PendingMessage[] entries = new PendingMessage[INITIAL_STRIPE_CAPACITY];
+        private int size = 0;
+
+        synchronized void put(long key, long hash, PendingMessage entry)
+        {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+            while (entries[slot] != null) {
+                if (keys[slot] == key) {
+                    entries[slot] = entry;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            entries[slot] = entry;
+            size++;
+            if (size * 2 > keys.length)
+                resize(keys.length * 2);
+        }
+
+        synchronized PendingMessage get(long key, long hash)
+        {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+            while (entries[slot] != null) {
+                if (keys[slot] == key)
+                    return entries[slot];
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        synchronized PendingMessage remove(long key, long hash)
+        {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+            while (entries[slot] != null) {
+                if (keys[slot] == key) {
+                    PendingMessage entry = entries[slot];
+                    closeGap(slot);
+                    size--;
+                    return entry;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        synchronized int size()
+        {
+            return size;
+        }
+
+        synchronized void drainTo(Collection<PendingMessage> target)
+        {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i] != null) {
+                    target.add(entries[i]);
+                    entries[i] = null;
+                }
+            }
+            size = 0;
+        }
+
+        /**
+         * Backward shift deletion: moves following entries of the probe
+         * sequence into the freed slot, so lookups never need tombstones.
+         */
+        private void closeGap(int gap)
+        {
+            int mask = keys.length - 1;
+            int slot = gap;
+            while (true) {
+                slot = (slot + 1) & mask;
+                if (entries[slot] == null)
+                    break;
+                int home = (int) mix(keys[slot]) & mask;
+                // The entry may move into the gap if its home slot is not between the gap and its current slot (cyclically)
+                if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                    keys[gap] = keys[slot];
+                    entries[gap] = entries[slot];
+                    gap = slot;
+                }
+            }
+            entries[gap] = null;
+        }
+
+        private void resize(int capacity)
+        {
+            long[] oldKeys = keys;
+            PendingMessage[] oldEntries = entries;
+            keys = new long[capacity];
+            entries = new PendingMessage[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldEntries[i] != null) {
+                    int slot = (int) mix(oldKeys[i]) & mask;
+                    while (entries[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    entries[slot] = oldEntries[i];
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.m5c.safesockets;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reusable completion handle of the blocking pooled send. Each sending thread
+ * owns one and waits on it for the ACK of its current message, instead of
+ * allocating a future per message. Reused once the outcome has been
+ * consumed.
+ *
+ * @author m5c
+ */
+final class PooledAck extends PendingMessage
+{
+
+    private static final int PENDING = 0;
+    private static final int ACKNOWLEDGED = 1;
+    private static final int FAILED = 2;
+
+    private static final AtomicIntegerFieldUpdater<PooledAck> STATE = AtomicIntegerFieldUpdater.newUpdater(PooledAck.class, "state");
+
+    private final Thread owner;
+    private volatile int state = PENDING;
+
+    PooledAck(Thread owner)
+    {
+        super(null, null);
+        this.owner = owner;
+    }
+
+    @Override
+    void arm(int salt, long deadline)
+    {
+        state = PENDING;
+        super.arm(salt, deadline);
+    }
+
+    @Override
+    boolean complete(boolean acknowledged)
+    {
+        if (!STATE.compareAndSet(this, PENDING, acknowledged ? ACKNOWLEDGED : FAILED))
+            return false;
+        LockSupport.unpark(owner);
+        return true;
+    }
+
+    /**
+     * Blocks the owner until the handle has been completed.
+     */
+    boolean await()
+    {
+        while (state == PENDING) {
+            LockSupport.park(this);
+            if (Thread.interrupted())
+                throw new RuntimeException("Interrupted while waiting for an ACK.");
+        }
+        return state == ACKNOWLEDGED;
+    }
+
+}
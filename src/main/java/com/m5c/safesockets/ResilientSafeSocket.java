@@ -0,0 +1,628 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A session between two parties that survives breakdowns of the underlying
+ * SafeSocket connection. Sent messages carry a sequence number and are kept in
+ * a bounded retransmission buffer until ACKed. If the connection breaks down,
+ * the client reconnects (with exponential backoff) and resumes the session:
+ * both sides tell up to which sequence number they have received everything,
+ * then replay only the messages beyond. The receiver drops messages it has
+ * seen before (duplicate window), so each message is delivered once, even if
+ * its ACK got lost. Senders keep waiting through a reconnect, sends only fail
+ * once the session is lost (no resumption within the session timeout) or
+ * closed.
+ *
+ * The server side is provided by a ResilientSafeSocketServer. Both sides must
+ * use the same wire format and ACK settings, as for plain SafeSockets. Only
+ * String messages are supported. MessageObservers are passed the connection
+ * a message arrived on, BreakdownObservers are only notified once the session
+ * is over (with its last connection).
+ *
+ * @author m5c
+ */
+public class ResilientSafeSocket
+{
+
+    // Session traffic, sent as ordinary String messages over the current connection. The client opens (OPEN + id) or resumes (RESUME + id + SEPARATOR + floor) a session,
+    // the server answers ACCEPT + floor or REJECT. User messages are sent as DATA + sequence number + SEPARATOR + message.
+    static final String OPEN = "O";
+    static final String RESUME = "S";
+    static final String ACCEPT = "A";
+    static final String REJECT = "R";
+    static final String DATA = "D";
+    static final char SEPARATOR = ':';
+
+    // Runs the reconnect attempts of broken client sessions
+    private static final ExecutorService RECONNECTOR = Executors.newCachedThreadPool(new DaemonThreadFactory("SafeSocket-Reconnector"));
+
+    private final String sessionId;
+
+    // Client side: parameters of the connections (to reconnect). Null on the server side, where the ResilientSafeSocketServer accepts them.
+    private final String serverIp;
+    private final int port;
+    private final int period;
+    private final int timeout;
+    private final Filter inFilter;
+    private final Filter outFilter;
+    private final SafeSocketOptions options;
+    private final ResilientSafeSocketServer server;
+
+    private final WireFormat wireFormat;
+    private final int sessionTimeout;
+    private final int minReconnectDelay;
+    private final int maxReconnectDelay;
+
+    private final Collection<MessageObserver> messageObservers;
+    private final Collection<BreakdownObserver> breakdownObservers;
+
+    // Sender side: unacknowledged messages by sequence number, at most as many as there are buffer slots. ACKs remove them without locking.
+    private final ConcurrentSkipListMap<Long, OutgoingMessage> retransmissionBuffer = new ConcurrentSkipListMap<Long, OutgoingMessage>();
+    private final Semaphore bufferSlots;
+
+    // Sequence numbers, connection and session state. Sequence numbers are assigned and messages handed to the connection under one lock, so they go on the wire in order.
+    private final Object sessionLock = new Object();
+    private long lastSequence = 0;
+    private SafeSocket connection;
+    private SafeSocket lastConnection;
+    private volatile boolean alive = true;
+    private boolean reconnecting = true;
+    private Terminator expiry;
+    private final AtomicInteger resumptions = new AtomicInteger();
+
+    // Receiver side
+    private final DuplicateWindow duplicateWindow;
+    private volatile CompletableFuture<Long> handshake;
+
+    /**
+     * Opens a session with default filters and options. Blocks until the
+     * server has accepted it.
+     *
+     * @param serverIp
+     * @param port
+     * @param period
+     * @param timeout
+     * @param messageObservers
+     * @param breakdownObservers
+     * @throws IOException if the server cannot be reached or does not accept
+     * the session
+     */
+    public ResilientSafeSocket(String serverIp, int port, int period, int timeout, Collection<MessageObserver> messageObservers, Collection<BreakdownObserver> breakdownObservers) throws IOException
+    {
+        this(serverIp, port, period, timeout, messageObservers, breakdownObservers, new DefaultFilter(), new DefaultFilter(), new SafeSocketOptions());
+    }
+
+    /**
+     * Same as previous, filters and options apply to every connection of the
+     * session. See SafeSocketOptions.setSessionResumption and
+     * setReconnectBackoff for the session parameters.
+     */
+    public ResilientSafeSocket(String serverIp, int port, int period, int timeout, Collection<MessageObserver> messageObservers, Collection<BreakdownObserver> breakdownObservers, Filter inFilter, Filter outFilter, SafeSocketOptions options) throws IOException
+    {
+        checkOptions(options);
+        sessionId = UUID.randomUUID().toString();
+        this.serverIp = serverIp;
+        this.port = port;
+        this.period = period;
+        this.timeout = timeout;
+        this.inFilter = inFilter;
+        this.outFilter = outFilter;
+        this.options = options;
+        server = null;
+        wireFormat = options.getWireFormat();
+        sessionTimeout = options.getSessionTimeout();
+        minReconnectDelay = options.getMinReconnectDelay();
+        maxReconnectDelay = options.getMaxReconnectDelay();
+        this.messageObservers = messageObservers;
+        this.breakdownObservers = breakdownObservers;
+        bufferSlots = new Semaphore(options.getRetransmissionBuffer());
+        duplicateWindow = new DuplicateWindow(options.getRetransmissionBuffer());
+
+        if (!connect(OPEN + sessionId))
+            throw new IOException("Session rejected by the server.");
+    }
+
+    /**
+     * Server side of a session, opened by the client over the given
+     * ResilientSafeSocketServer. Not connected until accept is called.
+     */
+    ResilientSafeSocket(String sessionId, Collection<MessageObserver> messageObservers, Collection<BreakdownObserver> breakdownObservers, SafeSocketOptions options, ResilientSafeSocketServer server)
+    {
+        this.sessionId = sessionId;
+        serverIp = null;
+        port = 0;
+        period = 0;
+        timeout = 0;
+        inFilter = null;
+        outFilter = null;
+        this.options = options;
+        this.server = server;
+        wireFormat = options.getWireFormat();
+        sessionTimeout = options.getSessionTimeout();
+        minReconnectDelay = options.getMinReconnectDelay();
+        maxReconnectDelay = options.getMaxReconnectDelay();
+        this.messageObservers = messageObservers;
+        this.breakdownObservers = breakdownObservers;
+        bufferSlots = new Semaphore(options.getRetransmissionBuffer());
+        duplicateWindow = new DuplicateWindow(options.getRetransmissionBuffer());
+        reconnecting = false;
+    }
+
+    /**
+     * Rejects options that would deliver session traffic out of order or not
+     * as String.
+     */
+    static void checkOptions(SafeSocketOptions options)
+    {
+        options.validate();
+        if (options.isStreamingReceive() || options.getKeyExtractor() != null)
+            throw new IllegalArgumentException("Resilient sessions support neither streaming receive nor partitioned dispatch.");
+    }
+
+    /**
+     * Sends a message and blocks until the remote side has ACKed it, across
+     * reconnects if need be.
+     *
+     * @param message
+     * @return true once the message has arrived FOR SURE, false if the
+     * session has been lost or closed before.
+     */
+    public boolean sendMessage(String message)
+    {
+        try {
+            return sendMessageAsync(message).get();
+        }
+        catch (InterruptedException ex) {
+            throw new RuntimeException();
+        }
+        catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     * Sends a message without waiting for its ACK, see
+     * SafeSocket.sendMessageAsync. Blocks while the retransmission buffer is
+     * full.
+     *
+     * @param message
+     * @return future telling whether the message has arrived FOR SURE on the
+     * other side (false if the session is over before).
+     */
+    public CompletableFuture<Boolean> sendMessageAsync(String message)
+    {
+        if (!alive)
+            return CompletableFuture.completedFuture(false);
+        if (message == null || message.trim().isEmpty())
+            throw new RuntimeException("Sending of null / whitespace messages not allowed.");
+        if (wireFormat == WireFormat.TEXT && SafeSocket.containsReservedLine(message))
+            throw new RuntimeException("Message colliding patterns reserved for internal safeSocket communication: " + message);
+
+        // Ending the session releases all slots, so check again afterwards
+        try {
+            bufferSlots.acquire();
+        }
+        catch (InterruptedException ex) {
+            throw new RuntimeException();
+        }
+        OutgoingMessage outgoing;
+        synchronized (sessionLock) {
+            if (!alive) {
+                bufferSlots.release();
+                return CompletableFuture.completedFuture(false);
+            }
+            lastSequence++;
+            outgoing = new OutgoingMessage(lastSequence, DATA + lastSequence + SEPARATOR + message);
+            retransmissionBuffer.put(lastSequence, outgoing);
+
+            // While disconnected the message waits for the replay
+            if (connection != null)
+                transmit(connection, outgoing);
+        }
+        return outgoing.future;
+    }
+
+    /**
+     * Tells whether the session is still going on (possibly reconnecting).
+     */
+    public boolean isAlive()
+    {
+        return alive;
+    }
+
+    /**
+     * Tells whether the session currently has a connection.
+     */
+    public boolean isConnected()
+    {
+        synchronized (sessionLock) {
+            return connection != null;
+        }
+    }
+
+    public String getSessionId()
+    {
+        return sessionId;
+    }
+
+    /**
+     * The current connection, null while reconnecting.
+     */
+    public SafeSocket getConnection()
+    {
+        synchronized (sessionLock) {
+            return connection;
+        }
+    }
+
+    /**
+     * How often the session has been resumed over a new connection.
+     */
+    public int getResumptions()
+    {
+        return resumptions.get();
+    }
+
+    /**
+     * Amount of sent messages waiting for their ACK.
+     */
+    public int getUnacknowledgedMessages()
+    {
+        return retransmissionBuffer.size();
+    }
+
+    /**
+     * Ends the session on both sides (intended breakdown). Pending sends
+     * return false.
+     */
+    public void close()
+    {
+        end(true);
+    }
+
+    /**
+     * Client side: connects and opens / resumes the session.
+     *
+     * @return false if the server rejected the session
+     * @throws IOException if connecting or the handshake failed
+     */
+    private boolean connect(String hello) throws IOException
+    {
+        CompletableFuture<Long> reply = new CompletableFuture<Long>();
+        handshake = reply;
+        SafeSocket candidate = new SafeSocket(serverIp, port, period, timeout, Collections.<MessageObserver>singletonList(new SessionReceiver()), Collections.<BreakdownObserver>singletonList(new ConnectionLossObserver()), inFilter, outFilter, options);
+        long peerFloor;
+        try {
+            if (!candidate.sendMessage(hello))
+                throw new IOException("Session handshake not acknowledged.");
+            peerFloor = reply.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (IOException ex) {
+            candidate.close();
+            throw ex;
+        }
+        catch (InterruptedException | ExecutionException | TimeoutException ex) {
+            candidate.close();
+            throw new IOException("No reply to the session handshake.", ex);
+        }
+        if (peerFloor < 0) {
+            candidate.close();
+            return false;
+        }
+        if (!attach(candidate, peerFloor, null))
+            throw new IOException("Connection lost during the session handshake.");
+        return true;
+    }
+
+    /**
+     * Server side: takes over the connection the client opened / resumed the
+     * session with.
+     */
+    void accept(SafeSocket newConnection, long peerFloor, boolean resumed)
+    {
+        long floor;
+        synchronized (duplicateWindow) {
+            floor = duplicateWindow.getFloor();
+        }
+        if (resumed)
+            resumptions.incrementAndGet();
+        attach(newConnection, peerFloor, ACCEPT + floor);
+    }
+
+    /**
+     * Makes the connection the current one: messages the remote side has
+     * received according to its floor count as ACKed, the others are sent
+     * again (after the greeting, if any).
+     *
+     * @return false if the connection is already gone
+     */
+    private boolean attach(SafeSocket newConnection, long peerFloor, String greeting)
+    {
+        SafeSocket previous;
+        synchronized (sessionLock) {
+            if (!alive) {
+                newConnection.close();
+                return false;
+            }
+            previous = connection;
+            connection = newConnection;
+            lastConnection = newConnection;
+            if (greeting != null)
+                newConnection.sendMessageAsync(greeting);
+            for (OutgoingMessage outgoing : retransmissionBuffer.values()) {
+                if (outgoing.sequence <= peerFloor)
+                    acknowledge(outgoing);
+                else
+                    transmit(newConnection, outgoing);
+            }
+
+            // Breakdowns of connections that are not current yet are ignored, so check
+            if (!newConnection.isSocketAlive()) {
+                connection = null;
+                disconnected();
+                return false;
+            }
+            reconnecting = false;
+            if (expiry != null) {
+                expiry.deactivate();
+                expiry = null;
+            }
+        }
+
+        // A resumption may overtake the breakdown detection of the old connection
+        if (previous != null && previous != newConnection)
+            previous.close();
+        return true;
+    }
+
+    /**
+     * Hands the message to the connection, an ACK frees its buffer slot.
+     * Negative outcomes are ignored, the message stays buffered for the
+     * replay.
+     */
+    private void transmit(SafeSocket target, final OutgoingMessage outgoing)
+    {
+        target.sendMessageAsync(outgoing.envelope).thenAccept(new Consumer<Boolean>()
+        {
+            @Override
+            public void accept(Boolean acknowledged)
+            {
+                if (acknowledged)
+                    acknowledge(outgoing);
+            }
+        });
+    }
+
+    private void acknowledge(OutgoingMessage outgoing)
+    {
+        if (retransmissionBuffer.remove(outgoing.sequence, outgoing)) {
+            bufferSlots.release();
+            outgoing.future.complete(true);
+        }
+    }
+
+    /**
+     * Handles the session traffic arriving on any connection of the session.
+     */
+    void receive(SafeSocket source, String message)
+    {
+        if (message.startsWith(DATA)) {
+            int separator = message.indexOf(SEPARATOR);
+            long sequence = Long.parseLong(message.substring(DATA.length(), separator));
+            boolean fresh;
+            synchronized (duplicateWindow) {
+                fresh = duplicateWindow.accept(sequence);
+            }
+            if (!fresh)
+                return;
+            String payload = message.substring(separator + 1);
+            for (MessageObserver messageObserver : messageObservers) {
+                messageObserver.notifyMessageObserver(source, payload);
+            }
+        }
+        else if (message.startsWith(ACCEPT) && handshake != null)
+            handshake.complete(Long.parseLong(message.substring(ACCEPT.length())));
+        else if (message.startsWith(REJECT) && handshake != null)
+            handshake.complete(-1L);
+    }
+
+    /**
+     * Reacts on the breakdown of a connection of the session. Intended
+     * breakdowns end the session, otherwise the client reconnects and the
+     * server waits for it.
+     */
+    void connectionLost(SafeSocket lostConnection, boolean intended)
+    {
+        synchronized (sessionLock) {
+            if (lostConnection != connection)
+                return;
+            connection = null;
+            if (!intended) {
+                disconnected();
+                return;
+            }
+        }
+        end(true);
+    }
+
+    /**
+     * Starts the reconnect attempts (client) or the session timeout (server),
+     * unless already running. Called under the session lock.
+     */
+    private void disconnected()
+    {
+        if (!alive)
+            return;
+        if (server == null) {
+            if (!reconnecting) {
+                reconnecting = true;
+                RECONNECTOR.execute(new Reconnector());
+            }
+        }
+        else if (expiry == null) {
+            expiry = new Terminator("T-S: " + sessionId, sessionTimeout, new SessionExpiry());
+            expiry.start();
+        }
+    }
+
+    private long receivedFloor()
+    {
+        synchronized (duplicateWindow) {
+            return duplicateWindow.getFloor();
+        }
+    }
+
+    /**
+     * Ends the session: releases all senders (false), closes the current
+     * connection and notifies the BreakdownObservers.
+     */
+    private void end(boolean intended)
+    {
+        SafeSocket current;
+        synchronized (sessionLock) {
+            if (!alive)
+                return;
+            alive = false;
+            current = connection;
+            connection = null;
+            if (expiry != null)
+                expiry.deactivate();
+        }
+
+        // Each released slot wakes a blocked sender, who sees the session is over and passes the slot on
+        for (OutgoingMessage outgoing : retransmissionBuffer.values()) {
+            if (retransmissionBuffer.remove(outgoing.sequence, outgoing)) {
+                bufferSlots.release();
+                outgoing.future.complete(false);
+            }
+        }
+        if (server != null)
+            server.remove(this);
+        if (current != null)
+            current.close();
+        for (BreakdownObserver breakdownObserver : breakdownObservers) {
+            breakdownObserver.notifyBreakdownObserver(lastConnection, intended);
+        }
+    }
+
+    /**
+     * Client side: reconnects until the session is resumed, rejected or the
+     * session timeout is over. The first attempt is immediate, the delay then
+     * doubles with every failed one.
+     */
+    private class Reconnector implements Runnable
+    {
+
+        @Override
+        public void run()
+        {
+            long giveUp = System.currentTimeMillis() + sessionTimeout;
+            int delay = minReconnectDelay;
+            boolean firstAttempt = true;
+            while (alive && System.currentTimeMillis() < giveUp) {
+                if (!firstAttempt) {
+                    try {
+                        Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextInt(delay / 2 + 1));
+                    }
+                    catch (InterruptedException ex) {
+                        break;
+                    }
+                    delay = Math.min(maxReconnectDelay, delay * 2);
+                }
+                firstAttempt = false;
+                try {
+                    if (!connect(RESUME + sessionId + SEPARATOR + receivedFloor()))
+                        break;
+                    resumptions.incrementAndGet();
+                    return;
+                }
+                catch (IOException | RuntimeException ex) {
+                    // Server not (yet) reachable, try again
+                }
+            }
+            end(false);
+        }
+
+    }
+
+    /**
+     * Server side: ends the session if the client has not resumed it in
+     * time.
+     */
+    private class SessionExpiry implements Terminatable
+    {
+
+        @Override
+        public void onTerminate(String cause)
+        {
+            synchronized (sessionLock) {
+                if (connection != null)
+                    return;
+            }
+            end(false);
+        }
+
+    }
+
+    /**
+     * Client side: receives the session traffic of all connections.
+     */
+    private class SessionReceiver implements MessageObserver
+    {
+
+        @Override
+        public void notifyMessageObserver(SafeSocket safeSocket, String message)
+        {
+            receive(safeSocket, message);
+        }
+
+    }
+
+    /**
+     * Client side: reports breakdowns of all connections.
+     */
+    private class ConnectionLossObserver implements BreakdownObserver
+    {
+
+        @Override
+        public void notifyBreakdownObserver(SafeSocket safeSocket, boolean intended)
+        {
+            connectionLost(safeSocket, intended);
+        }
+
+    }
+
+    /**
+     * A sent, not yet ACKed message.
+     */
+    private static class OutgoingMessage
+    {
+
+        private final long sequence;
+        private final String envelope;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+
+        OutgoingMessage(long sequence, String envelope)
+        {
+            this.sequence = sequence;
+            this.envelope = envelope;
+        }
+
+    }
+
+}
@@ -0,0 +1,179 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server side of ResilientSafeSockets: accepts client connections like a
+ * SafeSocketServer, and assigns each one to the session the client opens or
+ * resumes with it. New sessions are handed to the SessionObserver, resumed
+ * ones simply go on over the new connection. A session whose client does not
+ * come back within the session timeout is lost (BreakdownObservers are
+ * notified).
+ *
+ * @author m5c
+ */
+public class ResilientSafeSocketServer
+{
+
+    private final SafeSocketServer server;
+    private final Collection<MessageObserver> messageObservers;
+    private final Collection<BreakdownObserver> breakdownObservers;
+    private final SafeSocketOptions options;
+    private final SessionObserver sessionObserver;
+
+    // Live sessions by id, and the session of each connection
+    private final ConcurrentHashMap<String, ResilientSafeSocket> sessions = new ConcurrentHashMap<String, ResilientSafeSocket>();
+    private final ConcurrentHashMap<SafeSocket, ResilientSafeSocket> connections = new ConcurrentHashMap<SafeSocket, ResilientSafeSocket>();
+
+    /**
+     * Creates a server that immediately starts accepting clients on the given
+     * port.
+     *
+     * @param port
+     * @param period
+     * @param timeout
+     * @param messageObservers
+     * @param breakdownObservers: Notified once a session is over.
+     * @param sessionObserver: Notified about every new session.
+     * @throws IOException if the port cannot be bound
+     */
+    public ResilientSafeSocketServer(int port, int period, int timeout, Collection<MessageObserver> messageObservers, Collection<BreakdownObserver> breakdownObservers, SessionObserver sessionObserver) throws IOException
+    {
+        this(port, period, timeout, messageObservers, breakdownObservers, new DefaultFilter(), new DefaultFilter(), new SafeSocketOptions(), sessionObserver);
+    }
+
+    /**
+     * Same as previous, with custom I/O filters and options for all
+     * connections and sessions.
+     */
+    public ResilientSafeSocketServer(int port, int period, int timeout, Collection<MessageObserver> messageObservers, Collection<BreakdownObserver> breakdownObservers, Filter inFilter, Filter outFilter, SafeSocketOptions options, SessionObserver sessionObserver) throws IOException
+    {
+        ResilientSafeSocket.checkOptions(options);
+        this.messageObservers = messageObservers;
+        this.breakdownObservers = breakdownObservers;
+        this.options = options;
+        this.sessionObserver = sessionObserver;
+
+        // Connections are of no interest before the client's handshake tells their session
+        server = new SafeSocketServer(port, period, timeout, Collections.<MessageObserver>singletonList(new SessionRouter()), Collections.<BreakdownObserver>singletonList(new ConnectionLossObserver()), inFilter, outFilter, options, new ConnectionObserver()
+        {
+            @Override
+            public void notifyConnectionObserver(SafeSocket safeSocket)
+            {
+            }
+        });
+    }
+
+    /**
+     * The port the server listens on (useful if created with port 0).
+     *
+     * @return
+     */
+    public int getLocalPort()
+    {
+        return server.getLocalPort();
+    }
+
+    /**
+     * The session a connection belongs to, e.g. to answer a message through
+     * the session instead of the connection. Null if unknown.
+     */
+    public ResilientSafeSocket getSession(SafeSocket connection)
+    {
+        return connections.get(connection);
+    }
+
+    /**
+     * Amount of live sessions, connected or waiting to be resumed.
+     */
+    public int getSessionCount()
+    {
+        return sessions.size();
+    }
+
+    /**
+     * Stops accepting further clients, sessions established so far can no
+     * longer be resumed. Close them individually.
+     */
+    public void close()
+    {
+        server.close();
+    }
+
+    void remove(ResilientSafeSocket session)
+    {
+        sessions.remove(session.getSessionId(), session);
+    }
+
+    /**
+     * Handles the handshakes and passes all other traffic to the session of
+     * the connection.
+     */
+    private class SessionRouter implements MessageObserver
+    {
+
+        @Override
+        public void notifyMessageObserver(SafeSocket safeSocket, String message)
+        {
+            if (message.startsWith(ResilientSafeSocket.OPEN))
+                open(safeSocket, message.substring(ResilientSafeSocket.OPEN.length()));
+            else if (message.startsWith(ResilientSafeSocket.RESUME)) {
+                int separator = message.indexOf(ResilientSafeSocket.SEPARATOR);
+                resume(safeSocket, message.substring(ResilientSafeSocket.RESUME.length(), separator), Long.parseLong(message.substring(separator + 1)));
+            }
+            else {
+                ResilientSafeSocket session = connections.get(safeSocket);
+                if (session != null)
+                    session.receive(safeSocket, message);
+            }
+        }
+
+        private void open(SafeSocket connection, String sessionId)
+        {
+            ResilientSafeSocket session = new ResilientSafeSocket(sessionId, messageObservers, breakdownObservers, options, ResilientSafeSocketServer.this);
+            if (sessions.putIfAbsent(sessionId, session) != null) {
+                connection.sendMessageAsync(ResilientSafeSocket.REJECT);
+                return;
+            }
+            connections.put(connection, session);
+            session.accept(connection, 0, false);
+            if (!connection.isSocketAlive())
+                connections.remove(connection);
+            sessionObserver.notifySessionObserver(session);
+        }
+
+        private void resume(SafeSocket connection, String sessionId, long peerFloor)
+        {
+            ResilientSafeSocket session = sessions.get(sessionId);
+            if (session == null || !session.isAlive()) {
+                connection.sendMessageAsync(ResilientSafeSocket.REJECT);
+                return;
+            }
+            connections.put(connection, session);
+            session.accept(connection, peerFloor, true);
+            if (!connection.isSocketAlive())
+                connections.remove(connection);
+        }
+
+    }
+
+    /**
+     * Reports breakdowns to the session of the connection.
+     */
+    private class ConnectionLossObserver implements BreakdownObserver
+    {
+
+        @Override
+        public void notifyBreakdownObserver(SafeSocket safeSocket, boolean intended)
+        {
+            ResilientSafeSocket session = connections.remove(safeSocket);
+            if (session != null)
+                session.connectionLost(safeSocket, intended);
+        }
+
+    }
+
+}
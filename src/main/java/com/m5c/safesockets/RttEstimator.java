@@ -0,0 +1,95 @@
+package com.m5c.safesockets;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Smoothed round trip time and its mean deviation, updated per ACK as
+ * proposed by Jacobson and Karels (and used by TCP, RFC 6298). The derived
+ * timeout is SRTT + 4 * RTTVAR, at least one tick of the TimingWheel above
+ * the SRTT and kept within the configured bounds. Samples are taken by the
+ * reader of the SafeSocket only, the timeout can be read by any thread.
+ *
+ * @author m5c
+ */
+final class RttEstimator
+{
+
+    // Timer granularity (one TimingWheel tick), the least the timeout exceeds the SRTT by
+    private static final long GRANULARITY = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final long minTimeout;
+    private final long maxTimeout;
+
+    // [ns], only written by the reader. Negative until the first sample.
+    private long smoothedRtt = -1;
+    private long rttVariation = 0;
+
+    // Published for the senders and timers [ns]
+    private volatile long timeout;
+    private volatile long publishedRtt = -1;
+    private volatile long publishedVariation = 0;
+
+    /**
+     * @param initialTimeout: used until the first sample [ms]
+     * @param minTimeout: [ms]
+     * @param maxTimeout: [ms]
+     */
+    RttEstimator(int initialTimeout, int minTimeout, int maxTimeout)
+    {
+        this.minTimeout = TimeUnit.MILLISECONDS.toNanos(minTimeout);
+        this.maxTimeout = TimeUnit.MILLISECONDS.toNanos(maxTimeout);
+        timeout = clamp(TimeUnit.MILLISECONDS.toNanos(initialTimeout));
+    }
+
+    /**
+     * Adds a measured round trip [ns]. Gains are 1/8 for the RTT and 1/4 for
+     * the deviation.
+     */
+    void sample(long rtt)
+    {
+        if (rtt < 0)
+            return;
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariation = rtt / 2;
+        }
+        else {
+            long delta = rtt - smoothedRtt;
+            rttVariation += (Math.abs(delta) - rttVariation) / 4;
+            smoothedRtt += delta / 8;
+        }
+        publishedRtt = smoothedRtt;
+        publishedVariation = rttVariation;
+        timeout = clamp(smoothedRtt + Math.max(GRANULARITY, 4 * rttVariation));
+    }
+
+    /**
+     * Current timeout [ns].
+     */
+    long getTimeout()
+    {
+        return timeout;
+    }
+
+    /**
+     * Smoothed RTT [ns], negative if nothing has been measured yet.
+     */
+    long getSmoothedRtt()
+    {
+        return publishedRtt;
+    }
+
+    /**
+     * Mean deviation of the RTT [ns].
+     */
+    long getRttVariation()
+    {
+        return publishedVariation;
+    }
+
+    private long clamp(long value)
+    {
+        return Math.max(minTimeout, Math.min(maxTimeout, value));
+    }
+
+}
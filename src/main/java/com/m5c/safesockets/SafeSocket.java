@@ -1,18 +1,34 @@
 package com.m5c.safesockets;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.ObjectName;
 
 /**
  *
@@ -23,7 +39,10 @@ public final class SafeSocket extends MessageHandler implements Terminatable
 
     private final int INITIAL_HEART_BEAT_ID = 0;
 
-    // Needed to distinguish messages with identical content (have same hash otherwise)
+    // Runs the blocking connects of connectAsync
+    private static final ExecutorService CONNECTOR = Executors.newCachedThreadPool(new DaemonThreadFactory("SafeSocket-Connector"));
+
+    // Needed to distinguish messages with identical content (have same hash otherwise). Doubles as sequence number in AckMode.SEQUENCE.
     private int messageSalt = 0;
 
     // Tells whether the SafeSocket is in Client or Server mode (set in ctor)
@@ -32,26 +51,97 @@ public final class SafeSocket extends MessageHandler implements Terminatable
     // The inner socket used for communication
     private final Socket socket;
 
+    // The socket's channel as attached to a SafeSocketEngine. Null in thread per socket mode.
+    private final NioConnection nioConnection;
+
     // Amount of time between the sending of two consecutive heartbeats.
     private final int period;
 
-    // Amount of time for the reply to arrive (should be less then period)
+    // Amount of time for the reply to arrive (should be less then period). Only the initial value with adaptive timeouts, and still the timeout for file ACKs.
     private final int timeout;
 
-    // Each heartBeat or send message requires an ack within the timeout interval - this list is needed to defuse the threads killing the connection on reception of the ack 
-    // Note: on client side the heart beats themselves are interpreted as signal to defuse the associated connectionKiller
-    private final Map<String, Terminator> connectionKillers = Collections.synchronizedMap(new LinkedHashMap<String, Terminator>());
+    // Everything we are waiting for: each heartBeat requires an ack within the timeout interval, so does each sent message and file. The table is needed to defuse the Terminators killing the connection on reception of the ack (all deadlines are kept by the shared TimingWheel).
+    // Note: on client side the heart beats themselves are interpreted as signal to defuse the associated connection killer. Heartbeats are keyed by their id (of the awaited ACK on server side, of the awaited heartbeat on client side), messages by their salt (sequence number), files by their transfer id.
+    // Message and file entries also hold the future, completed on reception of the Ack (true) or on connection breakdown (false).
+    private final PendingTable pendingTable = new PendingTable();
+
+    // Lowest salt that may still be pending a cumulative ack. Only accessed by the reader.
+    private int cumulativeAckCursor = 1;
+
+    // Pooled send: each sending thread reuses its completion handle and encode buffer. Message deadlines are kept in the pending entries and checked by the AckWatchdog, which needs to know the last salt put into the pendingTable.
+    private final boolean pooledSend;
+    private final ThreadLocal<SendContext> sendContexts = new ThreadLocal<SendContext>()
+    {
+        @Override
+        protected SendContext initialValue()
+        {
+            return new SendContext();
+        }
+    };
+    private volatile int sentSalt = 0;
+
+    // Idle heartbeats: liveness is judged by the received traffic (System.nanoTime() of the last read), instead of a Terminator per heartbeat
+    private final boolean idleHeartBeats;
+    private volatile long lastReceived;
+
+    // Round trip times measured by the ACKs, the ACK timeout derives from them if adaptive (otherwise it is fixed). With pooled send the deadlines never decrease, so the AckWatchdog still finds the earliest one at the oldest salt (guarded by the sendLock).
+    private final boolean adaptiveTimeouts;
+    private final RttEstimator rttEstimator;
+    private long lastDeadline = System.nanoTime();
+
+    // Counters and latencies, registered with the MetricsRegistry (and as MBean) while the connection is alive
+    private final ConnectionMetrics metrics = new ConnectionMetrics(this);
+    private ObjectName metricsName;
+
+    // AckMode.HASH only: resolves the hash carried by an ack to the salt of the acknowledged message.
+    private final Map<String, Integer> hashedSalts = Collections.synchronizedMap(new LinkedHashMap<String, Integer>());
+
+    // How acks identify messages and whether sequence acked messages carry a checksum (both must be identical on both sides)
+    private final AckMode ackMode;
+    private final boolean integrityCheck;
+
+    // Guards salt assignment and sending of user messages, so salts arrive in ascending order
+    private final Object sendLock = new Object();
+
+    // Receiver side ack coalescing (disabled if ackDelay is 0): Received messages are acked cumulatively, after ackDelay ms or ackBatchSize messages, whichever comes first.
+    private final int ackDelay;
+    private final int ackBatchSize;
+    private final Object ackLock = new Object();
+    private int highestUnackedSalt;
+    private int unackedMessages = 0;
+    private Terminator ackFlushTimer;
+
+    // Sliding window limiting the amount of unacknowledged messages. A permit is taken per sent message and returned once its future completes.
+    private final Semaphore inFlightWindow;
+    private final int maxInFlightMessages;
 
-    // Each message sent has an attached CountDownLatch, so we can block in the sending method until the Ack (or timeout for the Ack) has arrived.
-    private final Map<String, CountDownLatch> ackBlockers = Collections.synchronizedMap(new LinkedHashMap<String, CountDownLatch>());
+    // Credit based flow control of both directions. Null if disabled.
+    private final FlowControl flowControl;
 
-    private boolean socketAlive = false;
-    private PrintWriter printWriter;
+    private volatile boolean socketAlive = false;
 
-    // Collections for the observers (incoming messages and connection breakdown)
-    private final Collection<MessageObserver> messageObservers;
+    // Set once close() has been called, guarded by this
+    private boolean closing = false;
+
+    // The timeout that broke the connection, null if none did (yet)
+    private volatile TimeoutCause breakdownCause;
+
+    // Encoding used on the wire (must be identical on both sides) and the matching writer for all outgoing traffic.
+    private final WireFormat wireFormat;
+    private MessageWriter messageWriter;
+
+    // Observers for incoming messages (notified through the dispatcher) and connection breakdown
+    private final ObserverDispatcher observerDispatcher;
     private final Collection<BreakdownObserver> breakdownObservers;
 
+    // File transfers: sent ones wait for their ACK in the pendingTable, and the ones coming in
+    private final FileObserver fileObserver;
+    private final AtomicInteger transferCounter = new AtomicInteger();
+    private final Map<Integer, IncomingFile> incomingFiles = Collections.synchronizedMap(new HashMap<Integer, IncomingFile>());
+
+    // The message currently streamed to the observers (if any)
+    private StreamedMessage incomingMessage;
+
     // Filter that intercepts any outward message and can manipulate the content.
     private final Filter outFilter;
 
@@ -87,21 +177,76 @@ public final class SafeSocket extends MessageHandler implements Terminatable
      */
     public SafeSocket(ServerSocket serverSocket, int period, int timeout, Collection<MessageObserver> messageObservers, Collection<BreakdownObserver> breakdownObservers, Filter inFilter, Filter outFilter) throws IOException
     {
+        this(serverSocket, period, timeout, messageObservers, breakdownObservers, inFilter, outFilter, new SafeSocketOptions());
+    }
+
+    /**
+     * Constructor for server side SafeSocket with custom I/O filters and
+     * tuning options. Calling this constructor blocks until a client
+     * connection is established.
+     *
+     * @param serverSocket
+     * @param period
+     * @param timeout
+     * @param messageObservers
+     * @param breakdownObservers
+     * @param inFilter
+     * @param outFilter
+     * @param options
+     * @throws IOException
+     */
+    public SafeSocket(ServerSocket serverSocket, int period, int timeout, Collection<MessageObserver> messageObservers, Collection<BreakdownObserver> breakdownObservers, Filter inFilter, Filter outFilter, SafeSocketOptions options) throws IOException
+    {
+        this(acceptClient(serverSocket, options), period, timeout, messageObservers, breakdownObservers, inFilter, outFilter, options);
+    }
+
+    /**
+     * Constructor for a server side SafeSocket on an already accepted client
+     * connection (see SafeSocketServer).
+     */
+    SafeSocket(Socket acceptedSocket, int period, int timeout, Collection<MessageObserver> messageObservers, Collection<BreakdownObserver> breakdownObservers, Filter inFilter, Filter outFilter, SafeSocketOptions options) throws IOException
+    {
+        options.validate();
         serverMode = true;
         this.period = period;
         this.timeout = timeout;
-        this.messageObservers = messageObservers;
+        observerDispatcher = new ObserverDispatcher(this, messageObservers, options);
         this.breakdownObservers = breakdownObservers;
         this.outFilter = outFilter;
+        maxInFlightMessages = options.getMaxInFlightMessages();
+        inFlightWindow = new Semaphore(maxInFlightMessages);
+        flowControl = options.isFlowControl() ? new FlowControl(options.getReceiveWindow(), options.getReceiveWindowSize()) : null;
+        wireFormat = options.getWireFormat();
+        ackMode = options.getAckMode();
+        integrityCheck = options.isIntegrityCheck();
+        ackDelay = options.getAckDelay();
+        ackBatchSize = options.getAckBatchSize();
+        fileObserver = options.getFileObserver();
+        pooledSend = options.isPooledSend();
+        idleHeartBeats = options.isIdleHeartBeats();
+        adaptiveTimeouts = options.isAdaptiveTimeouts();
+        rttEstimator = adaptiveTimeouts ? new RttEstimator(timeout, options.getMinTimeout(), options.getMaxTimeout()) : new RttEstimator(timeout, timeout, timeout);
 
-        // Wait for client to connect
-        socket = serverSocket.accept();
+        socket = acceptedSocket;
+        nioConnection = attachToEngine(options.getEngine());
 
-        // Now that the connection has been established, launch asynchronous heartbeat and wait for messages (actual and Acks) to come in
-        activateReader(inFilter);
-
-        // Prepare for Read/Write, Set up hearbeat (sender), 
+        // Prepare for Read/Write, Set up hearbeat (sender). Must happen before the reader is activated, otherwise an early heartbeat or disconnect would hit a socket that is not yet marked alive.
         initializeHearbeats();
+
+        // Now that the connection has been established, wait for messages (actual and Acks) to come in
+        activateReader(inFilter, options);
+    }
+
+    /**
+     * Waits for a client to connect. Rejects invalid options before, so no
+     * client connection is wasted on them.
+     */
+    private static Socket acceptClient(ServerSocket serverSocket, SafeSocketOptions options) throws IOException
+    {
+        options.validate();
+        if (options.getEngine() != null && serverSocket.getChannel() == null)
+            throw new IllegalArgumentException("The engine requires a ServerSocket opened by a ServerSocketChannel.");
+        return serverSocket.accept();
     }
 
     /**
@@ -136,22 +281,113 @@ public final class SafeSocket extends MessageHandler implements Terminatable
      */
     public SafeSocket(String serverIp, int port, int period, int timeout, Collection<MessageObserver> messageObservers, Collection<BreakdownObserver> breakdownObservers, Filter inFilter, Filter outFilter) throws IOException
     {
+        this(serverIp, port, period, timeout, messageObservers, breakdownObservers, inFilter, outFilter, new SafeSocketOptions());
+    }
+
+    /**
+     * Constructor for setting up client side SafeSocket with custom I/O
+     * filters and tuning options.
+     *
+     * @param serverIp
+     * @param port
+     * @param period
+     * @param timeout
+     * @param messageObservers
+     * @param breakdownObservers
+     * @param inFilter
+     * @param outFilter
+     * @param options
+     * @throws IOException
+     */
+    public SafeSocket(String serverIp, int port, int period, int timeout, Collection<MessageObserver> messageObservers, Collection<BreakdownObserver> breakdownObservers, Filter inFilter, Filter outFilter, SafeSocketOptions options) throws IOException
+    {
+        options.validate();
         serverMode = false;
         this.period = period;
         this.timeout = timeout;
-        this.messageObservers = messageObservers;
+        observerDispatcher = new ObserverDispatcher(this, messageObservers, options);
         this.breakdownObservers = breakdownObservers;
         this.outFilter = outFilter;
+        maxInFlightMessages = options.getMaxInFlightMessages();
+        inFlightWindow = new Semaphore(maxInFlightMessages);
+        flowControl = options.isFlowControl() ? new FlowControl(options.getReceiveWindow(), options.getReceiveWindowSize()) : null;
+        wireFormat = options.getWireFormat();
+        ackMode = options.getAckMode();
+        integrityCheck = options.isIntegrityCheck();
+        ackDelay = options.getAckDelay();
+        ackBatchSize = options.getAckBatchSize();
+        fileObserver = options.getFileObserver();
+        pooledSend = options.isPooledSend();
+        idleHeartBeats = options.isIdleHeartBeats();
+        adaptiveTimeouts = options.isAdaptiveTimeouts();
+        rttEstimator = adaptiveTimeouts ? new RttEstimator(timeout, options.getMinTimeout(), options.getMaxTimeout()) : new RttEstimator(timeout, timeout, timeout);
 
         // Connect to server
-        socket = new Socket();
+        if (options.getEngine() != null)
+            socket = SocketChannel.open().socket();
+        else
+            socket = new Socket();
         SocketAddress address = new InetSocketAddress(serverIp, port);
         socket.connect(address, timeout);
+        nioConnection = attachToEngine(options.getEngine());
+
+        initializeHearbeats();
 
         // Now that the connection has been established, asynchronously wait for messages and hearbeats to come in
-        activateReader(inFilter);
+        activateReader(inFilter, options);
+    }
 
-        initializeHearbeats();
+    /**
+     * Asynchronous counterpart of the client side constructor. Connects and
+     * sets up the SafeSocket on a background thread, the returned future
+     * completes with the ready-for-communication SafeSocket (or exceptionally
+     * if the connection could not be established).
+     *
+     * @param serverIp
+     * @param port
+     * @param period
+     * @param timeout
+     * @param messageObservers
+     * @param breakdownObservers
+     * @return future of the connected SafeSocket
+     */
+    public static CompletableFuture<SafeSocket> connectAsync(String serverIp, int port, int period, int timeout, Collection<MessageObserver> messageObservers, Collection<BreakdownObserver> breakdownObservers)
+    {
+        return connectAsync(serverIp, port, period, timeout, messageObservers, breakdownObservers, new DefaultFilter(), new DefaultFilter(), new SafeSocketOptions());
+    }
+
+    /**
+     * Asynchronous counterpart of the client side constructor with custom I/O
+     * filters and tuning options.
+     *
+     * @param serverIp
+     * @param port
+     * @param period
+     * @param timeout
+     * @param messageObservers
+     * @param breakdownObservers
+     * @param inFilter
+     * @param outFilter
+     * @param options
+     * @return future of the connected SafeSocket
+     */
+    public static CompletableFuture<SafeSocket> connectAsync(final String serverIp, final int port, final int period, final int timeout, final Collection<MessageObserver> messageObservers, final Collection<BreakdownObserver> breakdownObservers, final Filter inFilter, final Filter outFilter, final SafeSocketOptions options)
+    {
+        final CompletableFuture<SafeSocket> connection = new CompletableFuture<SafeSocket>();
+        CONNECTOR.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    connection.complete(new SafeSocket(serverIp, port, period, timeout, messageObservers, breakdownObservers, inFilter, outFilter, options));
+                }
+                catch (IOException | RuntimeException ex) {
+                    connection.completeExceptionally(ex);
+                }
+            }
+        });
+        return connection;
     }
 
     public boolean isMaster()
@@ -159,311 +395,1434 @@ public final class SafeSocket extends MessageHandler implements Terminatable
         return serverMode;
     }
 
+    /**
+     * Hands the connected socket over to the engine's event loops (if any).
+     */
+    private NioConnection attachToEngine(SafeSocketEngine engine) throws IOException
+    {
+        if (engine == null)
+            return null;
+        return engine.attach(socket.getChannel());
+    }
+
     private void initializeHearbeats() throws IOException
     {
         socketAlive = true;
 
-        // Retrieve printwriter (needed to send messages through the socket later).
-        printWriter = new PrintWriter(socket.getOutputStream(), true);
+        // Outgoing traffic is already coalesced by the writer, holding back small segments (Nagle) would only add latency to every ACK round trip.
+        socket.setTcpNoDelay(true);
+
+        // Retrieve writer (needed to send messages through the socket later).
+        OutputStream outputStream;
+        if (nioConnection != null)
+            outputStream = nioConnection.getOutputStream();
+        else
+            outputStream = socket.getOutputStream();
+        // Blocking sockets opened by a channel (e.g. accepted by a SafeSocketServer) can send files without copying them
+        if (wireFormat == WireFormat.FRAMED)
+            messageWriter = new FramedMessageWriter(outputStream, nioConnection == null ? socket.getChannel() : null, outFilter);
+        else
+            messageWriter = new TextMessageWriter(outputStream, outFilter);
+        metricsName = MetricsRegistry.getInstance().add(metrics);
+
+        // The remote side does not send any message before it has been granted credit
+        if (flowControl != null)
+            messageWriter.writeCredit(flowControl.getAdvertisedMessages(), flowControl.getAdvertisedSize());
+
+        // Idle heartbeats: both sides watch the received traffic, the server sends heartbeats only if the connection has been idle
+        if (idleHeartBeats) {
+            lastReceived = System.nanoTime();
+            new IdleHeartBeatScheduler().onTerminate(null);
+        }
 
-        // Server actively sends heartbeat and waits for ACKs
-        if (serverMode) {
-            Thread heartBeatSender = new Thread(new HeartBeatThread());
-            heartBeatSender.start();
+        // Server actively sends heartbeat and waits for ACKs. On an engine the heartbeats are scheduled by the TimingWheel instead of a dedicated thread.
+        else if (serverMode) {
+            if (nioConnection != null)
+                new HeartBeatScheduler().onTerminate(null);
+            else {
+                Thread heartBeatSender = new Thread(MetricsRegistry.track(new HeartBeatThread()));
+                heartBeatSender.start();
+            }
         }
 
         // Initialize heartbeat receiver
         else {
-            Terminator initialTerminator = new Terminator("T-HBA: " + INITIAL_HEART_BEAT_ID, (int) (period * 1.5), this);
-            String killerId = InternalMessages.HEART_BEAT + INITIAL_HEART_BEAT_ID;
-            connectionKillers.put(killerId, initialTerminator);
+            Terminator initialTerminator = new Terminator("T-HBA: " + INITIAL_HEART_BEAT_ID, heartBeatTolerance(), this);
+            pendingTable.put(PendingTable.key(PendingTable.HEART_BEAT, INITIAL_HEART_BEAT_ID), new PendingMessage(initialTerminator, null));
             initialTerminator.start();
         }
+
+        if (pooledSend)
+            new AckWatchdog().onTerminate(null);
     }
 
-    private void activateReader(Filter inFilter) throws IOException
+    /**
+     * Starts reading, on the engine's event loops or on a thread of its own.
+     * Both read into buffers and use the same decoders.
+     */
+    private void activateReader(Filter inFilter, SafeSocketOptions options) throws IOException
     {
-        Thread activateThread = new SocketReaderThread(socket, this, inFilter);
-        activateThread.start();
+        final InboundDecoder frameDecoder;
+        if (wireFormat == WireFormat.FRAMED)
+            frameDecoder = new FramedInboundDecoder(new FrameParser(this, inFilter, options));
+        else
+            frameDecoder = new TextInboundDecoder(new TextProtocolParser(this, inFilter, options));
+
+        // Counts the received bytes. Idle heartbeats: every read proves the remote side alive
+        InboundDecoder decoder = new InboundDecoder()
+        {
+            @Override
+            public void decode(ByteBuffer input) throws UnfriendlyConnectionBreakdownException
+            {
+                if (idleHeartBeats)
+                    lastReceived = System.nanoTime();
+                metrics.bytesReceived(input.remaining());
+                frameDecoder.decode(input);
+            }
+        };
+
+        if (nioConnection != null)
+            nioConnection.startReading(this, decoder);
+        else
+            new SocketReaderThread(socket, this, decoder).start();
     }
 
     @Override
     protected void handleInternalMessage(String message)
     {
-        // In case of an expected message (anything but delimiter), find attatched connection killer and deactivate it
-        if (message.startsWith(InternalMessages.MESSAGE_ACK) || message.startsWith(InternalMessages.HEART_BEAT_ACK)) {
-            if (!connectionKillers.containsKey(message))
-                throw new RuntimeException("Unable to resolve terminator for internal message: " + message);
-            connectionKillers.remove(message).deactivate();
+        // Cumulative ack, acknowledges all messages up to the carried salt
+        if (message.startsWith(InternalMessages.CUMULATIVE_ACK))
+            handleCumulativeAck(Integer.parseInt(message.substring(InternalMessages.CUMULATIVE_ACK.length())));
 
-            // unblock sender method
-            if (message.startsWith(InternalMessages.MESSAGE_ACK)) {
-                CountDownLatch latch = ackBlockers.remove(message);
-                latch.countDown();
+        // In case of a message ack, resolve the acknowledged message (by hash or sequence number)
+        else if (message.startsWith(InternalMessages.MESSAGE_ACK)) {
+            if (ackMode == AckMode.SEQUENCE)
+                handleMessageAck(Integer.parseInt(message.substring(InternalMessages.MESSAGE_ACK.length())));
+            else {
+                Integer salt = hashedSalts.remove(message);
+                if (salt == null) {
+                    // Late ACK of a connection already down, its entries are gone
+                    if (!isSocketAlive())
+                        return;
+                    throw new RuntimeException("Unable to resolve terminator for internal message: " + message);
+                }
+                handleMessageAck(salt);
             }
         }
-        // in case of a heartbeat: send back matching ack and reset heartbeat receiver
-        else if (message.startsWith(InternalMessages.HEART_BEAT)) {
-            String heartBeatId = message.replace(InternalMessages.HEART_BEAT, "");
-            sendAckLessMessage(InternalMessages.HEART_BEAT_ACK + heartBeatId);
-            resetHeartBeatReceiver(message);
+        else if (message.startsWith(InternalMessages.HEART_BEAT_ACK))
+            handleHeartBeatAck(Integer.parseInt(message.substring(InternalMessages.HEART_BEAT_ACK.length())));
+        else if (message.startsWith(InternalMessages.HEART_BEAT))
+            handleHeartBeat(Integer.parseInt(message.substring(InternalMessages.HEART_BEAT.length())));
+        else if (message.startsWith(InternalMessages.CREDIT)) {
+            String credit = message.substring(InternalMessages.CREDIT.length());
+            int separatorIndex = credit.indexOf(InternalMessages.CREDIT_SEPARATOR);
+            handleCredit(Long.parseLong(credit.substring(0, separatorIndex)), Long.parseLong(credit.substring(separatorIndex + 1)));
         }
     }
 
     /**
-     * Tells whether the underlying socket connection is alive or dead. (Note:
-     * It is better to register a breakdown observer if you want to receive
-     * information about a breakdown synchronously).
-     *
-     * @return whether connection is alive or not
+     * Credit granted by the remote receiver, releases blocked senders.
+     * Ignored if flow control is disabled on this side.
      */
-    public boolean isSocketAlive()
+    @Override
+    protected void handleCredit(long messages, long size)
     {
-        return socketAlive;
+        if (flowControl != null)
+            flowControl.grant(messages, size);
     }
 
     /**
-     * Sends a message through the SafeSocket and tells you whether it has been
-     * certainly transmitted to the other side or not. Note, this method blocks,
-     * until an ACK for the transmitted message has arrived, or a timeout has
-     * occurred. This is an intentional design feature of SafeSockets and should
-     * not be sidestepped by calling this method in an extra tread. It is an
-     * essential part of communication to rely on previous messages being
-     * transmitted before continuing the "conversation".
-     *
-     * @param message
-     * @return Whether the message has arrived FOR SURE on the other side. Note:
-     * If returned false, the message may still have been transmitted (and only
-     * the ACK did not make it). In case the connection has already been
-     * detached this method directly returns false, with no extra error
-     * handling. Reason is the sender has the possibility to subscribe as
-     * BreakdownObserver. If he does so he does no need to actively send
-     * messages on a dead connection.
+     * A message discarded by the inbound filter is consumed right away, so
+     * its credit is returned nonetheless.
      */
-    public boolean sendMessage(String message)
+    @Override
+    protected void handleDiscardedMessage(long size)
     {
-        // Bounce if socket is not alive any more (sender has already been 
-        // notified, about breakdown. We directly return false)
-        if (!isSocketAlive())
-            return false;
-
-        // Check if the message contains substrings reserved for internal usage
-        saneMessageCheck(message);
-
-        // We use an ACk message with the salted messages Hash as identifier
-        String wrappedMessage = message + "\n" + InternalMessages.MESSAGE_DELIMITER + getSalt();
-        String messageId = InternalMessages.MESSAGE_ACK + Md5Hasher.getMessageHash(wrappedMessage);
+        if (flowControl != null)
+            messageConsumed(size);
+    }
 
-        // Create a latch and stock it in ackBlockers hashmap, so it is access-
-        // ible throughout the class. (unblocked by timeout or ack receiver)        
-        CountDownLatch awaitAck = new CountDownLatch(1);
-        ackBlockers.put(messageId, awaitAck);
+    /**
+     * All observers are done with a received message (flow control), called
+     * by the dispatcher. Returns its credit to the remote sender, in batches.
+     */
+    void messageConsumed(long size)
+    {
+        if (flowControl.consume(size) && isSocketAlive())
+            messageWriter.writeCredit(flowControl.getAdvertisedMessages(), flowControl.getAdvertisedSize());
+    }
 
-        // Create a killer that unblocks the latch in case of a timeout
-        Terminator timeoutKiller = new Terminator("T-MA: " + message + " / " + messageId, timeout, this);
-        connectionKillers.put(messageId, timeoutKiller);
+    /**
+     * Unused credit granted by the remote receiver (flow control), in
+     * messages.
+     */
+    long getAvailableCredit()
+    {
+        return flowControl == null ? Long.MAX_VALUE : flowControl.getAvailableMessages();
+    }
 
-        // Actually send the message, then launch the killer and block this thread
-        sendAckLessMessage(wrappedMessage);
-        timeoutKiller.start();
+    /**
+     * Takes the flow control credit of a message about to be sent, after its
+     * slot in the send window. Blocks until the remote receiver has granted
+     * it. Returns false (and frees the slot) if the connection has broken
+     * down meanwhile.
+     */
+    private boolean acquireCredit(long size)
+    {
+        if (flowControl == null)
+            return true;
+        boolean acquired;
         try {
-            awaitAck.await();
+            acquired = flowControl.acquire(size);
         }
         catch (InterruptedException ex) {
+            inFlightWindow.release();
             throw new RuntimeException();
         }
-
-        /*
-         * If the socket is still marked as alive, the ack was received. If not,
-         * the socket was already closed by a connection killer and we cannot
-         * rely on the message having arrived on the other side.
-         */
-        return socketAlive;
+        if (!acquired)
+            inFlightWindow.release();
+        return acquired;
     }
 
     /**
-     * This method sends the actual message. ACKs must be attended and handled
-     * externally to this method. Also Actual user-messages should must be
-     * passed to this method in one piece, not in chunks (this is required for
-     * thread safety.)
-     *
-     * @param message
+     * In case of a heartbeat: send back matching ack and reset heartbeat
+     * receiver.
      */
-    private void sendAckLessMessage(String message)
+    @Override
+    protected void handleHeartBeat(int heartBeatId)
     {
-        // Before sending, pipe message through filter. Send the output unless it has been flagged as discarded.
-        message = outFilter.filter(message);
-        if (!message.matches(InternalMessages.MESSAGE_DISCARDED)) {
-            printWriter.println(message);
-            printWriter.flush();
-        }
+        messageWriter.writeHeartBeatAck(heartBeatId);
+        if (!idleHeartBeats)
+            resetHeartBeatReceiver(heartBeatId);
     }
 
     /**
-     * Passes incoming message to all registered message observers. Note: The
-     * Observers MUST be notified asynchronously. Otherwise we risk blocking
-     * observers (e.g. if they send messages themselves). This can easily lead
-     * to connection breakdowns, since the SocketReaderThread is also blocked
-     * then and cannot handle incoming heartbeats or messages anymore (so no
-     * ACKs will be sent out, too)
+     * In case of an expected ACK, find attatched connection killer and
+     * deactivate it.
      */
-    protected void notifyAllMessageObservers(final String message)
+    @Override
+    protected void handleHeartBeatAck(int heartBeatId)
     {
-        for (MessageObserver messageObserver : messageObservers) {
-            Thread observerNotifierThread = new ObserverNotifierThread(messageObserver, this, message);
-            observerNotifierThread.start();
+        PendingMessage pendingHeartBeat = pendingTable.remove(PendingTable.key(PendingTable.HEART_BEAT, heartBeatId));
+        if (pendingHeartBeat == null) {
+            // Late ACK of a connection already down (the breakdown has drained the pendingTable)
+            if (!isSocketAlive())
+                return;
+            throw new RuntimeException("Unable to resolve terminator for heartbeat ack: " + heartBeatId);
         }
+        long rtt = System.nanoTime() - pendingHeartBeat.sentTime;
+        rttEstimator.sample(rtt);
+        metrics.heartBeatAcked(rtt);
+        pendingHeartBeat.defuse();
     }
 
     /**
-     * Notifies all attached breakdown observers, the connection has finally
-     * broken down.
+     * Defuses the connection killer of an acknowledged message and unblocks
+     * its sender.
      */
-    private synchronized void notifyAllBreakDownObservers(boolean intended)
+    @Override
+    protected void handleMessageAck(int sequence)
     {
-        for (BreakdownObserver breakdownObserver : breakdownObservers) {
-            breakdownObserver.notifyBreakdownObserver(this, intended);
+        PendingMessage pendingMessage = pendingTable.remove(PendingTable.key(PendingTable.MESSAGE, sequence));
+        if (pendingMessage == null) {
+            // Late ACK of a connection already down (the breakdown has drained the pendingTable)
+            if (!isSocketAlive())
+                return;
+            throw new RuntimeException("Unable to resolve terminator for message ack: " + sequence);
         }
+        long latency = System.nanoTime() - pendingMessage.sentTime;
+        rttEstimator.sample(latency);
+        metrics.ackReceived(latency);
+        pendingMessage.defuse();
+        completeAck(pendingMessage, true);
     }
 
     /**
-     * private inner Thread that periodically sends heartBeats (ACK requests) to
-     * the remote client.
+     * Defuses the connection killers and unblocks the senders of all messages
+     * up to (including) the given salt. Salts are assigned consecutively, so
+     * only the salts since the previous cumulative ack have to be looked up
+     * (individually acked ones are simply missing). The oldest message
+     * waited longest (including the ACK delay), its round trip is measured.
      */
-    private class HeartBeatThread implements Runnable
+    @Override
+    protected void handleCumulativeAck(int sequence)
     {
-
-        @Override
-        public void run()
-        {
-            int heartBeartCounter = 0;
-            while (socketAlive) {
-                try {
-                    // Register and launch new Terminator
-                    String killerId = InternalMessages.HEART_BEAT_ACK + heartBeartCounter;
-                    Terminator killer = new Terminator("T-HBA: " + heartBeartCounter, timeout, SafeSocket.this);
-                    connectionKillers.put(killerId, killer);
-                    killer.start();
-
-                    // Request ACK for Heartbeat to defuse Connection Killer
-                    sendAckLessMessage(InternalMessages.HEART_BEAT + heartBeartCounter);
-                    Thread.sleep(period);
-
-                    heartBeartCounter += 1;
-                }
-                catch (InterruptedException ex) {
-                    throw new RuntimeException();
+        boolean sampled = false;
+        long now = System.nanoTime();
+        for (; cumulativeAckCursor - sequence <= 0; cumulativeAckCursor++) {
+            PendingMessage pendingMessage = pendingTable.remove(PendingTable.key(PendingTable.MESSAGE, cumulativeAckCursor));
+            if (pendingMessage != null) {
+                long latency = now - pendingMessage.sentTime;
+                metrics.ackReceived(latency);
+                if (!sampled) {
+                    rttEstimator.sample(latency);
+                    sampled = true;
                 }
+                pendingMessage.defuse();
+                completeAck(pendingMessage, true);
             }
         }
-
     }
 
     /**
-     * Deactivates the current ConnectionKiller (if there is one). Then starts a
-     * new one. Called by the client on reception of a HeartBeat message.
+     * Tells whether the underlying socket connection is alive or dead. (Note:
+     * It is better to register a breakdown observer if you want to receive
+     * information about a breakdown synchronously).
+     *
+     * @return whether connection is alive or not
      */
-    private void resetHeartBeatReceiver(String message)
+    public boolean isSocketAlive()
     {
-        //defuse running connection killer
-        connectionKillers.get(message).deactivate();
-
-        // Launch a new one, next id is old id+1
-        int idNumber = Integer.parseInt(message.replace(InternalMessages.HEART_BEAT, "")) + 1;
-        String terminatorId = InternalMessages.HEART_BEAT + idNumber;
-        Terminator nextTerminator = new Terminator("T-HBR: " + idNumber, (int) (period * 1.5), this);
-        connectionKillers.put(terminatorId, nextTerminator);
-        nextTerminator.start();
+        return socketAlive;
     }
 
     /**
-     * In contrast to the next method this public method is not called due to a
-     * broken connection, but as an intentional user-taken decision to close
-     * down a working connection. Tells whether an actual close was issued (in
-     * case the connection was already dead, the call is ignored) NOTE:
-     * closeable interface currently not implemented for java 1.6 compatibility.
+     * Smoothed round trip time of the ACKs received so far (messages and
+     * heartbeats).
+     *
+     * @return SRTT [ms], -1 if no ACK has arrived yet
      */
-    public void close()
+    public double getSmoothedRtt()
     {
-        if (isSocketAlive()) {
-            // Thus the other side has to be notified about this decision as well
-            sendAckLessMessage(InternalMessages.DISCONNECT);
-
-            // before we close down the local socket.
-            assymentricDisconnect(true);
-        }
+        long smoothedRtt = rttEstimator.getSmoothedRtt();
+        return smoothedRtt < 0 ? -1 : smoothedRtt / 1e6;
     }
 
     /**
-     * Actively closing the connection prevents replying to further incoming
-     * heartbeats / ACKs / sending of further messages. Method is synchronized
-     * because in rare cases two timeouts could otherwise trigger two
-     * simultaneous calls. (E.g. if concurrent hearbeat and message timeout) It
-     * suffices if observers are then notified only once, for a broken
-     * connection can never be revived.
+     * Mean deviation of the round trip time.
+     *
+     * @return RTTVAR [ms]
      */
-    @Override
-    protected synchronized void assymentricDisconnect(boolean intended)
+    public double getRttVariation()
     {
-        if (socketAlive) {
-
-            try {
-                socket.close();
-                socketAlive = false;
-
-                //unblock all potentially blocked threads
-                for (CountDownLatch latch : ackBlockers.values()) {
-                    latch.countDown();
-                }
-            }
-            catch (IOException ex) {
-                throw new RuntimeException("Unable to close connection.");
-            }
-            notifyAllBreakDownObservers(intended); // < sends false here - how can that be?
-        }
+        return rttEstimator.getRttVariation() / 1e6;
     }
 
     /**
-     * Called if a deadline for an awaited Ack or Heartbeat has not been met. In
-     * that case we consider the connection broken on close it down.
+     * The time a message or heartbeat sent now has for its ACK. Fixed unless
+     * adaptive timeouts are enabled (see SafeSocketOptions).
+     *
+     * @return timeout [ms]
      */
-    @Override
-    public void onTerminate(String cause)
+    public int getAckTimeout()
     {
-        System.out.println("Termination request, due to ACK timeout: "+cause+(isSocketAlive()?"[UNDEFUSED]":"[DEFUSED]"));
-        assymentricDisconnect(false);
+        return (int) TimeUnit.NANOSECONDS.toMillis(rttEstimator.getTimeout() + TimeUnit.MILLISECONDS.toNanos(1) - 1);
     }
 
     /**
-     * Any message containing a line stating with a keyword reserved for
-     * SafeSocket internal communication is considered malicious and will result
-     * in Runtime exception plus immediate connection close.
+     * Traffic, ACK latencies and timeouts of this connection. Also available
+     * through JMX, as are the totals of all connections (see
+     * MetricsRegistry).
+     *
+     * @return the metrics, still readable after a breakdown
      */
-    private void saneMessageCheck(String message)
+    public ConnectionMetrics getMetrics()
     {
-        if (message == null || message.trim().equals(""))
-            throw new RuntimeException("Sending of null / whitespace messages not allowed.");
-        for (String line : message.split("\n")) {
-            if (InternalMessages.isReserved(line)) {
-                close();
-                throw new RuntimeException("Shutting down connection due to "
-                        + "malicious message colliding patterns reserved for"
-                        + " internal safeSocket communication: "
-                        + message);
-            }
-        }
+        return metrics;
     }
 
-    @Override
-    protected void handleUserMessage(String message, int salt)
+    String getRemoteAddress()
     {
-        // Notify all local registered observers
-        notifyAllMessageObservers(message);
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
 
-        // Create hash of wrapped message and send reception ACK back to sender
-        String wrappedMessage = message + "\n" + InternalMessages.MESSAGE_DELIMITER + salt;
-        String checksum = Md5Hasher.getMessageHash(wrappedMessage);
-        sendAckLessMessage(InternalMessages.MESSAGE_ACK + checksum);
+    long getBytesSent()
+    {
+        MessageWriter writer = messageWriter;
+        return writer == null ? 0 : writer.getBytesWritten();
+    }
+
+    int getInFlightMessages()
+    {
+        return Math.max(0, maxInFlightMessages - inFlightWindow.availablePermits());
+    }
+
+    /**
+     * How long the client waits for the next heartbeat: period + ACK timeout
+     * with adaptive timeouts, otherwise 1.5 * period.
+     */
+    private int heartBeatTolerance()
+    {
+        return adaptiveTimeouts ? period + getAckTimeout() : (int) (period * 1.5);
+    }
+
+    /**
+     * Deadline of a message sent now with pooled send. Never before the
+     * deadline of the previous message. Called with the sendLock held.
+     */
+    private long nextDeadline()
+    {
+        long deadline = System.nanoTime() + rttEstimator.getTimeout();
+        if (deadline - lastDeadline < 0)
+            deadline = lastDeadline;
+        lastDeadline = deadline;
+        return deadline;
+    }
+
+    /**
+     * Sends a message through the SafeSocket and tells you whether it has been
+     * certainly transmitted to the other side or not. Note, this method blocks,
+     * until an ACK for the transmitted message has arrived, or a timeout has
+     * occurred. This is an intentional design feature of SafeSockets and should
+     * not be sidestepped by calling this method in an extra tread. It is an
+     * essential part of communication to rely on previous messages being
+     * transmitted before continuing the "conversation". If you want to
+     * pipeline messages, use sendMessageAsync instead.
+     *
+     * @param message
+     * @return Whether the message has arrived FOR SURE on the other side. Note:
+     * If returned false, the message may still have been transmitted (and only
+     * the ACK did not make it). In case the connection has already been
+     * detached this method directly returns false, with no extra error
+     * handling. Reason is the sender has the possibility to subscribe as
+     * BreakdownObserver. If he does so he does no need to actively send
+     * messages on a dead connection.
+     */
+    public boolean sendMessage(String message)
+    {
+        if (pooledSend && isSocketAlive()) {
+            saneMessageCheck(message);
+            return sendPooled(message, null);
+        }
+        return awaitAck(sendMessageAsync(message));
+    }
+
+    /**
+     * Sends a binary message through the SafeSocket, same semantics as
+     * sendMessage(String). Requires WireFormat.FRAMED. The remote side
+     * delivers it to its BinaryMessageObservers.
+     *
+     * @param message: the bytes between position and limit are sent, the
+     * position is not modified.
+     * @return Whether the message has arrived FOR SURE on the other side.
+     */
+    public boolean sendMessage(ByteBuffer message)
+    {
+        if (pooledSend && isSocketAlive() && message != null)
+            return sendPooled(null, message);
+        return awaitAck(sendMessageAsync(message));
+    }
+
+    /**
+     * Sends a binary message through the SafeSocket, same semantics as
+     * sendMessage(String). Requires WireFormat.FRAMED.
+     *
+     * @param message
+     * @return Whether the message has arrived FOR SURE on the other side.
+     */
+    public boolean sendMessage(byte[] message)
+    {
+        return sendMessage(ByteBuffer.wrap(message));
+    }
+
+    private static boolean awaitAck(CompletableFuture<Boolean> ackFuture)
+    {
+        try {
+            return ackFuture.get();
+        }
+        catch (InterruptedException ex) {
+            throw new RuntimeException();
+        }
+        catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     * Sends a message through the SafeSocket without waiting for its ACK. The
+     * returned future completes with true as soon as the ACK has arrived, or
+     * with false if the connection broke down before (same semantics as the
+     * return value of sendMessage). Messages sent by one and the same thread
+     * go on the wire in calling order. This method only blocks if the send
+     * window (see SafeSocketOptions) is full, until an ACK or a breakdown
+     * frees a slot. Note: The future is completed by the SafeSocket's reader
+     * thread, so dependent actions should be registered with the *Async
+     * variants of CompletableFuture if they take time.
+     *
+     * @param message
+     * @return future telling whether the message has arrived FOR SURE on the
+     * other side.
+     */
+    public CompletableFuture<Boolean> sendMessageAsync(String message)
+    {
+        // Bounce if socket is not alive any more (sender has already been 
+        // notified, about breakdown. We directly return false)
+        if (!isSocketAlive())
+            return CompletableFuture.completedFuture(false);
+
+        // Check if the message contains substrings reserved for internal usage
+        saneMessageCheck(message);
+        return send(message, null);
+    }
+
+    /**
+     * Binary counterpart of sendMessageAsync(String). Requires
+     * WireFormat.FRAMED. The buffer must not be modified until the returned
+     * future has completed.
+     *
+     * @param message: the bytes between position and limit are sent, the
+     * position is not modified.
+     * @return future telling whether the message has arrived FOR SURE on the
+     * other side.
+     */
+    public CompletableFuture<Boolean> sendMessageAsync(ByteBuffer message)
+    {
+        if (!isSocketAlive())
+            return CompletableFuture.completedFuture(false);
+        if (message == null)
+            throw new RuntimeException("Sending of null messages not allowed.");
+        if (wireFormat != WireFormat.FRAMED)
+            throw new IllegalStateException("Binary messages require WireFormat.FRAMED.");
+        return send(null, message);
+    }
+
+    /**
+     * Binary counterpart of sendMessageAsync(String). Requires
+     * WireFormat.FRAMED.
+     *
+     * @param message
+     * @return future telling whether the message has arrived FOR SURE on the
+     * other side.
+     */
+    public CompletableFuture<Boolean> sendMessageAsync(byte[] message)
+    {
+        return sendMessageAsync(ByteBuffer.wrap(message));
+    }
+
+    /**
+     * Sends a file through the SafeSocket and tells you whether it has been
+     * completely written on the other side (same semantics as sendMessage).
+     * The content is streamed in chunks, heartbeats and other messages keep
+     * flowing in between. Requires WireFormat.FRAMED and a FileObserver on
+     * the remote side.
+     *
+     * @param file
+     * @return Whether the file has arrived FOR SURE on the other side.
+     * @throws IOException if the file cannot be read.
+     */
+    public boolean sendFile(Path file) throws IOException
+    {
+        return awaitAck(sendFileAsync(file));
+    }
+
+    /**
+     * Sends a file without waiting for its ACK. The content is streamed by
+     * the calling thread, so this method returns once the file has been
+     * written to the connection. The returned future completes once the
+     * remote side has written the file (true) or on breakdown (false).
+     *
+     * @param file
+     * @return future telling whether the file has arrived FOR SURE on the
+     * other side.
+     * @throws IOException if the file cannot be read.
+     */
+    public CompletableFuture<Boolean> sendFileAsync(Path file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return sendFileAsync(channel, 0, channel.size(), file.getFileName().toString());
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Sends a region of an open file, see sendFileAsync(Path). The channel's
+     * position is not modified. Where the connection allows it (blocking
+     * sockets created by a channel, e.g. accepted by a SafeSocketServer),
+     * the content goes from the file to the socket without being copied
+     * (FileChannel.transferTo).
+     *
+     * @param file
+     * @param position: first byte to send
+     * @param count: amount of bytes to send
+     * @param name: passed to the remote FileObserver, at most 4096 bytes
+     * (UTF-8)
+     * @return future telling whether the file has arrived FOR SURE on the
+     * other side.
+     * @throws IOException if the file cannot be read.
+     */
+    public CompletableFuture<Boolean> sendFileAsync(FileChannel file, long position, long count, String name) throws IOException
+    {
+        if (!isSocketAlive())
+            return CompletableFuture.completedFuture(false);
+        if (wireFormat != WireFormat.FRAMED)
+            throw new IllegalStateException("File transfers require WireFormat.FRAMED.");
+        if (position < 0 || count < 0 || position + count > file.size())
+            throw new IllegalArgumentException("Region exceeds the file.");
+        if (name.getBytes(StandardCharsets.UTF_8).length > InternalMessages.MAX_FILE_NAME_LENGTH)
+            throw new IllegalArgumentException("File name exceeds " + InternalMessages.MAX_FILE_NAME_LENGTH + " bytes.");
+
+        // A file takes one slot of the send window, same as a message
+        try {
+            inFlightWindow.acquire();
+        }
+        catch (InterruptedException ex) {
+            throw new RuntimeException();
+        }
+        CompletableFuture<Boolean> ackFuture = new CompletableFuture<Boolean>();
+        int transferId = transferCounter.incrementAndGet();
+        Terminator timeoutKiller = new Terminator("T-FA: " + name + " / " + transferId, timeout, this);
+        PendingMessage pendingFile = new PendingMessage(timeoutKiller, ackFuture);
+        pendingTable.put(PendingTable.key(PendingTable.FILE, transferId), pendingFile);
+        if (!isSocketAlive()) {
+            pendingTable.remove(PendingTable.key(PendingTable.FILE, transferId));
+            completeAck(pendingFile, false);
+            return ackFuture;
+        }
+
+        // Stream the content chunk by chunk, so other traffic is not held back. A breakdown completes the future, no need to go on then.
+        messageWriter.writeFileStart(transferId, name, count);
+        for (long sent = 0; sent < count && isSocketAlive(); sent += InternalMessages.FILE_CHUNK_SIZE) {
+            if (!messageWriter.writeFileChunk(transferId, file, position + sent, (int) Math.min(InternalMessages.FILE_CHUNK_SIZE, count - sent))) {
+                // The chunk may have been cut off in the middle, the stream is unusable
+                assymentricDisconnect(false);
+                return ackFuture;
+            }
+        }
+        messageWriter.writeFileEnd(transferId);
+
+        // The receiver has to write the file before it ACKs, the deadline starts once everything has been sent
+        timeoutKiller.start();
+        return ackFuture;
+    }
+
+    /**
+     * Sends a message of a broadcast, see Broadcast.send. The broadcast's
+     * encodings, checksum and hash prefix are used as they are, unless an
+     * outbound filter might modify the message (it is then sent like any
+     * other). Never waits: returns null (nothing sent) if the send window is
+     * full, there is no flow control credit left, or the connection does not
+     * take anything currently.
+     */
+    CompletableFuture<Boolean> sendBroadcast(Broadcast broadcast)
+    {
+        if (!isSocketAlive())
+            return CompletableFuture.completedFuture(false);
+        if (messageWriter.isStalled() || !inFlightWindow.tryAcquire())
+            return null;
+        if (flowControl != null && !flowControl.tryAcquire(broadcast.getSize())) {
+            inFlightWindow.release();
+            return isSocketAlive() ? null : CompletableFuture.completedFuture(false);
+        }
+        if (!broadcast.isBinary() && !(outFilter instanceof DefaultFilter))
+            return sendAcquired(broadcast.getMessage(), null, null);
+        return sendAcquired(null, null, broadcast);
+    }
+
+    WireFormat getWireFormat()
+    {
+        return wireFormat;
+    }
+
+    /**
+     * The timeout that broke the connection down, null if the connection is
+     * alive or broke down for another reason (closed, I/O error).
+     */
+    TimeoutCause getBreakdownCause()
+    {
+        return breakdownCause;
+    }
+
+    /**
+     * Common part of sending String and binary messages, exactly one of both
+     * is set. Broadcast messages are sent without waiting, see sendBroadcast.
+     */
+    private CompletableFuture<Boolean> send(String message, ByteBuffer binaryMessage)
+    {
+        // Backpressure: wait for a free slot in the send window. Breakdowns release all slots, so check again afterwards.
+        try {
+            inFlightWindow.acquire();
+        }
+        catch (InterruptedException ex) {
+            throw new RuntimeException();
+        }
+        if (!acquireCredit(message != null ? message.length() : binaryMessage.remaining()))
+            return CompletableFuture.completedFuture(false);
+        return sendAcquired(message, binaryMessage, null);
+    }
+
+    /**
+     * Sends the message once its slot in the send window and its credit have
+     * been taken.
+     */
+    private CompletableFuture<Boolean> sendAcquired(String message, ByteBuffer binaryMessage, Broadcast broadcast)
+    {
+        CompletableFuture<Boolean> ackFuture = new CompletableFuture<Boolean>();
+        long checksum = MessageChecksum.NONE;
+        if (ackMode == AckMode.SEQUENCE && integrityCheck) {
+            if (broadcast != null)
+                checksum = broadcast.getChecksum();
+            else
+                checksum = message != null ? MessageChecksum.compute(message) : MessageChecksum.compute(binaryMessage);
+        }
+
+        // Salts must go on the wire in ascending order (cumulative acks rely on it), so salt assignment and sending happen under one lock.
+        synchronized (sendLock) {
+
+            // The salt identifies the message. In HASH mode the ack carries the salted messages Hash instead, so remember which salt it belongs to.
+            int salt = getSalt();
+            if (ackMode == AckMode.HASH) {
+                if (broadcast != null)
+                    hashedSalts.put(InternalMessages.MESSAGE_ACK + broadcast.getMessageHash(salt), salt);
+                else
+                    hashedSalts.put(InternalMessages.MESSAGE_ACK + (message != null ? getMessageHash(message, salt) : getMessageHash(binaryMessage, salt)), salt);
+            }
+
+            // Create a killer that completes the future in case of a timeout, stock both in the pendingTable, so they are accessible throughout the class. (completed by timeout or ack receiver)
+            // With pooled send the entry carries a deadline for the AckWatchdog instead.
+            Terminator timeoutKiller = null;
+            PendingMessage pendingMessage;
+            if (pooledSend) {
+                pendingMessage = new PendingMessage(null, ackFuture);
+                pendingMessage.arm(salt, nextDeadline());
+            }
+            else {
+                String description;
+                if (broadcast != null)
+                    description = broadcast.getDescription();
+                else
+                    description = message != null ? message : binaryMessage.remaining() + " bytes";
+                timeoutKiller = new Terminator("T-MA: " + description + " / " + salt, getAckTimeout(), this);
+                pendingMessage = new PendingMessage(timeoutKiller, ackFuture);
+            }
+            if (!registerPendingMessage(salt, pendingMessage))
+                return ackFuture;
+
+            // Actually send the message, then launch the killer
+            if (broadcast != null)
+                messageWriter.writeBroadcast(broadcast, salt, checksum);
+            else if (message != null)
+                messageWriter.writeUserMessage(message, salt, checksum);
+            else
+                messageWriter.writeBinaryMessage(binaryMessage, salt, checksum);
+            metrics.messageSent();
+            if (timeoutKiller != null)
+                timeoutKiller.start();
+        }
+        return ackFuture;
+    }
+
+    /**
+     * Allocation free counterpart of send for the blocking sendMessage calls
+     * (pooled send). Uses the calling thread's completion handle and encode
+     * buffer, the deadline is kept by the AckWatchdog. Exactly one of both
+     * messages is set.
+     */
+    private boolean sendPooled(String message, ByteBuffer binaryMessage)
+    {
+        if (!isSocketAlive())
+            return false;
+        try {
+            inFlightWindow.acquire();
+        }
+        catch (InterruptedException ex) {
+            throw new RuntimeException();
+        }
+        if (!acquireCredit(message != null ? message.length() : binaryMessage.remaining()))
+            return false;
+        SendContext context = sendContexts.get();
+        PooledAck ack = context.ack;
+        synchronized (sendLock) {
+            int salt = getSalt();
+            ack.arm(salt, nextDeadline());
+            if (!registerPendingMessage(salt, ack))
+                return false;
+            boolean checksum = integrityCheck;
+            if (message != null)
+                messageWriter.writeUserMessage(message, salt, checksum, context.buffer);
+            else
+                messageWriter.writeBinaryMessage(binaryMessage, salt, checksum, context.buffer);
+            metrics.messageSent();
+        }
+        try {
+            return ack.await();
+        }
+        catch (RuntimeException ex) {
+            // Interrupted: the handle may still be completed later, so it cannot be reused
+            context.ack = new PooledAck(Thread.currentThread());
+            throw ex;
+        }
+    }
+
+    /**
+     * Puts the entry of a message about to be sent into the pendingTable.
+     * Returns false (and completes the entry) if the connection has broken
+     * down meanwhile. Called with the sendLock held, right before the message
+     * is written (the round trip is measured from here).
+     */
+    private boolean registerPendingMessage(int salt, PendingMessage pendingMessage)
+    {
+        pendingMessage.sentTime = System.nanoTime();
+        pendingTable.put(PendingTable.key(PendingTable.MESSAGE, salt), pendingMessage);
+        sentSalt = salt;
+        if (!isSocketAlive()) {
+            pendingTable.remove(PendingTable.key(PendingTable.MESSAGE, salt));
+            completeAck(pendingMessage, false);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Completes the future (or pooled handle) of a sent message and returns
+     * its slot in the send window. Ignores entries that have already been
+     * completed by a concurrent breakdown, and heartbeats.
+     */
+    private void completeAck(PendingMessage pendingMessage, boolean acknowledged)
+    {
+        if (pendingMessage.complete(acknowledged))
+            inFlightWindow.release();
+    }
+
+    /**
+     * Passes incoming message to all registered message observers. Note: The
+     * Observers MUST be notified asynchronously. Otherwise we risk blocking
+     * observers (e.g. if they send messages themselves). This can easily lead
+     * to connection breakdowns, since the SocketReaderThread is also blocked
+     * then and cannot handle incoming heartbeats or messages anymore (so no
+     * ACKs will be sent out, too). The dispatcher queues the message for each
+     * observer, returns false if it must not be ACKed (overflow).
+     */
+    protected boolean notifyAllMessageObservers(final String message)
+    {
+        return observerDispatcher.dispatch(message);
+    }
+
+    /**
+     * Notifies all attached breakdown observers, the connection has finally
+     * broken down.
+     */
+    private synchronized void notifyAllBreakDownObservers(boolean intended)
+    {
+        for (BreakdownObserver breakdownObserver : breakdownObservers) {
+            breakdownObserver.notifyBreakdownObserver(this, intended);
+        }
+    }
+
+    /**
+     * private inner Thread that periodically sends heartBeats (ACK requests) to
+     * the remote client.
+     */
+    private class HeartBeatThread implements Runnable
+    {
+
+        @Override
+        public void run()
+        {
+            int heartBeartCounter = 0;
+            while (socketAlive) {
+                try {
+                    sendHeartBeat(heartBeartCounter);
+                    Thread.sleep(period);
+
+                    heartBeartCounter += 1;
+                }
+                catch (InterruptedException ex) {
+                    throw new RuntimeException();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Counterpart of the HeartBeatThread for SafeSockets on an engine. Each
+     * heartbeat schedules the next one on the TimingWheel, so no thread is
+     * blocked in between.
+     */
+    private class HeartBeatScheduler implements Terminatable
+    {
+
+        private int heartBeartCounter = 0;
+
+        @Override
+        public void onTerminate(String cause)
+        {
+            if (socketAlive) {
+                sendHeartBeat(heartBeartCounter);
+                heartBeartCounter += 1;
+                new Terminator("T-HB", period, this).start();
+            }
+        }
+
+    }
+
+    /**
+     * Replaces HeartBeatThread, HeartBeatScheduler and the heartbeat
+     * Terminators for idle heartbeats, on both sides. The remote side is
+     * considered dead if nothing has been received for period + ACK timeout
+     * (server) or the heartbeat tolerance (client, as before). The server
+     * sends a heartbeat if nothing has been received for a period (and it has
+     * not asked yet since), so the client has to reply, or if nothing has
+     * been sent for a period, so the client hears from it in time. Runs on
+     * the TimingWheel, whenever the next of these deadlines is due.
+     */
+    private class IdleHeartBeatScheduler implements Terminatable
+    {
+
+        private int heartBeartCounter = 0;
+
+        // When the last heartbeat has been sent (server only)
+        private boolean heartBeatSent = false;
+        private long heartBeatTime;
+
+        @Override
+        public void onTerminate(String cause)
+        {
+            if (!socketAlive)
+                return;
+            long now = System.nanoTime();
+            long periodNanos = TimeUnit.MILLISECONDS.toNanos(period);
+            long received = lastReceived;
+            long limit = serverMode ? periodNanos + rttEstimator.getTimeout() : TimeUnit.MILLISECONDS.toNanos(heartBeatTolerance());
+            if (now - received >= limit) {
+                SafeSocket.this.onTerminate("T-HBA: nothing received for " + TimeUnit.NANOSECONDS.toMillis(now - received) + " ms");
+                return;
+            }
+            long nextRun = received + limit;
+
+            if (serverMode) {
+                boolean asked = heartBeatSent && heartBeatTime - received >= 0;
+                long written = messageWriter.getLastWritten();
+                if ((now - received >= periodNanos && !asked) || now - written >= periodNanos) {
+                    // No killer, the entry only serves measuring the round trip
+                    PendingMessage pendingHeartBeat = new PendingMessage(null, null);
+                    pendingHeartBeat.sentTime = now;
+                    pendingTable.put(PendingTable.key(PendingTable.HEART_BEAT, heartBeartCounter), pendingHeartBeat);
+                    messageWriter.writeHeartBeat(heartBeartCounter);
+                    heartBeartCounter += 1;
+                    heartBeatSent = true;
+                    heartBeatTime = now;
+                    asked = true;
+                    written = now;
+                }
+                nextRun = Math.min(nextRun, written + periodNanos);
+                if (!asked)
+                    nextRun = Math.min(nextRun, received + periodNanos);
+            }
+            new Terminator("T-HB", (int) TimeUnit.NANOSECONDS.toMillis(nextRun - now) + 1, this).start();
+        }
+
+    }
+
+    /**
+     * Checks the deadlines of the messages sent with pooled send, instead of
+     * a Terminator per message. Salts are assigned in order and deadlines
+     * never decrease (see nextDeadline), so the oldest pending message always
+     * has the earliest deadline: the watchdog only looks at that one, and schedules itself
+     * again for its deadline. With ACKs keeping up it runs about once per
+     * timeout.
+     */
+    private class AckWatchdog implements Terminatable
+    {
+
+        // Lowest salt that may still be pending. Runs are sequential (each one schedules the next).
+        private int cursor = 1;
+
+        @Override
+        public void onTerminate(String cause)
+        {
+            if (!socketAlive)
+                return;
+            long now = System.nanoTime();
+            long nextCheck = now + rttEstimator.getTimeout();
+            for (int sent = sentSalt; cursor - sent <= 0; cursor++) {
+                PendingMessage pendingMessage = pendingTable.get(PendingTable.key(PendingTable.MESSAGE, cursor));
+                if (pendingMessage == null)
+                    continue;
+                long deadline = pendingMessage.deadline;
+                // A recycled entry belongs to a later message, so this one has been acked
+                if (pendingMessage.salt != cursor)
+                    continue;
+                if (deadline - now <= 0) {
+                    SafeSocket.this.onTerminate("T-MA: " + cursor);
+                    return;
+                }
+                nextCheck = deadline;
+                break;
+            }
+            new Terminator("T-MAW", (int) TimeUnit.NANOSECONDS.toMillis(nextCheck - now) + 1, this).start();
+        }
+
+    }
+
+    /**
+     * What a thread reuses for its pooled sends on this SafeSocket.
+     */
+    private static class SendContext
+    {
+
+        // Replaced if a send is interrupted while waiting
+        private PooledAck ack = new PooledAck(Thread.currentThread());
+        private final EncodeBuffer buffer = new EncodeBuffer();
+
+    }
+
+    /**
+     * Sends a heartbeat (ACK request) and launches the Terminator waiting for
+     * its ACK.
+     */
+    private void sendHeartBeat(int heartBeatId)
+    {
+        // Register and launch new Terminator
+        Terminator killer = new Terminator("T-HBA: " + heartBeatId, getAckTimeout(), this);
+        PendingMessage pendingHeartBeat = new PendingMessage(killer, null);
+        pendingHeartBeat.sentTime = System.nanoTime();
+        pendingTable.put(PendingTable.key(PendingTable.HEART_BEAT, heartBeatId), pendingHeartBeat);
+        killer.start();
+
+        // Request ACK for Heartbeat to defuse Connection Killer
+        messageWriter.writeHeartBeat(heartBeatId);
+    }
+
+    /**
+     * Deactivates the current ConnectionKiller (if there is one). Then starts a
+     * new one. Called by the client on reception of a HeartBeat message.
+     */
+    private void resetHeartBeatReceiver(int heartBeatId)
+    {
+        //defuse running connection killer (gone if the connection has broken down meanwhile, no need for a new one then)
+        PendingMessage pendingHeartBeat = pendingTable.remove(PendingTable.key(PendingTable.HEART_BEAT, heartBeatId));
+        if (pendingHeartBeat == null && !isSocketAlive())
+            return;
+        pendingHeartBeat.defuse();
+
+        // Launch a new one, next id is old id+1
+        int idNumber = heartBeatId + 1;
+        Terminator nextTerminator = new Terminator("T-HBR: " + idNumber, heartBeatTolerance(), this);
+        pendingTable.put(PendingTable.key(PendingTable.HEART_BEAT, idNumber), new PendingMessage(nextTerminator, null));
+        nextTerminator.start();
+    }
+
+    /**
+     * In contrast to the next method this public method is not called due to a
+     * broken connection, but as an intentional user-taken decision to close
+     * down a working connection. Tells whether an actual close was issued (in
+     * case the connection was already dead, the call is ignored) NOTE:
+     * closeable interface currently not implemented for java 1.6 compatibility.
+     * Once closing, any breakdown (e.g. the reader thread detecting the
+     * remote side's close as reaction to our DISCONNECT) is reported as
+     * intended. The monitor is not held while waiting for the DISCONNECT to be
+     * written, so a timeout can still break a connection whose peer does not
+     * read anymore.
+     */
+    public void close()
+    {
+        synchronized (this) {
+            if (!isSocketAlive() || closing)
+                return;
+            closing = true;
+        }
+
+        // Acks held back for coalescing still go out, so the remote senders learn about their messages
+        flushAcks();
+
+        // Thus the other side has to be notified about this decision as well (the DISCONNECT may be queued behind the writes of other threads, so wait for it)
+        messageWriter.writeDisconnect();
+        messageWriter.awaitWritten();
+
+        // before we close down the local socket.
+        assymentricDisconnect(true);
+    }
+
+    /**
+     * Actively closing the connection prevents replying to further incoming
+     * heartbeats / ACKs / sending of further messages. Method is synchronized
+     * because in rare cases two timeouts could otherwise trigger two
+     * simultaneous calls. (E.g. if concurrent hearbeat and message timeout) It
+     * suffices if observers are then notified only once, for a broken
+     * connection can never be revived.
+     */
+    @Override
+    protected synchronized void assymentricDisconnect(boolean intended)
+    {
+        if (socketAlive) {
+            intended |= closing;
+
+            try {
+                // Engine connections close on their event loop, after sending what has been written so far
+                if (nioConnection != null)
+                    nioConnection.close();
+                else
+                    socket.close();
+                socketAlive = false;
+
+                //unblock all potentially blocked threads and defuse all killers at once
+                List<PendingMessage> pending = new ArrayList<PendingMessage>(pendingTable.size());
+                pendingTable.drainTo(pending);
+                for (PendingMessage pendingMessage : pending) {
+                    pendingMessage.defuse();
+                    completeAck(pendingMessage, false);
+                }
+                hashedSalts.clear();
+                if (flowControl != null)
+                    flowControl.close();
+                closeIncomingFiles();
+                if (incomingMessage != null)
+                    incomingMessage.breakDown();
+                synchronized (ackLock) {
+                    if (ackFlushTimer != null)
+                        ackFlushTimer.deactivate();
+                }
+            }
+            catch (IOException ex) {
+                throw new RuntimeException("Unable to close connection.");
+            }
+            notifyAllBreakDownObservers(intended); // < sends false here - how can that be?
+            MetricsRegistry.getInstance().remove(metrics, metricsName);
+        }
+    }
+
+    /**
+     * Called if a deadline for an awaited Ack or Heartbeat has not been met. In
+     * that case we consider the connection broken on close it down.
+     */
+    @Override
+    public void onTerminate(String cause)
+    {
+        System.out.println("Termination request, due to ACK timeout: "+cause+(isSocketAlive()?"[UNDEFUSED]":"[DEFUSED]"));
+        // Only the timeout actually breaking the connection is counted
+        synchronized (this) {
+            if (socketAlive) {
+                breakdownCause = timeoutCause(cause);
+                metrics.timedOut(breakdownCause);
+            }
+            assymentricDisconnect(false);
+        }
+    }
+
+    /**
+     * Tells the kind of timeout by the Terminator's description.
+     */
+    private TimeoutCause timeoutCause(String description)
+    {
+        if (description.startsWith("T-FA"))
+            return TimeoutCause.FILE_ACK;
+        if (description.startsWith("T-HB"))
+            return serverMode ? TimeoutCause.HEART_BEAT_ACK : TimeoutCause.HEART_BEAT;
+        return TimeoutCause.MESSAGE_ACK;
+    }
+
+    /**
+     * Any message containing a line stating with a keyword reserved for
+     * SafeSocket internal communication is considered malicious and will result
+     * in Runtime exception plus immediate connection close. (Only applies to
+     * the TEXT wire format, FRAMED payloads are transparent.)
+     */
+    private void saneMessageCheck(String message)
+    {
+        if (message == null || isBlank(message))
+            throw new RuntimeException("Sending of null / whitespace messages not allowed.");
+        if (wireFormat == WireFormat.FRAMED)
+            return;
+        if (containsReservedLine(message)) {
+            close();
+            throw new RuntimeException("Shutting down connection due to "
+                    + "malicious message colliding patterns reserved for"
+                    + " internal safeSocket communication: "
+                    + message);
+        }
+    }
+
+    /**
+     * Tells whether any line of the message starts with a keyword reserved
+     * for internal communication (TEXT wire format).
+     */
+    static boolean containsReservedLine(String message)
+    {
+        for (String line : message.split("\n")) {
+            if (InternalMessages.isReserved(line))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Same as trim().isEmpty(), without creating a String.
+     */
+    private static boolean isBlank(String message)
+    {
+        for (int i = 0; i < message.length(); i++) {
+            if (message.charAt(i) > ' ')
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected void handleUserMessage(String message, int salt, long checksum)
+    {
+        // The rest of a read buffer is still decoded after a breakdown, those messages are dropped
+        if (!isSocketAlive())
+            return;
+        metrics.messageReceived();
+
+        // A message that does not match its checksum was corrupted on its way, the stream cannot be trusted any more
+        if (checksum != MessageChecksum.NONE && checksum != MessageChecksum.compute(message)) {
+            assymentricDisconnect(false);
+            return;
+        }
+
+        // Notify all local registered observers. If one of them cannot keep up, the message is not ACKed and the connection considered broken.
+        if (!notifyAllMessageObservers(message)) {
+            observerQueueOverflowed();
+            return;
+        }
+
+        // Send reception ACK back to sender. Identified by the salt itself or by the hash of the wrapped message.
+        if (ackDelay > 0)
+            coalesceAck(salt);
+        else if (ackMode == AckMode.SEQUENCE)
+            messageWriter.writeMessageAck(salt);
+        else
+            messageWriter.writeHashedMessageAck(getMessageHash(message, salt), salt);
+    }
+
+    @Override
+    protected void handleUserMessageChunk(ByteBuffer chunk)
+    {
+        StreamedMessage message = getIncomingMessage();
+        if (message != null)
+            message.append(chunk);
+    }
+
+    /**
+     * The streamed message has completely arrived. It is ACKed once the
+     * observers have consumed it, by the last one of them.
+     */
+    @Override
+    protected void handleUserMessageEnd(final int salt, long checksum)
+    {
+        metrics.messageReceived();
+        StreamedMessage message = getIncomingMessage();
+        if (message == null)
+            return;
+        incomingMessage = null;
+        if (checksum != MessageChecksum.NONE && checksum != message.getChecksum()) {
+            assymentricDisconnect(false);
+            message.breakDown();
+            return;
+        }
+        message.complete(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                messageWriter.writeMessageAck(salt);
+            }
+        });
+    }
+
+    /**
+     * An observer could not keep up. Breaks the connection, only the overflow
+     * actually breaking it is counted.
+     */
+    private synchronized void observerQueueOverflowed()
+    {
+        if (socketAlive) {
+            metrics.observerQueueOverflowed();
+            assymentricDisconnect(false);
+        }
+    }
+
+    /**
+     * The message currently streamed, dispatched to the observers on its
+     * first chunk. Null if the connection is (or just went) down. Guarded by
+     * the SafeSocket's lock, so a breakdown cannot miss a new message.
+     */
+    private synchronized StreamedMessage getIncomingMessage()
+    {
+        if (!socketAlive)
+            return null;
+        if (incomingMessage == null) {
+            incomingMessage = new StreamedMessage();
+            if (!observerDispatcher.dispatch(incomingMessage)) {
+                observerQueueOverflowed();
+                return null;
+            }
+        }
+        return incomingMessage;
+    }
+
+    @Override
+    protected void handleBinaryMessage(ByteBuffer message, int salt, long checksum)
+    {
+        // Same as for String messages
+        if (!isSocketAlive())
+            return;
+        metrics.messageReceived();
+        if (checksum != MessageChecksum.NONE && checksum != MessageChecksum.compute(message)) {
+            assymentricDisconnect(false);
+            return;
+        }
+        if (!observerDispatcher.dispatch(message)) {
+            observerQueueOverflowed();
+            return;
+        }
+        if (ackDelay > 0)
+            coalesceAck(salt);
+        else if (ackMode == AckMode.SEQUENCE)
+            messageWriter.writeMessageAck(salt);
+        else
+            messageWriter.writeHashedMessageAck(getMessageHash(message, salt), salt);
+    }
+
+    @Override
+    protected void handleFileStart(int transferId, String name, long size)
+    {
+        // Without an observer there is no place to put the file
+        if (fileObserver == null || size < 0) {
+            assymentricDisconnect(false);
+            return;
+        }
+        try {
+            incomingFiles.put(transferId, new IncomingFile(name, size, fileObserver.openFile(this, name, size)));
+        }
+        catch (IOException ex) {
+            assymentricDisconnect(false);
+        }
+    }
+
+    /**
+     * Writes the chunk straight to the target channel. A chunk exceeding the
+     * announced size breaks the connection.
+     */
+    @Override
+    protected void handleFileChunk(int transferId, ByteBuffer chunk)
+    {
+        IncomingFile incomingFile = incomingFiles.get(transferId);
+        if (incomingFile == null || incomingFile.received + chunk.remaining() > incomingFile.size) {
+            assymentricDisconnect(false);
+            return;
+        }
+        try {
+            while (chunk.hasRemaining()) {
+                incomingFile.received += incomingFile.target.write(chunk);
+            }
+        }
+        catch (IOException ex) {
+            assymentricDisconnect(false);
+        }
+    }
+
+    /**
+     * Hands the completely written file to the observer, then ACKs it.
+     */
+    @Override
+    protected void handleFileEnd(int transferId)
+    {
+        IncomingFile incomingFile = incomingFiles.get(transferId);
+        if (incomingFile == null || incomingFile.received != incomingFile.size) {
+            assymentricDisconnect(false);
+            return;
+        }
+        incomingFiles.remove(transferId);
+        fileObserver.notifyFileReceived(this, incomingFile.name, incomingFile.target);
+        messageWriter.writeFileAck(transferId);
+    }
+
+    @Override
+    protected void handleFileAck(int transferId)
+    {
+        PendingMessage pendingFile = pendingTable.remove(PendingTable.key(PendingTable.FILE, transferId));
+        if (pendingFile == null) {
+            // Late ACK of a connection already down (the breakdown has drained the pendingTable)
+            if (!isSocketAlive())
+                return;
+            throw new RuntimeException("Unable to resolve terminator for file ack: " + transferId);
+        }
+        pendingFile.defuse();
+        completeAck(pendingFile, true);
+    }
+
+    /**
+     * Closes the channels of interrupted incoming transfers, the observer will
+     * not hear of them any more.
+     */
+    private void closeIncomingFiles()
+    {
+        synchronized (incomingFiles) {
+            for (IncomingFile incomingFile : incomingFiles.values()) {
+                try {
+                    incomingFile.target.close();
+                }
+                catch (IOException ex) {
+                    // Nothing left to do with a broken transfer
+                }
+            }
+            incomingFiles.clear();
+        }
+    }
+
+    /**
+     * Holds back the ack for a received message. Sends a cumulative ack once
+     * enough messages are pending, otherwise makes sure a flush is scheduled.
+     */
+    private void coalesceAck(int salt)
+    {
+        synchronized (ackLock) {
+            highestUnackedSalt = salt;
+            unackedMessages += 1;
+            if (unackedMessages >= ackBatchSize)
+                flushAcks();
+            else if (ackFlushTimer == null) {
+                ackFlushTimer = new Terminator("T-ACK", ackDelay, new AckFlusher());
+                ackFlushTimer.start();
+            }
+        }
+    }
+
+    /**
+     * Sends one cumulative ack for all messages received since the last flush
+     * (if any).
+     */
+    private void flushAcks()
+    {
+        synchronized (ackLock) {
+            if (ackFlushTimer != null) {
+                ackFlushTimer.deactivate();
+                ackFlushTimer = null;
+            }
+            if (unackedMessages > 0) {
+                messageWriter.writeCumulativeAck(highestUnackedSalt);
+                unackedMessages = 0;
+            }
+        }
+    }
+
+    /**
+     * Flushes held back acks once the ack delay has passed.
+     */
+    private class AckFlusher implements Terminatable
+    {
+
+        @Override
+        public void onTerminate(String cause)
+        {
+            flushAcks();
+        }
+
+    }
+
+    /**
+     * Hash identifying a message in its ACK. Computed over the message as it
+     * is wrapped by the TEXT format (including the salted delimiter line),
+     * regardless of the actual wire format.
+     */
+    private static String getMessageHash(String message, int salt)
+    {
+        return Md5Hasher.getMessageHash(message + "\n" + InternalMessages.MESSAGE_DELIMITER + salt);
+    }
+
+    /**
+     * Hash identifying a binary message in its ACK. Same scheme as for String
+     * messages.
+     */
+    private static String getMessageHash(ByteBuffer message, int salt)
+    {
+        return Md5Hasher.getMessageHash(message, "\n" + InternalMessages.MESSAGE_DELIMITER + salt);
     }
 
     /**
@@ -0,0 +1,76 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Alternative to the thread-per-socket model: A small, fixed amount of event
+ * loops, each multiplexing the reads and writes of many SafeSockets with a
+ * single Selector. Heartbeats and ACK deadlines are kept by the shared
+ * TimingWheel, so an idle connection costs no thread at all. Pass an engine to
+ * all SafeSockets that shall share it (see SafeSocketOptions.setEngine). Note:
+ * Filters and BreakdownObservers of those SafeSockets are called by the event
+ * loop and must not block.
+ *
+ * @author m5c
+ */
+public final class SafeSocketEngine
+{
+
+    private final EventLoop[] eventLoops;
+
+    // Connections are spread round robin over the event loops
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    /**
+     * Creates an engine with one event loop per available processor.
+     *
+     * @throws IOException
+     */
+    public SafeSocketEngine() throws IOException
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an engine with the given amount of event loops (threads).
+     *
+     * @param eventLoops
+     * @throws IOException if a selector cannot be opened
+     */
+    public SafeSocketEngine(int eventLoops) throws IOException
+    {
+        if (eventLoops < 1)
+            throw new IllegalArgumentException("An engine requires at least one event loop.");
+        this.eventLoops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            this.eventLoops[i] = new EventLoop("SafeSocket-EventLoop-" + i);
+            this.eventLoops[i].start();
+        }
+    }
+
+    /**
+     * Hands a connected channel over to one of the event loops. The channel
+     * is switched to non-blocking mode.
+     */
+    NioConnection attach(SocketChannel channel) throws IOException
+    {
+        if (channel == null)
+            throw new IllegalArgumentException("The engine requires sockets created by a SocketChannel / ServerSocketChannel.");
+        EventLoop eventLoop = eventLoops[Math.abs(nextEventLoop.getAndIncrement() % eventLoops.length)];
+        return new NioConnection(channel, eventLoop);
+    }
+
+    /**
+     * Stops all event loops. SafeSockets still attached to the engine are
+     * broken down (unintended).
+     */
+    public void shutdown()
+    {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+    }
+
+}
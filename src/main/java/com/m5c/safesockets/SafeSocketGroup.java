@@ -0,0 +1,235 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Several SafeSocket connections (stripes) to the same server, used as one:
+ * Sends are spread over the stripes, so the throughput is no longer bound by
+ * a single TCP stream and reader. Messages with the same ordering key always
+ * go through the same stripe and thus arrive in order, other messages may
+ * overtake each other.
+ *
+ * A broken down stripe is reported to the BreakdownObservers (with the stripe
+ * as SafeSocket) and no longer used, the group goes on with the remaining
+ * ones until the last one is gone. Messages pinned to a broken stripe by
+ * their key move to the next live one. The server side needs no special
+ * setup, each stripe is an ordinary client connection (e.g. accepted by a
+ * SafeSocketServer).
+ *
+ * @author m5c
+ */
+public class SafeSocketGroup
+{
+
+    private final SafeSocket[] stripes;
+    private final StripePolicy policy;
+    private final Collection<BreakdownObserver> breakdownObservers;
+
+    private final AtomicInteger nextStripe = new AtomicInteger();
+    private final AtomicInteger liveStripes;
+
+    /**
+     * Connects all stripes with default filters and options. Blocks until
+     * all are connected.
+     *
+     * @param stripeCount: amount of connections
+     * @param policy: how messages without ordering key are spread
+     * @throws IOException if a stripe cannot connect (the others are closed
+     * then)
+     */
+    public SafeSocketGroup(String serverIp, int port, int stripeCount, StripePolicy policy, int period, int timeout, Collection<MessageObserver> messageObservers, Collection<BreakdownObserver> breakdownObservers) throws IOException
+    {
+        this(serverIp, port, stripeCount, policy, period, timeout, messageObservers, breakdownObservers, new DefaultFilter(), new DefaultFilter(), new SafeSocketOptions());
+    }
+
+    /**
+     * Same as previous, filters and options are shared by all stripes (so
+     * filters must be thread safe).
+     */
+    public SafeSocketGroup(String serverIp, int port, int stripeCount, StripePolicy policy, int period, int timeout, Collection<MessageObserver> messageObservers, Collection<BreakdownObserver> breakdownObservers, Filter inFilter, Filter outFilter, SafeSocketOptions options) throws IOException
+    {
+        if (stripeCount < 1)
+            throw new IllegalArgumentException("A group needs at least one stripe.");
+        this.policy = policy;
+        this.breakdownObservers = breakdownObservers;
+        liveStripes = new AtomicInteger(stripeCount);
+        stripes = new SafeSocket[stripeCount];
+        Collection<BreakdownObserver> stripeObservers = Collections.<BreakdownObserver>singletonList(new StripeObserver());
+        try {
+            for (int i = 0; i < stripeCount; i++) {
+                stripes[i] = new SafeSocket(serverIp, port, period, timeout, messageObservers, stripeObservers, inFilter, outFilter, options);
+            }
+        }
+        catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Sends the message through one of the live stripes, see
+     * SafeSocket.sendMessage.
+     *
+     * @return whether the message has been ACKed, false if no stripe is left
+     */
+    public boolean sendMessage(String message)
+    {
+        return sendMessage(message, null);
+    }
+
+    /**
+     * Sends the message through the stripe the ordering key is pinned to.
+     *
+     * @param orderingKey: messages with equal keys (equals / hashCode) keep
+     * their order. Null for none.
+     */
+    public boolean sendMessage(String message, Object orderingKey)
+    {
+        SafeSocket stripe = pickStripe(orderingKey);
+        return stripe != null && stripe.sendMessage(message);
+    }
+
+    public boolean sendMessage(ByteBuffer message)
+    {
+        return sendMessage(message, null);
+    }
+
+    public boolean sendMessage(ByteBuffer message, Object orderingKey)
+    {
+        SafeSocket stripe = pickStripe(orderingKey);
+        return stripe != null && stripe.sendMessage(message);
+    }
+
+    /**
+     * Asynchronous counterpart of sendMessage, see
+     * SafeSocket.sendMessageAsync.
+     */
+    public CompletableFuture<Boolean> sendMessageAsync(String message)
+    {
+        return sendMessageAsync(message, null);
+    }
+
+    public CompletableFuture<Boolean> sendMessageAsync(String message, Object orderingKey)
+    {
+        SafeSocket stripe = pickStripe(orderingKey);
+        if (stripe == null)
+            return CompletableFuture.completedFuture(false);
+        return stripe.sendMessageAsync(message);
+    }
+
+    public CompletableFuture<Boolean> sendMessageAsync(ByteBuffer message)
+    {
+        return sendMessageAsync(message, null);
+    }
+
+    public CompletableFuture<Boolean> sendMessageAsync(ByteBuffer message, Object orderingKey)
+    {
+        SafeSocket stripe = pickStripe(orderingKey);
+        if (stripe == null)
+            return CompletableFuture.completedFuture(false);
+        return stripe.sendMessageAsync(message);
+    }
+
+    /**
+     * Tells whether at least one stripe is alive.
+     */
+    public boolean isAlive()
+    {
+        return liveStripes.get() > 0;
+    }
+
+    public int getLiveStripes()
+    {
+        return liveStripes.get();
+    }
+
+    /**
+     * All stripes, including the broken down ones.
+     */
+    public List<SafeSocket> getStripes()
+    {
+        return Collections.unmodifiableList(Arrays.asList(stripes));
+    }
+
+    /**
+     * Closes all stripes (intended breakdown).
+     */
+    public void close()
+    {
+        for (SafeSocket stripe : stripes) {
+            if (stripe != null)
+                stripe.close();
+        }
+    }
+
+    /**
+     * The stripe for the next message, null if none is alive. Keyed messages
+     * go to the stripe their key hashes to, or the next live one after it.
+     */
+    private SafeSocket pickStripe(Object orderingKey)
+    {
+        int count = stripes.length;
+        if (orderingKey == null && policy == StripePolicy.LEAST_IN_FLIGHT)
+            return leastInFlight();
+        int start;
+        if (orderingKey != null)
+            start = (orderingKey.hashCode() & Integer.MAX_VALUE) % count;
+        else
+            start = (nextStripe.getAndIncrement() & Integer.MAX_VALUE) % count;
+        for (int i = 0; i < count; i++) {
+            SafeSocket stripe = stripes[(start + i) % count];
+            if (stripe.isSocketAlive())
+                return stripe;
+        }
+        return null;
+    }
+
+    /**
+     * The live stripe with the fewest unacknowledged messages. Ties are
+     * broken round robin, so an idle group still uses all stripes.
+     */
+    private SafeSocket leastInFlight()
+    {
+        int count = stripes.length;
+        int start = (nextStripe.getAndIncrement() & Integer.MAX_VALUE) % count;
+        SafeSocket best = null;
+        int bestInFlight = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            SafeSocket stripe = stripes[(start + i) % count];
+            if (!stripe.isSocketAlive())
+                continue;
+            int inFlight = stripe.getInFlightMessages();
+            if (best == null || inFlight < bestInFlight) {
+                best = stripe;
+                bestInFlight = inFlight;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Keeps track of the live stripes and reports each breakdown to the
+     * group's observers.
+     */
+    private class StripeObserver implements BreakdownObserver
+    {
+
+        @Override
+        public void notifyBreakdownObserver(SafeSocket safeSocket, boolean intended)
+        {
+            liveStripes.decrementAndGet();
+            for (BreakdownObserver breakdownObserver : breakdownObservers) {
+                breakdownObserver.notifyBreakdownObserver(safeSocket, intended);
+            }
+        }
+
+    }
+
+}
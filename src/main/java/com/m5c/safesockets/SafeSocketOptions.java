@@ -0,0 +1,571 @@
+package com.m5c.safesockets;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Optional tuning parameters of a SafeSocket. Pass an instance to the
+ * SafeSocket constructors, the values are read once during connection setup.
+ * Setters return the options object, so calls can be chained.
+ *
+ * @author m5c
+ */
+public class SafeSocketOptions
+{
+
+    // Max amount of sent but not yet acknowledged messages. Further senders block until an ACK frees a slot.
+    private int maxInFlightMessages = Integer.MAX_VALUE;
+
+    // Encoding of the traffic. Must be identical on both sides.
+    private WireFormat wireFormat = WireFormat.TEXT;
+
+    // How ACKs identify messages and whether sequence acknowledged messages carry a checksum. Must be identical on both sides.
+    private AckMode ackMode = AckMode.HASH;
+    private boolean integrityCheck = false;
+
+    // Receiver side ack coalescing. Disabled if the delay is 0.
+    private int ackDelay = 0;
+    private int ackBatchSize = 1;
+
+    // Event loops serving the connection. Null for a dedicated reader thread per SafeSocket.
+    private SafeSocketEngine engine = null;
+
+    // Delivery of incoming messages to the MessageObservers. Null for the shared default executor.
+    private Executor observerExecutor = null;
+    private int observerQueueLimit = Integer.MAX_VALUE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+
+    // Partitioned observer dispatch. Disabled if no key extractor is set.
+    private MessageKeyExtractor keyExtractor = null;
+    private int partitions = 1;
+
+    // Observers routed by prefix / condition. Null if all observers get all messages.
+    private ObserverRegistry observerRegistry = null;
+
+    // Upper bound for incoming messages [bytes], and whether String messages are delivered as streams
+    private int maxMessageSize = Integer.MAX_VALUE;
+    private boolean streamingReceive = false;
+
+    // Credit based flow control: messages and their total size [chars / bytes] the observers may hold. Disabled if the message window is 0. Must be enabled on both sides.
+    private int receiveWindow = 0;
+    private long receiveWindowSize = Long.MAX_VALUE;
+
+    // Receiver of incoming file transfers. Null if files are not accepted.
+    private FileObserver fileObserver = null;
+
+    // Reusable completion handles, encode buffers and deadline entries for blocking sends
+    private boolean pooledSend = false;
+
+    // Heartbeats only on idle connections, any received traffic proves liveness. Must be identical on both sides.
+    private boolean idleHeartBeats = false;
+
+    // Bounds [ms] of the ACK timeout derived from the measured round trip time. Adaptive timeouts are disabled if the max is 0.
+    private int minTimeout = 0;
+    private int maxTimeout = 0;
+
+    // Session resumption of ResilientSafeSockets: unacknowledged messages kept for replay, how long [ms] a broken session waits to be resumed, and the reconnect backoff [ms]
+    private int retransmissionBuffer = 1024;
+    private int sessionTimeout = 30000;
+    private int minReconnectDelay = 10;
+    private int maxReconnectDelay = 1000;
+
+    public int getMaxInFlightMessages()
+    {
+        return maxInFlightMessages;
+    }
+
+    /**
+     * Sets the size of the sliding send window, that is to say the max amount
+     * of messages that may be on the wire without having been ACKed. Default
+     * is unbounded.
+     *
+     * @param maxInFlightMessages
+     * @return this
+     */
+    public SafeSocketOptions setMaxInFlightMessages(int maxInFlightMessages)
+    {
+        if (maxInFlightMessages < 1)
+            throw new IllegalArgumentException("The send window must allow at least one message in flight.");
+        this.maxInFlightMessages = maxInFlightMessages;
+        return this;
+    }
+
+    public WireFormat getWireFormat()
+    {
+        return wireFormat;
+    }
+
+    /**
+     * Sets the encoding used on the wire. Must match the wire format of the
+     * remote side. Default is TEXT.
+     *
+     * @param wireFormat
+     * @return this
+     */
+    public SafeSocketOptions setWireFormat(WireFormat wireFormat)
+    {
+        this.wireFormat = wireFormat;
+        return this;
+    }
+
+    public AckMode getAckMode()
+    {
+        return ackMode;
+    }
+
+    /**
+     * Sets how ACKs identify the acknowledged message. Must match the ACK mode
+     * of the remote side. Default is HASH.
+     *
+     * @param ackMode
+     * @return this
+     */
+    public SafeSocketOptions setAckMode(AckMode ackMode)
+    {
+        this.ackMode = ackMode;
+        return this;
+    }
+
+    public boolean isIntegrityCheck()
+    {
+        return integrityCheck;
+    }
+
+    /**
+     * Enables a CRC32 checksum on every message in AckMode.SEQUENCE. The
+     * receiver verifies it before notifying observers and considers the
+     * connection broken on mismatch. (In AckMode.HASH integrity is always
+     * checked by the ACK itself.) Default is false.
+     *
+     * @param integrityCheck
+     * @return this
+     */
+    public SafeSocketOptions setIntegrityCheck(boolean integrityCheck)
+    {
+        this.integrityCheck = integrityCheck;
+        return this;
+    }
+
+    public int getAckDelay()
+    {
+        return ackDelay;
+    }
+
+    public int getAckBatchSize()
+    {
+        return ackBatchSize;
+    }
+
+    /**
+     * Lets the receiver coalesce ACKs: Instead of one ACK per message, a
+     * single cumulative ACK for all messages received so far is sent after
+     * ackDelay ms or after ackBatchSize messages, whichever comes first.
+     * Requires AckMode.SEQUENCE. The delay must be well below the ACK timeout
+     * of the remote side. Default is 0 (every message is ACKed immediately).
+     *
+     * @param ackDelay: max time [ms] an ACK is held back, 0 disables coalescing
+     * @param ackBatchSize: max amount of messages covered by a held back ACK
+     * @return this
+     */
+    public SafeSocketOptions setDelayedAcks(int ackDelay, int ackBatchSize)
+    {
+        if (ackDelay < 0 || ackBatchSize < 1)
+            throw new IllegalArgumentException("Ack delay must not be negative and batches must hold at least one message.");
+        this.ackDelay = ackDelay;
+        this.ackBatchSize = ackBatchSize;
+        return this;
+    }
+
+    public SafeSocketEngine getEngine()
+    {
+        return engine;
+    }
+
+    /**
+     * Lets the connection be served by the event loops of the given engine,
+     * instead of dedicated reader and heartbeat threads. Server side
+     * SafeSockets then require a ServerSocket opened by a ServerSocketChannel.
+     * The remote side does not need to use an engine. Default is null (thread
+     * per socket).
+     *
+     * @param engine
+     * @return this
+     */
+    public SafeSocketOptions setEngine(SafeSocketEngine engine)
+    {
+        this.engine = engine;
+        return this;
+    }
+
+    public Executor getObserverExecutor()
+    {
+        return observerExecutor;
+    }
+
+    /**
+     * Sets the executor running the MessageObserver notifications. Each
+     * observer still sees the messages of a connection one after another, in
+     * arrival order. Default is a cached thread pool shared by all
+     * SafeSockets.
+     *
+     * @param observerExecutor
+     * @return this
+     */
+    public SafeSocketOptions setObserverExecutor(Executor observerExecutor)
+    {
+        this.observerExecutor = observerExecutor;
+        return this;
+    }
+
+    public int getObserverQueueLimit()
+    {
+        return observerQueueLimit;
+    }
+
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+    /**
+     * Bounds the amount of messages waiting for a single MessageObserver. The
+     * policy tells what happens to further messages while the queue is full.
+     * Default is unbounded.
+     *
+     * @param observerQueueLimit
+     * @param overflowPolicy
+     * @return this
+     */
+    public SafeSocketOptions setObserverQueueLimit(int observerQueueLimit, OverflowPolicy overflowPolicy)
+    {
+        if (observerQueueLimit < 1)
+            throw new IllegalArgumentException("Observer queues must hold at least one message.");
+        this.observerQueueLimit = observerQueueLimit;
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    public MessageKeyExtractor getKeyExtractor()
+    {
+        return keyExtractor;
+    }
+
+    public int getPartitions()
+    {
+        return partitions;
+    }
+
+    /**
+     * Lets observers process the messages of a connection in parallel. The
+     * key extractor maps each message to a key, messages with equal keys are
+     * delivered to an observer in arrival order, others may be delivered
+     * concurrently (observers must then be thread safe). The queue limit
+     * applies per partition. Default is serial dispatch.
+     *
+     * @param keyExtractor
+     * @param partitions: max amount of messages an observer processes in
+     * parallel (e.g. the amount of cores).
+     * @return this
+     */
+    public SafeSocketOptions setPartitionedDispatch(MessageKeyExtractor keyExtractor, int partitions)
+    {
+        if (keyExtractor == null || partitions < 1)
+            throw new IllegalArgumentException("Partitioned dispatch requires a key extractor and at least one partition.");
+        this.keyExtractor = keyExtractor;
+        this.partitions = partitions;
+        return this;
+    }
+
+    public ObserverRegistry getObserverRegistry()
+    {
+        return observerRegistry;
+    }
+
+    /**
+     * Adds the observers of the registry, which only receive the messages
+     * they subscribed to (the MessageObservers passed to the constructor
+     * still receive all). Observers may subscribe and unsubscribe while the
+     * connection is up, and a registry may be shared by many SafeSockets.
+     * Default is none.
+     *
+     * @param observerRegistry
+     * @return this
+     */
+    public SafeSocketOptions setObserverRegistry(ObserverRegistry observerRegistry)
+    {
+        this.observerRegistry = observerRegistry;
+        return this;
+    }
+
+    public int getReceiveWindow()
+    {
+        return receiveWindow;
+    }
+
+    public long getReceiveWindowSize()
+    {
+        return receiveWindowSize;
+    }
+
+    boolean isFlowControl()
+    {
+        return receiveWindow > 0;
+    }
+
+    /**
+     * Enables credit based flow control, see setReceiveWindow(int, long).
+     * Only the amount of messages is limited.
+     *
+     * @param receiveWindow
+     * @return this
+     */
+    public SafeSocketOptions setReceiveWindow(int receiveWindow)
+    {
+        return setReceiveWindow(receiveWindow, Long.MAX_VALUE);
+    }
+
+    /**
+     * Enables credit based flow control: the remote side sends no more
+     * messages than the observers of this side have yet to process, at most
+     * the given amount and total size (chars of String messages, bytes of
+     * binary ones). Credit is returned as the observers finish, meanwhile
+     * remote senders block. This bounds the memory taken by incoming messages
+     * when observers cannot keep up, instead of disconnecting (see
+     * setObserverQueueLimit). Must be enabled on both sides, the windows may
+     * differ. Default is disabled.
+     *
+     * Note: A filter changing the size of messages skews the size credit.
+     *
+     * @param receiveWindow: max amount of messages
+     * @param receiveWindowSize: max total size. A single message may exceed
+     * it, if it arrives while nothing else is waiting.
+     * @return this
+     */
+    public SafeSocketOptions setReceiveWindow(int receiveWindow, long receiveWindowSize)
+    {
+        if (receiveWindow < 1 || receiveWindowSize < 1)
+            throw new IllegalArgumentException("Receive window must hold at least one message.");
+        this.receiveWindow = receiveWindow;
+        this.receiveWindowSize = receiveWindowSize;
+        return this;
+    }
+
+    public FileObserver getFileObserver()
+    {
+        return fileObserver;
+    }
+
+    /**
+     * Sets the observer accepting files sent by the remote side. Without one,
+     * an incoming file transfer breaks the connection. Requires
+     * WireFormat.FRAMED.
+     *
+     * @param fileObserver
+     * @return this
+     */
+    public SafeSocketOptions setFileObserver(FileObserver fileObserver)
+    {
+        this.fileObserver = fileObserver;
+        return this;
+    }
+
+    public int getMaxMessageSize()
+    {
+        return maxMessageSize;
+    }
+
+    /**
+     * Sets the upper bound for incoming messages in bytes (characters for
+     * String messages assembled by the TEXT wire format). A larger message
+     * breaks the connection, so a misbehaving remote side cannot exhaust the
+     * heap. Default is unbounded.
+     *
+     * @param maxMessageSize
+     * @return this
+     */
+    public SafeSocketOptions setMaxMessageSize(int maxMessageSize)
+    {
+        if (maxMessageSize < 1)
+            throw new IllegalArgumentException("The max message size must be positive.");
+        this.maxMessageSize = maxMessageSize;
+        return this;
+    }
+
+    public boolean isStreamingReceive()
+    {
+        return streamingReceive;
+    }
+
+    /**
+     * Delivers incoming String messages as streams to the
+     * StreamingMessageObservers, while they arrive, instead of as Strings to
+     * all MessageObservers. A message is ACKed once all streams have been
+     * consumed. Requires AckMode.SEQUENCE without delayed acks (ACKs may be
+     * sent out of order).
+     *
+     * @param streamingReceive
+     * @return this
+     */
+    public SafeSocketOptions setStreamingReceive(boolean streamingReceive)
+    {
+        this.streamingReceive = streamingReceive;
+        return this;
+    }
+
+    public boolean isPooledSend()
+    {
+        return pooledSend;
+    }
+
+    /**
+     * Makes the blocking sendMessage calls allocation free once warmed up:
+     * each sending thread reuses its completion handle, pending ACK entry and
+     * encode buffer, and message deadlines are checked by one watchdog per
+     * connection instead of a Terminator per message. Requires
+     * WireFormat.FRAMED and AckMode.SEQUENCE.
+     *
+     * @param pooledSend
+     * @return this
+     */
+    public SafeSocketOptions setPooledSend(boolean pooledSend)
+    {
+        this.pooledSend = pooledSend;
+        return this;
+    }
+
+    public boolean isIdleHeartBeats()
+    {
+        return idleHeartBeats;
+    }
+
+    /**
+     * Sends heartbeats only if the connection has been idle for a full
+     * period: any received traffic proves the remote side alive, and any sent
+     * traffic does so for the remote side. Busy connections then exchange no
+     * heartbeats at all. Breakdowns are detected as fast as before (server:
+     * period + timeout after the last received traffic, client: 1.5 *
+     * period). Must match the setting of the remote side.
+     *
+     * @param idleHeartBeats
+     * @return this
+     */
+    public SafeSocketOptions setIdleHeartBeats(boolean idleHeartBeats)
+    {
+        this.idleHeartBeats = idleHeartBeats;
+        return this;
+    }
+
+    public boolean isAdaptiveTimeouts()
+    {
+        return maxTimeout > 0;
+    }
+
+    public int getMinTimeout()
+    {
+        return minTimeout;
+    }
+
+    public int getMaxTimeout()
+    {
+        return maxTimeout;
+    }
+
+    /**
+     * Derives the ACK timeout from the measured round trip time instead of
+     * using the fixed timeout passed to the constructor: smoothed RTT plus
+     * four times its mean deviation (as TCP does), kept within the given
+     * bounds. The constructor's timeout is used until the first ACK arrives.
+     * Applies to message and heartbeat ACKs, on the client side also to the
+     * tolerance for heartbeats arriving late (period + timeout instead of 1.5
+     * * period). File ACKs keep the fixed timeout. Default is disabled.
+     *
+     * @param minTimeout: lower bound [ms], protects against spurious
+     * breakdowns after a series of fast ACKs
+     * @param maxTimeout: upper bound [ms], the slowest failure detection
+     * acceptable
+     * @return this
+     */
+    public SafeSocketOptions setAdaptiveTimeouts(int minTimeout, int maxTimeout)
+    {
+        if (minTimeout < 1 || maxTimeout < minTimeout)
+            throw new IllegalArgumentException("Timeout bounds must be positive, the max not below the min.");
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        return this;
+    }
+
+    public int getRetransmissionBuffer()
+    {
+        return retransmissionBuffer;
+    }
+
+    public int getSessionTimeout()
+    {
+        return sessionTimeout;
+    }
+
+    /**
+     * Tunes the session resumption of ResilientSafeSockets (ignored by plain
+     * SafeSockets). Defaults are 1024 messages and 30 s.
+     *
+     * @param retransmissionBuffer: max amount of unacknowledged messages kept
+     * for replay, further senders block. Also the size of the receiver's
+     * duplicate window.
+     * @param sessionTimeout: [ms] how long a session survives without
+     * connection, before it is considered lost
+     * @return this
+     */
+    public SafeSocketOptions setSessionResumption(int retransmissionBuffer, int sessionTimeout)
+    {
+        if (retransmissionBuffer < 1 || sessionTimeout < 1)
+            throw new IllegalArgumentException("Retransmission buffer and session timeout must be positive.");
+        this.retransmissionBuffer = retransmissionBuffer;
+        this.sessionTimeout = sessionTimeout;
+        return this;
+    }
+
+    public int getMinReconnectDelay()
+    {
+        return minReconnectDelay;
+    }
+
+    public int getMaxReconnectDelay()
+    {
+        return maxReconnectDelay;
+    }
+
+    /**
+     * Sets the delays [ms] between reconnect attempts of a
+     * ResilientSafeSocket. The first attempt is immediate, then the delay
+     * doubles from min to max (with random jitter, so clients of a failed
+     * server do not return all at once). Defaults are 10 and 1000 ms.
+     *
+     * @param minReconnectDelay
+     * @param maxReconnectDelay
+     * @return this
+     */
+    public SafeSocketOptions setReconnectBackoff(int minReconnectDelay, int maxReconnectDelay)
+    {
+        if (minReconnectDelay < 1 || maxReconnectDelay < minReconnectDelay)
+            throw new IllegalArgumentException("Reconnect delays must be positive, the max not below the min.");
+        this.minReconnectDelay = minReconnectDelay;
+        this.maxReconnectDelay = maxReconnectDelay;
+        return this;
+    }
+
+    /**
+     * Rejects combinations of options that cannot work together. Called by
+     * the SafeSocket constructors.
+     */
+    void validate()
+    {
+        if (pooledSend && (wireFormat != WireFormat.FRAMED || ackMode != AckMode.SEQUENCE))
+            throw new IllegalArgumentException("Pooled send requires WireFormat.FRAMED and AckMode.SEQUENCE.");
+        if (ackDelay > 0 && ackMode != AckMode.SEQUENCE)
+            throw new IllegalArgumentException("Delayed acks require AckMode.SEQUENCE.");
+        if (streamingReceive && (ackMode != AckMode.SEQUENCE || ackDelay > 0))
+            throw new IllegalArgumentException("Streaming receive requires AckMode.SEQUENCE without delayed acks.");
+        if (streamingReceive && receiveWindow > 0)
+            throw new IllegalArgumentException("Streaming receive does not support flow control (streamed messages are ACKed once consumed, bound them with setMaxInFlightMessages).");
+    }
+
+}
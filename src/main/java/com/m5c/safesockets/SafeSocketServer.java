@@ -0,0 +1,178 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Accepts any amount of clients on one port, without blocking the caller. A
+ * dedicated thread does nothing but accepting, the setup of each accepted
+ * connection (writer, heartbeats, reader) runs on a thread pool. Ready
+ * SafeSockets are handed to the ConnectionObserver. All connections share the
+ * same settings, observers, filters and options (use
+ * SafeSocketOptions.setEngine to serve them with a few threads only).
+ *
+ * @author m5c
+ */
+public class SafeSocketServer
+{
+
+    // Pending connections the OS queues up while the acceptor is busy, so connection storms (e.g. reconnects after a failover) are not refused.
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private final ServerSocketChannel serverChannel;
+
+    // Settings passed on to every accepted SafeSocket
+    private final int period;
+    private final int timeout;
+    private final Collection<MessageObserver> messageObservers;
+    private final Collection<BreakdownObserver> breakdownObservers;
+    private final Filter inFilter;
+    private final Filter outFilter;
+    private final SafeSocketOptions options;
+
+    private final ConnectionObserver connectionObserver;
+
+    // Sets up accepted connections, concurrently
+    private final ExecutorService setupExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("SafeSocket-Setup"));
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates a server that immediately starts accepting clients on the given
+     * port.
+     *
+     * @param port
+     * @param period
+     * @param timeout
+     * @param messageObservers
+     * @param breakdownObservers
+     * @param connectionObserver: Notified about every new client connection.
+     * @throws IOException if the port cannot be bound
+     */
+    public SafeSocketServer(int port, int period, int timeout, Collection<MessageObserver> messageObservers, Collection<BreakdownObserver> breakdownObservers, ConnectionObserver connectionObserver) throws IOException
+    {
+        this(port, period, timeout, messageObservers, breakdownObservers, new DefaultFilter(), new DefaultFilter(), new SafeSocketOptions(), connectionObserver);
+    }
+
+    /**
+     * Creates a server with custom I/O filters and tuning options that
+     * immediately starts accepting clients on the given port.
+     *
+     * @param port
+     * @param period
+     * @param timeout
+     * @param messageObservers
+     * @param breakdownObservers
+     * @param inFilter
+     * @param outFilter
+     * @param options
+     * @param connectionObserver: Notified about every new client connection.
+     * @throws IOException if the port cannot be bound
+     */
+    public SafeSocketServer(int port, int period, int timeout, Collection<MessageObserver> messageObservers, Collection<BreakdownObserver> breakdownObservers, Filter inFilter, Filter outFilter, SafeSocketOptions options, ConnectionObserver connectionObserver) throws IOException
+    {
+        options.validate();
+        this.period = period;
+        this.timeout = timeout;
+        this.messageObservers = messageObservers;
+        this.breakdownObservers = breakdownObservers;
+        this.inFilter = inFilter;
+        this.outFilter = outFilter;
+        this.options = options;
+        this.connectionObserver = connectionObserver;
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+
+        Thread acceptor = new Thread(MetricsRegistry.track(new Acceptor()), "SafeSocket-Acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * The port the server listens on (useful if created with port 0).
+     *
+     * @return
+     */
+    public int getLocalPort()
+    {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stops accepting further clients. Connections established so far are not
+     * affected, close them individually.
+     */
+    public void close()
+    {
+        running = false;
+        try {
+            serverChannel.close();
+        }
+        catch (IOException ex) {
+            throw new RuntimeException("Unable to close server socket.");
+        }
+        setupExecutor.shutdown();
+    }
+
+    /**
+     * Accepts clients until the server is closed.
+     */
+    private class Acceptor implements Runnable
+    {
+
+        @Override
+        public void run()
+        {
+            while (running) {
+                try {
+                    final SocketChannel channel = serverChannel.accept();
+                    setupExecutor.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            setUpConnection(channel.socket());
+                        }
+                    });
+                }
+                catch (ClosedChannelException ex) {
+                    // Server closed
+                    return;
+                }
+                catch (IOException ex) {
+                    // Failed accept of a single client (e.g. out of file descriptors), keep serving the others
+                    MetricsRegistry.acceptFailed();
+                }
+            }
+        }
+
+    }
+
+    private void setUpConnection(Socket socket)
+    {
+        SafeSocket safeSocket;
+        try {
+            safeSocket = new SafeSocket(socket, period, timeout, messageObservers, breakdownObservers, inFilter, outFilter, options);
+        }
+        catch (IOException ex) {
+            // Client vanished during setup, nothing to hand out
+            try {
+                socket.close();
+            }
+            catch (IOException closeEx) {
+                // Nothing left to do
+            }
+            return;
+        }
+        connectionObserver.notifyConnectionObserver(safeSocket);
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.m5c.safesockets;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks one after another, in the order they were offered, on a shared
+ * executor. At most one thread works on a queue at any time, but many queues
+ * can share the same executor. Offering never blocks, a full queue rejects the
+ * task instead. A task throwing is passed to the UncaughtExceptionHandler of
+ * the running thread, the following tasks still run.
+ *
+ * @author m5c
+ */
+class SerialQueue implements Runnable
+{
+
+    // Max tasks run in one go, before the thread is handed back to the executor (so busy queues cannot starve the others)
+    private static final int BATCH_SIZE = 64;
+
+    private final Executor executor;
+
+    private final int capacity;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    // Whether the queue is currently handed to (or running on) the executor
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    SerialQueue(Executor executor, int capacity)
+    {
+        this.executor = executor;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queues the task. Returns false if the queue is full.
+     */
+    boolean offer(Runnable task)
+    {
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            return false;
+        }
+        tasks.add(task);
+        if (scheduled.compareAndSet(false, true))
+            executor.execute(this);
+        return true;
+    }
+
+    @Override
+    public void run()
+    {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Runnable task = tasks.poll();
+            if (task == null)
+                break;
+            size.decrementAndGet();
+            try {
+                task.run();
+            }
+            catch (RuntimeException ex) {
+                // Handled as an uncaught exception of the thread, but the queue must go on
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+            }
+        }
+
+        // Batch full, continue later. Otherwise step back, unless a task was offered in the meantime.
+        if (!tasks.isEmpty()) {
+            executor.execute(this);
+            return;
+        }
+        scheduled.set(false);
+        if (!tasks.isEmpty() && scheduled.compareAndSet(false, true))
+            executor.execute(this);
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.m5c.safesockets;
+
+/**
+ *
+ * @author m5c
+ */
+public interface SessionObserver
+{
+
+    /**
+     * Interface for classes who want to be informed about new sessions of a
+     * ResilientSafeSocketServer. Called once per session, when a client opens
+     * it (not when it resumes it over a new connection). Calls for different
+     * clients may happen concurrently.
+     *
+     * @param session, the server side of the new session, ready for
+     * communication.
+     */
+    public void notifySessionObserver(ResilientSafeSocket session);
+
+}
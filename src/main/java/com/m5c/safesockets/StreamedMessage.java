@@ -0,0 +1,89 @@
+package com.m5c.safesockets;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * A String message delivered to the StreamingMessageObservers while it
+ * arrives. Fed by the reader, chunk by chunk. The message is acknowledged
+ * once it has completely arrived and all observers are done with their
+ * streams.
+ *
+ * @author m5c
+ */
+class StreamedMessage
+{
+
+    private final List<MessageStream> streams = new CopyOnWriteArrayList<MessageStream>();
+
+    // Checksum over the chunks so far, for the integrity check
+    private final CRC32 crc = new CRC32();
+
+    // Conditions left before the ACK: the arrival of the complete message, plus one per stream
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    private volatile Runnable acknowledgement;
+
+    /**
+     * Opens a stream for another observer. Must be called before the first
+     * chunk is appended.
+     */
+    MessageStream openStream()
+    {
+        pending.incrementAndGet();
+        MessageStream stream = new MessageStream(this);
+        streams.add(stream);
+        return stream;
+    }
+
+    void append(ByteBuffer chunk)
+    {
+        crc.update(chunk.duplicate());
+        for (MessageStream stream : streams) {
+            stream.offer(chunk.duplicate());
+        }
+    }
+
+    long getChecksum()
+    {
+        return crc.getValue();
+    }
+
+    /**
+     * The message has completely arrived. The acknowledgement is run as soon
+     * as all streams have been consumed (possibly right away).
+     */
+    void complete(Runnable acknowledgement)
+    {
+        this.acknowledgement = acknowledgement;
+        for (MessageStream stream : streams) {
+            stream.end();
+        }
+        countDown();
+    }
+
+    /**
+     * The rest of the message will never arrive.
+     */
+    void breakDown()
+    {
+        for (MessageStream stream : streams) {
+            stream.breakDown();
+        }
+    }
+
+    void streamConsumed()
+    {
+        countDown();
+    }
+
+    private void countDown()
+    {
+        if (pending.decrementAndGet() == 0)
+            acknowledgement.run();
+    }
+
+}
@@ -0,0 +1,28 @@
+package com.m5c.safesockets;
+
+import java.io.InputStream;
+
+/**
+ *
+ * @author m5c
+ */
+public interface StreamingMessageObserver extends MessageObserver
+{
+
+    /**
+     * Interface for message observers who want to process String messages
+     * while they arrive, instead of receiving them as a whole. Only used if
+     * streaming receive is enabled (see SafeSocketOptions), String messages
+     * are then delivered to the StreamingMessageObservers only. Register them
+     * like any other MessageObserver.
+     *
+     * @param safeSocket, as a reference to the caller (facilitates distinction
+     * when maintaining multiple connections)
+     * @param message, the UTF-8 encoded message. Reading blocks until more of
+     * it has arrived, and throws an IOException if the connection breaks down
+     * before. The message is ACKed once it has been read to its end or the
+     * stream has been closed.
+     */
+    public void notifyStreamingMessageObserver(SafeSocket safeSocket, InputStream message);
+
+}
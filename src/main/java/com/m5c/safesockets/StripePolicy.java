@@ -0,0 +1,23 @@
+package com.m5c.safesockets;
+
+/**
+ * Tells how a SafeSocketGroup spreads messages without ordering key over its
+ * stripes.
+ *
+ * @author m5c
+ */
+public enum StripePolicy
+{
+
+    /**
+     * Each message goes to the next live stripe. Default.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Each message goes to the live stripe with the fewest messages waiting
+     * for their ACK, so a slow stripe gets less traffic.
+     */
+    LEAST_IN_FLIGHT
+
+}
@@ -0,0 +1,68 @@
+package com.m5c.safesockets;
+
+import java.util.function.Predicate;
+
+/**
+ * A MessageObserver's interest in the incoming messages, as registered at an
+ * ObserverRegistry: all messages starting with the prefix (empty for all
+ * messages), optionally narrowed down by a condition. Pass it to
+ * ObserverRegistry.unsubscribe to end it.
+ *
+ * @author m5c
+ */
+public final class Subscription
+{
+
+    private final String prefix;
+    private final Predicate<String> condition;
+    private final MessageObserver observer;
+
+    Subscription(String prefix, Predicate<String> condition, MessageObserver observer)
+    {
+        this.prefix = prefix;
+        this.condition = condition;
+        this.observer = observer;
+    }
+
+    public String getPrefix()
+    {
+        return prefix;
+    }
+
+    /**
+     * Null if the prefix alone decides.
+     */
+    public Predicate<String> getCondition()
+    {
+        return condition;
+    }
+
+    public MessageObserver getObserver()
+    {
+        return observer;
+    }
+
+    /**
+     * Whether the subscription takes every message, binary and streamed ones
+     * included.
+     */
+    boolean isUnconditional()
+    {
+        return prefix.isEmpty() && condition == null;
+    }
+
+    /**
+     * Only called for messages starting with the prefix.
+     */
+    boolean accepts(String message)
+    {
+        return condition == null || condition.test(message);
+    }
+
+    @Override
+    public String toString()
+    {
+        return observer + " on \"" + prefix + "\"" + (condition != null ? " if " + condition : "");
+    }
+
+}
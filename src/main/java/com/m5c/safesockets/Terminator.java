@@ -1,45 +1,86 @@
 package com.m5c.safesockets;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * Once launched waits a precise amount of time (timeout) before sending a
  * onTerminate message to the referenced Terminatable object. Can be defused by
  * calling the deactivate() method - in that case onTerminate will not be called
- * on meeting the timeout deadline.
+ * on meeting the timeout deadline. Terminators are no threads of their own,
+ * their deadlines are all kept by the shared TimingWheel.
  *
  * @author m5c
  */
-public class Terminator extends Thread
+public class Terminator
 {
 
+    private static final int PENDING = 0;
+    private static final int DEFUSED = 1;
+    private static final int EXPIRED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Terminator> STATE = AtomicIntegerFieldUpdater.newUpdater(Terminator.class, "state");
+
     private final int timeout;
     private final Terminatable terminatable;
-    private boolean expectedSignalArrived = false;
     private final String description;
+    private volatile int state = PENDING;
+    private long deadline;
+
+    // Bookkeeping of the TimingWheel (only accessed by the wheel thread)
+    long remainingRounds;
+    TimingWheel.Bucket bucket;
+    Terminator prev;
+    Terminator next;
 
     public Terminator(String description, int timeout, Terminatable terminatable)
     {
-        super();
         this.timeout = timeout;
         this.terminatable = terminatable;
         this.description = description;
     }
 
+    /**
+     * Arms the Terminator. The deadline is counted from this call on.
+     */
+    public void start()
+    {
+        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        TimingWheel.getInstance().schedule(this);
+    }
+
+    /**
+     * Defuses the Terminator. Constant time, never blocks and never wakes up
+     * any thread.
+     */
     public void deactivate()
     {
-        expectedSignalArrived = true;
+        if (STATE.compareAndSet(this, PENDING, DEFUSED))
+            TimingWheel.getInstance().cancel(this);
+    }
+
+    long getDeadline()
+    {
+        return deadline;
+    }
+
+    boolean isPending()
+    {
+        return state == PENDING;
+    }
+
+    /**
+     * Marks the Terminator as expired. Returns false if it has been defused
+     * concurrently, in which case onTerminate must not be called.
+     */
+    boolean expire()
+    {
+        return STATE.compareAndSet(this, PENDING, EXPIRED);
     }
 
-    @Override
-    public void run()
+    void fire()
     {
-        try {
-            Thread.sleep(timeout);
-            if (!expectedSignalArrived)
-                terminatable.onTerminate(description);
-        }
-        catch (InterruptedException e) {
-            throw new RuntimeException();
-        }
+        terminatable.onTerminate(description);
     }
 
 }
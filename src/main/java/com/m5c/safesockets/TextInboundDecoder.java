@@ -0,0 +1,78 @@
+package com.m5c.safesockets;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decoder for the TEXT wire format. Cuts the input into lines (the same way a
+ * BufferedReader does) and passes them to the TextProtocolParser, as raw
+ * bytes. The line buffer is reused, so the decoder itself does not allocate
+ * once it has seen the longest line. Lines are bounded by the max message
+ * size, so a missing line end cannot exhaust the memory.
+ *
+ * @author m5c
+ */
+class TextInboundDecoder implements InboundDecoder
+{
+
+    // Line buffers larger than this are not kept for the next line
+    private static final int RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private final TextProtocolParser parser;
+
+    // A line growing beyond this (without line end) can only stem from a hostile or corrupted stream
+    private final long maxLineLength;
+
+    // Bytes of the line currently coming in
+    private byte[] lineBuffer = new byte[256];
+    private int lineLength = 0;
+
+    TextInboundDecoder(TextProtocolParser parser)
+    {
+        this.parser = parser;
+        maxLineLength = parser.getMaxLineLength();
+    }
+
+    @Override
+    public void decode(ByteBuffer input) throws UnfriendlyConnectionBreakdownException
+    {
+        while (input.hasRemaining()) {
+            int end = indexOfLineEnd(input);
+            int amount = (end < 0 ? input.limit() : end) - input.position();
+            if (lineLength + (long) amount > maxLineLength)
+                throw new UnfriendlyConnectionBreakdownException();
+            if (lineLength + amount > lineBuffer.length)
+                lineBuffer = Arrays.copyOf(lineBuffer, Math.max(lineLength + amount, lineBuffer.length * 2));
+            input.get(lineBuffer, lineLength, amount);
+            lineLength += amount;
+            if (end < 0)
+                return;
+
+            // Skip the line end itself
+            input.get();
+            completeLine();
+        }
+    }
+
+    private static int indexOfLineEnd(ByteBuffer input)
+    {
+        for (int i = input.position(); i < input.limit(); i++) {
+            if (input.get(i) == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    private void completeLine() throws UnfriendlyConnectionBreakdownException
+    {
+        // Line separators of other platforms end with "\r\n"
+        int length = lineLength;
+        if (length > 0 && lineBuffer[length - 1] == '\r')
+            length -= 1;
+        lineLength = 0;
+        parser.handleInputLine(lineBuffer, length);
+        if (lineBuffer.length > RETAINED_BUFFER_SIZE)
+            lineBuffer = new byte[256];
+    }
+
+}
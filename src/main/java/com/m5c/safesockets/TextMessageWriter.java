@@ -0,0 +1,111 @@
+package com.m5c.safesockets;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writer for the line based TEXT wire format. Internal messages are single
+ * lines, starting with a reserved keyword. User messages are followed by a
+ * delimiter line carrying the message salt.
+ *
+ * @author m5c
+ */
+class TextMessageWriter extends MessageWriter
+{
+
+    // Same line separator as println
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    TextMessageWriter(OutputStream outputStream, Filter outFilter)
+    {
+        super(outputStream, null, outFilter);
+    }
+
+    @Override
+    void writeUserMessage(String message, int salt, long checksum)
+    {
+        if (checksum == MessageChecksum.NONE)
+            writeLine(message + "\n" + InternalMessages.MESSAGE_DELIMITER + salt);
+        else
+            writeLine(message + "\n" + InternalMessages.MESSAGE_DELIMITER + salt + InternalMessages.CHECKSUM_SEPARATOR + checksum);
+    }
+
+    /**
+     * The shared part is the message with its line break, the delimiter line
+     * is encoded per connection.
+     */
+    @Override
+    void writeBroadcast(Broadcast broadcast, int salt, long checksum)
+    {
+        String delimiter;
+        if (checksum == MessageChecksum.NONE)
+            delimiter = InternalMessages.MESSAGE_DELIMITER + salt;
+        else
+            delimiter = InternalMessages.MESSAGE_DELIMITER + salt + InternalMessages.CHECKSUM_SEPARATOR + checksum;
+        byte[] payload = broadcast.getTextPayload();
+        writeShared(NO_BYTES, payload, 0, payload.length, (delimiter + LINE_SEPARATOR).getBytes());
+    }
+
+    @Override
+    void writeBinaryMessage(ByteBuffer message, int salt, long checksum)
+    {
+        throw new IllegalStateException("Binary messages require WireFormat.FRAMED.");
+    }
+
+    @Override
+    void writeMessageAck(int sequence)
+    {
+        writeLine(InternalMessages.MESSAGE_ACK + sequence);
+    }
+
+    @Override
+    void writeHashedMessageAck(String messageHash, int salt)
+    {
+        writeLine(InternalMessages.MESSAGE_ACK + messageHash);
+    }
+
+    @Override
+    void writeCumulativeAck(int sequence)
+    {
+        writeLine(InternalMessages.CUMULATIVE_ACK + sequence);
+    }
+
+    @Override
+    void writeHeartBeat(int heartBeatId)
+    {
+        writeLine(InternalMessages.HEART_BEAT + heartBeatId);
+    }
+
+    @Override
+    void writeHeartBeatAck(int heartBeatId)
+    {
+        writeLine(InternalMessages.HEART_BEAT_ACK + heartBeatId);
+    }
+
+    @Override
+    void writeDisconnect()
+    {
+        writeLine(InternalMessages.DISCONNECT);
+    }
+
+    @Override
+    void writeCredit(long messages, long size)
+    {
+        writeLine(InternalMessages.CREDIT + messages + InternalMessages.CREDIT_SEPARATOR + size);
+    }
+
+    /**
+     * Sends the message in one piece (one record, so concurrent senders cannot
+     * interleave their lines). Actual user-messages must be passed to this
+     * method including their delimiter line.
+     */
+    private void writeLine(String message)
+    {
+        // Before sending, pipe message through filter. Send the output unless it has been flagged as discarded.
+        message = filter(message);
+        if (message != null)
+            // Default charset, as the PrintWriter formerly used
+            writer.write((message + LINE_SEPARATOR).getBytes());
+    }
+
+}
@@ -0,0 +1,334 @@
+package com.m5c.safesockets;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Interprets the lines of the TEXT wire format, one after another, and passes
+ * the extracted messages to the MessageHandler. Payload lines are stitched
+ * together until the delimiter line of the message arrives. Shared by the
+ * blocking SocketReaderThread and the event loop engine, so it does not care
+ * where the lines come from. Lines arrive as raw bytes. Internal lines are
+ * recognized and parsed in place, only payloads are turned into Strings (once
+ * the message is complete). Custom filters work on Strings, so with a filter
+ * every line is decoded first.
+ *
+ * @author m5c
+ */
+class TextProtocolParser
+{
+
+    // Keywords as bytes, for recognizing internal lines without decoding them
+    private static final byte[] MESSAGE_DELIMITER = InternalMessages.MESSAGE_DELIMITER.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MESSAGE_ACK = InternalMessages.MESSAGE_ACK.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CUMULATIVE_ACK = InternalMessages.CUMULATIVE_ACK.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEART_BEAT = InternalMessages.HEART_BEAT.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEART_BEAT_ACK = InternalMessages.HEART_BEAT_ACK.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CREDIT = InternalMessages.CREDIT.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DISCONNECT = InternalMessages.DISCONNECT.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MESSAGE_DISCARDED = InternalMessages.MESSAGE_DISCARDED.getBytes(StandardCharsets.US_ASCII);
+    private static final byte CHECKSUM_SEPARATOR = (byte) InternalMessages.CHECKSUM_SEPARATOR.charAt(0);
+    private static final byte CREDIT_SEPARATOR = (byte) InternalMessages.CREDIT_SEPARATOR.charAt(0);
+
+    // Lines are encoded in the default charset (as by the PrintWriter formerly used). Streamed chunks must be UTF-8.
+    private static final boolean DEFAULT_CHARSET_UTF8 = Charset.defaultCharset().equals(StandardCharsets.UTF_8);
+
+    // Upper bound for internal lines: longest keyword followed by two numbers (credit) or a hash
+    static final int MAX_INTERNAL_LINE_LENGTH = 128;
+
+    // Message buffers larger than this are not kept for the next message
+    private static final int RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    // The instance handling the extracted messages (and also internal status messages like breakdown events.)
+    private final MessageHandler messageHandler;
+
+    // The filter to be used for all incoming messages. Default filters never modify anything, so lines need no decoding then.
+    private final Filter inputFilter;
+    private final boolean filterLines;
+
+    // Upper bound for a message, whether messages are passed on line by line instead of as a whole, and how ACKs identify messages
+    private final int maxMessageSize;
+    private final boolean streaming;
+    private final AckMode ackMode;
+
+    // Payload of the message currently coming in (unless streaming): bytes, or the decoded lines if filtered. And its size so far.
+    private byte[] messageBytes = new byte[256];
+    private StringBuilder messageBuilder = new StringBuilder("");
+    private long messageSize = 0;
+    private boolean firstLine = true;
+
+    TextProtocolParser(MessageHandler messageHandler, Filter inputFilter, SafeSocketOptions options)
+    {
+        this.messageHandler = messageHandler;
+        this.inputFilter = inputFilter;
+        filterLines = !(inputFilter instanceof DefaultFilter);
+        maxMessageSize = options.getMaxMessageSize();
+        streaming = options.isStreamingReceive();
+        ackMode = options.getAckMode();
+    }
+
+    /**
+     * Upper bound for a single line: a payload line cannot exceed the max
+     * message size, internal lines are short.
+     */
+    long getMaxLineLength()
+    {
+        return (long) maxMessageSize + MAX_INTERNAL_LINE_LENGTH;
+    }
+
+    /**
+     * Interprets a single input line (without line separator). Lines sent to
+     * this method can be both, internal or payload. The line buffer is reused
+     * after the call.
+     *
+     * @throws UnfriendlyConnectionBreakdownException if the line cannot be
+     * parsed or the message exceeds the max message size.
+     */
+    void handleInputLine(byte[] line, int length) throws UnfriendlyConnectionBreakdownException
+    {
+        if (filterLines) {
+            handleInputLine(new String(line, 0, length));
+            return;
+        }
+
+        // Same keywords as InternalMessages.isReserved, anything else is payload
+        if (startsWith(line, length, MESSAGE_ACK)) {
+            // Sequence numbers are parsed in place, hashes are looked up by their text representation
+            if (ackMode == AckMode.SEQUENCE)
+                messageHandler.handleMessageAck((int) parseNumber(line, MESSAGE_ACK.length, length));
+            else
+                messageHandler.handleInternalMessage(new String(line, 0, length, StandardCharsets.US_ASCII));
+        }
+        else if (startsWith(line, length, CUMULATIVE_ACK))
+            messageHandler.handleCumulativeAck((int) parseNumber(line, CUMULATIVE_ACK.length, length));
+        else if (startsWith(line, length, HEART_BEAT_ACK))
+            messageHandler.handleHeartBeatAck((int) parseNumber(line, HEART_BEAT_ACK.length, length));
+        else if (startsWith(line, length, HEART_BEAT))
+            messageHandler.handleHeartBeat((int) parseNumber(line, HEART_BEAT.length, length));
+        else if (startsWith(line, length, MESSAGE_DELIMITER))
+            handleDelimiterLine(line, length);
+        else if (startsWith(line, length, MESSAGE_DISCARDED)) {
+            // Reserved, but nothing to do
+        }
+        else if (startsWith(line, length, CREDIT))
+            handleCreditLine(line, length);
+        else if (startsWith(line, length, DISCONNECT))
+            //remote host requested disconnect
+            messageHandler.assymentricDisconnect(true);
+        else
+            handlePayloadInputLine(line, length);
+    }
+
+    /**
+     * Interprets a single, decoded input line (lines sent to this method can
+     * be both, internal or payload).
+     *
+     * @throws UnfriendlyConnectionBreakdownException if the message exceeds
+     * the max message size.
+     */
+    void handleInputLine(String inputLine) throws UnfriendlyConnectionBreakdownException
+    {
+        // Hook point for custom filters. Message is replaced by the filter's output. Messages filled with MESSAGE_DISCARDED key will not be treated.
+        String filteredLine = inputFilter.filter(inputLine);
+
+        // A discarded delimiter line discards the whole message
+        if (filteredLine.equals(InternalMessages.MESSAGE_DISCARDED) && inputLine.startsWith(InternalMessages.MESSAGE_DELIMITER)) {
+            messageHandler.handleDiscardedMessage(messageSize);
+            resetMessage();
+            return;
+        }
+        inputLine = filteredLine;
+
+        // case one: it is an internal message -> string builder gets not extended, but we handle the message internally anyways
+        if (InternalMessages.isReserved(inputLine))
+            handleReservedInputLine(inputLine);
+
+        // case two: the message is actual payload -> no need for internal interpretations, we just extend the stringbuilder stitiching the currently incoming message together
+        else
+            handlePayloadInputLine(inputLine);
+    }
+
+    /**
+     * Handles a single line that matches an internal message.
+     */
+    private void handleReservedInputLine(String inputLine)
+    {
+        // In case the signal to abandon connection was received -> properly shut down everything
+        if (inputLine.startsWith(InternalMessages.DISCONNECT))
+            //remote host requested disconnect
+            messageHandler.assymentricDisconnect(true);
+
+        // If it is an internal message other than Disconnect or MessageDelimiter-> handle as an internal message (ACK, HeartBeat, etc...)
+        else if (!inputLine.startsWith(InternalMessages.MESSAGE_DELIMITER))
+            messageHandler.handleInternalMessage(inputLine);         // Btw: Ack lines cannot arrive within actual messages, since the sending method is synchronized (as is the flush method)
+
+        // Internal message that a payload message has been fully received -> notfiy observers and send reception ACK
+        else {
+            // Delimiter line carries the salt, optionally followed by the checksum of the message
+            String saltAndChecksum = inputLine.substring(InternalMessages.MESSAGE_DELIMITER.length());
+            int separatorIndex = saltAndChecksum.indexOf(InternalMessages.CHECKSUM_SEPARATOR);
+            int salt;
+            long checksum = MessageChecksum.NONE;
+            if (separatorIndex < 0)
+                salt = Integer.parseInt(saltAndChecksum);
+            else {
+                salt = Integer.parseInt(saltAndChecksum.substring(0, separatorIndex));
+                checksum = Long.parseLong(saltAndChecksum.substring(separatorIndex + 1));
+            }
+            if (streaming)
+                messageHandler.handleUserMessageEnd(salt, checksum);
+            else
+                messageHandler.handleUserMessage(messageBuilder.toString(), salt, checksum);
+            resetMessage();
+        }
+    }
+
+    /**
+     * Byte counterpart of the delimiter handling above.
+     */
+    private void handleDelimiterLine(byte[] line, int length) throws UnfriendlyConnectionBreakdownException
+    {
+        int separatorIndex = indexOf(line, MESSAGE_DELIMITER.length, length, CHECKSUM_SEPARATOR);
+        int salt;
+        long checksum = MessageChecksum.NONE;
+        if (separatorIndex < 0)
+            salt = (int) parseNumber(line, MESSAGE_DELIMITER.length, length);
+        else {
+            salt = (int) parseNumber(line, MESSAGE_DELIMITER.length, separatorIndex);
+            checksum = parseNumber(line, separatorIndex + 1, length);
+        }
+        if (streaming)
+            messageHandler.handleUserMessageEnd(salt, checksum);
+        else
+            // The one and only String of the message. Default charset, as the lines were encoded.
+            messageHandler.handleUserMessage(new String(messageBytes, 0, (int) messageSize), salt, checksum);
+        resetMessage();
+    }
+
+    /**
+     * Credit lines carry the granted amount of messages and their size.
+     */
+    private void handleCreditLine(byte[] line, int length) throws UnfriendlyConnectionBreakdownException
+    {
+        int separatorIndex = indexOf(line, CREDIT.length, length, CREDIT_SEPARATOR);
+        if (separatorIndex < 0)
+            throw new UnfriendlyConnectionBreakdownException();
+        messageHandler.handleCredit(parseNumber(line, CREDIT.length, separatorIndex), parseNumber(line, separatorIndex + 1, length));
+    }
+
+    /**
+     * Handles a single line of a payload message
+     */
+    private void handlePayloadInputLine(String inputLine) throws UnfriendlyConnectionBreakdownException
+    {
+        // first entry goes without newline, all others add newline before content
+        if (streaming) {
+            byte[] chunk = (firstLine ? inputLine : "\n" + inputLine).getBytes(StandardCharsets.UTF_8);
+            messageSize += chunk.length;
+            checkMessageSize();
+            messageHandler.handleUserMessageChunk(ByteBuffer.wrap(chunk));
+        }
+        else {
+            if (!firstLine)
+                messageBuilder.append("\n");
+            messageBuilder.append(inputLine);
+            messageSize = messageBuilder.length();
+            checkMessageSize();
+        }
+        firstLine = false;
+    }
+
+    /**
+     * Byte counterpart of the payload handling above.
+     */
+    private void handlePayloadInputLine(byte[] line, int length) throws UnfriendlyConnectionBreakdownException
+    {
+        if (streaming && !DEFAULT_CHARSET_UTF8) {
+            handlePayloadInputLine(new String(line, 0, length));
+            return;
+        }
+
+        // first entry goes without newline, all others add newline before content
+        int separatorLength = firstLine ? 0 : 1;
+        messageSize += separatorLength + length;
+        checkMessageSize();
+        if (streaming) {
+            byte[] chunk = new byte[separatorLength + length];
+            if (separatorLength > 0)
+                chunk[0] = '\n';
+            System.arraycopy(line, 0, chunk, separatorLength, length);
+            messageHandler.handleUserMessageChunk(ByteBuffer.wrap(chunk));
+        }
+        else {
+            if (messageSize > messageBytes.length)
+                messageBytes = Arrays.copyOf(messageBytes, (int) Math.max(messageSize, Math.min(2L * messageBytes.length, Integer.MAX_VALUE - 8)));
+            int offset = (int) messageSize - length;
+            if (separatorLength > 0)
+                messageBytes[offset - 1] = '\n';
+            System.arraycopy(line, 0, messageBytes, offset, length);
+        }
+        firstLine = false;
+    }
+
+    private void resetMessage()
+    {
+        if (messageBuilder.length() > 0)
+            messageBuilder = new StringBuilder("");
+        if (messageBytes.length > RETAINED_BUFFER_SIZE)
+            messageBytes = new byte[256];
+        messageSize = 0;
+        firstLine = true;
+    }
+
+    private void checkMessageSize() throws UnfriendlyConnectionBreakdownException
+    {
+        if (messageSize > maxMessageSize)
+            throw new UnfriendlyConnectionBreakdownException();
+    }
+
+    private static boolean startsWith(byte[] line, int length, byte[] prefix)
+    {
+        if (length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] line, int from, int to, byte value)
+    {
+        for (int i = from; i < to; i++) {
+            if (line[i] == value)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the decimal number between from and to (exclusive), without
+     * creating a String.
+     *
+     * @throws UnfriendlyConnectionBreakdownException if it is not a number.
+     */
+    private static long parseNumber(byte[] line, int from, int to) throws UnfriendlyConnectionBreakdownException
+    {
+        boolean negative = from < to && line[from] == '-';
+        if (negative)
+            from += 1;
+        if (from == to || to - from > 19)
+            throw new UnfriendlyConnectionBreakdownException();
+        long number = 0;
+        for (int i = from; i < to; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new UnfriendlyConnectionBreakdownException();
+            number = number * 10 + digit;
+        }
+        return negative ? -number : number;
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.m5c.safesockets;
+
+/**
+ * What a SafeSocket has been waiting for in vain when it considered the
+ * connection broken (see ConnectionMetrics).
+ *
+ * @author m5c
+ */
+public enum TimeoutCause
+{
+
+    /**
+     * A sent message has not been ACKed in time.
+     */
+    MESSAGE_ACK,
+
+    /**
+     * A heartbeat has not been ACKed in time (server side), or nothing has
+     * been received for too long with idle heartbeats.
+     */
+    HEART_BEAT_ACK,
+
+    /**
+     * The next heartbeat has not arrived in time (client side).
+     */
+    HEART_BEAT,
+
+    /**
+     * A sent file has not been ACKed in time.
+     */
+    FILE_ACK
+
+}
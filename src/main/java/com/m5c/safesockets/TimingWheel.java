@@ -0,0 +1,218 @@
+package com.m5c.safesockets;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process wide hashed timing wheel holding the deadlines of all Terminators
+ * (message ACKs and heartbeats) of all SafeSockets. A single daemon thread
+ * advances the wheel once per tick and hands expired Terminators to a helper
+ * executor, so a slow BreakdownObserver never delays other deadlines.
+ * Scheduling and cancelling never create or wake up a thread: both only
+ * enqueue the Terminator, the wheel thread does the bucket bookkeeping.
+ *
+ * @author m5c
+ */
+final class TimingWheel
+{
+
+    // Resolution of the wheel. Deadlines fire at most one tick late.
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // Amount of buckets (power of two, so the bucket index is a simple mask). One round covers ~1s.
+    private static final int WHEEL_SIZE = 1024;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    private static final TimingWheel INSTANCE = new TimingWheel();
+
+    private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+
+    // Terminators started / deactivated since the last tick. Only drained by the wheel thread.
+    private final Queue<Terminator> scheduled = new ConcurrentLinkedQueue<Terminator>();
+    private final Queue<Terminator> cancelled = new ConcurrentLinkedQueue<Terminator>();
+
+    // Runs the onTerminate callbacks of expired Terminators
+    private final Executor expiryExecutor;
+
+    private final long startTime;
+    private long tick = 0;
+
+    private TimingWheel()
+    {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new Bucket();
+        }
+        expiryExecutor = createExpiryExecutor();
+        startTime = System.nanoTime();
+
+        Thread worker = new Thread(MetricsRegistry.track(new Worker()), "SafeSocket-TimingWheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    static TimingWheel getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers a Terminator whose deadline has been set. Called by
+     * Terminator.start().
+     */
+    void schedule(Terminator terminator)
+    {
+        scheduled.add(terminator);
+    }
+
+    /**
+     * Registers a Terminator that has been defused, so the wheel thread can
+     * unlink it from its bucket. Called by Terminator.deactivate().
+     */
+    void cancel(Terminator terminator)
+    {
+        cancelled.add(terminator);
+    }
+
+    private static ExecutorService createExpiryExecutor()
+    {
+        return Executors.newCachedThreadPool(new DaemonThreadFactory("SafeSocket-Terminator"));
+    }
+
+    /**
+     * Moves all freshly scheduled Terminators into their bucket. Terminators
+     * that have been defused in the meantime are skipped.
+     */
+    private void transferScheduled()
+    {
+        Terminator terminator;
+        while ((terminator = scheduled.poll()) != null) {
+            if (!terminator.isPending())
+                continue;
+
+            long ticksUntilDeadline = (terminator.getDeadline() - startTime + TICK_NANOS - 1) / TICK_NANOS;
+            long targetTick = Math.max(ticksUntilDeadline, tick);
+            terminator.remainingRounds = (targetTick - tick) / WHEEL_SIZE;
+            wheel[(int) (targetTick & MASK)].add(terminator);
+        }
+    }
+
+    private void removeCancelled()
+    {
+        Terminator terminator;
+        while ((terminator = cancelled.poll()) != null) {
+            if (terminator.bucket != null)
+                terminator.bucket.remove(terminator);
+        }
+    }
+
+    private void expire(final Terminator terminator)
+    {
+        expiryExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                terminator.fire();
+            }
+        });
+    }
+
+    /**
+     * Waits until the wall clock has reached the start of the current tick.
+     */
+    private void waitForTick() throws InterruptedException
+    {
+        long tickStart = startTime + tick * TICK_NANOS;
+        long sleepNanos = tickStart - System.nanoTime();
+        if (sleepNanos > 0)
+            TimeUnit.NANOSECONDS.sleep(sleepNanos);
+    }
+
+    private class Worker implements Runnable
+    {
+
+        @Override
+        public void run()
+        {
+            while (true) {
+                try {
+                    waitForTick();
+                }
+                catch (InterruptedException ex) {
+                    throw new RuntimeException("Timing wheel interrupted.");
+                }
+                removeCancelled();
+                transferScheduled();
+                wheel[(int) (tick & MASK)].expire(System.nanoTime());
+                tick += 1;
+            }
+        }
+
+    }
+
+    /**
+     * Doubly linked list of the Terminators sharing a slot of the wheel. Only
+     * accessed by the wheel thread, hence not synchronized.
+     */
+    final class Bucket
+    {
+
+        private Terminator head;
+        private Terminator tail;
+
+        void add(Terminator terminator)
+        {
+            terminator.bucket = this;
+            if (head == null) {
+                head = terminator;
+                tail = terminator;
+            }
+            else {
+                tail.next = terminator;
+                terminator.prev = tail;
+                tail = terminator;
+            }
+        }
+
+        void remove(Terminator terminator)
+        {
+            if (terminator.prev != null)
+                terminator.prev.next = terminator.next;
+            else
+                head = terminator.next;
+            if (terminator.next != null)
+                terminator.next.prev = terminator.prev;
+            else
+                tail = terminator.prev;
+            terminator.prev = null;
+            terminator.next = null;
+            terminator.bucket = null;
+        }
+
+        /**
+         * Fires all Terminators of this bucket that are due in the current
+         * round. The others stay for a later round.
+         */
+        void expire(long now)
+        {
+            Terminator terminator = head;
+            while (terminator != null) {
+                Terminator next = terminator.next;
+                if (terminator.remainingRounds <= 0 && terminator.getDeadline() <= now) {
+                    remove(terminator);
+                    if (terminator.expire())
+                        TimingWheel.this.expire(terminator);
+                }
+                else if (terminator.remainingRounds > 0)
+                    terminator.remainingRounds -= 1;
+                terminator = next;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.m5c.safesockets;
+
+/**
+ * Encoding used for all traffic of a SafeSocket connection. Both ends of a
+ * connection must use the same wire format.
+ *
+ * @author m5c
+ */
+public enum WireFormat
+{
+
+    /**
+     * Line based text protocol. Messages must not contain lines starting with
+     * a keyword reserved for internal communication (see InternalMessages).
+     * Default, compatible with all former SafeSocket versions.
+     */
+    TEXT,
+
+    /**
+     * Length prefixed binary frames (type, length, id, payload). Payloads are
+     * transparent, so messages may contain any content, including reserved
+     * keywords.
+     */
+    FRAMED
+
+}
@@ -3,6 +3,7 @@ package com.m5c.safesockets;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import org.junit.AfterClass;
@@ -23,7 +24,8 @@ public abstract class AbstractTest implements MessageObserver, BreakdownObserver
     static ServerSocket serverSocket;
     final Collection<MessageObserver> messageObservers = new LinkedList<MessageObserver>();
     final Collection<BreakdownObserver> breakdownObservers = new LinkedList<BreakdownObserver>();
-    List<String> receivedMessages = new LinkedList<String>();
+    SafeSocketOptions options = new SafeSocketOptions();
+    List<String> receivedMessages = Collections.synchronizedList(new LinkedList<String>());
     SafeSocket master;
     Boolean mostRecentIntendedFlag = null;
 
@@ -93,7 +95,7 @@ public abstract class AbstractTest implements MessageObserver, BreakdownObserver
         {
             try {
                 System.out.println("Setting up new master connection.");
-                master = new SafeSocket(serverSocket, heartBeatRate, timeout, messageObservers, breakdownObservers, inputFilter, outputFilter);
+                master = new SafeSocket(serverSocket, heartBeatRate, timeout, messageObservers, breakdownObservers, inputFilter, outputFilter, options);
             }
             catch (IOException ex) {
                 throw new RuntimeException(ex);
@@ -137,7 +139,7 @@ public abstract class AbstractTest implements MessageObserver, BreakdownObserver
         (new MasterConnectionStarter(inputFilter, outputFilter)).start();
 
         // Connect to master side.
-        SafeSocket slave = new SafeSocket("localhost", PORT, heartBeatRate, timeout, messageObservers, breakdownObservers, clientSideFilter, clientSideFilter);
+        SafeSocket slave = new SafeSocket("localhost", PORT, heartBeatRate, timeout, messageObservers, breakdownObservers, clientSideFilter, clientSideFilter, options);
 
         // Note: usually server side setup would block until socket is accepted. This is not possible here, because we create a loopback connection (would be adeadlock if both wait until other ready.)
         // As master side setup was issued from an extra thread, the master reference retured from this method risks being null if we do not deliberately wait for it to be set.
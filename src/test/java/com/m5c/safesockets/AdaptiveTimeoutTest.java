@@ -0,0 +1,86 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests adaptive ACK timeouts: the timeout must follow the round trip time
+ * emulated by a LatencyFilter, and a connection used to fast ACKs must detect
+ * an outage much sooner than with the fixed timeout.
+ *
+ * @author m5c
+ */
+public class AdaptiveTimeoutTest extends AbstractTest
+{
+
+    public AdaptiveTimeoutTest()
+    {
+        // Long period: heartbeats queueing behind the delayed messages would distort the measured round trips
+        super(60000, 3000);
+        options.setAdaptiveTimeouts(20, 3000);
+    }
+
+    /**
+     * The client side filter delays incoming and outgoing traffic, so each
+     * round trip takes a multiple of the delay.
+     */
+    @Test(timeout = 30000)
+    public void adaptsToLatencyTest() throws IOException, InterruptedException
+    {
+        LatencyFilter latency = new LatencyFilter(100);
+        SafeSocketPair pair = setupMasterSlaveConnection(-1, latency);
+        SafeSocket sender = pair.getMaster();
+        Assert.assertEquals(-1, sender.getSmoothedRtt(), 0);
+        Assert.assertEquals(timeout, sender.getAckTimeout());
+
+        for (int i = 0; i < 15; i++) {
+            Assert.assertTrue(sender.sendMessage("Slow " + i));
+        }
+        System.out.println("Adaptive timeouts: SRTT " + sender.getSmoothedRtt() + " ms, RTTVAR " + sender.getRttVariation() + " ms, timeout " + sender.getAckTimeout() + " ms at 100 ms delay.");
+        Assert.assertTrue(sender.getSmoothedRtt() >= 190 && sender.getSmoothedRtt() < 600);
+        Assert.assertTrue(sender.getAckTimeout() > sender.getSmoothedRtt() && sender.getAckTimeout() < 1000);
+
+        latency.setDelay(0);
+        for (int i = 0; i < 50; i++) {
+            Assert.assertTrue(sender.sendMessage("Fast " + i));
+        }
+        System.out.println("Adaptive timeouts: SRTT " + sender.getSmoothedRtt() + " ms, RTTVAR " + sender.getRttVariation() + " ms, timeout " + sender.getAckTimeout() + " ms without delay.");
+        Assert.assertTrue(sender.getSmoothedRtt() < 20);
+        Assert.assertTrue(sender.getAckTimeout() >= 20 && sender.getAckTimeout() < 100);
+
+        shutDownConnection(true, pair);
+    }
+
+    /**
+     * Once adapted to fast ACKs, a message stuck in the network is given up
+     * long before the initial (fixed) timeout.
+     */
+    @Test(timeout = 30000)
+    public void fasterFailureDetectionTest() throws IOException, InterruptedException
+    {
+        LatencyFilter latency = new LatencyFilter(0);
+        SafeSocketPair pair = setupMasterSlaveConnection(-1, latency);
+        for (int i = 0; i < 50; i++) {
+            Assert.assertTrue(pair.getMaster().sendMessage("Fast " + i));
+        }
+
+        latency.setDelay(2000);
+        long start = System.currentTimeMillis();
+        Assert.assertFalse(pair.getMaster().sendMessage("Stuck"));
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println("Adaptive timeouts: outage detected after " + elapsed + " ms (initial timeout " + timeout + " ms).");
+        Assert.assertTrue(elapsed < 500);
+        while (mostRecentIntendedFlag == null) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(mostRecentIntendedFlag);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBoundsTest()
+    {
+        new SafeSocketOptions().setAdaptiveTimeouts(500, 100);
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests sending and receiving binary messages.
+ *
+ * @author m5c
+ */
+public class BinaryMessageTest extends AbstractTest implements BinaryMessageObserver
+{
+
+    private final List<ByteBuffer> receivedBinaryMessages = Collections.synchronizedList(new LinkedList<ByteBuffer>());
+
+    public BinaryMessageTest()
+    {
+        options.setWireFormat(WireFormat.FRAMED);
+    }
+
+    @Override
+    public void notifyBinaryMessageObserver(SafeSocket safeSocket, ByteBuffer message)
+    {
+        receivedBinaryMessages.add(message);
+    }
+
+    /**
+     * Arbitrary bytes must arrive unchanged, as read-only buffers, in all ACK
+     * modes.
+     */
+    @Test(timeout = 10000)
+    public void binaryReceptionTest() throws IOException, InterruptedException
+    {
+        byte[] payload = new byte[100000];
+        new Random(42).nextBytes(payload);
+
+        SafeSocketOptions[] ackModes = new SafeSocketOptions[]{
+            new SafeSocketOptions(),
+            new SafeSocketOptions().setAckMode(AckMode.SEQUENCE),
+            new SafeSocketOptions().setAckMode(AckMode.SEQUENCE).setIntegrityCheck(true)
+        };
+        for (SafeSocketOptions ackMode : ackModes) {
+            receivedBinaryMessages.clear();
+            options = ackMode.setWireFormat(WireFormat.FRAMED);
+            SafeSocketPair pair = setupMasterSlaveConnection();
+
+            // A slice, to make sure only the bytes between position and limit are sent
+            ByteBuffer message = ByteBuffer.wrap(payload, 10, 50000);
+            Assert.assertTrue(pair.getMaster().sendMessage(message));
+            Assert.assertEquals(10, message.position());
+            Assert.assertTrue(pair.getSlave().sendMessage(new byte[0]));
+            while (receivedBinaryMessages.size() < 2) {
+                Thread.sleep(10);
+            }
+
+            // Both sides notify this observer, the empty message may come first
+            Assert.assertTrue(receivedBinaryMessages.contains(ByteBuffer.allocate(0)));
+            ByteBuffer received = receivedBinaryMessages.get(0).hasRemaining() ? receivedBinaryMessages.get(0) : receivedBinaryMessages.get(1);
+            Assert.assertTrue(received.isReadOnly());
+            Assert.assertEquals(message, received);
+
+            shutDownConnection(true, pair);
+        }
+    }
+
+    /**
+     * String and binary messages must arrive in sending order.
+     */
+    @Test(timeout = 10000)
+    public void mixedOrderTest() throws IOException, InterruptedException
+    {
+        resetReceivedMessageList();
+        final List<Object> arrivals = Collections.synchronizedList(new LinkedList<Object>());
+        messageObservers.clear();
+        messageObservers.add(new BinaryMessageObserver()
+        {
+            @Override
+            public void notifyBinaryMessageObserver(SafeSocket safeSocket, ByteBuffer message)
+            {
+                arrivals.add(message.getInt());
+            }
+
+            @Override
+            public void notifyMessageObserver(SafeSocket safeSocket, String message)
+            {
+                arrivals.add(Integer.valueOf(message));
+            }
+        });
+        SafeSocketPair pair = setupMasterSlaveConnection();
+
+        int amount = 200;
+        for (int i = 0; i < amount; i++) {
+            if (i % 2 == 0)
+                pair.getMaster().sendMessageAsync(ByteBuffer.allocate(4).putInt(0, i));
+            else
+                pair.getMaster().sendMessageAsync(Integer.toString(i));
+        }
+        while (arrivals.size() < amount) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < amount; i++) {
+            Assert.assertEquals(i, arrivals.get(i));
+        }
+
+        pair.getMaster().close();
+    }
+
+    @Test(timeout = 5000, expected = IllegalStateException.class)
+    public void textWireFormatRejectedTest() throws IOException, InterruptedException
+    {
+        options.setWireFormat(WireFormat.TEXT);
+        SafeSocketPair pair = setupMasterSlaveConnection();
+        try {
+            pair.getMaster().sendMessage(new byte[]{1, 2, 3});
+        }
+        finally {
+            pair.getMaster().close();
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests broadcasts: every recipient must receive and ACK the message exactly
+ * as if it had been sent individually (small and large messages, both wire
+ * formats and ACK modes), and the result must tell ACKed, timed out, broken
+ * down and skipped recipients apart.
+ *
+ * @author m5c
+ */
+public class BroadcastTest extends AbstractTest implements ConnectionObserver
+{
+
+    private static final int SERVER_PORT = PORT + 4;
+    private static final int CLIENTS = 8;
+
+    private final List<SafeSocket> acceptedSockets = Collections.synchronizedList(new LinkedList<SafeSocket>());
+    private final List<ByteBuffer> receivedBinaryMessages = Collections.synchronizedList(new LinkedList<ByteBuffer>());
+
+    public BroadcastTest()
+    {
+        super(1000, 500);
+        messageObservers.add(new BinaryMessageObserver()
+        {
+            @Override
+            public void notifyMessageObserver(SafeSocket safeSocket, String message)
+            {
+            }
+
+            @Override
+            public void notifyBinaryMessageObserver(SafeSocket safeSocket, ByteBuffer message)
+            {
+                receivedBinaryMessages.add(message);
+            }
+        });
+    }
+
+    @Override
+    public void notifyConnectionObserver(SafeSocket safeSocket)
+    {
+        acceptedSockets.add(safeSocket);
+    }
+
+    /**
+     * TEXT format, hashed ACKs: a short and a multi-line message larger than
+     * a single record.
+     */
+    @Test(timeout = 20000)
+    public void textDeliveryTest() throws IOException, InterruptedException
+    {
+        deliveryTest(false, "Short update", repeat("A line of a long update\n", 2000) + "Last line");
+    }
+
+    /**
+     * FRAMED format, sequence ACKs with integrity check: a short message, one
+     * sent in parts, and a binary one.
+     */
+    @Test(timeout = 20000)
+    public void framedDeliveryTest() throws IOException, InterruptedException
+    {
+        options.setWireFormat(WireFormat.FRAMED).setAckMode(AckMode.SEQUENCE).setIntegrityCheck(true);
+        deliveryTest(true, "Short update", repeat("Part of a very long update. ", 10000));
+    }
+
+    /**
+     * One recipient ACKs nothing, one has been closed before: the others ACK,
+     * and the result tells which failed why.
+     */
+    @Test(timeout = 20000)
+    public void outcomeTest() throws IOException, InterruptedException
+    {
+        SafeSocketServer server = new SafeSocketServer(SERVER_PORT, heartBeatRate, timeout, new LinkedList<MessageObserver>(), breakdownObservers, this);
+        List<SafeSocket> clients = new ArrayList<SafeSocket>();
+        for (int i = 0; i < CLIENTS; i++) {
+            Filter outFilter = i == 0 ? new AckDropFilter() : new DefaultFilter();
+            clients.add(new SafeSocket("localhost", SERVER_PORT, heartBeatRate, timeout, messageObservers, new LinkedList<BreakdownObserver>(), new DefaultFilter(), outFilter, options));
+        }
+        awaitAccepted();
+        clients.get(1).close();
+        SafeSocket closed = null;
+        while (closed == null) {
+            for (SafeSocket accepted : acceptedSockets) {
+                if (!accepted.isSocketAlive())
+                    closed = accepted;
+            }
+            Thread.sleep(10);
+        }
+
+        BroadcastResult result = Broadcast.send(acceptedSockets, "Update");
+        Assert.assertFalse(result.awaitAll());
+        System.out.println("Broadcast: " + result);
+        Assert.assertEquals(1, result.getTimedOut().size());
+        Assert.assertEquals(Arrays.asList(closed), result.getBrokenDown());
+        Assert.assertEquals(CLIENTS - 2, result.getAcked().size());
+        Assert.assertTrue(result.getPending().isEmpty());
+        Assert.assertFalse(result.getAcks().get(result.getTimedOut().get(0)).join());
+        Assert.assertTrue(result.getAck(result.getAcked().get(0)).join());
+
+        for (SafeSocket client : clients) {
+            client.close();
+        }
+        server.close();
+    }
+
+    /**
+     * Send window of one message: the recipient that ACKs nothing is skipped
+     * by the next broadcast, instead of blocking it until the timeout.
+     */
+    @Test(timeout = 20000)
+    public void skippedTest() throws IOException, InterruptedException
+    {
+        options.setMaxInFlightMessages(1);
+        SafeSocketServer server = new SafeSocketServer(SERVER_PORT, heartBeatRate, timeout, new LinkedList<MessageObserver>(), breakdownObservers, new DefaultFilter(), new DefaultFilter(), options, this);
+        List<SafeSocket> clients = new ArrayList<SafeSocket>();
+        for (int i = 0; i < CLIENTS; i++) {
+            Filter outFilter = i == 0 ? new AckDropFilter() : new DefaultFilter();
+            clients.add(new SafeSocket("localhost", SERVER_PORT, heartBeatRate, timeout, messageObservers, new LinkedList<BreakdownObserver>(), new DefaultFilter(), outFilter, options));
+        }
+        awaitAccepted();
+
+        // All but one ACK well within the timeout
+        BroadcastResult first = Broadcast.send(acceptedSockets, "First");
+        while (first.getAcked().size() < CLIENTS - 1) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, first.getPending().size());
+
+        long start = System.currentTimeMillis();
+        BroadcastResult second = Broadcast.send(acceptedSockets, "Second");
+        Assert.assertTrue(System.currentTimeMillis() - start < timeout);
+        Assert.assertEquals(first.getPending(), second.getSkipped());
+        Assert.assertFalse(second.getAck(second.getSkipped().get(0)).join());
+        Assert.assertFalse(second.awaitAll());
+        Assert.assertEquals(CLIENTS - 1, second.getAcked().size());
+
+        for (SafeSocket client : clients) {
+            client.close();
+        }
+        server.close();
+    }
+
+    private void deliveryTest(boolean binary, String... messages) throws IOException, InterruptedException
+    {
+        SafeSocketServer server = new SafeSocketServer(SERVER_PORT, heartBeatRate, timeout, new LinkedList<MessageObserver>(), breakdownObservers, new DefaultFilter(), new DefaultFilter(), options, this);
+        List<SafeSocket> clients = new ArrayList<SafeSocket>();
+        for (int i = 0; i < CLIENTS; i++) {
+            clients.add(new SafeSocket("localhost", SERVER_PORT, heartBeatRate, timeout, messageObservers, new LinkedList<BreakdownObserver>(), new DefaultFilter(), new DefaultFilter(), options));
+        }
+        awaitAccepted();
+
+        for (String message : messages) {
+            BroadcastResult result = Broadcast.send(acceptedSockets, message);
+            Assert.assertTrue(result.awaitAll());
+            Assert.assertEquals(CLIENTS, result.getAcked().size());
+        }
+        if (binary)
+            Assert.assertTrue(Broadcast.send(acceptedSockets, ByteBuffer.wrap(new byte[]{1, 2, 3})).awaitAll());
+
+        while (receivedMessages.size() < CLIENTS * messages.length) {
+            Thread.sleep(10);
+        }
+        for (String message : messages) {
+            Assert.assertEquals(CLIENTS, Collections.frequency(receivedMessages, message));
+        }
+        if (binary) {
+            while (receivedBinaryMessages.size() < CLIENTS) {
+                Thread.sleep(10);
+            }
+            for (ByteBuffer received : receivedBinaryMessages) {
+                Assert.assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), received);
+            }
+        }
+
+        for (SafeSocket client : clients) {
+            client.close();
+        }
+        server.close();
+    }
+
+    private void awaitAccepted() throws InterruptedException
+    {
+        while (acceptedSockets.size() < CLIENTS) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static String repeat(String part, int times)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Drops all message ACKs (heartbeats still pass).
+     */
+    private static class AckDropFilter implements Filter
+    {
+
+        @Override
+        public String filter(String input)
+        {
+            if (input.startsWith(InternalMessages.MESSAGE_ACK))
+                return InternalMessages.MESSAGE_DISCARDED;
+            return input;
+        }
+
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.m5c.safesockets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the coalescing of concurrently written records into few writes.
+ *
+ * @author m5c
+ */
+public class CoalescingWriterTest
+{
+
+    /**
+     * Records of concurrent senders must arrive complete and in per-sender
+     * order, with far fewer writes than records. Prints the ratio.
+     */
+    @Test(timeout = 30000)
+    public void concurrentSendersTest() throws InterruptedException
+    {
+        final int senders = 8;
+        final int records = 20000;
+        final SlowCountingStream stream = new SlowCountingStream();
+        final CoalescingWriter writer = new CoalescingWriter(stream);
+
+        Thread[] threads = new Thread[senders];
+        for (int i = 0; i < senders; i++) {
+            final int sender = i;
+            threads[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int record = 0; record < records; record++) {
+                        writer.write((sender + ":" + record + "\n").getBytes());
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Every record arrived in one piece, records of each sender in order
+        int[] next = new int[senders];
+        String[] lines = new String(stream.content.toByteArray()).split("\n");
+        Assert.assertEquals(senders * records, lines.length);
+        for (String line : lines) {
+            String[] parts = line.split(":");
+            int sender = Integer.parseInt(parts[0]);
+            Assert.assertEquals(next[sender], Integer.parseInt(parts[1]));
+            next[sender]++;
+        }
+
+        System.out.println(senders * records + " records in " + stream.writes.get() + " writes.");
+        Assert.assertTrue(stream.writes.get() * 10 < senders * records);
+    }
+
+    /**
+     * A single record must be written immediately, not held back.
+     */
+    @Test
+    public void noLingerTest()
+    {
+        SlowCountingStream stream = new SlowCountingStream();
+        CoalescingWriter writer = new CoalescingWriter(stream);
+        writer.write("Toto\n".getBytes());
+        Assert.assertEquals("Toto\n", new String(stream.content.toByteArray()));
+        Assert.assertEquals(1, stream.flushes.get());
+    }
+
+    /**
+     * Counts writes and flushes. Each write takes a few microseconds, like a
+     * syscall.
+     */
+    private static class SlowCountingStream extends OutputStream
+    {
+
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private final AtomicInteger writes = new AtomicInteger();
+        private final AtomicInteger flushes = new AtomicInteger();
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            writes.incrementAndGet();
+            content.write(bytes, offset, length);
+            long end = System.nanoTime() + 5000;
+            while (System.nanoTime() < end) {
+                // busy, like the kernel copying the bytes
+            }
+        }
+
+        @Override
+        public void flush()
+        {
+            flushes.incrementAndGet();
+        }
+
+    }
+
+}
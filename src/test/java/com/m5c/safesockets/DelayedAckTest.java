@@ -0,0 +1,97 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests receiver side ACK coalescing.
+ *
+ * @author m5c
+ */
+public class DelayedAckTest extends AbstractTest
+{
+
+    private static final int ACK_DELAY = 50;
+    private static final int ACK_BATCH_SIZE = 16;
+
+    public DelayedAckTest()
+    {
+        options.setAckMode(AckMode.SEQUENCE).setDelayedAcks(ACK_DELAY, ACK_BATCH_SIZE).setMaxInFlightMessages(64);
+    }
+
+    /**
+     * A burst of pipelined messages must be acknowledged completely, but with
+     * only a fraction of the ACK traffic.
+     */
+    @Test(timeout = 10000)
+    public void coalescedBurstTest() throws IOException, InterruptedException, ExecutionException
+    {
+        for (WireFormat wireFormat : WireFormat.values()) {
+            resetBreakdownFlag();
+            options.setWireFormat(wireFormat);
+            AckCountingFilter ackCounter = new AckCountingFilter();
+            SafeSocketPair pair = setupMasterSlaveConnection(-1, ackCounter);
+
+            int amount = 1000;
+            List<CompletableFuture<Boolean>> acks = new LinkedList<CompletableFuture<Boolean>>();
+            for (int i = 0; i < amount; i++) {
+                acks.add(pair.getMaster().sendMessageAsync("Message " + i));
+            }
+            for (CompletableFuture<Boolean> ack : acks) {
+                Assert.assertTrue(ack.get());
+            }
+            System.out.println(wireFormat + ": " + amount + " messages acknowledged by " + ackCounter.acks.get() + " cumulative ACKs.");
+            Assert.assertTrue(ackCounter.acks.get() <= amount / ACK_BATCH_SIZE * 2);
+
+            shutDownConnection(true, pair);
+        }
+    }
+
+    /**
+     * A single message is ACKed once the delay has passed, no need to wait for
+     * a full batch.
+     */
+    @Test(timeout = 5000)
+    public void delayedSingleAckTest() throws IOException, InterruptedException
+    {
+        options.setWireFormat(WireFormat.TEXT);
+        SafeSocketPair pair = setupMasterSlaveConnection();
+
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(pair.getMaster().sendMessage("Toto"));
+        Assert.assertTrue(System.currentTimeMillis() - start >= ACK_DELAY);
+
+        shutDownConnection(false, pair);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hashModeRejectedTest() throws IOException
+    {
+        new SafeSocket("localhost", PORT, heartBeatRate, timeout, messageObservers, breakdownObservers, new DefaultFilter(), new DefaultFilter(), new SafeSocketOptions().setDelayedAcks(ACK_DELAY, ACK_BATCH_SIZE));
+    }
+
+    /**
+     * Counts the cumulative ACKs passing by, without modifying any traffic.
+     */
+    private static class AckCountingFilter implements Filter
+    {
+
+        private final AtomicInteger acks = new AtomicInteger();
+
+        @Override
+        public String filter(String input)
+        {
+            if (input.startsWith(InternalMessages.CUMULATIVE_ACK))
+                acks.incrementAndGet();
+            return input;
+        }
+
+    }
+
+}
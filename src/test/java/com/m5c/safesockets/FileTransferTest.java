@@ -0,0 +1,159 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests file transfers. The server side socket is channel based, so files sent
+ * by the master go through transferTo, while the slave's files are copied.
+ *
+ * @author m5c
+ */
+public class FileTransferTest extends AbstractTest implements FileObserver
+{
+
+    private static final int FILE_SIZE = 20 * 1024 * 1024;
+
+    // Received files by name, added once completely written
+    private final Map<String, Path> receivedFiles = Collections.synchronizedMap(new LinkedHashMap<String, Path>());
+
+    public FileTransferTest()
+    {
+        options.setWireFormat(WireFormat.FRAMED).setFileObserver(this);
+    }
+
+    // Channel based server socket, so the master side can send without copying.
+    @BeforeClass
+    public static void setUpClass() throws IOException
+    {
+        serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(PORT)).socket();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws IOException
+    {
+        serverSocket.close();
+    }
+
+    @Override
+    public FileChannel openFile(SafeSocket safeSocket, String name, long size) throws IOException
+    {
+        Path target = Files.createTempFile("received-", ".bin");
+        target.toFile().deleteOnExit();
+        receivedFiles.put(name, target);
+        return FileChannel.open(target, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void notifyFileReceived(SafeSocket safeSocket, String name, FileChannel file)
+    {
+        try {
+            file.close();
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * A large file must arrive unaltered in both directions, while heartbeats
+     * keep the connection alive and messages still get through.
+     */
+    @Test(timeout = 30000)
+    public void fileTransferTest() throws IOException, InterruptedException
+    {
+        Path file = createFile(FILE_SIZE);
+        SafeSocketPair pair = setupMasterSlaveConnection();
+
+        Assert.assertTrue(pair.getMaster().sendFile(file));
+        assertReceived(file);
+        receivedFiles.clear();
+
+        Assert.assertTrue(pair.getSlave().sendFile(file));
+        assertReceived(file);
+
+        Assert.assertTrue(pair.getMaster().sendMessage("After the files"));
+        shutDownConnection(true, pair);
+    }
+
+    /**
+     * Only the given region of the channel is sent, under the given name.
+     */
+    @Test(timeout = 10000)
+    public void fileRegionTest() throws IOException, InterruptedException, ExecutionException
+    {
+        Path file = createFile(300000);
+        SafeSocketPair pair = setupMasterSlaveConnection();
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        CompletableFuture<Boolean> ack = pair.getMaster().sendFileAsync(channel, 1000, 200000, "region");
+        Assert.assertTrue(ack.get());
+        channel.close();
+        byte[] expected = Arrays.copyOfRange(Files.readAllBytes(file), 1000, 201000);
+        Assert.assertArrayEquals(expected, Files.readAllBytes(receivedFiles.get("region")));
+
+        shutDownConnection(true, pair);
+    }
+
+    /**
+     * An empty file is just announced and acknowledged.
+     */
+    @Test(timeout = 5000)
+    public void emptyFileTest() throws IOException, InterruptedException
+    {
+        Path file = createFile(0);
+        SafeSocketPair pair = setupMasterSlaveConnection();
+
+        Assert.assertTrue(pair.getSlave().sendFile(file));
+        assertReceived(file);
+
+        shutDownConnection(false, pair);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void textFormatRejectedTest() throws IOException, InterruptedException
+    {
+        options.setWireFormat(WireFormat.TEXT);
+        SafeSocketPair pair = setupMasterSlaveConnection();
+        try {
+            pair.getMaster().sendFile(createFile(10));
+        }
+        finally {
+            shutDownConnection(true, pair);
+        }
+    }
+
+    private static Path createFile(int size) throws IOException
+    {
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        Path file = Files.createTempFile("sent-", ".bin");
+        file.toFile().deleteOnExit();
+        Files.write(file, content);
+        return file;
+    }
+
+    private void assertReceived(Path sent) throws IOException
+    {
+        Path received = receivedFiles.get(sent.getFileName().toString());
+        Assert.assertNotNull(received);
+        Assert.assertArrayEquals(Files.readAllBytes(sent), Files.readAllBytes(received));
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests credit based flow control: while the observers are stuck, the sender
+ * must not send beyond the receive window (in messages and size), the
+ * connection must survive, and everything must arrive once they go on.
+ *
+ * @author m5c
+ */
+public class FlowControlTest extends AbstractTest
+{
+
+    private static final int MESSAGES = 20;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    public FlowControlTest()
+    {
+        super(100, 500);
+        messageObservers.add(new MessageObserver()
+        {
+            @Override
+            public void notifyMessageObserver(SafeSocket safeSocket, String message)
+            {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * TEXT format, window of 4 messages.
+     */
+    @Test(timeout = 20000)
+    public void messageWindowTest() throws IOException, InterruptedException
+    {
+        options.setReceiveWindow(4);
+        windowTest(4, 0, "Message");
+    }
+
+    /**
+     * FRAMED format, window of 50 chars: 20 char messages are sent while some
+     * credit is left, i.e. 3 of them. The message credit is not used up.
+     */
+    @Test(timeout = 20000)
+    public void sizeWindowTest() throws IOException, InterruptedException
+    {
+        options.setWireFormat(WireFormat.FRAMED).setAckMode(AckMode.SEQUENCE).setReceiveWindow(100, 50);
+        windowTest(3, 97, "Twenty chars message");
+    }
+
+    /**
+     * Messages discarded by the receiver's inbound filter must return their
+     * credit, so the sender goes on beyond the window (until the missing ACKs
+     * break the connection).
+     */
+    @Test(timeout = 20000)
+    public void discardedMessageTest() throws IOException, InterruptedException
+    {
+        options.setWireFormat(WireFormat.FRAMED).setAckMode(AckMode.SEQUENCE).setReceiveWindow(4);
+        resetBreakdownFlag();
+        final SafeSocketPair pair = setupMasterSlaveConnection(-1, new Filter()
+        {
+            @Override
+            public String filter(String input)
+            {
+                return input.startsWith("Drop") ? InternalMessages.MESSAGE_DISCARDED : input;
+            }
+        });
+
+        final AtomicInteger sent = new AtomicInteger();
+        Thread sender = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < MESSAGES; i++) {
+                    pair.getMaster().sendMessageAsync("Drop me");
+                    sent.incrementAndGet();
+                }
+            }
+        });
+        sender.start();
+        sender.join(timeout / 2);
+        Assert.assertTrue(pair.getMaster().isSocketAlive());
+        Assert.assertEquals(MESSAGES, sent.get());
+
+        shutDownConnection(true, pair);
+    }
+
+    private void windowTest(int window, long remainingCredit, final String message) throws IOException, InterruptedException
+    {
+        resetBreakdownFlag();
+        resetReceivedMessageList();
+        final SafeSocketPair pair = setupMasterSlaveConnection();
+
+        final List<CompletableFuture<Boolean>> acks = new ArrayList<CompletableFuture<Boolean>>();
+        final AtomicInteger sent = new AtomicInteger();
+        Thread sender = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < MESSAGES; i++) {
+                    CompletableFuture<Boolean> ack = pair.getMaster().sendMessageAsync(message);
+                    synchronized (acks) {
+                        acks.add(ack);
+                    }
+                    sent.incrementAndGet();
+                }
+            }
+        });
+        sender.start();
+
+        // Observers stuck for longer than the ACK timeout: the sender must wait, without breaking the connection
+        Thread.sleep(3 * timeout);
+        Assert.assertEquals(window, sent.get());
+        Assert.assertEquals(remainingCredit, pair.getMaster().getAvailableCredit());
+        Assert.assertTrue(pair.getMaster().isSocketAlive());
+        synchronized (acks) {
+            for (CompletableFuture<Boolean> ack : acks) {
+                Assert.assertTrue(ack.join());
+            }
+        }
+
+        release.countDown();
+        sender.join();
+        while (receivedMessages.size() < MESSAGES) {
+            Thread.sleep(10);
+        }
+        for (CompletableFuture<Boolean> ack : acks) {
+            Assert.assertTrue(ack.join());
+        }
+        Assert.assertNull(mostRecentIntendedFlag);
+
+        shutDownConnection(true, pair);
+    }
+
+}
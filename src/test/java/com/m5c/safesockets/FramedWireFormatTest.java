@@ -0,0 +1,50 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the FRAMED wire format. (Its throughput compared to the TEXT format
+ * is measured by the WireFormatBenchmark of the benchmarks module.)
+ *
+ * @author m5c
+ */
+public class FramedWireFormatTest extends AbstractTest
+{
+
+    /**
+     * Payloads are transparent in FRAMED mode: Reserved keywords, empty lines
+     * and trailing newlines must arrive unchanged.
+     */
+    @Test(timeout = 5000)
+    public void transparentPayloadTest() throws IOException, InterruptedException
+    {
+        resetBreakdownFlag();
+        resetReceivedMessageList();
+        options.setWireFormat(WireFormat.FRAMED);
+        SafeSocketPair pair = setupMasterSlaveConnection();
+        options.setWireFormat(WireFormat.TEXT);
+
+        String[] testMessages = new String[]{
+            "Toto",
+            InternalMessages.DISCONNECT,
+            "Line one\n" + InternalMessages.MESSAGE_DELIMITER + "42\nLine three",
+            "Trailing newline and empty line\n\n",
+            "Umlauts: äöü"
+        };
+        for (String testMessage : testMessages) {
+            Assert.assertTrue(pair.getMaster().sendMessage(testMessage));
+        }
+
+        while (receivedMessages.size() < testMessages.length) {
+            Thread.sleep(20);
+        }
+        for (String testMessage : testMessages) {
+            Assert.assertTrue(receivedMessages.contains(testMessage));
+        }
+
+        shutDownConnection(true, pair);
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests idle heartbeats: busy connections must not exchange heartbeats, idle
+ * ones must stay alive, and breakdowns must be detected as fast as with
+ * regular heartbeats.
+ *
+ * @author m5c
+ */
+public class IdleHeartBeatTest extends AbstractTest
+{
+
+    public IdleHeartBeatTest()
+    {
+        super(50, 300);
+        options.setIdleHeartBeats(true);
+    }
+
+    /**
+     * While messages and their ACKs flow in both directions, (almost) no
+     * heartbeats are sent. Once idle, heartbeats keep the connection alive.
+     */
+    @Test(timeout = 10000)
+    public void busyConnectionTest() throws IOException, InterruptedException
+    {
+        HeartBeatCounter counter = new HeartBeatCounter();
+        SafeSocketPair pair = setupMasterSlaveConnection(-1, counter);
+
+        long start = System.currentTimeMillis();
+        int sent = 0;
+        while (System.currentTimeMillis() - start < 1000) {
+            Assert.assertTrue(pair.getMaster().sendMessage("Busy " + sent));
+            sent++;
+        }
+        int busyHeartBeats = counter.heartBeats.get();
+        System.out.println("Idle heartbeats: " + busyHeartBeats + " heartbeats during " + sent + " messages in 1000 ms (period " + heartBeatRate + " ms).");
+        Assert.assertTrue(busyHeartBeats <= 2);
+
+        Thread.sleep(10 * heartBeatRate);
+        Assert.assertTrue(counter.heartBeats.get() - busyHeartBeats >= 5);
+        Assert.assertTrue(pair.getMaster().isSocketAlive());
+        Assert.assertTrue(pair.getSlave().isSocketAlive());
+        Assert.assertTrue(pair.getSlave().sendMessage("Still alive"));
+
+        shutDownConnection(true, pair);
+    }
+
+    /**
+     * After the network drops out, both sides detect the breakdown within
+     * period + timeout.
+     */
+    @Test(timeout = 10000)
+    public void dropoutTest() throws IOException, InterruptedException
+    {
+        SafeSocketPair pair = setupMasterSlaveConnection(500, new TimedDropFilter(500));
+        Assert.assertTrue(pair.getMaster().sendMessage("Before the dropout"));
+        Thread.sleep(500);
+        long dropout = System.currentTimeMillis();
+        while (pair.getMaster().isSocketAlive() || pair.getSlave().isSocketAlive()) {
+            Thread.sleep(5);
+        }
+        long detection = System.currentTimeMillis() - dropout;
+        System.out.println("Idle heartbeats: breakdown detected " + detection + " ms after the dropout.");
+        Assert.assertTrue(detection <= heartBeatRate + timeout + 100);
+        while (mostRecentIntendedFlag == null) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(mostRecentIntendedFlag);
+    }
+
+    /**
+     * Counts the heartbeats arriving at the slave.
+     */
+    private static class HeartBeatCounter implements Filter
+    {
+
+        private final AtomicInteger heartBeats = new AtomicInteger();
+
+        @Override
+        public String filter(String input)
+        {
+            if (input.startsWith(InternalMessages.HEART_BEAT))
+                heartBeats.incrementAndGet();
+            return input;
+        }
+
+    }
+
+}
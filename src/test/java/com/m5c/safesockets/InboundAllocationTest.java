@@ -0,0 +1,246 @@
+package com.m5c.safesockets;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Measures the bytes allocated by the inbound path (decoder and parser) per
+ * received message, for both wire formats. Internal traffic must not allocate
+ * at all, user messages only their String. Hostile input must not make the
+ * inbound path allocate beyond the max message size.
+ *
+ * @author m5c
+ */
+public class InboundAllocationTest
+{
+
+    private static final int MESSAGES = 20000;
+
+    // Same buffer size as the SocketReaderThread
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final SafeSocketOptions options = new SafeSocketOptions().setAckMode(AckMode.SEQUENCE);
+
+    @Test(timeout = 30000)
+    public void internalTrafficTest() throws UnfriendlyConnectionBreakdownException
+    {
+        for (WireFormat wireFormat : WireFormat.values()) {
+            ByteArrayOutputStream traffic = new ByteArrayOutputStream();
+            MessageWriter writer = createWriter(wireFormat, traffic);
+            for (int i = 0; i < MESSAGES; i++) {
+                writer.writeMessageAck(i);
+                writer.writeHeartBeat(i);
+                writer.writeHeartBeatAck(i);
+                writer.writeCumulativeAck(i);
+            }
+            writer.awaitWritten();
+
+            CountingHandler handler = new CountingHandler();
+            double perMessage = measure(wireFormat, traffic.toByteArray(), handler) / (4.0 * MESSAGES);
+            System.out.println(wireFormat + ": " + perMessage + " bytes allocated per ACK / heartbeat.");
+            Assert.assertEquals(4 * MESSAGES, handler.internalMessages);
+            Assert.assertTrue(perMessage < 1);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void userMessageTest() throws UnfriendlyConnectionBreakdownException
+    {
+        for (WireFormat wireFormat : WireFormat.values()) {
+            ByteArrayOutputStream traffic = new ByteArrayOutputStream();
+            MessageWriter writer = createWriter(wireFormat, traffic);
+            for (int i = 0; i < MESSAGES; i++) {
+                writer.writeUserMessage("Message " + (100000 + i), i, MessageChecksum.NONE);
+            }
+            writer.awaitWritten();
+
+            CountingHandler handler = new CountingHandler();
+            double perMessage = measure(wireFormat, traffic.toByteArray(), handler) / MESSAGES;
+            System.out.println(wireFormat + ": " + perMessage + " bytes allocated per 14 character message.");
+            Assert.assertEquals(MESSAGES, handler.userMessages);
+
+            // The String of the message (object and array), plus the frame payload for FRAMED
+            Assert.assertTrue(perMessage < 128);
+        }
+    }
+
+    /**
+     * A line without line end must break the connection once it exceeds the
+     * max message size, instead of being buffered without limit.
+     */
+    @Test(timeout = 10000, expected = UnfriendlyConnectionBreakdownException.class)
+    public void unterminatedLineTest() throws UnfriendlyConnectionBreakdownException
+    {
+        options.setMaxMessageSize(1000);
+        InboundDecoder decoder = createDecoder(WireFormat.TEXT, new CountingHandler());
+        ByteBuffer chunk = ByteBuffer.wrap(new byte[BUFFER_SIZE]);
+        Arrays.fill(chunk.array(), (byte) 'x');
+        decoder.decode(chunk);
+    }
+
+    /**
+     * A control frame announcing a huge payload must break the connection
+     * before any memory is allocated for it.
+     */
+    @Test(timeout = 10000, expected = UnfriendlyConnectionBreakdownException.class)
+    public void oversizedFrameTest() throws UnfriendlyConnectionBreakdownException
+    {
+        InboundDecoder decoder = createDecoder(WireFormat.FRAMED, new CountingHandler());
+        ByteBuffer header = ByteBuffer.allocate(InternalMessages.FRAME_HEADER_SIZE);
+        header.put(InternalMessages.FRAME_HEART_BEAT).putInt(Integer.MAX_VALUE - 8).putLong(1);
+        header.flip();
+        decoder.decode(header);
+    }
+
+    private MessageWriter createWriter(WireFormat wireFormat, ByteArrayOutputStream traffic)
+    {
+        if (wireFormat == WireFormat.FRAMED)
+            return new FramedMessageWriter(traffic, null, new DefaultFilter());
+        return new TextMessageWriter(traffic, new DefaultFilter());
+    }
+
+    /**
+     * Decodes the traffic twice (the first time to warm up), returns the
+     * bytes allocated by the second run.
+     */
+    private long measure(WireFormat wireFormat, byte[] traffic, CountingHandler handler) throws UnfriendlyConnectionBreakdownException
+    {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        decode(createDecoder(wireFormat, new CountingHandler()), traffic, buffer);
+        InboundDecoder decoder = createDecoder(wireFormat, handler);
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        decode(decoder, traffic, buffer);
+        return threadBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    private InboundDecoder createDecoder(WireFormat wireFormat, CountingHandler handler)
+    {
+        if (wireFormat == WireFormat.FRAMED)
+            return new FramedInboundDecoder(new FrameParser(handler, new DefaultFilter(), options));
+        return new TextInboundDecoder(new TextProtocolParser(handler, new DefaultFilter(), options));
+    }
+
+    /**
+     * Feeds the traffic through the direct buffer, as the reader does.
+     */
+    private static void decode(InboundDecoder decoder, byte[] traffic, ByteBuffer buffer) throws UnfriendlyConnectionBreakdownException
+    {
+        for (int offset = 0; offset < traffic.length; offset += BUFFER_SIZE) {
+            buffer.clear();
+            buffer.put(traffic, offset, Math.min(BUFFER_SIZE, traffic.length - offset));
+            buffer.flip();
+            decoder.decode(buffer);
+        }
+    }
+
+    /**
+     * Counts what comes in, without allocating anything itself.
+     */
+    private static class CountingHandler extends MessageHandler
+    {
+
+        private int internalMessages = 0;
+        private int userMessages = 0;
+
+        @Override
+        protected void handleInternalMessage(String message)
+        {
+            internalMessages++;
+        }
+
+        @Override
+        protected void handleMessageAck(int sequence)
+        {
+            internalMessages++;
+        }
+
+        @Override
+        protected void handleHeartBeat(int heartBeatId)
+        {
+            internalMessages++;
+        }
+
+        @Override
+        protected void handleHeartBeatAck(int heartBeatId)
+        {
+            internalMessages++;
+        }
+
+        @Override
+        protected void handleCumulativeAck(int sequence)
+        {
+            internalMessages++;
+        }
+
+        @Override
+        protected void handleCredit(long messages, long size)
+        {
+            internalMessages++;
+        }
+
+        @Override
+        protected void handleUserMessage(String message, int salt, long checksum)
+        {
+            userMessages++;
+        }
+
+        @Override
+        protected void handleUserMessageChunk(ByteBuffer chunk)
+        {
+        }
+
+        @Override
+        protected void handleUserMessageEnd(int salt, long checksum)
+        {
+            userMessages++;
+        }
+
+        @Override
+        protected void handleDiscardedMessage(long size)
+        {
+        }
+
+        @Override
+        protected void handleBinaryMessage(ByteBuffer message, int salt, long checksum)
+        {
+            userMessages++;
+        }
+
+        @Override
+        protected void handleFileStart(int transferId, String name, long size)
+        {
+        }
+
+        @Override
+        protected void handleFileChunk(int transferId, ByteBuffer chunk)
+        {
+        }
+
+        @Override
+        protected void handleFileEnd(int transferId)
+        {
+        }
+
+        @Override
+        protected void handleFileAck(int transferId)
+        {
+        }
+
+        @Override
+        protected void assymentricDisconnect(boolean intended)
+        {
+            throw new IllegalStateException("Unexpected disconnect.");
+        }
+
+    }
+
+}
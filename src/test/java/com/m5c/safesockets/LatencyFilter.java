@@ -10,13 +10,21 @@ import com.m5c.safesockets.Filter;
 public class LatencyFilter implements Filter
 {
 
-    private final long delay;
+    private volatile long delay;
 
     public LatencyFilter(long delay)
     {
         this.delay = delay;
     }
 
+    /**
+     * Changes the emulated delay, from the next filtered message on.
+     */
+    public void setDelay(long delay)
+    {
+        this.delay = delay;
+    }
+
     @Override
     public String filter(String input)
     {
@@ -0,0 +1,144 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the connection metrics, their aggregation by the MetricsRegistry and
+ * the MBeans.
+ *
+ * @author m5c
+ */
+public class MetricsTest extends AbstractTest
+{
+
+    private static final int MESSAGES = 200;
+
+    public MetricsTest()
+    {
+        super(100, 1000);
+    }
+
+    @Test(timeout = 20000)
+    public void trafficTest() throws IOException, InterruptedException, JMException
+    {
+        // Connections of other tests may still be around, and send heartbeats
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        long sentBefore = registry.getMessagesSent();
+        int liveBefore = registry.getLiveConnections();
+        SafeSocketPair pair = setupMasterSlaveConnection();
+        ConnectionMetrics master = pair.getMaster().getMetrics();
+        ConnectionMetrics slave = pair.getSlave().getMetrics();
+
+        for (int i = 0; i < MESSAGES; i++) {
+            Assert.assertTrue(pair.getMaster().sendMessage("Metered " + i));
+        }
+        Thread.sleep(3 * heartBeatRate);
+
+        System.out.println("Metrics: ACK latency p50 " + master.getAckLatencyP50() + " ms, p99 " + master.getAckLatencyP99() + " ms, p999 " + master.getAckLatencyP999() + " ms, heartbeat RTT " + master.getLastHeartBeatRtt() + " ms.");
+        Assert.assertEquals(MESSAGES, master.getMessagesSent());
+        Assert.assertEquals(MESSAGES, slave.getMessagesReceived());
+        Assert.assertEquals(0, master.getInFlightMessages());
+        Assert.assertTrue(master.getBytesSent() > MESSAGES * "Metered ".length());
+        Assert.assertTrue(master.getAckLatencyP50() > 0);
+        Assert.assertTrue(master.getAckLatencyP50() <= master.getAckLatencyP99());
+        Assert.assertTrue(master.getAckLatencyP99() <= master.getAckLatencyP999());
+        Assert.assertTrue(master.getLastHeartBeatRtt() > 0);
+        Assert.assertEquals(-1, slave.getLastHeartBeatRtt(), 0);
+
+        // The connections are visible through JMX (the master's remote address is unique), as is the registry
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName masterName = findConnection(server, master.getRemoteAddress());
+        Assert.assertEquals((long) MESSAGES, server.getAttribute(masterName, "MessagesSent"));
+        ObjectName registryName = new ObjectName("com.m5c.safesockets:type=MetricsRegistry");
+        Assert.assertTrue((Integer) server.getAttribute(registryName, "LiveConnections") >= 2);
+        Assert.assertTrue((Integer) server.getAttribute(registryName, "LiveHelperThreads") >= 2);
+
+        // Closed connections leave JMX, but still count for the totals
+        shutDownConnection(true, pair);
+        Assert.assertFalse(server.isRegistered(masterName));
+        Assert.assertTrue(registry.getLiveConnections() <= liveBefore);
+        Assert.assertEquals(sentBefore + MESSAGES, registry.getMessagesSent());
+        Assert.assertEquals(0, master.getTimeouts(TimeoutCause.MESSAGE_ACK));
+
+        // Everything the master wrote has been read by the slave, except for a heartbeat possibly racing the close
+        long unread = master.getBytesSent() - slave.getBytesReceived();
+        Assert.assertTrue(unread >= 0 && unread < 64);
+    }
+
+    @Test(timeout = 10000)
+    public void timeoutCauseTest() throws IOException, InterruptedException
+    {
+        long timeoutsBefore = MetricsRegistry.getInstance().getTimeouts(TimeoutCause.MESSAGE_ACK);
+        SafeSocketPair pair = setupMasterSlaveConnection(-1, new AckDropFilter());
+        Assert.assertFalse(pair.getMaster().sendMessage("Never acknowledged"));
+        while (mostRecentIntendedFlag == null) {
+            Thread.sleep(10);
+        }
+        ConnectionMetrics master = pair.getMaster().getMetrics();
+        Assert.assertEquals(1, master.getTimeouts(TimeoutCause.MESSAGE_ACK));
+        Assert.assertEquals(0, master.getTimeouts(TimeoutCause.HEART_BEAT_ACK));
+        Assert.assertEquals(timeoutsBefore + 1, MetricsRegistry.getInstance().getTimeouts(TimeoutCause.MESSAGE_ACK));
+        while (pair.getSlave().isSocketAlive()) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Percentiles are reported at most 12.5 % above the actual value.
+     */
+    @Test
+    public void histogramTest()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        Assert.assertEquals(10000, histogram.getCount());
+        assertClose(TimeUnit.MICROSECONDS.toNanos(5000), histogram.getPercentile(0.5));
+        assertClose(TimeUnit.MICROSECONDS.toNanos(9900), histogram.getPercentile(0.99));
+        assertClose(TimeUnit.MICROSECONDS.toNanos(9990), histogram.getPercentile(0.999));
+        for (long value = 0; value < 1L << 20; value += 7) {
+            int index = LatencyHistogram.index(value);
+            Assert.assertTrue(LatencyHistogram.lowestValue(index) <= value && value <= LatencyHistogram.highestValue(index));
+        }
+    }
+
+    private static ObjectName findConnection(MBeanServer server, String remoteAddress) throws JMException
+    {
+        for (ObjectName name : server.queryNames(new ObjectName("com.m5c.safesockets:type=Connection,*"), null)) {
+            if (remoteAddress.equals(server.getAttribute(name, "RemoteAddress")))
+                return name;
+        }
+        throw new AssertionError("No MBean for " + remoteAddress);
+    }
+
+    private static void assertClose(long expected, long actual)
+    {
+        Assert.assertTrue(actual >= expected && actual <= expected * 1.125);
+    }
+
+    /**
+     * Drops the message ACKs of the slave side.
+     */
+    private static class AckDropFilter implements Filter
+    {
+
+        @Override
+        public String filter(String input)
+        {
+            if (input.startsWith(InternalMessages.MESSAGE_ACK))
+                return InternalMessages.MESSAGE_DISCARDED;
+            return input;
+        }
+
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.nio.channels.ServerSocketChannel;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests SafeSockets served by a SafeSocketEngine. (The cost of idle
+ * connections compared to the thread-per-socket model is measured by the
+ * IdleConnectionBenchmark of the benchmarks module.)
+ *
+ * @author m5c
+ */
+public class NioEngineTest extends AbstractTest
+{
+
+    private static SafeSocketEngine engine;
+
+    public NioEngineTest()
+    {
+        // Relaxed heartbeat rate. The client side only tolerates half a period of heartbeat jitter, bursts delay the heartbeats in the receiver's queue.
+        super(1000, 3000);
+        options.setEngine(engine);
+    }
+
+    // The engine requires a channel based server socket.
+    @BeforeClass
+    public static void setUpClass() throws IOException
+    {
+        serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(PORT)).socket();
+        engine = new SafeSocketEngine(2);
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws IOException
+    {
+        engine.shutdown();
+        serverSocket.close();
+    }
+
+    /**
+     * Messages of both wire formats must arrive completely, and a connection
+     * must close properly.
+     */
+    @Test(timeout = 10000)
+    public void messageExchangeTest() throws IOException, InterruptedException, ExecutionException
+    {
+        for (WireFormat wireFormat : WireFormat.values()) {
+            resetBreakdownFlag();
+            resetReceivedMessageList();
+            options.setWireFormat(wireFormat).setMaxInFlightMessages(64);
+            SafeSocketPair pair = setupMasterSlaveConnection();
+
+            int amount = 1000;
+            List<CompletableFuture<Boolean>> acks = new LinkedList<CompletableFuture<Boolean>>();
+            for (int i = 0; i < amount; i++) {
+                acks.add(pair.getMaster().sendMessageAsync("Message " + i + "\nsecond line"));
+            }
+            for (CompletableFuture<Boolean> ack : acks) {
+                Assert.assertTrue(ack.get());
+            }
+            Assert.assertTrue(pair.getSlave().sendMessage("Reply"));
+            while (receivedMessages.size() < amount + 1) {
+                Thread.sleep(20);
+            }
+            Assert.assertTrue(receivedMessages.contains("Message 42\nsecond line"));
+            Assert.assertTrue(receivedMessages.contains("Reply"));
+
+            shutDownConnection(wireFormat == WireFormat.TEXT, pair);
+        }
+    }
+
+    /**
+     * Heartbeats scheduled by the TimingWheel must keep an idle connection
+     * alive.
+     */
+    @Test(timeout = 10000)
+    public void idleConnectionSurvivesTest() throws IOException, InterruptedException
+    {
+        SafeSocketPair pair = setupMasterSlaveConnection();
+        Thread.sleep(3500);
+        Assert.assertNull(mostRecentIntendedFlag);
+        Assert.assertTrue(pair.getMaster().isSocketAlive() && pair.getSlave().isSocketAlive());
+
+        shutDownConnection(false, pair);
+    }
+
+    /**
+     * A connection whose heartbeats are dropped must still break down.
+     */
+    @Test(timeout = 10000)
+    public void breakdownDetectedTest() throws IOException, InterruptedException
+    {
+        SafeSocketPair pair = setupMasterSlaveConnection(500, new DefaultFilter());
+        while (pair.getMaster().isSocketAlive() || pair.getSlave().isSocketAlive()) {
+            Thread.sleep(50);
+        }
+        Assert.assertFalse(mostRecentIntendedFlag);
+    }
+
+    /**
+     * Closing a connection whose peer does not read anymore must not hang,
+     * while a sender is blocked by the full outbound queue. The heartbeat
+     * timeout has to break the connection meanwhile.
+     */
+    @Test(timeout = 20000)
+    public void closeUnreadConnectionTest() throws IOException, InterruptedException
+    {
+        ServerSocket peerServer = new ServerSocket(0);
+        final SafeSocket safeSocket = new SafeSocket("localhost", peerServer.getLocalPort(), heartBeatRate, timeout, messageObservers, breakdownObservers, new DefaultFilter(), new DefaultFilter(), options);
+        // Accepted, but never read
+        Socket peer = peerServer.accept();
+
+        char[] content = new char[64 * 1024];
+        Arrays.fill(content, 'x');
+        final String payload = new String(content);
+        Thread sender = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while (safeSocket.isSocketAlive()) {
+                    safeSocket.sendMessageAsync(payload);
+                }
+            }
+        });
+        sender.start();
+
+        // Let the socket buffers and the outbound queue fill up
+        Thread.sleep(500);
+        safeSocket.close();
+        Assert.assertFalse(safeSocket.isSocketAlive());
+        sender.join();
+
+        peer.close();
+        peerServer.close();
+    }
+
+}
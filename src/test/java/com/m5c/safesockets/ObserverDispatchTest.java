@@ -0,0 +1,402 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Predicate;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the ordered, bounded delivery of incoming messages to the
+ * MessageObservers. (Its throughput is measured by the DispatchBenchmark and
+ * ThreadDispatchBenchmark of the benchmarks module.)
+ *
+ * @author m5c
+ */
+public class ObserverDispatchTest extends AbstractTest
+{
+
+    /**
+     * Messages flooding in must reach every observer in arrival order.
+     */
+    @Test(timeout = 10000)
+    public void orderedDispatchTest() throws InterruptedException
+    {
+        OrderCheckingObserver first = new OrderCheckingObserver();
+        OrderCheckingObserver second = new OrderCheckingObserver();
+        Collection<MessageObserver> observers = new LinkedList<MessageObserver>();
+        observers.add(first);
+        observers.add(null);
+        observers.add(second);
+        ObserverDispatcher dispatcher = new ObserverDispatcher(null, observers, new SafeSocketOptions());
+
+        int amount = 100000;
+        for (int i = 0; i < amount; i++) {
+            Assert.assertTrue(dispatcher.dispatch(Integer.toString(i)));
+        }
+        first.awaitMessages(amount);
+        second.awaitMessages(amount);
+        Assert.assertEquals(0, first.misordered.get() + second.misordered.get());
+    }
+
+    /**
+     * An observer that cannot keep up must break the connection (instead of
+     * blocking the reader), and the sender must learn about the lost
+     * messages.
+     */
+    @Test(timeout = 10000)
+    public void overflowDisconnectTest() throws IOException, InterruptedException, ExecutionException
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        MessageObserver blockingObserver = new MessageObserver()
+        {
+            @Override
+            public void notifyMessageObserver(SafeSocket safeSocket, String message)
+            {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        messageObservers.add(blockingObserver);
+        options.setObserverQueueLimit(4, OverflowPolicy.DISCONNECT);
+        SafeSocketPair pair = setupMasterSlaveConnection();
+
+        List<CompletableFuture<Boolean>> acks = new LinkedList<CompletableFuture<Boolean>>();
+        for (int i = 0; i < 20; i++) {
+            acks.add(pair.getMaster().sendMessageAsync("Message " + i));
+        }
+        int acknowledged = 0;
+        for (CompletableFuture<Boolean> ack : acks) {
+            if (ack.get())
+                acknowledged++;
+        }
+        // At most one message in the observer plus a full queue
+        Assert.assertTrue(acknowledged <= 5);
+        while (mostRecentIntendedFlag == null) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(mostRecentIntendedFlag);
+        Assert.assertEquals(1, pair.getSlave().getMetrics().getObserverQueueOverflows());
+        release.countDown();
+    }
+
+    /**
+     * Partitioned dispatch must keep the order per key, and process different
+     * keys in parallel: with an observer doing 1ms of work per message, it
+     * must finish before a serial run.
+     */
+    @Test(timeout = 30000)
+    public void partitionedDispatchTest() throws InterruptedException
+    {
+        int keys = 8;
+        int amount = 800;
+        long[] millis = new long[2];
+        for (int mode = 0; mode < 2; mode++) {
+            SafeSocketOptions dispatchOptions = new SafeSocketOptions();
+            if (mode == 1)
+                dispatchOptions.setPartitionedDispatch(new MessageKeyExtractor()
+                {
+                    @Override
+                    public Object extractKey(String message)
+                    {
+                        return message.substring(0, message.indexOf(':'));
+                    }
+                }, keys);
+
+            KeyOrderCheckingObserver observer = new KeyOrderCheckingObserver(keys);
+            Collection<MessageObserver> observers = new LinkedList<MessageObserver>();
+            observers.add(observer);
+            ObserverDispatcher dispatcher = new ObserverDispatcher(null, observers, dispatchOptions);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < amount; i++) {
+                Assert.assertTrue(dispatcher.dispatch((i % keys) + ":" + i));
+            }
+            while (observer.received.get() < amount) {
+                Thread.sleep(1);
+            }
+            millis[mode] = (System.nanoTime() - start) / 1000000;
+            Assert.assertEquals(0, observer.misordered.get());
+        }
+        Assert.assertTrue(millis[1] < millis[0]);
+    }
+
+    /**
+     * Registry observers must only get the messages matching their prefix and
+     * condition, each once, no matter how many other observers are
+     * subscribed, and nothing after unsubscribing.
+     */
+    @Test(timeout = 10000)
+    public void routedDispatchTest() throws InterruptedException
+    {
+        ObserverRegistry registry = new ObserverRegistry();
+        CollectingObserver all = new CollectingObserver();
+        CollectingObserver chat = new CollectingObserver();
+        CollectingObserver room = new CollectingObserver();
+        CollectingObserver alarm = new CollectingObserver();
+        registry.subscribe(all);
+        registry.subscribe("chat:", chat);
+        registry.subscribe("chat:room1:", chat);
+        registry.subscribe("chat:room1:", room);
+        registry.subscribe("price:", new Predicate<String>()
+        {
+            @Override
+            public boolean test(String message)
+            {
+                return message.endsWith("!");
+            }
+        }, alarm);
+        List<CollectingObserver> others = new ArrayList<CollectingObserver>();
+        for (int i = 0; i < 1000; i++) {
+            CollectingObserver other = new CollectingObserver();
+            registry.subscribe("other" + i + ":", other);
+            others.add(other);
+        }
+        ObserverDispatcher dispatcher = new ObserverDispatcher(null, new LinkedList<MessageObserver>(), new SafeSocketOptions().setObserverRegistry(registry));
+
+        for (String message : new String[]{"chat:room1:Hi", "chat:room2:Yo", "price:7", "price:8!", "chat"}) {
+            Assert.assertTrue(dispatcher.dispatch(message));
+        }
+        all.awaitMessages(5);
+        chat.awaitMessages(2);
+        room.awaitMessages(1);
+        alarm.awaitMessages(1);
+        Assert.assertEquals(2, registry.unsubscribe(chat));
+        Assert.assertTrue(dispatcher.dispatch("chat:room1:Bye"));
+        all.awaitMessages(6);
+        room.awaitMessages(2);
+        Assert.assertEquals(3, dispatcher.getQueuedObservers());
+
+        Assert.assertEquals(6, all.received.size());
+        Assert.assertEquals(Arrays.asList("chat:room1:Hi", "chat:room2:Yo"), chat.received);
+        Assert.assertEquals(Arrays.asList("chat:room1:Hi", "chat:room1:Bye"), room.received);
+        Assert.assertEquals(Arrays.asList("price:8!"), alarm.received);
+        for (CollectingObserver other : others) {
+            Assert.assertTrue(other.received.isEmpty());
+        }
+    }
+
+    /**
+     * An observer throwing must not stop its queue. The exception goes to the
+     * UncaughtExceptionHandler of the executor's thread.
+     */
+    @Test(timeout = 10000)
+    public void observerExceptionTest() throws InterruptedException
+    {
+        final List<Throwable> uncaught = Collections.synchronizedList(new ArrayList<Throwable>());
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable);
+                thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler()
+                {
+                    @Override
+                    public void uncaughtException(Thread thread, Throwable ex)
+                    {
+                        uncaught.add(ex);
+                    }
+                });
+                return thread;
+            }
+        });
+        final CollectingObserver collector = new CollectingObserver();
+        MessageObserver failingObserver = new MessageObserver()
+        {
+            @Override
+            public void notifyMessageObserver(SafeSocket safeSocket, String message)
+            {
+                if (message.equals("Fail"))
+                    throw new IllegalStateException(message);
+                collector.notifyMessageObserver(safeSocket, message);
+            }
+        };
+        ObserverDispatcher dispatcher = new ObserverDispatcher(null, Collections.singletonList(failingObserver), new SafeSocketOptions().setObserverExecutor(executor));
+        Assert.assertTrue(dispatcher.dispatch("First"));
+        Assert.assertTrue(dispatcher.dispatch("Fail"));
+        Assert.assertTrue(dispatcher.dispatch("Last"));
+        collector.awaitMessages(2);
+        Assert.assertEquals(Arrays.asList("First", "Last"), collector.received);
+        Assert.assertEquals(1, uncaught.size());
+        Assert.assertEquals("Fail", uncaught.get(0).getMessage());
+        executor.shutdown();
+    }
+
+    /**
+     * Observers may be added and removed while messages are dispatched. The
+     * queues of removed observers must be dropped, also without a registry.
+     * Null entries are skipped.
+     */
+    @Test(timeout = 10000)
+    public void observerRemovalTest() throws InterruptedException
+    {
+        final List<MessageObserver> observers = Collections.synchronizedList(new ArrayList<MessageObserver>());
+        CollectingObserver first = new CollectingObserver();
+        CollectingObserver second = new CollectingObserver();
+        observers.add(first);
+        observers.add(null);
+        observers.add(second);
+        ObserverDispatcher dispatcher = new ObserverDispatcher(null, observers, new SafeSocketOptions());
+
+        final AtomicBoolean dispatching = new AtomicBoolean(true);
+        Thread modifier = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while (dispatching.get()) {
+                    CollectingObserver temporary = new CollectingObserver();
+                    observers.add(temporary);
+                    observers.remove(temporary);
+                }
+            }
+        });
+        modifier.start();
+        int amount = 10000;
+        for (int i = 0; i < amount; i++) {
+            Assert.assertTrue(dispatcher.dispatch(Integer.toString(i)));
+        }
+        dispatching.set(false);
+        modifier.join();
+
+        observers.remove(second);
+        Assert.assertTrue(dispatcher.dispatch("Last"));
+        first.awaitMessages(amount + 1);
+        second.awaitMessages(amount);
+        Assert.assertEquals(amount, second.received.size());
+        Assert.assertEquals(1, dispatcher.getQueuedObservers());
+    }
+
+    /**
+     * Observers subscribing while the connection is up must receive the
+     * matching messages from then on.
+     */
+    @Test(timeout = 10000)
+    public void registryConnectionTest() throws IOException, InterruptedException
+    {
+        ObserverRegistry registry = new ObserverRegistry();
+        options.setObserverRegistry(registry);
+        SafeSocketPair pair = setupMasterSlaveConnection();
+
+        CollectingObserver greetings = new CollectingObserver();
+        registry.subscribe("Hello", greetings);
+        Assert.assertTrue(pair.getMaster().sendMessage("Hello Slave"));
+        Assert.assertTrue(pair.getMaster().sendMessage("Bye Slave"));
+        Assert.assertTrue(pair.getMaster().sendMessage("Hello again"));
+        greetings.awaitMessages(2);
+        Assert.assertEquals(Arrays.asList("Hello Slave", "Hello again"), greetings.received);
+
+        shutDownConnection(true, pair);
+    }
+
+    /**
+     * Collects the messages it receives.
+     */
+    private static class CollectingObserver implements MessageObserver
+    {
+
+        private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void notifyMessageObserver(SafeSocket safeSocket, String message)
+        {
+            received.add(message);
+        }
+
+        void awaitMessages(int amount) throws InterruptedException
+        {
+            while (received.size() < amount) {
+                Thread.sleep(1);
+            }
+        }
+
+    }
+
+    /**
+     * Checks the order of "key:number" messages per key. Takes 1ms per
+     * message.
+     */
+    private static class KeyOrderCheckingObserver implements MessageObserver
+    {
+
+        private final AtomicInteger received = new AtomicInteger();
+        private final AtomicInteger misordered = new AtomicInteger();
+        private final AtomicIntegerArray lastMessages;
+
+        KeyOrderCheckingObserver(int keys)
+        {
+            lastMessages = new AtomicIntegerArray(keys);
+            for (int i = 0; i < keys; i++) {
+                lastMessages.set(i, -1);
+            }
+        }
+
+        @Override
+        public void notifyMessageObserver(SafeSocket safeSocket, String message)
+        {
+            int separator = message.indexOf(':');
+            int key = Integer.parseInt(message.substring(0, separator));
+            int number = Integer.parseInt(message.substring(separator + 1));
+            if (lastMessages.getAndSet(key, number) > number)
+                misordered.incrementAndGet();
+            try {
+                Thread.sleep(1);
+            }
+            catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+            received.incrementAndGet();
+        }
+
+    }
+
+    /**
+     * Counts the messages (numbers) and how many of them did not arrive in
+     * ascending order.
+     */
+    private static class OrderCheckingObserver implements MessageObserver
+    {
+
+        private final AtomicInteger received = new AtomicInteger();
+        private final AtomicInteger misordered = new AtomicInteger();
+        private volatile int lastMessage = -1;
+
+        @Override
+        public synchronized void notifyMessageObserver(SafeSocket safeSocket, String message)
+        {
+            int number = Integer.parseInt(message);
+            if (number < lastMessage)
+                misordered.incrementAndGet();
+            lastMessage = number;
+            received.incrementAndGet();
+        }
+
+        void awaitMessages(int amount) throws InterruptedException
+        {
+            while (received.get() < amount) {
+                Thread.sleep(1);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.m5c.safesockets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the PendingTable against a plain HashMap model, and under concurrent
+ * access.
+ *
+ * @author m5c
+ */
+public class PendingTableTest
+{
+
+    /**
+     * Random puts and removes (many collisions and backward shifts, several
+     * resizes) must behave like a map.
+     */
+    @Test
+    public void mapBehaviourTest()
+    {
+        PendingTable table = new PendingTable(4);
+        Map<Long, PendingMessage> model = new HashMap<Long, PendingMessage>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            long key = PendingTable.key(random.nextInt(3), random.nextInt(5000) - 2500);
+            if (random.nextBoolean()) {
+                PendingMessage entry = new PendingMessage(null, null);
+                table.put(key, entry);
+                model.put(key, entry);
+            }
+            else
+                Assert.assertSame(model.remove(key), table.remove(key));
+        }
+        Assert.assertEquals(model.size(), table.size());
+        for (Map.Entry<Long, PendingMessage> entry : model.entrySet()) {
+            Assert.assertSame(entry.getValue(), table.remove(entry.getKey()));
+        }
+        Assert.assertEquals(0, table.size());
+    }
+
+    /**
+     * Same id, different kinds: different entries.
+     */
+    @Test
+    public void kindsTest()
+    {
+        PendingTable table = new PendingTable();
+        PendingMessage message = new PendingMessage(null, null);
+        PendingMessage heartBeat = new PendingMessage(null, null);
+        table.put(PendingTable.key(PendingTable.MESSAGE, 7), message);
+        table.put(PendingTable.key(PendingTable.HEART_BEAT, 7), heartBeat);
+        Assert.assertNull(table.remove(PendingTable.key(PendingTable.FILE, 7)));
+        Assert.assertSame(heartBeat, table.remove(PendingTable.key(PendingTable.HEART_BEAT, 7)));
+        Assert.assertSame(message, table.remove(PendingTable.key(PendingTable.MESSAGE, 7)));
+    }
+
+    /**
+     * Entries added and removed by concurrent threads are all accounted for,
+     * a drain returns what is left.
+     */
+    @Test(timeout = 10000)
+    public void concurrencyTest() throws InterruptedException
+    {
+        final PendingTable table = new PendingTable();
+        final AtomicInteger ids = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 16; t++) {
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < 20000; i++) {
+                        int id = ids.incrementAndGet();
+                        PendingMessage entry = new PendingMessage(null, null);
+                        table.put(PendingTable.key(PendingTable.MESSAGE, id), entry);
+                        // Keep every tenth entry
+                        if (id % 10 != 0 && table.remove(PendingTable.key(PendingTable.MESSAGE, id)) != entry)
+                            throw new AssertionError("Lost entry " + id);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(32000, table.size());
+        List<PendingMessage> drained = new ArrayList<PendingMessage>();
+        table.drainTo(drained);
+        Assert.assertEquals(32000, new HashSet<PendingMessage>(drained).size());
+        Assert.assertEquals(0, table.size());
+    }
+
+}
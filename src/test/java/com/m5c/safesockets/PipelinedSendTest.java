@@ -0,0 +1,98 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the asynchronous send API and the backpressure applied by the send
+ * window.
+ *
+ * @author m5c
+ */
+public class PipelinedSendTest extends AbstractTest
+{
+
+    private static final int WINDOW = 8;
+
+    public PipelinedSendTest()
+    {
+        options.setMaxInFlightMessages(WINDOW);
+    }
+
+    /**
+     * A single thread pipelines a burst of messages. Every future must report
+     * an ACK and every message must arrive.
+     */
+    @Test(timeout = 10000)
+    public void pipelinedReceptionTest() throws IOException, InterruptedException, ExecutionException
+    {
+        resetBreakdownFlag();
+        resetReceivedMessageList();
+        SafeSocketPair pair = setupMasterSlaveConnection();
+
+        int amount = 500;
+        long burstStartTimestamp = System.currentTimeMillis();
+        List<CompletableFuture<Boolean>> acks = new LinkedList<CompletableFuture<Boolean>>();
+        for (int i = 0; i < amount; i++) {
+            acks.add(pair.getMaster().sendMessageAsync("Message " + i));
+        }
+        for (CompletableFuture<Boolean> ack : acks) {
+            Assert.assertTrue(ack.get());
+        }
+        System.out.println("Pipelined " + amount + " messages in " + (System.currentTimeMillis() - burstStartTimestamp) + "ms.");
+
+        // wait until all messages have been processed by the observers
+        while (receivedMessages.size() < amount) {
+            Thread.sleep(20);
+        }
+        for (int i = 0; i < amount; i++) {
+            Assert.assertTrue(receivedMessages.contains("Message " + i));
+        }
+        Assert.assertNull(mostRecentIntendedFlag);
+
+        shutDownConnection(false, pair);
+    }
+
+    /**
+     * With a window of size one, a message can only be sent once the previous
+     * one has been ACKed.
+     */
+    @Test(timeout = 10000)
+    public void backpressureTest() throws IOException, InterruptedException, ExecutionException
+    {
+        options.setMaxInFlightMessages(1);
+        SafeSocketPair pair = setupMasterSlaveConnection();
+        options.setMaxInFlightMessages(WINDOW);
+
+        CompletableFuture<Boolean> previous = pair.getMaster().sendMessageAsync("First");
+        for (int i = 0; i < 50; i++) {
+            CompletableFuture<Boolean> next = pair.getMaster().sendMessageAsync("Next " + i);
+            Assert.assertTrue(previous.isDone());
+            Assert.assertTrue(previous.get());
+            previous = next;
+        }
+        Assert.assertTrue(previous.get());
+
+        shutDownConnection(true, pair);
+    }
+
+    /**
+     * Futures of messages sent on a dead connection complete with false
+     * instead of staying pending.
+     */
+    @Test(timeout = 2000)
+    public void noAckOnBrokenTest() throws IOException, InterruptedException, ExecutionException
+    {
+        SafeSocketPair pair = setupMasterSlaveConnectionCustamAckAndDelay(5, 4);
+        Thread.sleep(50);
+
+        Assert.assertFalse(pair.getMaster().sendMessageAsync("Pi. Pa. Po.").get());
+        Assert.assertFalse(pair.getSlave().sendMessageAsync("Po. Pa. Pi.").get());
+    }
+
+}
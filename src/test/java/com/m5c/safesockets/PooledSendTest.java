@@ -0,0 +1,128 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Tests the pooled send: once warmed up, blocking sends must not allocate on
+ * the sending thread, and missing ACKs must still break the connection.
+ *
+ * @author m5c
+ */
+public class PooledSendTest extends AbstractTest
+{
+
+    private static final int WARM_UP_MESSAGES = 20000;
+    private static final int MESSAGES = 5000;
+
+    public PooledSendTest()
+    {
+        super(1000, 3000);
+        options.setWireFormat(WireFormat.FRAMED).setAckMode(AckMode.SEQUENCE).setIntegrityCheck(true).setPooledSend(true);
+    }
+
+    /**
+     * Fails if a String or binary message allocates anything on the sending
+     * thread after warm-up.
+     */
+    @Test(timeout = 60000)
+    public void allocationTest() throws IOException, InterruptedException
+    {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+        long threadId = Thread.currentThread().getId();
+        SafeSocketPair pair = setupMasterSlaveConnection();
+        SafeSocket sender = pair.getMaster();
+        String message = "Pooled message";
+        ByteBuffer binaryMessage = ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+
+        for (int i = 0; i < WARM_UP_MESSAGES; i++) {
+            Assert.assertTrue(sender.sendMessage(message));
+            Assert.assertTrue(sender.sendMessage(binaryMessage));
+        }
+
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MESSAGES; i++) {
+            if (!sender.sendMessage(message))
+                Assert.fail();
+        }
+        long stringBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MESSAGES; i++) {
+            if (!sender.sendMessage(binaryMessage))
+                Assert.fail();
+        }
+        long binaryBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        System.out.println("Pooled send: " + (double) stringBytes / MESSAGES + " bytes allocated per String message, " + (double) binaryBytes / MESSAGES + " per binary message.");
+        Assert.assertEquals(0, stringBytes);
+        Assert.assertEquals(0, binaryBytes);
+        shutDownConnection(true, pair);
+    }
+
+    /**
+     * Messages must arrive, in order, and the async variant still works on a
+     * pooled connection.
+     */
+    @Test(timeout = 10000)
+    public void deliveryTest() throws IOException, InterruptedException
+    {
+        SafeSocketPair pair = setupMasterSlaveConnection();
+        Assert.assertTrue(pair.getMaster().sendMessage("First"));
+        Assert.assertTrue(pair.getMaster().sendMessageAsync("Second").join());
+        Assert.assertTrue(pair.getMaster().sendMessage("Third é€😀"));
+        while (receivedMessages.size() < 3) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("First", receivedMessages.get(0));
+        Assert.assertEquals("Second", receivedMessages.get(1));
+        Assert.assertEquals("Third é€😀", receivedMessages.get(2));
+        shutDownConnection(true, pair);
+    }
+
+    /**
+     * Without message ACKs (heartbeats still pass) the watchdog must break the
+     * connection and release the sender, within the timeout.
+     */
+    @Test(timeout = 10000)
+    public void missingAckTest() throws IOException, InterruptedException
+    {
+        SafeSocketPair pair = setupMasterSlaveConnection(-1, new AckDropFilter());
+        long start = System.currentTimeMillis();
+        Assert.assertFalse(pair.getMaster().sendMessage("Never acknowledged"));
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertTrue(elapsed >= timeout - 50 && elapsed < timeout + 500);
+        while (mostRecentIntendedFlag == null) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(mostRecentIntendedFlag);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void textFormatRejectedTest()
+    {
+        new SafeSocketOptions().setPooledSend(true).setAckMode(AckMode.SEQUENCE).validate();
+    }
+
+    /**
+     * Drops the message ACKs of the slave side.
+     */
+    private static class AckDropFilter implements Filter
+    {
+
+        @Override
+        public String filter(String input)
+        {
+            if (input.startsWith(InternalMessages.MESSAGE_ACK))
+                return InternalMessages.MESSAGE_DISCARDED;
+            return input;
+        }
+
+    }
+
+}
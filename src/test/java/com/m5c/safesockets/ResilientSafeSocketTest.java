@@ -0,0 +1,224 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests resilient sessions: a connection breakdown must cost neither messages
+ * nor duplicates, and sessions must end once they cannot be resumed in time
+ * or are closed.
+ *
+ * @author m5c
+ */
+public class ResilientSafeSocketTest extends AbstractTest implements SessionObserver
+{
+
+    private static final int SERVER_PORT = PORT + 3;
+    private static final int SESSION_TIMEOUT = 1500;
+
+    private final List<ResilientSafeSocket> sessions = Collections.synchronizedList(new LinkedList<ResilientSafeSocket>());
+    private final List<String> clientReceived = Collections.synchronizedList(new LinkedList<String>());
+    private final List<Boolean> clientBreakdowns = Collections.synchronizedList(new LinkedList<Boolean>());
+    private final Blackout blackout = new Blackout();
+
+    public ResilientSafeSocketTest()
+    {
+        super(100, 400);
+        options.setSessionResumption(64, SESSION_TIMEOUT).setReconnectBackoff(10, 100);
+    }
+
+    @Override
+    public void notifySessionObserver(ResilientSafeSocket session)
+    {
+        sessions.add(session);
+    }
+
+    /**
+     * Messages sent in both directions while the client receives nothing
+     * (e.g. a failing router) arrive exactly once after the session has been
+     * resumed, and all sends succeed.
+     */
+    @Test(timeout = 20000)
+    public void resumptionTest() throws IOException, InterruptedException
+    {
+        ResilientSafeSocketServer server = new ResilientSafeSocketServer(SERVER_PORT, heartBeatRate, timeout, messageObservers, breakdownObservers, new DefaultFilter(), new DefaultFilter(), options, this);
+        ResilientSafeSocket client = connectClient();
+        ResilientSafeSocket session = sessions.get(0);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(client.sendMessage("Before " + i));
+            Assert.assertTrue(session.sendMessage("Reply " + i));
+        }
+        SafeSocket firstConnection = client.getConnection();
+
+        blackout.active = true;
+        List<CompletableFuture<Boolean>> acks = new ArrayList<CompletableFuture<Boolean>>();
+        for (int i = 0; i < 20; i++) {
+            acks.add(client.sendMessageAsync("During " + i));
+            acks.add(session.sendMessageAsync("Reply during " + i));
+        }
+        while (client.isConnected()) {
+            Thread.sleep(5);
+        }
+        long breakdown = System.currentTimeMillis();
+        blackout.active = false;
+        for (CompletableFuture<Boolean> ack : acks) {
+            Assert.assertTrue(ack.join());
+        }
+        System.out.println("Resilient session: resumed and replayed within " + (System.currentTimeMillis() - breakdown) + " ms.");
+
+        while (receivedMessages.size() < 40 || clientReceived.size() < 40) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        Assert.assertEquals(40, receivedMessages.size());
+        Assert.assertEquals(40, clientReceived.size());
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(receivedMessages.contains("During " + i));
+            Assert.assertTrue(clientReceived.contains("Reply during " + i));
+        }
+        Assert.assertEquals(1, client.getResumptions());
+        Assert.assertEquals(1, session.getResumptions());
+        Assert.assertNotSame(firstConnection, client.getConnection());
+        Assert.assertFalse(firstConnection.isSocketAlive());
+        Assert.assertEquals(0, client.getUnacknowledgedMessages());
+        Assert.assertEquals(0, session.getUnacknowledgedMessages());
+        Assert.assertTrue(clientBreakdowns.isEmpty());
+        Assert.assertNull(mostRecentIntendedFlag);
+
+        client.close();
+        server.close();
+    }
+
+    /**
+     * If the session cannot be resumed within the session timeout, both sides
+     * give up: pending sends fail and the BreakdownObservers learn about the
+     * unintended breakdown.
+     */
+    @Test(timeout = 20000)
+    public void sessionLostTest() throws IOException, InterruptedException
+    {
+        ResilientSafeSocketServer server = new ResilientSafeSocketServer(SERVER_PORT, heartBeatRate, timeout, messageObservers, breakdownObservers, new DefaultFilter(), new DefaultFilter(), options, this);
+        ResilientSafeSocket client = connectClient();
+        ResilientSafeSocket session = sessions.get(0);
+        blackout.active = true;
+        CompletableFuture<Boolean> ack = session.sendMessageAsync("Never delivered");
+        while (client.isConnected()) {
+            Thread.sleep(5);
+        }
+        long breakdown = System.currentTimeMillis();
+        while (client.isAlive() || clientBreakdowns.isEmpty()) {
+            Thread.sleep(10);
+        }
+        long detection = System.currentTimeMillis() - breakdown;
+        System.out.println("Resilient session: given up " + detection + " ms after the breakdown.");
+        Assert.assertTrue(detection >= SESSION_TIMEOUT - 100 && detection < SESSION_TIMEOUT + 1000);
+        Assert.assertFalse(ack.join());
+        Assert.assertFalse(clientBreakdowns.get(0));
+        while (mostRecentIntendedFlag == null) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(mostRecentIntendedFlag);
+        Assert.assertFalse(session.isAlive());
+        Assert.assertFalse(client.sendMessage("Too late"));
+        Assert.assertEquals(0, server.getSessionCount());
+        server.close();
+    }
+
+    /**
+     * Closing ends the session on both sides, intended.
+     */
+    @Test(timeout = 20000)
+    public void closeTest() throws IOException, InterruptedException
+    {
+        ResilientSafeSocketServer server = new ResilientSafeSocketServer(SERVER_PORT, heartBeatRate, timeout, messageObservers, breakdownObservers, new DefaultFilter(), new DefaultFilter(), options, this);
+        ResilientSafeSocket client = connectClient();
+        Assert.assertEquals(1, server.getSessionCount());
+        Assert.assertSame(sessions.get(0), server.getSession(sessions.get(0).getConnection()));
+        client.close();
+        while (mostRecentIntendedFlag == null) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(mostRecentIntendedFlag);
+        Assert.assertTrue(clientBreakdowns.get(0));
+        Assert.assertEquals(0, server.getSessionCount());
+        Assert.assertEquals(0, client.getResumptions());
+        server.close();
+    }
+
+    @Test
+    public void duplicateWindowTest()
+    {
+        DuplicateWindow window = new DuplicateWindow(4);
+        Assert.assertTrue(window.accept(2));
+        Assert.assertEquals(0, window.getFloor());
+        Assert.assertTrue(window.accept(1));
+        Assert.assertEquals(2, window.getFloor());
+        Assert.assertFalse(window.accept(1));
+        Assert.assertFalse(window.accept(2));
+        Assert.assertTrue(window.accept(4));
+        Assert.assertFalse(window.accept(4));
+        Assert.assertEquals(2, window.getFloor());
+
+        // Far ahead: the window moves, the skipped gap counts as received
+        Assert.assertTrue(window.accept(9));
+        Assert.assertEquals(5, window.getFloor());
+        Assert.assertFalse(window.accept(3));
+        Assert.assertTrue(window.accept(6));
+        Assert.assertEquals(6, window.getFloor());
+    }
+
+    /**
+     * Connects a client whose incoming traffic can be blacked out, blocks
+     * until the server has the session.
+     */
+    private ResilientSafeSocket connectClient() throws IOException, InterruptedException
+    {
+        Collection<MessageObserver> clientObservers = Collections.<MessageObserver>singletonList(new MessageObserver()
+        {
+            @Override
+            public void notifyMessageObserver(SafeSocket safeSocket, String message)
+            {
+                clientReceived.add(message);
+            }
+        });
+        Collection<BreakdownObserver> clientBreakdownObservers = Collections.<BreakdownObserver>singletonList(new BreakdownObserver()
+        {
+            @Override
+            public void notifyBreakdownObserver(SafeSocket safeSocket, boolean intended)
+            {
+                clientBreakdowns.add(intended);
+            }
+        });
+        ResilientSafeSocket client = new ResilientSafeSocket("localhost", SERVER_PORT, heartBeatRate, timeout, clientObservers, clientBreakdownObservers, blackout, new DefaultFilter(), options);
+        while (sessions.isEmpty()) {
+            Thread.sleep(10);
+        }
+        return client;
+    }
+
+    /**
+     * Discards all incoming traffic while active.
+     */
+    private static class Blackout implements Filter
+    {
+
+        private volatile boolean active = false;
+
+        @Override
+        public String filter(String input)
+        {
+            if (active)
+                return InternalMessages.MESSAGE_DISCARDED;
+            return input;
+        }
+
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the striped SafeSocketGroup: spreading of messages, ordering keys
+ * and the degradation if a stripe breaks down.
+ *
+ * @author m5c
+ */
+public class SafeSocketGroupTest extends AbstractTest implements ConnectionObserver
+{
+
+    private static final int SERVER_PORT = PORT + 2;
+    private static final int STRIPES = 4;
+
+    private final List<SafeSocket> acceptedSockets = Collections.synchronizedList(new LinkedList<SafeSocket>());
+
+    public SafeSocketGroupTest()
+    {
+        super(1000, 3000);
+    }
+
+    @Override
+    public void notifyConnectionObserver(SafeSocket safeSocket)
+    {
+        acceptedSockets.add(safeSocket);
+    }
+
+    /**
+     * Round robin puts the same share of messages on every stripe.
+     */
+    @Test(timeout = 20000)
+    public void roundRobinTest() throws IOException, InterruptedException
+    {
+        SafeSocketServer server = new SafeSocketServer(SERVER_PORT, heartBeatRate, timeout, messageObservers, breakdownObservers, this);
+        SafeSocketGroup group = connectGroup(StripePolicy.ROUND_ROBIN);
+        for (int i = 0; i < 100 * STRIPES; i++) {
+            Assert.assertTrue(group.sendMessage("Striped " + i));
+        }
+        for (SafeSocket accepted : acceptedSockets) {
+            Assert.assertEquals(100, accepted.getMetrics().getMessagesReceived());
+        }
+        for (SafeSocket stripe : group.getStripes()) {
+            Assert.assertEquals(100, stripe.getMetrics().getMessagesSent());
+        }
+        group.close();
+        server.close();
+    }
+
+    /**
+     * Messages with the same key go through one stripe and arrive in order,
+     * even when sent concurrently with unkeyed ones.
+     */
+    @Test(timeout = 20000)
+    public void orderingKeyTest() throws IOException, InterruptedException
+    {
+        SafeSocketServer server = new SafeSocketServer(SERVER_PORT, heartBeatRate, timeout, messageObservers, breakdownObservers, this);
+        final SafeSocketGroup group = connectGroup(StripePolicy.LEAST_IN_FLIGHT);
+        Thread noise = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < 200; i++) {
+                    group.sendMessageAsync("Noise " + i);
+                }
+            }
+        });
+        noise.start();
+        for (int i = 0; i < 200; i++) {
+            Assert.assertTrue(group.sendMessageAsync("Keyed " + i, "key").join());
+        }
+        noise.join();
+        while (receivedMessages.size() < 400) {
+            Thread.sleep(10);
+        }
+
+        int expected = 0;
+        synchronized (receivedMessages) {
+            for (String message : receivedMessages) {
+                if (message.startsWith("Keyed "))
+                    Assert.assertEquals("Keyed " + expected++, message);
+            }
+        }
+        Assert.assertEquals(200, expected);
+        int keyedStripes = 0;
+        for (SafeSocket stripe : group.getStripes()) {
+            if (stripe.getMetrics().getMessagesSent() >= 200)
+                keyedStripes++;
+        }
+        Assert.assertEquals(1, keyedStripes);
+        group.close();
+        server.close();
+    }
+
+    /**
+     * A stripe closed by the server is reported, the group goes on with the
+     * others, also for the key that was pinned to the lost stripe.
+     */
+    @Test(timeout = 20000)
+    public void degradationTest() throws IOException, InterruptedException
+    {
+        SafeSocketServer server = new SafeSocketServer(SERVER_PORT, heartBeatRate, timeout, messageObservers, breakdownObservers, this);
+        SafeSocketGroup group = connectGroup(StripePolicy.ROUND_ROBIN);
+        Assert.assertTrue(group.sendMessage("Pinned", "key"));
+        SafeSocket pinned = null;
+        for (SafeSocket accepted : acceptedSockets) {
+            if (accepted.getMetrics().getMessagesReceived() == 1)
+                pinned = accepted;
+        }
+        mostRecentIntendedFlag = null;
+        pinned.close();
+        while (group.getLiveStripes() == STRIPES) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(group.isAlive());
+        Assert.assertEquals(STRIPES - 1, group.getLiveStripes());
+        while (mostRecentIntendedFlag == null) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(mostRecentIntendedFlag);
+
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(group.sendMessage("Degraded " + i));
+            Assert.assertTrue(group.sendMessage("Still pinned " + i, "key"));
+        }
+        group.close();
+        Assert.assertFalse(group.isAlive());
+        Assert.assertFalse(group.sendMessage("Too late"));
+        server.close();
+    }
+
+    private SafeSocketGroup connectGroup(StripePolicy policy) throws IOException, InterruptedException
+    {
+        acceptedSockets.clear();
+        receivedMessages.clear();
+        SafeSocketGroup group = new SafeSocketGroup("localhost", SERVER_PORT, STRIPES, policy, heartBeatRate, timeout, messageObservers, breakdownObservers);
+        while (acceptedSockets.size() < STRIPES) {
+            Thread.sleep(10);
+        }
+        return group;
+    }
+
+}
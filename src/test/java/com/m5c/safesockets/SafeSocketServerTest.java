@@ -0,0 +1,138 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the multi client SafeSocketServer and the asynchronous client
+ * connect.
+ *
+ * @author m5c
+ */
+public class SafeSocketServerTest extends AbstractTest implements ConnectionObserver
+{
+
+    private static final int SERVER_PORT = PORT + 1;
+
+    private final List<SafeSocket> acceptedSockets = Collections.synchronizedList(new LinkedList<SafeSocket>());
+
+    public SafeSocketServerTest()
+    {
+        // Relaxed heartbeat rate, many connections share the machine.
+        super(1000, 3000);
+    }
+
+    @Override
+    public void notifyConnectionObserver(SafeSocket safeSocket)
+    {
+        acceptedSockets.add(safeSocket);
+    }
+
+    /**
+     * A single server must serve many clients, each client's messages must
+     * arrive.
+     */
+    @Test(timeout = 20000)
+    public void multipleClientsTest() throws IOException, InterruptedException, ExecutionException
+    {
+        SafeSocketServer server = new SafeSocketServer(SERVER_PORT, heartBeatRate, timeout, messageObservers, breakdownObservers, this);
+        List<SafeSocket> clients = connectClients(50, options);
+        for (SafeSocket client : clients) {
+            Assert.assertTrue(client.sendMessage("Hello from client"));
+        }
+        while (receivedMessages.size() < 50) {
+            Thread.sleep(20);
+        }
+
+        // Server side sockets are fully operational as well
+        while (acceptedSockets.size() < 50) {
+            Thread.sleep(20);
+        }
+        for (SafeSocket accepted : acceptedSockets) {
+            Assert.assertTrue(accepted.isMaster());
+            Assert.assertTrue(accepted.sendMessage("Hello from server"));
+        }
+
+        server.close();
+        closeAll(clients);
+    }
+
+    /**
+     * A few hundred clients connecting at once (as after a failover) must all
+     * be served. Prints the accept rate, for both threading models.
+     */
+    @Test(timeout = 60000)
+    public void connectionStormTest() throws IOException, InterruptedException, ExecutionException
+    {
+        SafeSocketEngine engine = new SafeSocketEngine(2);
+        SafeSocketOptions[] models = new SafeSocketOptions[]{new SafeSocketOptions(), new SafeSocketOptions().setEngine(engine)};
+        for (SafeSocketOptions model : models) {
+            acceptedSockets.clear();
+            SafeSocketServer server = new SafeSocketServer(SERVER_PORT, heartBeatRate, timeout, messageObservers, breakdownObservers, new DefaultFilter(), new DefaultFilter(), model, this);
+
+            int amount = 500;
+            long start = System.nanoTime();
+            List<SafeSocket> clients = connectClients(amount, model);
+            while (acceptedSockets.size() < amount) {
+                Thread.sleep(1);
+            }
+            long millis = (System.nanoTime() - start) / 1000000;
+            System.out.println((model.getEngine() == null ? "thread per socket" : "engine") + ": "
+                    + amount + " clients connected in " + millis + "ms.");
+
+            server.close();
+            closeAll(clients);
+        }
+        engine.shutdown();
+    }
+
+    /**
+     * Connecting to a port nobody listens on completes the future
+     * exceptionally.
+     */
+    @Test(timeout = 5000)
+    public void failedConnectTest() throws InterruptedException
+    {
+        CompletableFuture<SafeSocket> connection = SafeSocket.connectAsync("localhost", SERVER_PORT, heartBeatRate, timeout, messageObservers, breakdownObservers);
+        try {
+            connection.get();
+            Assert.fail("Connect to closed port succeeded.");
+        }
+        catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IOException);
+        }
+    }
+
+    private List<SafeSocket> connectClients(int amount, SafeSocketOptions clientOptions) throws InterruptedException, ExecutionException
+    {
+        List<CompletableFuture<SafeSocket>> connections = new LinkedList<CompletableFuture<SafeSocket>>();
+        for (int i = 0; i < amount; i++) {
+            connections.add(SafeSocket.connectAsync("localhost", SERVER_PORT, heartBeatRate, timeout, messageObservers, breakdownObservers, new DefaultFilter(), new DefaultFilter(), clientOptions));
+        }
+        List<SafeSocket> clients = new LinkedList<SafeSocket>();
+        for (CompletableFuture<SafeSocket> connection : connections) {
+            clients.add(connection.get());
+        }
+        return clients;
+    }
+
+    private void closeAll(List<SafeSocket> clients) throws InterruptedException
+    {
+        for (SafeSocket client : clients) {
+            client.close();
+        }
+        for (SafeSocket accepted : acceptedSockets) {
+            while (accepted.isSocketAlive()) {
+                Thread.sleep(10);
+            }
+        }
+        Assert.assertTrue(mostRecentIntendedFlag);
+    }
+
+}
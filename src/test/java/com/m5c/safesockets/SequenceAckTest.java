@@ -0,0 +1,91 @@
+package com.m5c.safesockets;
+
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests acknowledgement by sequence number and the optional integrity check,
+ * for both wire formats.
+ *
+ * @author m5c
+ */
+public class SequenceAckTest extends AbstractTest
+{
+
+    public SequenceAckTest()
+    {
+        options.setAckMode(AckMode.SEQUENCE).setIntegrityCheck(true);
+    }
+
+    @Test(timeout = 10000)
+    public void textReceptionTest() throws IOException, InterruptedException
+    {
+        receptionTest(WireFormat.TEXT);
+    }
+
+    @Test(timeout = 10000)
+    public void framedReceptionTest() throws IOException, InterruptedException
+    {
+        receptionTest(WireFormat.FRAMED);
+    }
+
+    /**
+     * A message manipulated on its way no longer matches its checksum. The
+     * receiver must not deliver it and consider the connection broken.
+     */
+    @Test(timeout = 5000)
+    public void corruptedMessageTest() throws IOException, InterruptedException
+    {
+        for (WireFormat wireFormat : WireFormat.values()) {
+            resetReceivedMessageList();
+            options.setWireFormat(wireFormat);
+            SafeSocketPair pair = setupMasterSlaveConnection(-1, new CorruptingFilter());
+
+            Assert.assertFalse(pair.getMaster().sendMessage("Toto"));
+
+            // The sender is unblocked before the breakdown observers are notified
+            while (mostRecentIntendedFlag == null) {
+                Thread.sleep(10);
+            }
+            Assert.assertFalse(mostRecentIntendedFlag);
+            Assert.assertTrue(receivedMessages.isEmpty());
+        }
+    }
+
+    private void receptionTest(WireFormat wireFormat) throws IOException, InterruptedException
+    {
+        resetBreakdownFlag();
+        resetReceivedMessageList();
+        options.setWireFormat(wireFormat);
+        SafeSocketPair pair = setupMasterSlaveConnection();
+
+        // Identical messages must still be acknowledged individually
+        int amount = 50;
+        for (int i = 0; i < amount; i++) {
+            Assert.assertTrue(pair.getMaster().sendMessage("Toto"));
+            Assert.assertTrue(pair.getSlave().sendMessage("Toto"));
+        }
+        while (receivedMessages.size() < 2 * amount) {
+            Thread.sleep(20);
+        }
+        Assert.assertNull(mostRecentIntendedFlag);
+
+        shutDownConnection(true, pair);
+    }
+
+    /**
+     * Replaces any "Toto" by "Tata", leaves the rest of the traffic intact.
+     */
+    private static class CorruptingFilter implements Filter
+    {
+
+        @Override
+        public String filter(String input)
+        {
+            return input.replace("Toto", "Tata");
+        }
+
+    }
+
+}
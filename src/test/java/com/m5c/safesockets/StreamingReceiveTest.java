@@ -0,0 +1,173 @@
+package com.m5c.safesockets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the delivery of large messages: streaming receive, the max message
+ * size and the assembly of large messages sent in parts.
+ *
+ * @author m5c
+ */
+public class StreamingReceiveTest extends AbstractTest implements StreamingMessageObserver
+{
+
+    private final List<String> streamedMessages = Collections.synchronizedList(new LinkedList<String>());
+
+    // Streams are only read once the gate is open
+    private volatile CountDownLatch gate = new CountDownLatch(0);
+
+    public StreamingReceiveTest()
+    {
+        // Relaxed heartbeat rate, the client side only tolerates half a period of heartbeat jitter while megabytes are parsed.
+        super(1000, 3000);
+        options.setAckMode(AckMode.SEQUENCE).setIntegrityCheck(true);
+    }
+
+    @Override
+    public void notifyStreamingMessageObserver(SafeSocket safeSocket, InputStream message)
+    {
+        try {
+            gate.await();
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = message.read(buffer)) >= 0) {
+                content.write(buffer, 0, read);
+            }
+            streamedMessages.add(new String(content.toByteArray(), StandardCharsets.UTF_8));
+        }
+        catch (IOException | InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Large multi line messages must arrive unaltered as streams, in order,
+     * for both wire formats. Plain MessageObservers do not see them.
+     */
+    @Test(timeout = 20000)
+    public void streamedMessageTest() throws IOException, InterruptedException
+    {
+        String large = createMessage(20000);
+        for (WireFormat wireFormat : WireFormat.values()) {
+            resetBreakdownFlag();
+            resetReceivedMessageList();
+            streamedMessages.clear();
+            options.setWireFormat(wireFormat).setStreamingReceive(true);
+            SafeSocketPair pair = setupMasterSlaveConnection();
+
+            Assert.assertTrue(pair.getMaster().sendMessage("\nLeading empty line"));
+            Assert.assertTrue(pair.getMaster().sendMessage(large));
+            Assert.assertTrue(pair.getMaster().sendMessage("Small"));
+            // The ACK goes out as the observer reaches the end of the stream, slightly before it stores the message
+            while (streamedMessages.size() < 3) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals("\nLeading empty line", streamedMessages.get(0));
+            Assert.assertEquals(large, streamedMessages.get(1));
+            Assert.assertEquals("Small", streamedMessages.get(2));
+            Assert.assertTrue(receivedMessages.isEmpty());
+
+            shutDownConnection(true, pair);
+        }
+    }
+
+    /**
+     * The ACK must not be sent before the observer has read the message.
+     */
+    @Test(timeout = 10000)
+    public void ackAfterConsumptionTest() throws IOException, InterruptedException, ExecutionException
+    {
+        options.setWireFormat(WireFormat.FRAMED).setStreamingReceive(true);
+        SafeSocketPair pair = setupMasterSlaveConnection();
+
+        gate = new CountDownLatch(1);
+        CompletableFuture<Boolean> ack = pair.getMaster().sendMessageAsync(createMessage(1000));
+        Thread.sleep(300);
+        Assert.assertFalse(ack.isDone());
+        gate.countDown();
+        Assert.assertTrue(ack.get());
+
+        shutDownConnection(true, pair);
+    }
+
+    /**
+     * Large messages sent in parts (FRAMED) and many lines (TEXT) must be
+     * assembled correctly, and quickly, without streaming as well.
+     */
+    @Test(timeout = 20000)
+    public void largeMessageTest() throws IOException, InterruptedException
+    {
+        String large = createMessage(100000);
+        for (WireFormat wireFormat : WireFormat.values()) {
+            resetBreakdownFlag();
+            resetReceivedMessageList();
+            options.setWireFormat(wireFormat);
+            SafeSocketPair pair = setupMasterSlaveConnection();
+
+            long start = System.nanoTime();
+            Assert.assertTrue(pair.getMaster().sendMessage(large));
+            System.out.println(wireFormat + ": " + large.length() / 1024 + " KB message with 100000 lines in " + (System.nanoTime() - start) / 1000000 + " ms.");
+            while (receivedMessages.isEmpty()) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(large, receivedMessages.get(0));
+
+            shutDownConnection(true, pair);
+        }
+    }
+
+    /**
+     * A message exceeding the max message size breaks the connection, for
+     * both wire formats and both delivery modes.
+     */
+    @Test(timeout = 20000)
+    public void maxMessageSizeTest() throws IOException, InterruptedException
+    {
+        for (WireFormat wireFormat : WireFormat.values()) {
+            for (boolean streaming : new boolean[]{false, true}) {
+                options.setWireFormat(wireFormat).setStreamingReceive(streaming).setMaxMessageSize(1000);
+                SafeSocketPair pair = setupMasterSlaveConnection();
+
+                Assert.assertTrue(pair.getMaster().sendMessage(createMessage(10)));
+                Assert.assertFalse(pair.getMaster().sendMessage(createMessage(1000)));
+                while (mostRecentIntendedFlag == null) {
+                    Thread.sleep(10);
+                }
+                Assert.assertFalse(mostRecentIntendedFlag);
+                while (pair.getSlave().isSocketAlive() || pair.getMaster().isSocketAlive()) {
+                    Thread.sleep(10);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hashModeRejectedTest() throws IOException
+    {
+        new SafeSocket("localhost", PORT, heartBeatRate, timeout, messageObservers, breakdownObservers, new DefaultFilter(), new DefaultFilter(), new SafeSocketOptions().setStreamingReceive(true));
+    }
+
+    private static String createMessage(int lines)
+    {
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            if (i > 0)
+                message.append('\n');
+            message.append("Line ").append(i).append(" of the message");
+        }
+        return message.toString();
+    }
+
+}